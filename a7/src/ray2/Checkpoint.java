@@ -0,0 +1,221 @@
+package ray2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Saves the state of a render in progress to a file every so often, so that
+ * a render that is killed can be resumed where it left off rather than
+ * started over.
+ *
+ * Each renderer decides what its state is and how to write and read it (see
+ * RayTracer.BlockProgress, ProgressiveRenderer and WavefrontRenderer); this
+ * class only writes it out, behind a short header:
+ *
+ *   magic "RAY2CKPT", version (int)
+ *   kind (UTF string): which renderer wrote the file
+ *   fingerprint (long): of the scene file and the image size and sampling,
+ *     so that a checkpoint is never resumed into a different render
+ *   the renderer's state
+ *
+ * Saves run on a thread of their own, so the render threads never wait for
+ * the disk: a renderer calls saveIfDue() with a Payload, which is cheap when
+ * no save is due, and the Payload's write() runs later on the checkpoint
+ * thread.  It must only read state that the renderer will not change any
+ * more (finished blocks or pixels), or a snapshot made for it.  If the last
+ * save has not finished, no new one is started.
+ *
+ * The state is written to a temporary file that is forced to disk and then
+ * renamed over the checkpoint, so a crash while saving leaves the previous
+ * checkpoint whole.
+ */
+public class Checkpoint {
+
+	private static final long MAGIC = 0x52415932434B5054L; // "RAY2CKPT"
+	private static final int VERSION = 1;
+
+	/** Writes a renderer's state. */
+	public interface Payload {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private final Path file, temp;
+	private final long fingerprint;
+	private final long intervalNanos;
+	private final boolean resume;
+
+	private volatile long lastSave = System.nanoTime();
+	private final AtomicBoolean saving = new AtomicBoolean();
+	private Future<?> pending;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "checkpoint");
+		t.setDaemon(true);
+		return t;
+	});
+	private volatile int saves = 0;
+
+	/**
+	 * @param fileName where the checkpoint is kept
+	 * @param fingerprint identifies the render; see fingerprint()
+	 * @param intervalSeconds the least time between saves; 0 saves whenever
+	 *   a renderer has something new
+	 * @param resume whether the render should start from the checkpoint, if
+	 *   there is one that matches
+	 */
+	public Checkpoint(String fileName, long fingerprint, double intervalSeconds, boolean resume) {
+		this.file = Paths.get(fileName);
+		this.temp = Paths.get(fileName + ".tmp");
+		this.fingerprint = fingerprint;
+		this.intervalNanos = (long) (intervalSeconds * 1e9);
+		this.resume = resume;
+	}
+
+	/**
+	 * @return a fingerprint of a render: the bytes of its scene file, and the
+	 *   settings that decide which samples go into which pixels
+	 */
+	public static long fingerprint(String sceneFile, Scene scene) throws IOException {
+		long h = 1125899906842597L;
+		for (byte b : Files.readAllBytes(Paths.get(sceneFile)))
+			h = 31 * h + b;
+		Image image = scene.getImage();
+		long[] settings = { image.getWidth(), image.getHeight(), scene.getSamples(), scene.getPacketSize(),
+				scene.getMaxDepth(), Double.doubleToLongBits(scene.getExposure()),
+				scene.getSampler().getClass().getName().hashCode(), scene.getSampler().getSeed() };
+		for (long s : settings)
+			h = 31 * h + s;
+		return h;
+	}
+
+	/**
+	 * Open the checkpoint to resume from, if resuming was asked for and there
+	 * is a checkpoint of the same kind and fingerprint.
+	 *
+	 * @param kind which renderer is asking
+	 * @return the renderer's state, to be read and closed by the caller; or
+	 *   null to start from the beginning
+	 */
+	public DataInputStream open(String kind) throws IOException {
+		if (!resume)
+			return null;
+		InputStream in;
+		try {
+			in = Files.newInputStream(file);
+		} catch (NoSuchFileException e) {
+			System.out.println("Checkpoint: no " + file + ", starting from the beginning");
+			return null;
+		}
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+		if (data.readLong() != MAGIC || data.readInt() != VERSION || !data.readUTF().equals(kind)
+				|| data.readLong() != fingerprint) {
+			data.close();
+			System.out.println("Checkpoint: " + file + " is for a different render, starting from the beginning");
+			return null;
+		}
+		System.out.println("Checkpoint: resuming from " + file);
+		return data;
+	}
+
+	/**
+	 * @return whether saveIfDue() would start a save now; renderers that need
+	 *   to snapshot their state for a save can check this first
+	 */
+	public boolean isDue() {
+		return System.nanoTime() - lastSave >= intervalNanos && !saving.get();
+	}
+
+	/**
+	 * Start saving the renderer's state, if the interval has passed since the
+	 * last save and no save is under way.  Returns at once.
+	 *
+	 * @param kind which renderer is saving
+	 * @param payload writes the state, later, on the checkpoint thread
+	 * @return whether a save was started
+	 */
+	public boolean saveIfDue(String kind, Payload payload) {
+		if (System.nanoTime() - lastSave < intervalNanos || !saving.compareAndSet(false, true))
+			return false;
+		synchronized (this) {
+			lastSave = System.nanoTime();
+			pending = writer.submit(() -> {
+				try {
+					write(kind, payload);
+				} catch (IOException e) {
+					System.err.println("Checkpoint: could not save " + file + ": " + e);
+				} finally {
+					saving.set(false);
+				}
+			});
+		}
+		return true;
+	}
+
+	private void write(String kind, Payload payload) throws IOException {
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(kind);
+			out.writeLong(fingerprint);
+			payload.write(out);
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		saves++;
+	}
+
+	/** Wait for the save under way, if any, to finish. */
+	public void flush() {
+		Future<?> f;
+		synchronized (this) {
+			f = pending;
+		}
+		if (f == null)
+			return;
+		try {
+			f.get();
+		} catch (Exception e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * The render is done and its image written: wait for any save, stop the
+	 * checkpoint thread and delete the checkpoint.
+	 */
+	public void finish() {
+		flush();
+		writer.shutdown();
+		try {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			System.err.println("Checkpoint: could not delete " + file + ": " + e);
+		}
+		if (saves > 0)
+			System.out.println("Checkpoint: " + saves + " saves");
+	}
+
+	/** @return the number of saves that have finished */
+	public int getSaveCount() {
+		return saves;
+	}
+}
@@ -0,0 +1,149 @@
+package ray2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ray2.tests.TestUtils;
+
+public class CheckpointTests {
+
+	private final File file = new File(System.getProperty("java.io.tmpdir"), "checkpoint-test.ckpt");
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+
+	/** Thrown from a progress callback to stop a render, as a kill would. */
+	private static class Killed extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static Scene scene(int width, int height, int samples) {
+		Scene scene = TestUtils.sphereScene(new ProgressiveRendererTests.NoiseIntegrator(), width, height);
+		scene.setSamples(samples);
+		scene.init();
+		return scene;
+	}
+
+	private Checkpoint checkpoint(boolean resume) {
+		return new Checkpoint(file.getPath(), 4620, 0, resume);
+	}
+
+	@Test
+	public void testBlocksResume() {
+		Scene scene = scene(70, 40, 2);
+		Image expected = new Image(70, 40);
+		RayTracer.renderBlock(scene, expected, 0, 0, 70, 40);
+
+		// Render half the blocks, then stop
+		Image image = new Image(70, 40);
+		Checkpoint checkpoint = checkpoint(false);
+		RayTracer.BlockProgress blocks = new RayTracer.BlockProgress(image, 32, 32, checkpoint);
+		assertEquals(6, blocks.numBlocks);
+		for (int i = 0; i < 3; i++) {
+			RayTracer.renderBlock(scene, image, blocks.blockX[i], blocks.blockY[i], blocks.sizeX[i], blocks.sizeY[i]);
+			blocks.finished(i);
+			checkpoint.flush();
+		}
+
+		// Resume into a new image, and render the blocks that are left
+		image = new Image(70, 40);
+		blocks = new RayTracer.BlockProgress(image, 32, 32, checkpoint(true));
+		for (int i = 0; i < blocks.numBlocks; i++) {
+			assertEquals(i < 3, blocks.isDone(i));
+			if (!blocks.isDone(i))
+				RayTracer.renderBlock(scene, image, blocks.blockX[i], blocks.blockY[i], blocks.sizeX[i], blocks.sizeY[i]);
+		}
+		assertArrayEquals(expected.getData(), image.getData(), 0);
+	}
+
+	@Test
+	public void testProgressiveResume() {
+		ProgressiveRenderer progressive = new ProgressiveRenderer();
+		progressive.setMinSamples(4);
+		progressive.setMaxSamples(64);
+		progressive.setTargetError(0.05);
+		Scene scene = scene(24, 24, 1);
+		Image expected = new Image(24, 24);
+		progressive.render(scene, expected, null);
+		int[] expectedCounts = progressive.getSampleCounts().clone();
+
+		Checkpoint checkpoint = checkpoint(false);
+		int[] passes = { 0 };
+		try {
+			progressive.render(scene, new Image(24, 24), image -> {
+				checkpoint.flush();
+				if (++passes[0] == 2)
+					throw new Killed();
+			}, checkpoint);
+		} catch (Killed e) {
+			checkpoint.flush();
+		}
+		assertEquals(2, checkpoint.getSaveCount());
+
+		Image image = new Image(24, 24);
+		progressive.render(scene, image, null, checkpoint(true));
+		assertArrayEquals(expectedCounts, progressive.getSampleCounts());
+		assertArrayEquals(expected.getData(), image.getData(), 0);
+	}
+
+	@Test
+	public void testWavefrontResume() {
+		WavefrontRenderer wavefront = new WavefrontRenderer();
+		wavefront.setBatchSize(301);
+		Scene scene = scene(20, 16, 3);
+		Image expected = new Image(20, 16);
+		wavefront.render(scene, expected, null);
+
+		// Batches of 301 paths end part way through a pixel
+		for (int stopAfter : new int[] { 1, 3 }) {
+			Checkpoint checkpoint = checkpoint(false);
+			int[] batches = { 0 };
+			try {
+				wavefront.render(scene, new Image(20, 16), image -> {
+					// Let every batch's save finish, so that the last one is resumed
+					checkpoint.flush();
+					if (++batches[0] == stopAfter)
+						throw new Killed();
+				}, checkpoint);
+			} catch (Killed e) {
+				checkpoint.flush();
+			}
+			assertEquals(stopAfter, checkpoint.getSaveCount());
+
+			// The resumed render saves too, and has finished saving when it returns
+			Image image = new Image(20, 16);
+			wavefront.render(scene, image, null, checkpoint(true));
+			assertArrayEquals(expected.getData(), image.getData(), 0);
+		}
+	}
+
+	@Test
+	public void testOnlyMatchingCheckpointsResume() throws IOException {
+		Checkpoint checkpoint = checkpoint(false);
+		assertTrue(checkpoint.saveIfDue("test", out -> out.writeInt(42)));
+		checkpoint.flush();
+		assertNull(checkpoint.open("test"));
+
+		try (DataInputStream in = checkpoint(true).open("test")) {
+			assertEquals(42, in.readInt());
+		}
+		assertNull(checkpoint(true).open("other"));
+		assertNull(new Checkpoint(file.getPath(), 4621, 0, true).open("test"));
+
+		checkpoint.finish();
+		assertFalse(file.exists());
+		assertNull(checkpoint(true).open("test"));
+	}
+}
@@ -0,0 +1,216 @@
+package ray2;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Removes Monte Carlo noise from a rendered image after the fact, with a
+ * joint (cross) bilateral filter guided by the image's FeatureBuffers.
+ *
+ * Each pixel becomes a weighted average of the pixels within radius of it.
+ * The weight of a neighbor falls off with its distance, and with how much
+ * its normal, albedo and depth differ from the pixel's, so that the average
+ * stays on the same surface and does not blur geometric or texture edges,
+ * which the features show without noise.  Edges in the lighting, such as
+ * shadows, do not show in the features, so the weight also falls off with
+ * the difference in color, measured on a slightly blurred copy of the image
+ * and relative to how noisy it is at the sample count each pixel was
+ * rendered with.
+ *
+ * The filter works on the illumination rather than the color: each pixel is
+ * divided by its albedo before filtering and multiplied by it again after,
+ * so that texture detail is kept even where the lighting is averaged.
+ *
+ * The image is filtered in tiles, in parallel on RayTracer.getNumThreads()
+ * threads when there are more than one.  It costs about (2 radius + 1)^2 exp() calls a pixel.
+ */
+public class Denoiser {
+
+	/** The half width of the filter window, in pixels. */
+	protected int radius = 6;
+	public void setRadius(int radius) { this.radius = Math.max(0, radius); }
+	public int getRadius() { return radius; }
+
+	/** The standard deviation of the spatial falloff, in pixels. */
+	protected double sigmaSpatial = 4;
+	public void setSigmaSpatial(double sigmaSpatial) { this.sigmaSpatial = sigmaSpatial; }
+	public double getSigmaSpatial() { return sigmaSpatial; }
+
+	/**
+	 * The color difference, relative to the pixel's brightness, at which the
+	 * weight has fallen by about 40%, with one sample per pixel; it shrinks
+	 * as the noise does, with the square root of the number of samples.
+	 */
+	protected double sigmaColor = 1;
+	public void setSigmaColor(double sigmaColor) { this.sigmaColor = sigmaColor; }
+	public double getSigmaColor() { return sigmaColor; }
+
+	/** The same for the difference in normals (the length of n_p - n_q). */
+	protected double sigmaNormal = 0.2;
+	public void setSigmaNormal(double sigmaNormal) { this.sigmaNormal = sigmaNormal; }
+	public double getSigmaNormal() { return sigmaNormal; }
+
+	/** The same for the difference in albedo. */
+	protected double sigmaAlbedo = 0.1;
+	public void setSigmaAlbedo(double sigmaAlbedo) { this.sigmaAlbedo = sigmaAlbedo; }
+	public double getSigmaAlbedo() { return sigmaAlbedo; }
+
+	/** The same for the difference in depth, relative to the larger depth. */
+	protected double sigmaDepth = 0.05;
+	public void setSigmaDepth(double sigmaDepth) { this.sigmaDepth = sigmaDepth; }
+	public double getSigmaDepth() { return sigmaDepth; }
+
+	/** Albedos are taken to be at least this when dividing by them. */
+	private static final float MIN_ALBEDO = 0.01f;
+
+	/**
+	 * Denoise an image.
+	 *
+	 * @param image the noisy image
+	 * @param features its feature buffers, of the same size
+	 * @param samples the number of samples per pixel it was rendered with
+	 * @return a new, denoised image
+	 */
+	public Image denoise(Image image, FeatureBuffers features, int samples) {
+		int[] counts = new int[image.getWidth() * image.getHeight()];
+		Arrays.fill(counts, samples);
+		return denoise(image, features, counts);
+	}
+
+	/**
+	 * Denoise an image whose pixels have different numbers of samples, as
+	 * ProgressiveRenderer's do.
+	 *
+	 * @param image the noisy image
+	 * @param features its feature buffers, of the same size
+	 * @param samples the number of samples each pixel was rendered with
+	 * @return a new, denoised image
+	 */
+	public Image denoise(Image image, FeatureBuffers features, int[] samples) {
+		int width = image.getWidth(), height = image.getHeight();
+		if (features.getWidth() != width || features.getHeight() != height)
+			throw new Error("Image is " + width + "x" + height + " but features are "
+					+ features.getWidth() + "x" + features.getHeight());
+		float[] color = image.getData(), albedo = features.getAlbedo();
+
+		// The illumination, and a 3 x 3 box-filtered copy of it to compare colors on
+		float[] light = new float[color.length];
+		for (int k = 0; k < color.length; k++)
+			light[k] = color[k] / Math.max(albedo[k], MIN_ALBEDO);
+		float[] guide = new float[color.length];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				float r = 0, g = 0, b = 0;
+				int n = 0;
+				for (int qy = Math.max(0, y - 1); qy <= Math.min(height - 1, y + 1); qy++) {
+					for (int qx = Math.max(0, x - 1); qx <= Math.min(width - 1, x + 1); qx++, n++) {
+						int k = 3 * (qy * width + qx);
+						r += light[k];
+						g += light[k + 1];
+						b += light[k + 2];
+					}
+				}
+				int k = 3 * (y * width + x);
+				guide[k] = r / n;
+				guide[k + 1] = g / n;
+				guide[k + 2] = b / n;
+			}
+		}
+
+		Image out = new Image(width, height);
+		int tileW = RayTracer.SUB_WIDTH, tileH = RayTracer.SUB_HEIGHT;
+		int tilesX = (width + tileW - 1) / tileW, tilesY = (height + tileH - 1) / tileH;
+		IntStream tiles = IntStream.range(0, tilesX * tilesY);
+		IntConsumer filterTile = t -> {
+			int x0 = (t % tilesX) * tileW, y0 = (t / tilesX) * tileH;
+			int sizeX = Math.min(tileW, width - x0), sizeY = Math.min(tileH, height - y0);
+			float[] block = new float[3 * sizeX * sizeY];
+			filterBlock(light, guide, features, width, height, samples, x0, y0, sizeX, sizeY, block);
+			out.setBlock(block, x0, y0, sizeX, sizeY);
+		};
+		if (RayTracer.getNumThreads() <= 1) {
+			tiles.forEach(filterTile);
+			return out;
+		}
+		ForkJoinPool pool = new ForkJoinPool(RayTracer.getNumThreads());
+		try {
+			pool.submit(() -> tiles.parallel().forEach(filterTile)).join();
+		} finally {
+			pool.shutdown();
+		}
+		return out;
+	}
+
+	private void filterBlock(float[] light, float[] guide, FeatureBuffers features, int width, int height,
+			int[] samples, int x0, int y0, int sizeX, int sizeY, float[] block) {
+		float[] albedo = features.getAlbedo(), normal = features.getNormal(), depth = features.getDepth();
+
+		// Each term of the weight is exp(-difference^2 * scale)
+		double spatialScale = 1 / (2 * sigmaSpatial * sigmaSpatial);
+		double colorScale = 1 / (2 * sigmaColor * sigmaColor);
+		double normalScale = 1 / (2 * sigmaNormal * sigmaNormal);
+		double albedoScale = 1 / (2 * sigmaAlbedo * sigmaAlbedo);
+		double depthScale = 1 / (2 * sigmaDepth * sigmaDepth);
+
+		for (int y = y0, i = 0; y < y0 + sizeY; y++) {
+			for (int x = x0; x < x0 + sizeX; x++, i += 3) {
+				int p = y * width + x, kp = 3 * p;
+				float dp = depth[p];
+				double gp = luminance(guide, kp);
+				double colorNorm = samples[p] * colorScale / (gp * gp + 1e-4);
+				double r = 0, g = 0, b = 0, sum = 0;
+				for (int qy = Math.max(0, y - radius); qy <= Math.min(height - 1, y + radius); qy++) {
+					for (int qx = Math.max(0, x - radius); qx <= Math.min(width - 1, x + radius); qx++) {
+						int q = qy * width + qx, kq = 3 * q;
+						double e = ((qx - x) * (qx - x) + (qy - y) * (qy - y)) * spatialScale;
+						e += distance2(guide, kp, kq) * colorNorm;
+						e += distance2(normal, kp, kq) * normalScale;
+						e += distance2(albedo, kp, kq) * albedoScale;
+						float dq = depth[q], dmax = Math.max(dp, dq);
+						if (dmax > 0) {
+							double dd = (dp - dq) / dmax;
+							e += dd * dd * depthScale;
+						}
+						double w = Math.exp(-e);
+						r += w * light[kq];
+						g += w * light[kq + 1];
+						b += w * light[kq + 2];
+						sum += w;
+					}
+				}
+				block[i] = (float) (r / sum * Math.max(albedo[kp], MIN_ALBEDO));
+				block[i + 1] = (float) (g / sum * Math.max(albedo[kp + 1], MIN_ALBEDO));
+				block[i + 2] = (float) (b / sum * Math.max(albedo[kp + 2], MIN_ALBEDO));
+			}
+		}
+	}
+
+	private static double distance2(float[] v, int a, int b) {
+		double x = v[a] - v[b], y = v[a + 1] - v[b + 1], z = v[a + 2] - v[b + 2];
+		return x * x + y * y + z * z;
+	}
+
+	private static double luminance(float[] v, int k) {
+		return 0.2126 * v[k] + 0.7152 * v[k + 1] + 0.0722 * v[k + 2];
+	}
+
+	/**
+	 * @return the peak signal-to-noise ratio of an image against a reference,
+	 *   in dB, with both clamped to [0, 1] (the range a display shows) and
+	 *   a peak of 1; higher is better, and 6 dB is half the RMS error
+	 */
+	public static double psnr(Image image, Image reference) {
+		if (image.getWidth() != reference.getWidth() || image.getHeight() != reference.getHeight())
+			throw new Error("Image is " + image.getWidth() + "x" + image.getHeight() + " but reference is "
+					+ reference.getWidth() + "x" + reference.getHeight());
+		float[] a = image.getData(), b = reference.getData();
+		double sum = 0;
+		for (int k = 0; k < a.length; k++) {
+			double d = Math.min(Math.max(a[k], 0), 1) - Math.min(Math.max(b[k], 0), 1);
+			sum += d * d;
+		}
+		return -10 * Math.log10(sum / a.length);
+	}
+}
@@ -0,0 +1,95 @@
+package ray2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import egl.math.Colord;
+import ray2.tests.TestUtils;
+
+public class DenoiserTests {
+
+	@Test
+	public void testFeatures() {
+		Scene scene = TestUtils.sphereScene(null, 21, 21);
+		scene.setSamples(4);
+		scene.init();
+		FeatureBuffers features = FeatureBuffers.render(scene);
+
+		// The center of the sphere faces the camera, 3 units away; the corners see nothing
+		int center = 10 * 21 + 10;
+		assertEquals(3, features.getDepth()[center], 0.01);
+		assertEquals(1, features.getNormal()[3 * center + 2], 0.01);
+		assertEquals(1, features.getAlbedo()[3 * center], 0);
+		assertEquals(0, features.getDepth()[0], 0);
+		assertEquals(0, features.getNormal()[2], 0);
+		assertEquals(1, features.getAlbedo()[0], 0);
+
+		// Pixels on the silhouette average only their rays that hit, which are 3 to 4 units away
+		for (float depth : features.getDepth())
+			assertTrue("depth " + depth, depth == 0 || depth > 2.99 && depth < 4);
+	}
+
+	/** Features of an image whose left half faces +x, and right half +z. */
+	private static FeatureBuffers halves(int size) {
+		FeatureBuffers features = new FeatureBuffers(size, size);
+		Arrays.fill(features.getAlbedo(), 1);
+		Arrays.fill(features.getDepth(), 1);
+		for (int i = 0; i < size * size; i++)
+			features.getNormal()[3 * i + (i % size < size / 2 ? 0 : 2)] = 1;
+		return features;
+	}
+
+	@Test
+	public void testNoiseIsRemoved() {
+		int size = 32;
+		Image image = new Image(size, size);
+		Random random = new Random(4620);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				double v = 0.5 + 0.4 * (random.nextDouble() - 0.5);
+				image.setPixelColor(new Colord(v, v, v), x, y);
+			}
+		}
+		Image flat = new Image(size, size);
+		Arrays.fill(flat.getData(), 0.5f);
+
+		Image denoised = new Denoiser().denoise(image, halves(size), 1);
+		double before = Denoiser.psnr(image, flat), after = Denoiser.psnr(denoised, flat);
+		assertTrue("PSNR " + before + " dB before, " + after + " after", after > before + 10);
+	}
+
+	@Test
+	public void testEdgesAreKept() {
+		int size = 32;
+		Image image = new Image(size, size);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				double v = x < size / 2 ? 0.2 : 0.8;
+				image.setPixelColor(new Colord(v, v, v), x, y);
+			}
+		}
+
+		Image denoised = new Denoiser().denoise(image, halves(size), 1);
+		assertEquals(image.getData().length, denoised.getData().length);
+		for (int k = 0; k < image.getData().length; k++)
+			assertEquals(image.getData()[k], denoised.getData()[k], 1e-4);
+	}
+
+	@Test
+	public void testPsnr() {
+		Image a = new Image(8, 8), b = new Image(8, 8);
+		Arrays.fill(a.getData(), 0.5f);
+		Arrays.fill(b.getData(), 0.6f);
+		assertEquals(20, Denoiser.psnr(a, b), 1e-4);
+
+		// Values beyond what a display shows do not count
+		Arrays.fill(a.getData(), 2f);
+		Arrays.fill(b.getData(), 1.1f);
+		assertEquals(Double.POSITIVE_INFINITY, Denoiser.psnr(a, b), 0);
+	}
+}
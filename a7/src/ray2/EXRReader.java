@@ -0,0 +1,200 @@
+package ray2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/**
+ * A reader for the RGB channels of simple OpenEXR files, in plain Java.  The
+ * OpenEXR bindings used by Image.writeHDR need native libraries that are not
+ * available everywhere, and reading the reference images should not depend on
+ * them.
+ *
+ * Only what the renderer and its reference images use is supported: scanline
+ * (not tiled) files with HALF or FLOAT channels, stored uncompressed or with
+ * RLE, ZIPS or ZIP compression.
+ */
+public final class EXRReader {
+
+	private static final int MAGIC = 20000630;
+	private static final int HALF = 1, FLOAT = 2;
+
+	private EXRReader() { }
+
+	private static class ChannelInfo {
+		String name;
+		int type;
+	}
+
+	/**
+	 * Read an EXR file.  The first row of the file is the top of the image
+	 * (the highest y), as written by Image.writeHDR.  A missing channel reads
+	 * as 0.
+	 *
+	 * @param fileName the file to read
+	 * @return the R, G and B channels as an image
+	 * @throws IOException if the file cannot be read or is not supported
+	 */
+	public static Image read(String fileName) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(Paths.get(fileName))).order(ByteOrder.LITTLE_ENDIAN);
+		if (in.getInt() != MAGIC)
+			throw new IOException(fileName + " is not an OpenEXR file");
+		int version = in.getInt();
+		if ((version & 0x200) != 0)
+			throw new IOException(fileName + ": tiled EXR files are not supported");
+
+		// Header: a list of (name, type, size, value) attributes ending with an empty name
+		ArrayList<ChannelInfo> channels = new ArrayList<ChannelInfo>();
+		int compression = -1, xMin = 0, yMin = 0, xMax = -1, yMax = -1;
+		for (String name = readString(in); !name.isEmpty(); name = readString(in)) {
+			readString(in); // the attribute type, which is implied by the name
+			int size = in.getInt();
+			int end = in.position() + size;
+			if (name.equals("channels")) {
+				for (String c = readString(in); !c.isEmpty(); c = readString(in)) {
+					ChannelInfo info = new ChannelInfo();
+					info.name = c;
+					info.type = in.getInt();
+					in.position(in.position() + 12); // pLinear, reserved, xSampling, ySampling
+					channels.add(info);
+				}
+			} else if (name.equals("compression")) {
+				compression = in.get();
+			} else if (name.equals("dataWindow")) {
+				xMin = in.getInt();
+				yMin = in.getInt();
+				xMax = in.getInt();
+				yMax = in.getInt();
+			}
+			in.position(end);
+		}
+
+		int width = xMax - xMin + 1, height = yMax - yMin + 1;
+		int linesPerBlock;
+		switch (compression) {
+		case 0: case 1: case 2: linesPerBlock = 1; break;
+		case 3: linesPerBlock = 16; break;
+		default: throw new IOException(fileName + ": EXR compression type " + compression + " is not supported");
+		}
+		int pixelBytes = 0;
+		for (ChannelInfo c : channels) {
+			if (c.type != HALF && c.type != FLOAT)
+				throw new IOException(fileName + ": channel " + c.name + " is not HALF or FLOAT");
+			pixelBytes += c.type == HALF ? 2 : 4;
+		}
+
+		// Skip the offset table; the chunks follow it in order and say where they go
+		int numBlocks = (height + linesPerBlock - 1) / linesPerBlock;
+		in.position(in.position() + 8 * numBlocks);
+
+		Image image = new Image(width, height);
+		float[] pixels = image.getData();
+		byte[] raw = new byte[pixelBytes * width * linesPerBlock];
+		for (int b = 0; b < numBlocks; b++) {
+			int y0 = in.getInt() - yMin;
+			int size = in.getInt();
+			int lines = Math.min(linesPerBlock, height - y0);
+			int rawSize = pixelBytes * width * lines;
+			byte[] data = new byte[size];
+			in.get(data);
+			if (size == rawSize)
+				System.arraycopy(data, 0, raw, 0, size); // chunks that do not compress are stored as they are
+			else if (compression == 1)
+				decodeRunLength(data, raw, rawSize);
+			else
+				inflate(data, raw, rawSize);
+			if (compression != 0 && size != rawSize)
+				undoPredictor(raw, rawSize);
+
+			// Each line holds all of each channel in turn, in the order of the channel list
+			ByteBuffer block = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+			for (int line = 0; line < lines; line++) {
+				int y = height - 1 - (y0 + line);
+				int lineStart = line * width * pixelBytes;
+				int channelStart = lineStart;
+				for (ChannelInfo c : channels) {
+					int k = c.name.length() == 1 ? "RGB".indexOf(c.name) : -1;
+					for (int x = 0; k >= 0 && x < width; x++)
+						pixels[3 * (y * width + x) + k] = c.type == HALF ? halfToFloat(block.getShort(channelStart + 2 * x))
+								: block.getFloat(channelStart + 4 * x);
+					channelStart += width * (c.type == HALF ? 2 : 4);
+				}
+			}
+		}
+		return image;
+	}
+
+	private static String readString(ByteBuffer in) {
+		StringBuilder s = new StringBuilder();
+		for (byte c = in.get(); c != 0; c = in.get())
+			s.append((char) c);
+		return s.toString();
+	}
+
+	private static void inflate(byte[] data, byte[] out, int size) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		try {
+			int n = 0;
+			while (n < size && !inflater.finished())
+				n += inflater.inflate(out, n, size - n);
+			if (n != size)
+				throw new IOException("EXR chunk is shorter than expected");
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static void decodeRunLength(byte[] data, byte[] out, int size) {
+		int i = 0, n = 0;
+		while (i < data.length && n < size) {
+			int count = data[i++];
+			if (count < 0) {
+				for (count = -count; count > 0; count--)
+					out[n++] = data[i++];
+			} else {
+				for (count++; count > 0; count--)
+					out[n++] = data[i];
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Undo the two steps applied to the bytes before compression: each byte
+	 * stored as a difference from the one before, then the even and odd bytes
+	 * separated into two halves.
+	 */
+	private static void undoPredictor(byte[] raw, int size) {
+		for (int i = 1; i < size; i++)
+			raw[i] = (byte) (raw[i - 1] + raw[i] - 128);
+		byte[] t = new byte[size];
+		int half = (size + 1) / 2;
+		for (int i = 0; i < size; i++)
+			t[i] = (i & 1) == 0 ? raw[i / 2] : raw[half + i / 2];
+		System.arraycopy(t, 0, raw, 0, size);
+	}
+
+	/**
+	 * @return the 16-bit IEEE half precision number h as a float
+	 */
+	static float halfToFloat(short h) {
+		int sign = (h >>> 15) & 1, exponent = (h >>> 10) & 0x1f, mantissa = h & 0x3ff;
+		float v;
+		if (exponent == 0)
+			v = mantissa * 0x1.0p-24f;
+		else if (exponent == 31)
+			v = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+		else
+			v = Float.intBitsToFloat(((exponent + 112) << 23) | (mantissa << 13));
+		return sign == 0 ? v : -v;
+	}
+}
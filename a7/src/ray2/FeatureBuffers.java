@@ -0,0 +1,151 @@
+package ray2;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import ray2.material.BSDF;
+import ray2.sampler.Sampler;
+
+/**
+ * Feature buffers (AOVs, "arbitrary output variables") of a rendered image:
+ * for each pixel, the diffuse albedo, the normal and the depth of the first
+ * surface the camera rays hit, averaged over the pixel's samples.  They are
+ * noise-free, or nearly, even when the image is not, and show where its
+ * edges are, which is what the Denoiser needs.
+ *
+ * They are found by tracing the camera rays of the render again, only to
+ * their first hit: every sample of a pixel takes its position from its own
+ * sampler stream, so given the number of samples the renderer took in each
+ * pixel, these are the same rays and the same hits it shaded, whichever
+ * renderer that was.
+ *
+ * Where a ray hits nothing, the albedo is 1; the normal and depth are
+ * averaged over the rays that hit something, so that a pixel on the edge of
+ * a surface has that surface's depth rather than one partway to nothing, and
+ * are 0 where none do.  The Denoiser takes a depth of 0 next to any other
+ * as an edge.
+ * The buffers are laid out like Image data, rows from the bottom up: 3
+ * floats a pixel for albedo and normal, 1 for depth.
+ */
+public class FeatureBuffers {
+
+	/** The names of the channels in an EXR file, in the order of getChannel(). */
+	public static final String[] CHANNELS = { "albedo.R", "albedo.G", "albedo.B", "N.X", "N.Y", "N.Z", "Z" };
+
+	private final int width, height;
+	private final float[] albedo, normal, depth;
+
+	public FeatureBuffers(int width, int height) {
+		this.width = width;
+		this.height = height;
+		albedo = new float[3 * width * height];
+		normal = new float[3 * width * height];
+		depth = new float[width * height];
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+	public float[] getAlbedo() { return albedo; }
+	public float[] getNormal() { return normal; }
+	public float[] getDepth() { return depth; }
+
+	/**
+	 * @param c the index of a channel in CHANNELS
+	 * @return the channel's value at pixel i (y * width + x)
+	 */
+	public float getChannel(int c, int i) {
+		return c < 3 ? albedo[3 * i + c] : c < 6 ? normal[3 * i + c - 3] : depth[i];
+	}
+
+	/**
+	 * Find the features of a scene's rendered image, with the samples its
+	 * renderer took in each pixel (RayTracer.getSampleCounts()).
+	 */
+	public static FeatureBuffers render(Scene scene) {
+		return render(scene, RayTracer.getSampleCounts(scene));
+	}
+
+	/**
+	 * Find the features of a scene's image, rendering rows in parallel on
+	 * RayTracer.getNumThreads() threads.
+	 *
+	 * @param samples the number of samples the image has in each pixel, as in
+	 *   RayTracer.getSampleCounts()
+	 */
+	public static FeatureBuffers render(Scene scene, int[] samples) {
+		Image image = scene.getImage();
+		FeatureBuffers features = new FeatureBuffers(image.getWidth(), image.getHeight());
+		IntStream rows = IntStream.range(0, image.getHeight());
+		if (RayTracer.getNumThreads() <= 1) {
+			rows.forEach(y -> features.renderBlock(scene, samples, 0, y, image.getWidth(), 1));
+			return features;
+		}
+		ForkJoinPool pool = new ForkJoinPool(RayTracer.getNumThreads());
+		try {
+			pool.submit(() -> rows.parallel().forEach(y -> features.renderBlock(scene, samples, 0, y,
+					image.getWidth(), 1))).join();
+		} finally {
+			pool.shutdown();
+		}
+		return features;
+	}
+
+	/**
+	 * Find the features of one block of pixels.
+	 *
+	 * @param samples the number of samples the image has in each pixel
+	 */
+	public void renderBlock(Scene scene, int[] samples, int offsetX, int offsetY, int sizeX, int sizeY) {
+		Sampler sampler = scene.getSampler().copy();
+		Vector2d pixelSample = new Vector2d();
+		Ray ray = new Ray();
+		IntersectionRecord iRec = new IntersectionRecord();
+
+		for (int y = offsetY; y < offsetY + sizeY; y++) {
+			for (int x = offsetX; x < offsetX + sizeX; x++) {
+				int n = samples[y * width + x];
+				float inv = 1f / Math.max(n, 1);
+				double ar = 0, ag = 0, ab = 0, nx = 0, ny = 0, nz = 0, d = 0;
+				int hits = 0;
+				for (int s = 0; s < n; s++) {
+					sampler.startPixel(x, y, s);
+					sampler.getPixelSample(pixelSample);
+					scene.getCamera().getRay(ray, (x + pixelSample.x) / width, (y + pixelSample.y) / height);
+					if (!scene.getFirstIntersection(iRec, ray)) {
+						ar += 1;
+						ag += 1;
+						ab += 1;
+						continue;
+					}
+					BSDF bsdf = iRec.surface.getBSDF();
+					if (bsdf != null) {
+						Colord a = bsdf.getDiffuseReflectance();
+						ar += a.x;
+						ag += a.y;
+						ab += a.z;
+					} else {
+						ar += 1;
+						ag += 1;
+						ab += 1;
+					}
+					nx += iRec.normal.x;
+					ny += iRec.normal.y;
+					nz += iRec.normal.z;
+					d += iRec.t;
+					hits++;
+				}
+				float invHits = 1f / Math.max(hits, 1);
+				int i = y * width + x;
+				albedo[3 * i] = (float) ar * inv;
+				albedo[3 * i + 1] = (float) ag * inv;
+				albedo[3 * i + 2] = (float) ab * inv;
+				normal[3 * i] = (float) nx * invHits;
+				normal[3 * i + 1] = (float) ny * invHits;
+				normal[3 * i + 2] = (float) nz * invHits;
+				depth[i] = (float) d * invHits;
+			}
+		}
+	}
+}
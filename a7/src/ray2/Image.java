@@ -2,8 +2,11 @@ package ray2;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
@@ -18,8 +21,15 @@ import egl.math.Color;
 import egl.math.Colord;
 
 /**
- * Basic image class, containing a 2D array of Colords. Simple functionality for
- * setting pixel colors and writing to a PNG file is provided.
+ * Basic image class, containing a packed array of floating-point RGB colors.
+ * Simple functionality for setting pixel colors and writing to a PNG file is
+ * provided.
+ *
+ * The pixels are stored row by row, starting from y = 0, with the red, green
+ * and blue of each pixel next to each other: pixel (x, y) is at index
+ * 3 * (y * width + x) of the data array.  A block of pixels laid out the same
+ * way can be copied in at once with setBlock(), which is how the renderer's
+ * threads hand over the blocks they accumulate on their own.
  *
  * @author eschweic, nsavva
  */
@@ -31,8 +41,8 @@ public class Image {
 	/** Image height * */
 	protected int height;
 	
-	/** Data array* */
-	protected Colord[][] data;
+	/** Pixel data, 3 floats per pixel in row-major order * */
+	protected float[] data;
 	
 	/**
 	 * Create an empty image
@@ -50,23 +60,16 @@ public class Image {
 	 * @param oldImage oldImage
 	 */
 	public Image(Image oldImage) {
-		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j].set(oldImage.data[i][j]);
-			}
-		}
+		width = oldImage.getWidth();
+		height = oldImage.getHeight();
+		data = oldImage.data.clone();
 	}
 	
 	/**
 	 * Set the image to black
 	 */
 	public void clear() {
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		Arrays.fill(data, 0);
 	}
 	
 	/**
@@ -91,12 +94,15 @@ public class Image {
 	public void setSize(int newWidth, int newHeight) {
 		width = newWidth;
 		height = newHeight;
-		data = new Colord[width][height];
-		for (int i=0; i<width; i++) {
-			for (int j=0; j<height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		data = new float[3 * width * height];
+	}
+	
+	/**
+	 * @return the pixel data, 3 floats per pixel in row-major order; pixel
+	 *   (x, y) is at 3 * (y * width + x)
+	 */
+	public float[] getData() {
+		return data;
 	}
 	
 	/**
@@ -109,7 +115,8 @@ public class Image {
 	public void getPixelColor(Color outPixel, int inX, int inY) {
 		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
 			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = 3 * (inY * width + inX);
+		outPixel.set(new Colord(data[i], data[i + 1], data[i + 2]));
 	}
 	
 	/**
@@ -122,7 +129,8 @@ public class Image {
 	public void getPixelColor(Colord outPixel, int inX, int inY) {
 		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
 			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = 3 * (inY * width + inX);
+		outPixel.set(data[i], data[i + 1], data[i + 2]);
 	}
 	
 	/**
@@ -134,7 +142,7 @@ public class Image {
 	public void setPixelColor(Color inPixel, int inX, int inY) {
 		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
 			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		setPixelColor(new Colord().set(inPixel), inX, inY);
 	}
 	
 	/**
@@ -146,7 +154,29 @@ public class Image {
 	public void setPixelColor(Colord inPixel, int inX, int inY) {
 		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
 			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = 3 * (inY * width + inX);
+		data[i] = (float) inPixel.x;
+		data[i + 1] = (float) inPixel.y;
+		data[i + 2] = (float) inPixel.z;
+	}
+	
+	/**
+	 * Copy a block of pixels into the image.  The block is laid out like the
+	 * image data (3 floats per pixel, row by row) but is only sizeX pixels
+	 * wide.  Nothing is locked: threads may copy in blocks that do not overlap
+	 * at the same time.
+	 * @param block the block's pixel data
+	 * @param offsetX the x coordinate of the block's first pixel
+	 * @param offsetY the y coordinate of the block's first pixel
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 */
+	public void setBlock(float[] block, int offsetX, int offsetY, int sizeX, int sizeY) {
+		if (offsetX < 0 || offsetY < 0 || offsetX + sizeX > width || offsetY + sizeY > height
+				|| block.length < 3 * sizeX * sizeY)
+			throw new IndexOutOfBoundsException();
+		for (int y = 0; y < sizeY; y++)
+			System.arraycopy(block, 3 * y * sizeX, data, 3 * ((offsetY + y) * width + offsetX), 3 * sizeX);
 	}
 	
 	/**
@@ -159,14 +189,15 @@ public class Image {
 		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		
 		Colord pixelColor= new Colord();
+		int[] row = new int[width];
 		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
+			for (int x = 0, i = 3 * y * width; x < width; x++, i += 3) {
+				pixelColor.set(data[i], data[i + 1], data[i + 2]);
 				// pixelColor.gammaCorrect(2.2);
 				pixelColor.To_sRGB();
-				Color c = pixelColor.toColor();
-				bufferedImage.setRGB(x, (height - 1 - y), c.toIntRGB());
+				row[x] = pixelColor.toColor().toIntRGB();
 			}
+			bufferedImage.setRGB(0, (height - 1 - y), width, 1, row, 0, width);
 		}
 		
 		try {
@@ -186,6 +217,17 @@ public class Image {
 	 * @param fileName the output filename
 	 */
 	public void writeHDR(String fileName) {
+		writeHDR(fileName, null);
+	}
+
+	/**
+	 * Write this image to the filename, in floating-point EXR format, with
+	 * the channels of its feature buffers (see FeatureBuffers.CHANNELS) after
+	 * the RGB ones.
+	 * @param fileName the output filename
+	 * @param features the image's feature buffers, or null for RGB only
+	 */
+	public void writeHDR(String fileName, FeatureBuffers features) {
 		
 		File outFile = new File(fileName);
 
@@ -202,18 +244,14 @@ public class Image {
         channels.insert("G", new Channel(pixelType));
         channels.insert("B", new Channel(pixelType));
         
-		Colord pixelColor= new Colord();
+        // The file's rows go from the top (the highest y) down; the pixel
+        // layout within a row is the same as in data
         ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * numPixels);
         pixels.order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer rows = pixels.asFloatBuffer();
         for(int h = height-1; h >= 0; --h) {
-            for (int w = 0; w < width; ++w) {
-            	this.getPixelColor(pixelColor, w, h);
-                pixels.putFloat((float) pixelColor.x);
-                pixels.putFloat((float) pixelColor.y);
-                pixels.putFloat((float) pixelColor.z);
-            }
+            rows.put(data, 3 * h * width, 3 * width);
         }
-        pixels.flip();
         
         // Build the frame buffer
         FrameBuffer frameBuffer = new FrameBuffer();
@@ -228,10 +266,31 @@ public class Image {
                 .baseOffset(2*elemSize).buffer(pixels).pixelType(pixelType)
                 .xStride(pixelSize).yStride(yStride).get());
         
+        // The features, all the channels of a pixel next to each other, in the same order of rows
+        if (features != null) {
+            String[] names = FeatureBuffers.CHANNELS;
+            ByteBuffer extra = ByteBuffer.allocateDirect(elemSize * names.length * numPixels);
+            extra.order(ByteOrder.LITTLE_ENDIAN);
+            FloatBuffer values = extra.asFloatBuffer();
+            for(int h = height-1; h >= 0; --h) {
+                for(int i = h * width; i < (h + 1) * width; ++i) {
+                    for(int c = 0; c < names.length; ++c) {
+                        values.put(features.getChannel(c, i));
+                    }
+                }
+            }
+            for(int c = 0; c < names.length; ++c) {
+                channels.insert(names[c], new Channel(pixelType));
+                frameBuffer.insert(names[c], Slice.build()
+                        .baseOffset(c*elemSize).buffer(extra).pixelType(pixelType)
+                        .xStride(elemSize * names.length).yStride(width * elemSize * names.length).get());
+            }
+        }
+
         try (EXROutputFile out = new EXROutputFile(outFile.toPath(), hdrHeader)){
              out.setFrameBuffer(frameBuffer);
              out.writePixels(height);
-             System.out.printf("  Wrote RGB32F file %s%n", outFile);
+             System.out.printf("  Wrote %s file %s%n", features != null ? "RGB32F + features" : "RGB32F", outFile);
              pixels.rewind();
          }
 		catch (Exception e) {
@@ -240,4 +299,15 @@ public class Image {
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Read an image from an EXR file, such as one written by writeHDR or one of
+	 * the reference images.  See EXRReader for what is supported.
+	 * @param fileName the input filename
+	 * @return the image
+	 * @throws IOException if the file cannot be read
+	 */
+	public static Image readHDR(String fileName) throws IOException {
+		return EXRReader.read(fileName);
+	}
 }
@@ -0,0 +1,65 @@
+package ray2;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import egl.math.Colord;
+
+public class ImageTests {
+
+	@Test
+	public void testRowMajorLayout() {
+		Image image = new Image(5, 3);
+		image.setPixelColor(new Colord(0.25, 0.5, 0.75), 4, 1);
+		float[] data = image.getData();
+		assertEquals(3 * 5 * 3, data.length);
+		assertEquals(0.25f, data[3 * (1 * 5 + 4)], 0);
+		assertEquals(0.5f, data[3 * (1 * 5 + 4) + 1], 0);
+		assertEquals(0.75f, data[3 * (1 * 5 + 4) + 2], 0);
+	}
+
+	@Test
+	public void testSetBlock() {
+		Image image = new Image(7, 6);
+		// A 3x2 block whose pixel (i, j) is (i, j, 1)
+		float[] block = new float[3 * 3 * 2];
+		for (int j = 0, k = 0; j < 2; j++)
+			for (int i = 0; i < 3; i++, k += 3) {
+				block[k] = i;
+				block[k + 1] = j;
+				block[k + 2] = 1;
+			}
+		image.setBlock(block, 4, 3, 3, 2);
+
+		Colord c = new Colord();
+		for (int y = 0; y < 6; y++) {
+			for (int x = 0; x < 7; x++) {
+				image.getPixelColor(c, x, y);
+				boolean inside = x >= 4 && y >= 3 && y < 5;
+				assertEquals(inside ? x - 4 : 0, c.x, 0);
+				assertEquals(inside ? y - 3 : 0, c.y, 0);
+				assertEquals(inside ? 1 : 0, c.z, 0);
+			}
+		}
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testSetBlockOutside() {
+		new Image(4, 4).setBlock(new float[3 * 2 * 2], 3, 0, 2, 2);
+	}
+
+	@Test
+	public void testCopyIsIndependent() {
+		Image image = new Image(2, 2);
+		image.setPixelColor(new Colord(1, 2, 3), 1, 1);
+		Image copy = new Image(image);
+		image.clear();
+
+		Colord c = new Colord();
+		copy.getPixelColor(c, 1, 1);
+		assertEquals(2, c.y, 0);
+		image.getPixelColor(c, 1, 1);
+		assertEquals(0, c.y, 0);
+	}
+}
@@ -0,0 +1,148 @@
+package ray2;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import egl.math.Vector3d;
+
+/**
+ * Temporary storage used while intersecting a ray with the scene, so that the
+ * intersection code does not have to allocate anything per ray.  A scratch
+ * object must only be used by one thread at a time; get() returns the one
+ * belonging to the calling thread.
+ *
+ * The fields are split by who uses them, so that an acceleration structure
+ * and the surfaces it calls can share one scratch object:
+ *  - accelRay, record and stack belong to the acceleration structure;
+ *  - ray, v0, v1 and primStack belong to the surface being intersected.
+ *
+ * It also counts the work its thread has done intersecting rays, while
+ * RenderStats.isCounting(), in plain fields that only that thread writes,
+ * so counting costs one add to memory the thread already has in cache;
+ * HeatmapIntegrator reads them, and RenderStats reads totals().  Each
+ * render has its own pool of threads, so once a thread has ended its counts
+ * are folded into the totals and its scratch object is dropped.
+ */
+public class IntersectionScratch {
+
+	/** The acceleration structure's copy of the ray, whose end shrinks as hits are found. */
+	public final Ray accelRay = new Ray();
+
+	/** Record for a candidate hit, before it is known to be the closest. */
+	public final IntersectionRecord record = new IntersectionRecord();
+
+	/** Node stack for iterative traversals. */
+	private int[] stack = new int[64];
+
+	/** The ray transformed into a surface's object space. */
+	public final Ray ray = new Ray();
+
+	/** Temporary vectors for surfaces. */
+	public final Vector3d v0 = new Vector3d(), v1 = new Vector3d();
+
+	/**
+	 * Running totals on this thread: rays traced through the Scene, and of
+	 * those the shadow rays (any intersection) and the ones that hit; BVH
+	 * nodes whose boxes were tested, and hit; ray-primitive tests.
+	 */
+	public long rays, shadowRays, shadowHits, nodeVisits, nodeHits, primitiveTests;
+
+	/** Node stack for surfaces that have their own hierarchy, like TriangleSoup. */
+	private int[] primStack = new int[64];
+
+	/** The scratch objects get() has given out, by thread, until the thread has ended. */
+	private static final Map<Thread, IntersectionScratch> live = new HashMap<>();
+
+	/** The counts of the threads that have ended, as in totals(). */
+	private static final long[] ended = new long[6];
+
+	private static final ThreadLocal<IntersectionScratch> perThread = new ThreadLocal<IntersectionScratch>() {
+		@Override
+		protected IntersectionScratch initialValue() {
+			IntersectionScratch scratch = new IntersectionScratch();
+			synchronized (live) {
+				foldEnded();
+				live.put(Thread.currentThread(), scratch);
+			}
+			return scratch;
+		}
+	};
+
+	/**
+	 * Add the counts of the threads that have ended to ended, and forget their
+	 * scratch objects.  Seeing that a thread is no longer alive makes all it
+	 * wrote visible here.  Callers hold the lock on live.
+	 */
+	private static void foldEnded() {
+		for (Iterator<Map.Entry<Thread, IntersectionScratch>> it = live.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Thread, IntersectionScratch> e = it.next();
+			if (!e.getKey().isAlive()) {
+				e.getValue().addCounts(ended);
+				it.remove();
+			}
+		}
+	}
+
+	private void addCounts(long[] c) {
+		c[0] += rays;
+		c[1] += shadowRays;
+		c[2] += shadowHits;
+		c[3] += nodeVisits;
+		c[4] += nodeHits;
+		c[5] += primitiveTests;
+	}
+
+	/**
+	 * @return the counts of all threads so far: rays, shadow rays, shadow
+	 *   rays that hit, node visits, node hits and primitive tests; those of
+	 *   threads still running are only up to date once their work has been
+	 *   joined
+	 */
+	public static long[] totals() {
+		synchronized (live) {
+			foldEnded();
+			long[] c = ended.clone();
+			for (IntersectionScratch s : live.values())
+				s.addCounts(c);
+			return c;
+		}
+	}
+
+	/**
+	 * @return the scratch object of the calling thread
+	 */
+	public static IntersectionScratch get() {
+		return perThread.get();
+	}
+
+	/**
+	 * @param size the number of entries needed
+	 * @return a node stack with at least size entries
+	 */
+	public int[] stack(int size) {
+		if (stack.length < size)
+			stack = new int[Math.max(size, 2 * stack.length)];
+		return stack;
+	}
+
+	/**
+	 * @param size the number of entries needed
+	 * @return a surface's node stack with at least size entries
+	 */
+	public int[] primStack(int size) {
+		if (primStack.length < size)
+			primStack = new int[Math.max(size, 2 * primStack.length)];
+		return primStack;
+	}
+
+	/**
+	 * Copy rayIn into accelRay and return it.
+	 */
+	public Ray copyRay(Ray rayIn) {
+		accelRay.set(rayIn.origin, rayIn.direction);
+		accelRay.start = rayIn.start;
+		accelRay.end = rayIn.end;
+		return accelRay;
+	}
+}
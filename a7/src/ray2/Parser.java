@@ -45,9 +45,9 @@ import egl.math.Vector3d;
  * and the previously stored node with the matching name is used instead of
  * a parsed value.
  *
- * There are special routines for explicitly parsing primitives,
- * arrays of primitives, Tuple3 (either Vector3 or Point3), Colors, Strings,
- * Images, and Meshes.  If a node is found, as above, to describe any of
+ * There are special routines for explicitly parsing primitives (including
+ * booleans), arrays of primitives, Tuple3 (either Vector3 or Point3), Colors,
+ * Strings, Images, and Meshes.  If a node is found, as above, to describe any of
  * these types a special method is used instead of the above
  * recursive procedure.
  *
@@ -136,6 +136,8 @@ public class Parser {
 			return new Integer(text);
 		} else if (c == Double.TYPE) {
 			return new Double(text);
+		} else if (c == Boolean.TYPE) {
+			return Boolean.valueOf(text.trim());
 		} else {
 			throw new Error("Cannot parse primitive of type " + c);
 		}
@@ -182,6 +184,10 @@ public class Parser {
 			return new Double(text);
 		}
 
+		else if (c == Boolean.class) {
+			return Boolean.valueOf(text.trim());
+		}
+
 		else if ((c.isArray() && c.getComponentType().isPrimitive())) {
 			ArrayList tempArray = parseArray(c.getComponentType(), text);
 			Object result = Array.newInstance(c.getComponentType(), tempArray
@@ -361,6 +367,7 @@ public class Parser {
 		// Check for certain special classes of the current node
 		else if ((c.isArray() && c.getComponentType().isPrimitive())
 				|| c == String.class || c == Integer.class || c == Double.class
+				|| c == Boolean.class
 				|| c == Colord.class || Vector3d.class.isAssignableFrom(c)
 				|| Image.class.isAssignableFrom(c)) {
 
@@ -433,6 +440,8 @@ public class Parser {
 						parameterType = Float.class;
 					} else if (parameterType == Double.TYPE) {
 						parameterType = Double.class;
+					} else if (parameterType == Boolean.TYPE) {
+						parameterType = Boolean.class;
 					} else {
 						throw new Error("Cannot parse primitives of type "
 								+ parameterType);
@@ -0,0 +1,101 @@
+package ray2;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of path lengths, kept while rendering: for each depth, the
+ * number of rays traced at that depth (camera rays are depth 1), which is the
+ * number of paths at least that long, and the number of paths that were
+ * stopped there by Russian roulette or by the scene's maxDepth.  It counts
+ * only while the render counters are on (RenderStats.isEnabled(), -stats);
+ * otherwise the count methods return after reading one static boolean.  Like
+ * RenderStats it is shared by all threads and all renders until reset().
+ */
+public class PathLengths {
+
+	/** Deeper rays are counted with this depth. */
+	public static final int MAX_COUNTED = 64;
+
+	private static final LongAdder[] rays = adders(), roulette = adders(), cut = adders();
+
+	private static LongAdder[] adders() {
+		LongAdder[] a = new LongAdder[MAX_COUNTED + 2];
+		for (int i = 0; i < a.length; i++)
+			a[i] = new LongAdder();
+		return a;
+	}
+
+	private static int index(int depth) {
+		return Math.max(0, Math.min(depth, MAX_COUNTED + 1));
+	}
+
+	/** Count a ray traced at depth. */
+	public static void countRay(int depth) {
+		if (RenderStats.isEnabled())
+			rays[index(depth)].increment();
+	}
+
+	/** Count a path stopped by Russian roulette before a ray at depth. */
+	public static void countRoulette(int depth) {
+		if (RenderStats.isEnabled())
+			roulette[index(depth)].increment();
+	}
+
+	/** Count a path stopped because a ray at depth was deeper than the scene's maxDepth. */
+	public static void countCut(int depth) {
+		if (RenderStats.isEnabled())
+			cut[index(depth)].increment();
+	}
+
+	/** @return the number of rays counted at depth */
+	public static long getRayCount(int depth) {
+		return rays[index(depth)].sum();
+	}
+
+	/** @return the number of rays counted at all depths */
+	public static long getTotalRayCount() {
+		long sum = 0;
+		for (LongAdder a : rays)
+			sum += a.sum();
+		return sum;
+	}
+
+	/** @return the number of paths stopped by roulette before depth */
+	public static long getRouletteCount(int depth) {
+		return roulette[index(depth)].sum();
+	}
+
+	/** @return the number of paths stopped by the scene's maxDepth at depth */
+	public static long getCutCount(int depth) {
+		return cut[index(depth)].sum();
+	}
+
+	public static void reset() {
+		for (int i = 0; i < rays.length; i++) {
+			rays[i].reset();
+			roulette[i].reset();
+			cut[i].reset();
+		}
+	}
+
+	/**
+	 * Print the histogram, one line per depth up to the deepest that has
+	 * anything counted, if the counters are on.
+	 */
+	public static void print() {
+		if (!RenderStats.isEnabled())
+			return;
+		int deepest = 0;
+		for (int d = 0; d < rays.length; d++) {
+			if (rays[d].sum() + roulette[d].sum() + cut[d].sum() > 0)
+				deepest = d;
+		}
+		long camera = Math.max(1, rays[1].sum());
+		System.out.println("Path lengths: rays at each depth (the paths at least that long), and paths stopped there");
+		System.out.printf("  %5s %12s %8s %12s %12s%n", "depth", "rays", "%", "roulette", "maxDepth");
+		for (int d = 1; d <= deepest; d++) {
+			System.out.printf("  %5s %12d %8.2f %12d %12d%n", d > MAX_COUNTED ? ">" + MAX_COUNTED : d,
+					rays[d].sum(), 100.0 * rays[d].sum() / camera, roulette[d].sum(), cut[d].sum());
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package ray2;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import ray2.sampler.Sampler;
+
+/**
+ * Renders an image in passes, putting more samples only where they are needed.
+ * A scene uses it when it has a &lt;progressive&gt; element, whose children set
+ * the fields below; the scene's &lt;samples&gt; is then not used.
+ *
+ * For every pixel the renderer keeps a running mean and variance of the
+ * samples (with Welford's update, which is stable in one pass).  The error of
+ * a pixel is the standard error of the mean of its luminance, relative to the
+ * mean luminance (plus ERROR_FLOOR, so that black pixels are not held to an
+ * impossible standard).  The first pass gives every pixel minSamples samples;
+ * each later pass gives more samples to the pixels whose error is still above
+ * targetError, about as many as the error predicts they need but at most as
+ * many as they already have.  Rendering stops when every pixel has converged
+ * or reached maxSamples, or when timeLimit has passed at the end of a pass.
+ *
+ * The sample indices of a pixel simply continue from pass to pass, so the
+ * image is the same as if each pixel's samples had been taken at once, and
+ * does not depend on the number of threads.  The sampler is set up for at
+ * least maxSamples samples per pixel, but the first samples of a pixel are
+ * still spread over all of it (see Sampler.getPixelSample()).
+ *
+ * With a Checkpoint, the statistics and the next pass's budgets are saved
+ * after a pass now and then, and a resumed render starts with the pass after
+ * the saved one, so it ends with the same image as one that never stopped
+ * (unless it stops at the time limit, which counts the time before the
+ * checkpoint too).
+ */
+public class ProgressiveRenderer {
+
+	/** The kind of checkpoint this renderer writes. */
+	static final String KIND = "progressive";
+
+	/** Luminance added to a pixel's mean before computing its relative error. */
+	public static final double ERROR_FLOOR = 0.01;
+
+	/** The number of samples every pixel gets in the first pass. */
+	protected int minSamples = 16;
+	public void setMinSamples(int minSamples) { this.minSamples = Math.max(2, minSamples); }
+
+	/** The most samples any pixel can get. */
+	protected int maxSamples = 1024;
+	public void setMaxSamples(int maxSamples) { this.maxSamples = maxSamples; }
+
+	/** The relative error (standard error over mean) at which a pixel is done. */
+	protected double targetError = 0.02;
+	public void setTargetError(double targetError) { this.targetError = targetError; }
+
+	/** Seconds after which no new pass is started; 0 for no limit. */
+	protected double timeLimit = 0;
+	public void setTimeLimit(double timeLimit) { this.timeLimit = timeLimit; }
+
+	/** Per-pixel statistics, indexed by y * width + x. */
+	private int[] count;
+	private double[] mean, m2;
+
+	private int width, height;
+
+	/**
+	 * Render the scene into image, calling onPass with the image after each pass.
+	 *
+	 * @param scene the scene, which must be initialized
+	 * @param image the output image
+	 * @param onPass called after each pass, from the calling thread; may be null
+	 */
+	public void render(Scene scene, Image image, Consumer<Image> onPass) {
+		render(scene, image, onPass, null);
+	}
+
+	/**
+	 * Render the scene into image, calling onPass with the image after each
+	 * pass, and saving to and resuming from a checkpoint.
+	 *
+	 * @param scene the scene, which must be initialized
+	 * @param image the output image
+	 * @param onPass called after each pass, from the calling thread; may be null
+	 * @param checkpoint the checkpoint; may be null.  Its last save has
+	 *   finished when this returns, so the file can be resumed at once.
+	 */
+	public void render(Scene scene, Image image, Consumer<Image> onPass, Checkpoint checkpoint) {
+		width = image.getWidth();
+		height = image.getHeight();
+		int numPixels = width * height;
+		count = new int[numPixels];
+		mean = new double[3 * numPixels];
+		m2 = new double[numPixels];
+
+		// The samples of a pixel may go up to maxSamples, so stratify over at
+		// least that many; with a power of 4 the grid and stratified samplers
+		// take their strata in a nested order, so a pixel that stops early is
+		// still covered evenly
+		int strata = 1;
+		while (strata < maxSamples)
+			strata *= 4;
+		scene.getSampler().setSamplesPerPixel(strata);
+
+		// This pass's sample budget for each pixel
+		int[] budget = new int[numPixels];
+		Arrays.fill(budget, Math.min(minSamples, maxSamples));
+
+		long start = System.nanoTime();
+		long totalSamples = 0;
+		int firstPass = 0;
+		if (checkpoint != null) {
+			try (DataInputStream in = checkpoint.open(KIND)) {
+				if (in != null) {
+					firstPass = in.readInt();
+					totalSamples = in.readLong();
+					start -= in.readLong();
+					for (int i = 0; i < numPixels; i++) {
+						count[i] = in.readInt();
+						budget[i] = in.readInt();
+						m2[i] = in.readDouble();
+					}
+					for (int i = 0; i < 3 * numPixels; i++)
+						mean[i] = in.readDouble();
+					float[] data = image.getData();
+					for (int i = 0; i < 3 * numPixels; i++)
+						data[i] = (float) (mean[i] * scene.getExposure());
+					System.out.printf("Checkpoint: resuming after pass %d, %.1f spp%n", firstPass - 1, totalSamples / (double) numPixels);
+				}
+			} catch (IOException e) {
+				throw new Error("Cannot resume from the checkpoint", e);
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(RayTracer.getNumThreads());
+		try {
+			for (int pass = firstPass; ; pass++) {
+				// The blocks with work to do
+				ArrayList<int[]> blocks = new ArrayList<int[]>();
+				long passSamples = 0;
+				for (int by = 0; by < height; by += RayTracer.SUB_HEIGHT) {
+					for (int bx = 0; bx < width; bx += RayTracer.SUB_WIDTH) {
+						int[] b = { bx, by, Math.min(width - bx, RayTracer.SUB_WIDTH), Math.min(height - by, RayTracer.SUB_HEIGHT) };
+						long n = 0;
+						for (int y = b[1]; y < b[1] + b[3]; y++)
+							for (int x = b[0]; x < b[0] + b[2]; x++)
+								n += budget[y * width + x];
+						if (n > 0)
+							blocks.add(b);
+						passSamples += n;
+					}
+				}
+				if (blocks.isEmpty())
+					break;
+
+				pool.submit(() -> IntStream.range(0, blocks.size()).parallel().forEach(i -> {
+					int[] b = blocks.get(i);
+					renderBlock(scene, image, budget, b[0], b[1], b[2], b[3]);
+				})).join();
+				totalSamples += passSamples;
+
+				// Decide what the next pass does
+				int active = 0;
+				for (int i = 0; i < numPixels; i++) {
+					budget[i] = nextBudget(i);
+					if (budget[i] > 0)
+						active++;
+				}
+				double seconds = (System.nanoTime() - start) * 1e-9;
+				String status = String.format("pass %d: %d samples, %.1f spp, %d pixels still active, %.1f s",
+						pass, passSamples, totalSamples / (double) numPixels, active, seconds);
+				System.out.println("Progressive: " + status);
+				if (checkpoint != null)
+					save(checkpoint, pass + 1, totalSamples, System.nanoTime() - start, budget);
+				if (onPass != null)
+					onPass.accept(image);
+				if (timeLimit > 0 && seconds > timeLimit) {
+					System.out.println("Progressive: stopping at the time limit");
+					break;
+				}
+			}
+		} finally {
+			pool.shutdown();
+			if (checkpoint != null)
+				checkpoint.flush();
+		}
+
+		int converged = 0, most = 0;
+		for (int i = 0; i < numPixels; i++) {
+			if (relativeError(i) <= targetError)
+				converged++;
+			most = Math.max(most, count[i]);
+		}
+		System.out.printf("Progressive: %d samples, %.1f spp on average (at most %d), %.1f%% of pixels converged;"
+				+ " %.1fx fewer samples than %d spp everywhere%n", totalSamples, totalSamples / (double) numPixels,
+				most, 100.0 * converged / numPixels, (double) maxSamples * numPixels / totalSamples, maxSamples);
+	}
+
+	/**
+	 * Save the state after a pass, if a save is due: the number of passes
+	 * done, the samples taken and the time spent, then for each pixel its
+	 * count, next budget and m2, then the means.  The arrays are copied here,
+	 * since the next pass changes them while the save is written.
+	 */
+	private void save(Checkpoint checkpoint, int passes, long totalSamples, long nanos, int[] budget) {
+		if (!checkpoint.isDue())
+			return;
+		int[] count = this.count.clone(), nextBudget = budget.clone();
+		double[] mean = this.mean.clone(), m2 = this.m2.clone();
+		checkpoint.saveIfDue(KIND, out -> {
+			out.writeInt(passes);
+			out.writeLong(totalSamples);
+			out.writeLong(nanos);
+			for (int i = 0; i < count.length; i++) {
+				out.writeInt(count[i]);
+				out.writeInt(nextBudget[i]);
+				out.writeDouble(m2[i]);
+			}
+			for (double m : mean)
+				out.writeDouble(m);
+		});
+	}
+
+	/**
+	 * Take budget[i] more samples in each pixel of a block and update the
+	 * pixels' statistics and colors.  Blocks do not overlap, so blocks can be
+	 * rendered at the same time without any locking; each is copied into the
+	 * image in one go when it is done.
+	 */
+	private void renderBlock(Scene scene, Image image, int[] budget, int offsetX, int offsetY, int sizeX, int sizeY) {
+		Sampler sampler = scene.getSampler().copy();
+		Ray ray = new Ray();
+		Vector2d pixelSample = new Vector2d();
+		Colord sample = new Colord();
+		double exposure = scene.getExposure();
+		float[] block = new float[3 * sizeX * sizeY];
+
+		for (int y = offsetY, k = 0; y < offsetY + sizeY; y++) {
+			for (int x = offsetX; x < offsetX + sizeX; x++, k += 3) {
+				int i = y * width + x;
+				for (int s = 0; s < budget[i]; s++) {
+					RayTracer.samplePixel(sample, scene, sampler, ray, pixelSample, x, y, count[i], width, height);
+					addSample(i, sample);
+				}
+				for (int c = 0; c < 3; c++)
+					block[k + c] = (float) (mean[3 * i + c] * exposure);
+			}
+		}
+		image.setBlock(block, offsetX, offsetY, sizeX, sizeY);
+	}
+
+	/**
+	 * Welford's update of the running mean of the color and the running sum
+	 * of squared differences from the mean of the luminance.
+	 */
+	private void addSample(int i, Colord c) {
+		int n = ++count[i];
+		double oldY = luminance(mean[3 * i], mean[3 * i + 1], mean[3 * i + 2]);
+		mean[3 * i] += (c.x - mean[3 * i]) / n;
+		mean[3 * i + 1] += (c.y - mean[3 * i + 1]) / n;
+		mean[3 * i + 2] += (c.z - mean[3 * i + 2]) / n;
+		double y = luminance(c.x, c.y, c.z);
+		double newY = luminance(mean[3 * i], mean[3 * i + 1], mean[3 * i + 2]);
+		m2[i] += (y - oldY) * (y - newY);
+	}
+
+	/**
+	 * @return the standard error of pixel i's mean luminance, relative to the mean
+	 */
+	private double relativeError(int i) {
+		int n = count[i];
+		if (n < 2)
+			return Double.POSITIVE_INFINITY;
+		double variance = m2[i] / (n - 1);
+		double meanY = luminance(mean[3 * i], mean[3 * i + 1], mean[3 * i + 2]);
+		return Math.sqrt(variance / n) / (Math.abs(meanY) + ERROR_FLOOR);
+	}
+
+	/**
+	 * @return how many samples pixel i gets in the next pass: 0 if it is done,
+	 *   otherwise the number its error predicts it needs (error goes down as
+	 *   1/sqrt(n)), but no more than it has and at least a few
+	 */
+	private int nextBudget(int i) {
+		int n = count[i];
+		double error = relativeError(i);
+		if (error <= targetError || n >= maxSamples)
+			return 0;
+		double needed = n * (error / targetError) * (error / targetError) - n;
+		int more = (int) Math.min(Math.max(Math.ceil(needed), 4), n);
+		return Math.min(more, maxSamples - n);
+	}
+
+	private static double luminance(double r, double g, double b) {
+		return 0.2126 * r + 0.7152 * g + 0.0722 * b;
+	}
+
+	/**
+	 * @return the number of samples taken in each pixel of the last render,
+	 *   indexed by y * width + x
+	 */
+	public int[] getSampleCounts() {
+		return count;
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "ProgressiveRenderer: " + minSamples + " to " + maxSamples + " spp, target error " + targetError
+				+ (timeLimit > 0 ? ", time limit " + timeLimit + " s" : "");
+	}
+}
@@ -0,0 +1,124 @@
+package ray2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import ray2.integrator.Integrator;
+import ray2.sampler.IndependentSampler;
+import ray2.sampler.Sampler;
+import ray2.sampler.StratifiedSampler;
+import ray2.tests.TestUtils;
+
+public class ProgressiveRendererTests {
+
+	/** Noisy gray on surfaces; the background is a constant color. */
+	static class NoiseIntegrator extends Integrator {
+		@Override
+		public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+			outRadiance.set(2 * sampler.next1D());
+		}
+	}
+
+	private static Scene scene(ProgressiveRenderer progressive) {
+		return scene(progressive, new IndependentSampler());
+	}
+
+	private static Scene scene(ProgressiveRenderer progressive, Sampler sampler) {
+		Scene scene = TestUtils.sphereScene(new NoiseIntegrator(), 24, 24);
+		scene.setSampler(sampler);
+		scene.setProgressive(progressive);
+		scene.init();
+		return scene;
+	}
+
+	@Test
+	public void testSamplesGoWhereTheNoiseIs() {
+		ProgressiveRenderer progressive = new ProgressiveRenderer();
+		progressive.setMinSamples(8);
+		progressive.setMaxSamples(256);
+		progressive.setTargetError(0.05);
+		Scene scene = scene(progressive);
+		progressive.render(scene, scene.getImage(), null);
+
+		int[] counts = progressive.getSampleCounts();
+		Colord c = new Colord();
+		int noisy = 0;
+		for (int y = 0; y < 24; y++) {
+			for (int x = 0; x < 24; x++) {
+				int n = counts[y * 24 + x];
+				scene.getImage().getPixelColor(c, x, y);
+				if (c.x == 0.5 && c.y == 0.5) {
+					// Background pixels have no variance and stop after the first pass
+					assertEquals("Background pixel " + x + ", " + y, 8, n);
+				} else {
+					// Between the background's 0.5 (at the sphere's edge) and the noise's mean of 1
+					assertTrue("Mean of noisy pixel: " + c.x, c.x > 0.4 && c.x < 1.2);
+					// A pixel on the edge whose few sphere samples are near 0.5 may be done at once
+					if (Math.abs(c.x - 0.5) > 0.1) {
+						noisy++;
+						assertTrue("Too few samples in a noisy pixel: " + n, n > 8);
+					}
+				}
+			}
+		}
+		assertTrue("The sphere should cover part of the image", noisy > 50 && noisy < 24 * 24 - 50);
+		// Relative error 0.05 of a mean of 1 with variance 1/3 needs about 133 samples
+		assertTrue("Too few samples in the middle of the sphere", counts[12 * 24 + 12] > 64);
+	}
+
+	@Test
+	public void testIndependentOfThreadCount() {
+		int threads = RayTracer.getNumThreads();
+		try {
+			Image[] images = new Image[2];
+			for (int k = 0; k < 2; k++) {
+				RayTracer.setNumThreads(k == 0 ? 1 : 4);
+				Scene scene = scene(new ProgressiveRenderer());
+				scene.getProgressive().render(scene, scene.getImage(), null);
+				images[k] = scene.getImage();
+			}
+			Colord c0 = new Colord(), c1 = new Colord();
+			for (int y = 0; y < 24; y++) {
+				for (int x = 0; x < 24; x++) {
+					images[0].getPixelColor(c0, x, y);
+					images[1].getPixelColor(c1, x, y);
+					assertEquals("Pixel " + x + ", " + y, c0.x, c1.x, 0);
+				}
+			}
+		} finally {
+			RayTracer.setNumThreads(threads);
+		}
+	}
+
+	@Test
+	public void testFirstSamplesCoverThePixel() {
+		for (Sampler sampler : new Sampler[] { new IndependentSampler(), new StratifiedSampler() }) {
+			ProgressiveRenderer progressive = new ProgressiveRenderer();
+			progressive.setMaxSamples(1000);
+			progressive.setTargetError(1e6);
+			Scene scene = scene(progressive, sampler);
+			progressive.render(scene, scene.getImage(), null);
+
+			// Whenever a pixel stops, at n = 4^k samples, they are one in each cell of a 2^k x 2^k grid
+			Sampler s = scene.getSampler().copy();
+			Vector2d p = new Vector2d();
+			for (int pixel = 0; pixel < 4; pixel++) {
+				for (int side = 2; side <= 8; side *= 2) {
+					int[] cells = new int[side * side];
+					for (int i = 0; i < side * side; i++) {
+						s.startPixel(pixel, 7, i);
+						s.getPixelSample(p);
+						cells[(int) (p.x * side) + side * (int) (p.y * side)]++;
+					}
+					for (int c : cells)
+						assertEquals(sampler + ": first " + side * side + " samples of pixel " + pixel
+								+ " are not one per cell", 1, c);
+				}
+			}
+		}
+	}
+}
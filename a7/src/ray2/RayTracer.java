@@ -1,15 +1,27 @@
 package ray2;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import egl.math.Colord;
-import ray2.accel.Bvh;
-import ray2.camera.Camera;
+import egl.math.Vector2d;
+import ray2.accel.RayPacket;
+import ray2.integrator.HeatmapIntegrator;
 import ray2.integrator.Integrator;
-import ray2.surface.Triangle;
+import ray2.mesh.OBJMesh;
+import ray2.sampler.Sampler;
 import ray2.viewer.QuickViewer;
 
 public class RayTracer {
@@ -20,24 +32,58 @@ public class RayTracer {
 	public static final boolean DISPLAY = true;
 
 	/**
-	 * Output HDR image (using openEXR)
+	 * Whether this run shows the display window: as DISPLAY says, unless it
+	 * is turned off for a headless batch run (-batch)
 	 */
-	public static final boolean writeHDR = true;
+	private static boolean display = DISPLAY;
+	public static boolean getDisplay() { return display; }
+	public static void setDisplay(boolean d) { display = DISPLAY && d; }
 
 	/**
-	 * The maximum number of recursive tracing calls allowed
+	 * Output HDR image (using openEXR)
 	 */
-	public static final int MAX_DEPTH = 12;
+	public static final boolean writeHDR = true;
 
 	/**
-	 * Whether to write friendly progress output
+	 * The maximum number of recursive tracing calls allowed, unless the scene
+	 * sets its own maxDepth
 	 */
-	public static final boolean PROGRESS = false;
+	public static final int MAX_DEPTH = 12;
 
 	// Size of image sub-blocks
 	protected static int SUB_WIDTH = 32;
 	protected static int SUB_HEIGHT = 32;
 
+	/**
+	 * Number of worker threads used to render image blocks.  With a single
+	 * thread the blocks are rendered in order on the calling thread.
+	 */
+	private static int numThreads = Runtime.getRuntime().availableProcessors();
+	public static int getNumThreads() { return numThreads; }
+	public static void setNumThreads(int n) { numThreads = Math.max(1, n); }
+
+	/**
+	 * Seconds between checkpoints of a render in progress (see Checkpoint);
+	 * 0 for none.  The checkpoint of a scene is kept next to it, as
+	 * <input_file>.ckpt, and deleted once the image is written.
+	 */
+	private static double checkpointInterval = 0;
+	public static void setCheckpointInterval(double seconds) { checkpointInterval = Math.max(0, seconds); }
+
+	/** Checkpoint interval used with -resume when -checkpoint is not given. */
+	public static final double DEFAULT_CHECKPOINT_INTERVAL = 300;
+
+	/** Whether renders start from their checkpoints, if they have them. */
+	private static boolean resume = false;
+	public static void setResume(boolean r) { resume = r; }
+
+	/**
+	 * The render farm coordinator that renders the blocks of each scene in
+	 * worker processes (see RenderFarm), or null to render them here.
+	 */
+	private static RenderFarm.Coordinator farm = null;
+	public static void setFarm(RenderFarm.Coordinator f) { farm = f; }
+
 	/**
 	 * Widget to draw the image spiral.
 	 */
@@ -98,9 +144,12 @@ public class RayTracer {
 	}
 
 	/**
-	 * The Workspace For The Scene
+	 * The Workspace For The Scene.  This is kept per thread so that scene loading
+	 * never sees a workspace that belongs to some other scene.
 	 */
-	public static ScenePath sceneWorkspace = null;
+	private static final ThreadLocal<ScenePath> sceneWorkspace = new ThreadLocal<>();
+	public static ScenePath getSceneWorkspace() { return sceneWorkspace.get(); }
+	public static void setSceneWorkspace(ScenePath p) { sceneWorkspace.set(p); }
 
 	/**
 	 * This directory precedes the arguments passed in via the command line.
@@ -119,6 +168,12 @@ public class RayTracer {
 		ArrayList<ScenePath> pathArgs = new ArrayList<>();
 		ArrayList<ScenePath> scenesToRender = new ArrayList<>();
 		String currentRoot = directory;
+		int farmPort = -1, spawn = 0;
+		String workerAddress = null;
+		RenderRegression batch = null;
+		String budgetFile = null;
+		double tolerance = -1;
+		boolean updateBudget = false;
 
 		// Use All The Arguments
 		for(int i = 0;i < args.length;i++) {
@@ -132,6 +187,71 @@ public class RayTracer {
 				// Use The CWD
 				currentRoot = null;
 				break;
+			case "-threads":
+				// Use A Different Number Of Render Threads
+				i++;
+				if(i < args.length) setNumThreads(Integer.parseInt(args[i]));
+				break;
+			case "-checkpoint":
+				// Save The Render's Progress Every So Many Seconds
+				i++;
+				if(i < args.length) setCheckpointInterval(Double.parseDouble(args[i]));
+				break;
+			case "-resume":
+				// Continue Renders From Their Checkpoints
+				setResume(true);
+				break;
+			case "-coordinator":
+				// Render Blocks In Worker Processes That Connect On This Port
+				i++;
+				if(i < args.length) farmPort = Integer.parseInt(args[i]);
+				break;
+			case "-spawn":
+				// Start This Many Worker Processes For The Coordinator
+				i++;
+				if(i < args.length) spawn = Integer.parseInt(args[i]);
+				break;
+			case "-worker":
+				// Be A Worker For The Coordinator At host:port
+				i++;
+				if(i < args.length) workerAddress = args[i];
+				break;
+			case "-lease":
+				// Seconds A Worker Has To Render A Block
+				i++;
+				if(i < args.length) RenderFarm.setLeaseTimeout(Double.parseDouble(args[i]));
+				break;
+			case "-batch":
+				// Check Each Scene Against Its Reference, Headless, And Write A Report
+				i++;
+				if(i < args.length) batch = new RenderRegression(args[i]);
+				break;
+			case "-budget":
+				// Fail The Batch Run If A Scene's Quality Per Second Falls Below This File's
+				i++;
+				if(i < args.length) budgetFile = args[i];
+				break;
+			case "-tolerance":
+				// The Fraction Below Its Budget A Scene May Fall
+				i++;
+				if(i < args.length) tolerance = Double.parseDouble(args[i]);
+				break;
+			case "-updatebudget":
+				// Write The Batch Run's Qualities To The Budget File
+				updateBudget = true;
+				break;
+			case "-stats":
+				// Count Rays, Node Visits And Primitive Tests, And Show Progress
+				RenderStats.setEnabled(true);
+				break;
+			case "-trace":
+				// Write A Timeline Of The Blocks Each Worker Rendered
+				RenderStats.setTracing(true);
+				break;
+			case "-nocache":
+				// Always Parse OBJ Files, Without Reading Or Writing .objbin Files
+				OBJMesh.setBinaryCache(false);
+				break;
 			default:
 				// This Must Be A File
 				pathArgs.add(new ScenePath(currentRoot, args[i]));
@@ -139,6 +259,12 @@ public class RayTracer {
 			}
 		}
 
+		if(workerAddress != null) {
+			// Render Whatever The Coordinator Hands Out
+			new RenderFarm.Worker(workerAddress).run(numThreads);
+			return;
+		}
+
 		if(pathArgs.size() < 1) {
 			// Attempt To Render All The Scenes
 			pathArgs.add(new ScenePath(currentRoot, "."));
@@ -169,19 +295,72 @@ public class RayTracer {
 			}
 		}
 
+		if(batch != null) {
+			batch.setBudgetFile(budgetFile);
+			batch.setTolerance(tolerance);
+			batch.setUpdateBudget(updateBudget);
+		}
+
 		System.out.println("Attempting To Render " + scenesToRender.size() + " Scene(s)");
 		RayTracer rayTracer = new RayTracer();
-		rayTracer.run(scenesToRender);
+		boolean passed;
+		if(farmPort < 0 && spawn <= 0) {
+			passed = rayTracer.run(scenesToRender, batch);
+		}
+		else {
+			try (RenderFarm.Coordinator coordinator = new RenderFarm.Coordinator(Math.max(farmPort, 0))) {
+				if(spawn > 0) coordinator.spawnWorkers(spawn, 1);
+				setFarm(coordinator);
+				passed = rayTracer.run(scenesToRender, batch);
+			} catch (IOException e) {
+				throw new Error("Cannot start the render farm", e);
+			} finally {
+				setFarm(null);
+			}
+		}
+		if(!passed) System.exit(1);
 	}
 
 	public static void printUsage() {
-		System.out.println("Usage: java RayTracer [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("Usage: java RayTracer [-threads n] [-checkpoint seconds] [-resume] [-coordinator port] [-spawn n] [-lease seconds] [-stats] [-trace] [-nocache] [-batch report.json [-budget file] [-tolerance t] [-updatebudget]] [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("       java RayTracer [-threads n] -worker host:port");
 		System.out.println("List each scene file you would like to render on the command line separated by spaces.");
 		System.out.println("You may also specify a directory, and all scene files in that directory will be rendered.");
 		System.out.println("By default, all files specified are prepended with a given path. Use the -p option to");
 		System.out.println("override this path. The path may be overriden multiple times or -pnull may be provided to set");
 		System.out.println("the path to the program's working directory. With no -p argument given, this path is: " + directory);
 		System.out.println("NB: the path is relative to the working directory of the application, which is normally the root of the CS4620 project.");
+		System.out.println("The -threads option sets the number of render threads, which also build the BVH (default: " + numThreads + ").");
+		System.out.println("The -checkpoint option saves each render's progress to <input_file>.ckpt every so many seconds,");
+		System.out.println("and -resume continues a render from that file (saving every " + (int) DEFAULT_CHECKPOINT_INTERVAL
+				+ " s unless -checkpoint is given); the image is the same as if it had not stopped.");
+		System.out.println("The -coordinator option renders the image blocks in worker processes, which connect to the given port");
+		System.out.println("on this machine (0 for any free port) and are started with -worker host:port; -spawn starts n of them,");
+		System.out.println("on one thread each.  A block a worker has not sent back after -lease seconds (default: "
+				+ (int) RenderFarm.getLeaseTimeout() + ") is given to another.");
+		System.out.println("The -stats option counts rays, path lengths, BVH node visits, primitive tests and shadow rays, times each block,");
+		System.out.println("and prints the progress and time left as blocks finish; -trace also writes a Chrome trace of the");
+		System.out.println("blocks each worker rendered to <input_file>.trace.json (load it in chrome://tracing).");
+		System.out.println("The -nocache option turns off the .objbin files that keep OBJ meshes in binary form for faster loading.");
+		System.out.println("The -batch option renders each scene without the display and without writing it, compares it with");
+		System.out.println("reference/<input_file>.exr, and writes the error, SSIM, time, peak heap and (with -stats) rays/s to report.json.");
+		System.out.println("With -budget, the run fails (exit status 1) if a scene's quality per second, 1 / (relMSE x seconds),");
+		System.out.println("is more than -tolerance (default: " + RenderRegression.DEFAULT_TOLERANCE
+				+ ", or the file's \"tolerance\") below the file's; -updatebudget writes this run's into it.");
+	}
+
+	/**
+	 * Render the scenes or, for a batch run, check them against their references.
+	 *
+	 * @param args the scenes
+	 * @param batch the batch run, or null to render and write out each scene
+	 * @return false if the batch run failed
+	 */
+	public boolean run(ArrayList<ScenePath> args, RenderRegression batch) {
+		if (batch != null)
+			return batch.run(this, args);
+		run(args);
+		return true;
 	}
 
 	/**
@@ -195,33 +374,120 @@ public class RayTracer {
 		Parser parser = new Parser();
 		for (ScenePath p : args) {
 			// Set The Current Workspace For The Scene
-			sceneWorkspace = p;
+			setSceneWorkspace(p);
 
 			System.err.println("Loading " + p.file + "...");
 
 			// Parse the input file
-			Scene scene = (Scene) parser.parse(sceneWorkspace.getFile(), Scene.class);
+			Scene scene = (Scene) parser.parse(p.getFile(), Scene.class);
 
 			// Initialize the scene
 			scene.init();
 
 			// Render the scene
-			renderImage(scene);
+			Checkpoint checkpoint = checkpoint(p, scene);
+			renderImage(scene, checkpoint);
+			if (RenderStats.isTracing())
+				RenderStats.writeTrace(p.getFile() + ".trace.json");
+
+			// Find the feature buffers, and denoise
+			Image image = scene.getImage();
+			FeatureBuffers features = null;
+			if (scene.getAovs() || scene.getDenoiser() != null)
+				features = findFeatures(scene);
+			if (scene.getDenoiser() != null) {
+				if (writeHDR)
+					image.writeHDR(p.getFile() + ".noisy.exr");
+				else
+					image.write(p.getFile() + ".noisy.png");
+				image = denoise(scene, features);
+			}
 
 			// Write the image out
+			if (scene.getIntegrator() instanceof HeatmapIntegrator)
+				HeatmapIntegrator.writeHeatmaps(image, p.getFile());
 			if (writeHDR)
-				scene.getImage().writeHDR(sceneWorkspace.getFile() + ".exr");
+				image.writeHDR(p.getFile() + ".exr", features);
 			else
-				scene.getImage().write(sceneWorkspace.getFile() + ".png");
+				image.write(p.getFile() + ".png");
+			if (checkpoint != null)
+				checkpoint.finish();
 		}
 	}
 
+	/**
+	 * @return the checkpoint for rendering a scene, or null if there is none
+	 */
+	private static Checkpoint checkpoint(ScenePath p, Scene scene) {
+		if (checkpointInterval <= 0 && !resume)
+			return null;
+		try {
+			return new Checkpoint(p.getFile() + ".ckpt", Checkpoint.fingerprint(p.getFile(), scene),
+					checkpointInterval > 0 ? checkpointInterval : DEFAULT_CHECKPOINT_INTERVAL, resume);
+		} catch (IOException e) {
+			System.err.println("Checkpoint: cannot checkpoint " + p.file + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of samples in each pixel of a scene's rendered image:
+	 *   those ProgressiveRenderer chose, or else the scene's samples everywhere
+	 */
+	static int[] getSampleCounts(Scene scene) {
+		if (scene.getProgressive() != null)
+			return scene.getProgressive().getSampleCounts();
+		Image image = scene.getImage();
+		int[] counts = new int[image.getWidth() * image.getHeight()];
+		Arrays.fill(counts, scene.getSamples() * scene.getSamples());
+		return counts;
+	}
+
+	/**
+	 * @return the feature buffers of a scene's rendered image
+	 */
+	static FeatureBuffers findFeatures(Scene scene) {
+		long startTime = System.currentTimeMillis();
+		FeatureBuffers features = FeatureBuffers.render(scene, getSampleCounts(scene));
+		System.out.println("Feature buffers: " + ((System.currentTimeMillis() - startTime) / 1000.0) + " seconds");
+		return features;
+	}
+
+	/**
+	 * @return the scene's rendered image, denoised with its Denoiser
+	 */
+	static Image denoise(Scene scene, FeatureBuffers features) {
+		long startTime = System.currentTimeMillis();
+		Image image = scene.getDenoiser().denoise(scene.getImage(), features, getSampleCounts(scene));
+		System.out.println("Denoised: " + ((System.currentTimeMillis() - startTime) / 1000.0) + " seconds");
+		if (display)
+			viewer.setImage(image);
+		return image;
+	}
+
 	/**
 	 * The renderImage method renders the entire scene.
 	 *
 	 * @param scene The scene to be rendered
 	 */
 	public void renderImage(Scene scene) {
+		renderImage(scene, null);
+	}
+
+	/**
+	 * Render the entire scene, saving its progress to a checkpoint as it goes
+	 * and, if resuming, starting from where the checkpoint left off.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param checkpoint The checkpoint, or null; its last save has finished
+	 *   when this returns
+	 */
+	public void renderImage(Scene scene, Checkpoint checkpoint) {
+
+		// Wavefronts trace and shade the rays of many samples together
+		if (scene.getIntegrator() instanceof HeatmapIntegrator && scene.getWavefront() != null)
+			throw new Error("The heatmap integrator counts a sample at a time, so it cannot be used with "
+					+ "the wavefront renderer");
 
 		System.err.println("Rendering...");
 
@@ -229,49 +495,292 @@ public class RayTracer {
 		Image image = scene.getImage();
 
 		// Setup viewer
-		if(DISPLAY)
+		if(display)
 			viewer = QuickViewer.createImageViewer(image);
 
-		// Set the camera aspect ratio to match output image
-		int width = image.getWidth();
-		int height = image.getHeight();
+		// Timing counters; a heatmap counts for this render only
+		long startTime = System.currentTimeMillis();
+		PathLengths.reset();
+		RenderStats.reset();
+		boolean counting = RenderStats.isCounting();
+		if (scene.getIntegrator() instanceof HeatmapIntegrator)
+			RenderStats.setCounting(true);
+
+		try {
+			renderImageWith(scene, image, checkpoint);
+		} finally {
+			RenderStats.setCounting(counting);
+		}
+
+		// Output time
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Total rendering time: "
+				+ (totalTime / 1000.0) + " seconds");
 
-		//Setup the sub-block spiral
-		spiral.initSubblockSpiral(width, height);
+		RenderStats.print(totalTime / 1000.0);
+		PathLengths.print();
+	}
 
-		// Timing counters
-		long startTime = System.currentTimeMillis();
+	/** Render the image with the renderer the scene asks for. */
+	private void renderImageWith(Scene scene, Image image, Checkpoint checkpoint) {
+		if (scene.getProgressive() != null)
+			scene.getProgressive().render(scene, image, display ? viewer::setImage : null, checkpoint);
+		else if (scene.getWavefront() != null)
+			scene.getWavefront().render(scene, image, display ? viewer::setImage : null, checkpoint);
+		else {
+			BlockProgress blocks = new BlockProgress(image, SUB_WIDTH, SUB_HEIGHT, checkpoint);
+			RenderStats.startTiles(blocks.numBlocks, blocks.doneCount());
+			if (farm != null)
+				farm.render(getSceneWorkspace(), scene, image, blocks, display ? i -> viewer.setImage(image,
+						blocks.blockX[i], blocks.blockY[i], blocks.blockX[i]+blocks.sizeX[i], blocks.blockY[i]+blocks.sizeY[i]) : null);
+			else if (numThreads > 1)
+				renderBlocksParallel(scene, image, blocks);
+			else
+				renderBlocksSerial(scene, image, blocks);
+			if (checkpoint != null)
+				checkpoint.flush();
+		}
+	}
 
-		// Loop over all blocks and render
-		int offsetX, offsetY, sizeX, sizeY;
-		for(int i = 0; i < spiral.totalSubblocks; i++) {
+	/**
+	 * The blocks of an image, in spiral order, and which of them are done.
+	 * When there is a checkpoint, finishing a block may save the blocks done
+	 * so far, and blocks done in an earlier run are read back from it.
+	 *
+	 * The checkpoint holds, for each block, whether it is done and, if so, its
+	 * pixels as in the image.  Blocks are only put in the image once they are
+	 * done, and then never change, so the checkpoint thread can read them
+	 * from the image while other blocks are still being rendered.
+	 */
+	static class BlockProgress {
+		static final String KIND = "blocks";
+
+		final int numBlocks;
+		final int[] blockX, blockY, sizeX, sizeY;
+		private final AtomicIntegerArray done;
+		private final Image image;
+		private final Checkpoint checkpoint;
+
+		BlockProgress(Image image, int subWidth, int subHeight, Checkpoint checkpoint) {
+			this.image = image;
+			this.checkpoint = checkpoint;
+			int width = image.getWidth(), height = image.getHeight();
+			BlockSpiral spiral = new BlockSpiral();
+			spiral.initSubblockSpiral(width, height);
+			numBlocks = spiral.totalSubblocks;
+			blockX = new int[numBlocks];
+			blockY = new int[numBlocks];
+			sizeX = new int[numBlocks];
+			sizeY = new int[numBlocks];
+			for(int i = 0; i < numBlocks; i++) {
+				spiral.incrementSublockSpiral();
+				blockX[i] = spiral.curSubX*subWidth;
+				blockY[i] = spiral.curSubY*subHeight;
+				sizeX[i] = Math.min(width-blockX[i], subWidth);
+				sizeY[i] = Math.min(height-blockY[i], subHeight);
+			}
+			done = new AtomicIntegerArray(numBlocks);
+			if (checkpoint != null)
+				load();
+		}
 
-			//Increment the block counter
-			spiral.incrementSublockSpiral();
-			offsetX = spiral.curSubX*SUB_WIDTH;
-			offsetY = spiral.curSubY*SUB_HEIGHT;
-			sizeX = Math.min(width-offsetX,SUB_WIDTH);
-			sizeY = Math.min(height-offsetY,SUB_HEIGHT);
+		private void load() {
+			try (DataInputStream in = checkpoint.open(KIND)) {
+				if (in == null)
+					return;
+				if (in.readInt() != numBlocks)
+					throw new IOException("the blocks are different");
+				int resumed = 0;
+				for (int i = 0; i < numBlocks; i++) {
+					if (!in.readBoolean())
+						continue;
+					float[] block = new float[3 * sizeX[i] * sizeY[i]];
+					for (int k = 0; k < block.length; k++)
+						block[k] = in.readFloat();
+					image.setBlock(block, blockX[i], blockY[i], sizeX[i], sizeY[i]);
+					done.set(i, 1);
+					resumed++;
+				}
+				System.out.println("Checkpoint: " + resumed + " of " + numBlocks + " blocks done");
+			} catch (IOException e) {
+				throw new Error("Cannot resume from the checkpoint", e);
+			}
+		}
 
-			renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+		boolean isDone(int i) {
+			return done.get(i) != 0;
+		}
+
+		int doneCount() {
+			int count = 0;
+			for (int i = 0; i < numBlocks; i++)
+				if (isDone(i))
+					count++;
+			return count;
+		}
+
+		/** Block i is done and in the image. */
+		void finished(int i) {
+			done.set(i, 1);
+			if (checkpoint != null)
+				checkpoint.saveIfDue(KIND, this::write);
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			float[] data = image.getData();
+			int width = image.getWidth();
+			out.writeInt(numBlocks);
+			for (int i = 0; i < numBlocks; i++) {
+				boolean d = isDone(i);
+				out.writeBoolean(d);
+				if (!d)
+					continue;
+				for (int y = blockY[i]; y < blockY[i] + sizeY[i]; y++)
+					for (int k = 3 * (y * width + blockX[i]); k < 3 * (y * width + blockX[i] + sizeX[i]); k++)
+						out.writeFloat(data[k]);
+			}
+		}
+	}
+
+	/**
+	 * Render all the blocks of the spiral, one after another, on the calling thread.
+	 */
+	private void renderBlocksSerial(Scene scene, Image image, BlockProgress blocks) {
+
+		// Loop over all blocks and render
+		int offsetX, offsetY, sizeX, sizeY;
+		for(int i = 0; i < blocks.numBlocks; i++) {
+
+			offsetX = blocks.blockX[i];
+			offsetY = blocks.blockY[i];
+			sizeX = blocks.sizeX[i];
+			sizeY = blocks.sizeY[i];
+
+			if (!blocks.isDone(i)) {
+				long start = System.nanoTime();
+				renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+				blocks.finished(i);
+				RenderStats.tileDone(Thread.currentThread().getName(), offsetX, offsetY, sizeX, sizeY, start,
+						System.nanoTime() - start);
+			}
 
 			// Update display
-			if (DISPLAY)
+			if (display)
 				viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
 
-			if (PROGRESS)
-				System.out.println("finished " + (i+1) + "/" + spiral.totalSubblocks + " blocks");
+		}
+	}
 
+	/**
+	 * Render all the blocks of the spiral on a work-stealing pool of numThreads workers.
+	 * Blocks are forked in spiral order, so the center of the image still tends to
+	 * finish first, but an idle worker steals whatever block is next rather than
+	 * waiting on a slow one.  A scaling report is printed once all blocks are done.
+	 */
+	private void renderBlocksParallel(Scene scene, Image image, BlockProgress blocks) {
+
+		int numBlocks = blocks.numBlocks;
+		Map<String, WorkerStats> stats = new ConcurrentHashMap<>();
+		ArrayList<BlockTask> tasks = new ArrayList<>();
+		for(int i = 0; i < numBlocks; i++) {
+			if (!blocks.isDone(i))
+				tasks.add(new BlockTask(scene, image, blocks, i, stats));
 		}
 
-		// Output time
-		long totalTime = (System.currentTimeMillis() - startTime);
-		System.out.println("Done.  Total rendering time: "
-				+ (totalTime / 1000.0) + " seconds");
+		long startTime = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(numThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		try {
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					for (BlockTask t : tasks)
+						t.fork();
+					for (BlockTask t : tasks)
+						t.join();
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+		long wallTime = System.nanoTime() - startTime;
+
+		if (display)
+			viewer.setImage(image);
+		printScalingReport(stats, wallTime);
+	}
+
+	/**
+	 * Per-worker bookkeeping for the scaling report.  Each instance is only
+	 * written by the worker thread that owns it.
+	 */
+	private static class WorkerStats {
+		int blocks = 0;
+		long busyNanos = 0;
+	}
+
+	/**
+	 * One image block rendered on the worker pool.
+	 */
+	private static class BlockTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Scene scene;
+		final Image image;
+		final BlockProgress blocks;
+		final int index, offsetX, offsetY, sizeX, sizeY;
+		final Map<String, WorkerStats> stats;
+
+		BlockTask(Scene scene, Image image, BlockProgress blocks, int index, Map<String, WorkerStats> stats) {
+			this.scene = scene;
+			this.image = image;
+			this.blocks = blocks;
+			this.index = index;
+			this.offsetX = blocks.blockX[index];
+			this.offsetY = blocks.blockY[index];
+			this.sizeX = blocks.sizeX[index];
+			this.sizeY = blocks.sizeY[index];
+			this.stats = stats;
+		}
+
+		@Override
+		protected void compute() {
+			long start = System.nanoTime();
+			renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+			blocks.finished(index);
+			long elapsed = System.nanoTime() - start;
+
+			String worker = Thread.currentThread().getName();
+			WorkerStats s = stats.computeIfAbsent(worker, k -> new WorkerStats());
+			s.blocks++;
+			s.busyNanos += elapsed;
+			RenderStats.tileDone(worker, offsetX, offsetY, sizeX, sizeY, start, elapsed);
+
+			// Update display
+			if (display)
+				viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
+		}
+	}
 
-		System.out.println("Bbox hit count : " + Bvh.hitCount);
-		System.out.println("Bbox miss count : " + Bvh.missCount);
-		System.out.println("Total triangle intersections: " + Triangle.intersectionCount);
+	/**
+	 * Print how well the render used the worker pool: the speedup is the total time
+	 * spent rendering blocks divided by the wall-clock time, and the efficiency is
+	 * that speedup divided by the number of threads.
+	 */
+	private static void printScalingReport(Map<String, WorkerStats> stats, long wallNanos) {
+		long busyNanos = 0;
+		Map<String, WorkerStats> sorted = new TreeMap<>(stats);
+		for (WorkerStats s : sorted.values())
+			busyNanos += s.busyNanos;
+		double speedup = busyNanos / (double) wallNanos;
+
+		System.out.println("Scaling report: " + numThreads + " threads");
+		for (Map.Entry<String, WorkerStats> e : sorted.entrySet()) {
+			WorkerStats s = e.getValue();
+			System.out.printf("  %s: %d blocks, busy %.3f s%n", e.getKey(), s.blocks, s.busyNanos / 1e9);
+		}
+		System.out.printf("  wall %.3f s, summed block time %.3f s%n", wallNanos / 1e9, busyNanos / 1e9);
+		System.out.printf("  speedup %.2fx, efficiency %.1f%%%n", speedup, 100 * speedup / numThreads);
 	}
 
 
@@ -281,33 +790,115 @@ public class RayTracer {
 	 * @param outColor output space
 	 * @param scene the scene
 	 * @param ray the ray to shade
+	 * @param sampler the source of random numbers for the current sample
+	 * @param depth the recursion depth of the ray
 	 */
-	public static void shadeRay(Colord outColor, Scene scene, Ray ray, int depth) {
+	public static void shadeRay(Colord outColor, Scene scene, Ray ray, Sampler sampler, int depth) {
+		shadeRay(outColor, scene, ray, sampler, depth, Colord.WHITE);
+	}
+
+	/**
+	 * Same as shadeRay(outColor, scene, ray, sampler, depth), for a ray whose
+	 * radiance will be multiplied by throughput on its way to the camera; the
+	 * integrator is given it with the hit, for Russian roulette.
+	 *
+	 * @param throughput the product of the weights of the rays before this one
+	 *   on its path, which is not modified
+	 */
+	public static void shadeRay(Colord outColor, Scene scene, Ray ray, Sampler sampler, int depth,
+			Colord throughput) {
+
+		IntersectionRecord intersectionRecord = null;
+		if (depth <= scene.getMaxDepth()) {
+			intersectionRecord = new IntersectionRecord();
+			if (!scene.getFirstIntersection(intersectionRecord, ray))
+				intersectionRecord = null;
+		}
+		shadeTracedRay(outColor, scene, ray, intersectionRecord, sampler, depth, throughput);
+	}
+
+	/**
+	 * The rest of shadeRay(), for a ray that has already been intersected with
+	 * the scene, as the packet renderer's camera rays are.  A ray deeper than
+	 * the scene's maxDepth is black, hit or not.
+	 *
+	 * @param iRec the ray's first intersection, or null if it hit nothing
+	 */
+	public static void shadeTracedRay(Colord outColor, Scene scene, Ray ray, IntersectionRecord iRec,
+			Sampler sampler, int depth, Colord throughput) {
 
 		outColor.setZero();
 
-		if(depth > MAX_DEPTH)
+		if(depth > scene.getMaxDepth()) {
+			PathLengths.countCut(depth);
 			return;
+		}
+		PathLengths.countRay(depth);
 
-		IntersectionRecord intersectionRecord = new IntersectionRecord();
+		shadeIntersection(outColor, scene, ray, iRec, sampler, depth, throughput);
+	}
 
-		if (!scene.getFirstIntersection(intersectionRecord, ray)) {
+	/**
+	 * The rest of shadeRay(), once the ray has been intersected with the scene.
+	 *
+	 * @param outColor output space
+	 * @param scene the scene
+	 * @param ray the ray to shade
+	 * @param iRec the ray's first intersection, or null if it hit nothing
+	 * @param sampler the source of random numbers for the current sample
+	 * @param depth the recursion depth of the ray
+	 * @param throughput the throughput of the path up to the ray
+	 */
+	static void shadeIntersection(Colord outColor, Scene scene, Ray ray, IntersectionRecord iRec,
+			Sampler sampler, int depth, Colord throughput) {
+		if (iRec == null) {
 			if(scene.envMap != null)
 				scene.envMap.eval(ray.direction, outColor);
 			else
 				outColor.set(scene.getBackColor());
-
 			return;
 		}
 
 		Integrator integrator = scene.getIntegrator();
-		integrator.shade(outColor, scene, ray, intersectionRecord, depth);
+		integrator.shade(outColor, scene, ray, iRec, sampler, depth, throughput);
+	}
 
+	/**
+	 * Compute one sample of a pixel: start the sampler's stream for it, choose a
+	 * point in the pixel, and shade the camera ray through that point (with
+	 * the integrator's shadeSample(), which usually calls shadeRay()).
+	 *
+	 * @param outColor the radiance of the sample (before exposure)
+	 * @param scene the scene
+	 * @param sampler the calling thread's sampler
+	 * @param ray space for the camera ray
+	 * @param pixelSample space for the point in the pixel
+	 * @param x the pixel column
+	 * @param y the pixel row
+	 * @param sampleIndex the index of the sample within the pixel
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 */
+	public static void samplePixel(Colord outColor, Scene scene, Sampler sampler, Ray ray, Vector2d pixelSample,
+			int x, int y, int sampleIndex, int width, int height) {
+		sampler.startPixel(x, y, sampleIndex);
+		sampler.getPixelSample(pixelSample);
+		scene.getCamera().getRay(ray, (x + pixelSample.x) / width, (y + pixelSample.y) / height);
+		scene.getIntegrator().shadeSample(outColor, scene, ray, sampler);
 	}
 
 	/**
 	 * Render one block of the output image.
 	 *
+	 * Each sample of each pixel takes its random numbers from its own stream of
+	 * the scene's sampler, so a pixel comes out the same whichever thread renders
+	 * it and whatever else has been rendered before.  The sampler also chooses
+	 * where in the pixel each sample goes.
+	 *
+	 * The block is accumulated in a buffer of its own and copied into the image
+	 * when it is done, so threads rendering different blocks never write to
+	 * the same memory until then, and need no locks even then.
+	 *
 	 * @param scene The scene data
 	 * @param outImage the output image (write the output pixels here)
 	 * @param offsetX the startingX value of the block
@@ -327,33 +918,100 @@ public class RayTracer {
 		int width = outImage.getWidth();
 		int height = outImage.getHeight();
 
-		int samples = scene.getSamples();
-		double sInv = 1.0/samples;
-		double sInvD2 = sInv / 2;
-		double sInvSqr = sInv * sInv;
+		int samples = scene.getSamples() * scene.getSamples();
 		double exposure = scene.getExposure();
 
-		Camera cam = scene.getCamera();
+		Sampler sampler = scene.getSampler().copy();
+		Vector2d pixelSample = new Vector2d();
+		float[] block = new float[3 * sizeX * sizeY];
+
+		if (scene.getPacketSize() > 1) {
+			renderBlockPackets(scene, block, offsetX, offsetY, sizeX, sizeY, width, height);
+			outImage.setBlock(block, offsetX, offsetY, sizeX, sizeY);
+			return;
+		}
 
-		for(int x = offsetX; x < (offsetX + sizeX); x++) {
-			for(int y = offsetY; y < (offsetY + sizeY); y++) {
+		for(int y = offsetY, i = 0; y < (offsetY + sizeY); y++) {
+			for(int x = offsetX; x < (offsetX + sizeX); x++, i += 3) {
 
 				pixelColor.setZero();
 
-				for(int i = 0; i < samples; i++) {
-					for(int j = 0; j < samples; j++) {
-						cam.getRay(ray, (sInvD2 + x + i * sInv) / width, (sInvD2 + y + j * sInv) / height);
-						shadeRay(rayColor, scene, ray, 1);
-						pixelColor.add(rayColor);
-					}
+				for(int s = 0; s < samples; s++) {
+					samplePixel(rayColor, scene, sampler, ray, pixelSample, x, y, s, width, height);
+					pixelColor.add(rayColor);
 				}
-				pixelColor.mul(sInvSqr);
+				pixelColor.mul(1.0 / samples);
 				pixelColor.mul(exposure);
 
+				block[i] = (float) pixelColor.x;
+				block[i + 1] = (float) pixelColor.y;
+				block[i + 2] = (float) pixelColor.z;
+			}
+		}
+
+		outImage.setBlock(block, offsetX, offsetY, sizeX, sizeY);
+	}
 
-				outImage.setPixelColor(pixelColor, x, y);
+	/**
+	 * Render a block as renderBlock() does, but trace the camera rays in
+	 * RayPackets, each from a tile of neighboring pixels: all the pixels of a
+	 * tile take their first sample, their rays are intersected together, and
+	 * each is shaded, through the integrator's shadeSample() as in
+	 * renderBlock(); then they take their second sample, and so on.  Every
+	 * pixel of the tile has its own copy of the sampler, so it draws the same
+	 * numbers as in renderBlock() and the image is the same.
+	 */
+	private static void renderBlockPackets(Scene scene, float[] block, int offsetX, int offsetY, int sizeX, int sizeY,
+			int width, int height) {
+		int packetSize = scene.getPacketSize();
+		int tileW = 1 << ((32 - Integer.numberOfLeadingZeros(packetSize)) / 2);
+		int tileH = Math.max(1, packetSize / tileW);
+		int samples = scene.getSamples() * scene.getSamples();
+		double exposure = scene.getExposure();
 
+		RayPacket packet = new RayPacket();
+		Ray[] rays = new Ray[packetSize];
+		IntersectionRecord[] records = new IntersectionRecord[packetSize];
+		Sampler[] samplers = new Sampler[packetSize];
+		int[] pixels = new int[packetSize];
+		for (int j = 0; j < packetSize; j++) {
+			rays[j] = new Ray();
+			records[j] = new IntersectionRecord();
+			samplers[j] = scene.getSampler().copy();
+		}
+		Vector2d pixelSample = new Vector2d();
+		Colord rayColor = new Colord();
+		double[] sums = new double[block.length];
+
+		for (int ty = 0; ty < sizeY; ty += tileH) {
+			for (int tx = 0; tx < sizeX; tx += tileW) {
+				for (int s = 0; s < samples; s++) {
+					packet.clear();
+					for (int y = ty; y < Math.min(ty + tileH, sizeY); y++) {
+						for (int x = tx; x < Math.min(tx + tileW, sizeX); x++) {
+							int j = packet.size;
+							Sampler sampler = samplers[j];
+							sampler.startPixel(offsetX + x, offsetY + y, s);
+							sampler.getPixelSample(pixelSample);
+							scene.getCamera().getRay(rays[j], (offsetX + x + pixelSample.x) / width,
+									(offsetY + y + pixelSample.y) / height);
+							pixels[j] = 3 * (y * sizeX + x);
+							packet.add(rays[j], records[j]);
+						}
+					}
+					scene.intersect(packet, false);
+					for (int j = 0; j < packet.size; j++) {
+						scene.getIntegrator().shadeSample(rayColor, scene, rays[j], packet.hit[j] ? records[j] : null,
+								samplers[j]);
+						sums[pixels[j]] += rayColor.x;
+						sums[pixels[j] + 1] += rayColor.y;
+						sums[pixels[j] + 2] += rayColor.z;
+					}
+				}
 			}
 		}
+
+		for (int i = 0; i < block.length; i++)
+			block[i] = (float) (sums[i] * (1.0 / samples) * exposure);
 	}
 }
@@ -0,0 +1,668 @@
+package ray2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import ray2.integrator.HeatmapIntegrator;
+
+/**
+ * Renders the blocks of an image in other JVMs on the same machine: one
+ * process is the coordinator, which parses each scene once, hands its blocks
+ * out to worker processes and puts the pixels they send back into the image;
+ * each worker parses the scene itself and renders the blocks it is given.
+ * Since every pixel's samples come from its own sampler stream, the image is
+ * the same as a render in one JVM.
+ *
+ * They talk over TCP on the loopback interface, one connection per worker
+ * thread, in DataOutputStream messages.  A worker says hello ('H' and its
+ * name) and is told the job ('J': job id, scene root ("" for none), scene
+ * file, fingerprint), or to wait ('W': milliseconds) if there is none yet.
+ * Then it asks for work ('R' and the job id) and is answered with one of:
+ *
+ *   'L' block, x, y, width, height: a lease on a block of the spiral
+ *   'W' milliseconds: nothing to lease now; ask again after that long
+ *   'N': the job is over; say hello again for the next one
+ *   'Q': there are no more jobs; disconnect
+ *
+ * and sends each leased block back ('B' job id, block, render nanoseconds,
+ * then the block's floats as in Image) before asking again.
+ *
+ * A lease lasts leaseTimeout seconds.  A block whose lease runs out, or whose
+ * worker disconnects, is leased again to whoever asks next, so a worker that
+ * hangs or dies only costs the blocks it had.  If the first worker sends the
+ * block after all, whichever copy comes second is ignored.
+ *
+ * Blocks are tracked with a RayTracer.BlockProgress, so a farm render
+ * checkpoints and resumes like any other.  The statistics the renderer
+ * counts (RenderStats' counters, path lengths) are counted in the workers,
+ * and are not sent back; the tile times and the timeline of RenderStats are
+ * kept by the coordinator, with each block placed on the timeline as ending
+ * when it arrived.
+ */
+public class RenderFarm {
+
+	/** Seconds a worker has to render a leased block before it is leased again. */
+	private static double leaseTimeout = 60;
+	public static double getLeaseTimeout() { return leaseTimeout; }
+	public static void setLeaseTimeout(double seconds) { leaseTimeout = seconds; }
+
+	/** How long a worker with nothing to do waits before asking again, in ms. */
+	private static final int WAIT_MILLIS = 50;
+
+	/** How long a worker keeps trying to reach a coordinator that is not up yet. */
+	private static final int CONNECT_MILLIS = 30000;
+
+	/**
+	 * The coordinator: a server that hands out the blocks of one scene at a
+	 * time, and, if asked, the worker processes it started.
+	 */
+	public static class Coordinator implements AutoCloseable {
+
+		private final ServerSocket server;
+		private final List<Process> spawned = new ArrayList<>();
+		private final List<Socket> connections = new ArrayList<>();
+		private int jobCount = 0;
+		private Job job;
+		private boolean closed = false;
+
+		/**
+		 * Start listening on the loopback interface.
+		 *
+		 * @param port the port to listen on, or 0 for any free one
+		 */
+		public Coordinator(int port) throws IOException {
+			server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+			Thread acceptor = new Thread(this::accept, "farm-accept");
+			acceptor.setDaemon(true);
+			acceptor.start();
+			System.out.println("Render farm: coordinator listening on " + getAddress());
+		}
+
+		/** @return where workers should connect, as host:port */
+		public String getAddress() {
+			return server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+		}
+
+		/**
+		 * Start worker JVMs on this machine, each rendering on threads threads.
+		 * They run this JVM's java, with its class path and JVM options (so the
+		 * same heap size and java.library.path), and their output other than
+		 * errors is discarded.
+		 */
+		public void spawnWorkers(int count, int threads) throws IOException {
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			for (int i = 0; i < count; i++) {
+				List<String> command = new ArrayList<>();
+				command.add(java);
+				command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(RayTracer.class.getName());
+				command.add("-threads");
+				command.add(Integer.toString(threads));
+				command.add("-worker");
+				command.add(getAddress());
+				ProcessBuilder builder = new ProcessBuilder(command);
+				builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+				builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+				synchronized (this) {
+					spawned.add(builder.start());
+				}
+			}
+			System.out.println("Render farm: started " + count + " worker processes");
+		}
+
+		/**
+		 * Render a scene's image on the workers, and wait until it is done.
+		 *
+		 * @param p where the scene file is
+		 * @param scene the scene, parsed from it
+		 */
+		public void render(RayTracer.ScenePath p, Scene scene) {
+			Image image = scene.getImage();
+			render(p, scene, image, new RayTracer.BlockProgress(image, RayTracer.SUB_WIDTH, RayTracer.SUB_HEIGHT, null),
+					null);
+		}
+
+		/**
+		 * Render the blocks of a scene that are not done yet on the workers,
+		 * and wait until they are all in the image.  The workers parse the
+		 * scene from its file, and must get the same fingerprint from it.
+		 *
+		 * @param p where the scene file is
+		 * @param scene the scene, parsed from it
+		 * @param image the image to render
+		 * @param blocks the blocks of the image, some of which may be done
+		 * @param onBlock called with the index of each block once it is in the
+		 *   image, or null
+		 */
+		void render(RayTracer.ScenePath p, Scene scene, Image image, RayTracer.BlockProgress blocks,
+				IntConsumer onBlock) {
+			long fingerprint;
+			try {
+				fingerprint = Checkpoint.fingerprint(p.getFile(), scene);
+			} catch (IOException e) {
+				throw new Error("Render farm: cannot read " + p.file, e);
+			}
+			Job j;
+			synchronized (this) {
+				if (closed)
+					throw new IllegalStateException("Render farm: the coordinator is closed");
+				j = new Job(++jobCount, p, fingerprint, image, blocks, onBlock);
+				job = j;
+			}
+
+			long start = System.nanoTime();
+			try {
+				int last = -1;
+				long since = start;
+				while (true) {
+					synchronized (j) {
+						if (j.remaining == 0)
+							break;
+						if (j.remaining != last) {
+							last = j.remaining;
+							since = System.nanoTime();
+						} else if (System.nanoTime() - since > 30000 * 1000000L) {
+							System.out.println("Render farm: " + j.remaining + " blocks to go, waiting for workers at "
+									+ getAddress());
+							since = System.nanoTime();
+						}
+						j.wait(1000);
+					}
+					String exits = exitCodes();
+					if (exits != null)
+						throw new Error("Render farm: the worker processes exited (exit codes " + exits + ") with "
+								+ j.remaining + " blocks to go, and no other worker is connected");
+				}
+			} catch (InterruptedException e) {
+				throw new Error(e);
+			} finally {
+				synchronized (this) {
+					job = null;
+				}
+			}
+			long wallNanos = System.nanoTime() - start;
+			j.printReport(wallNanos);
+		}
+
+		/**
+		 * Tell the workers there is no more work, and wait a little for them to
+		 * disconnect and for the ones this coordinator started to exit.
+		 */
+		@Override
+		public void close() {
+			List<Process> processes;
+			synchronized (this) {
+				closed = true;
+				long end = System.nanoTime() + 20L * WAIT_MILLIS * 1000000;
+				try {
+					for (long left; !connections.isEmpty() && (left = end - System.nanoTime()) > 0; )
+						wait(left / 1000000 + 1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				processes = new ArrayList<>(spawned);
+			}
+			for (Process process : processes) {
+				try {
+					if (!process.waitFor(5, TimeUnit.SECONDS))
+						process.destroy();
+				} catch (InterruptedException e) {
+					process.destroy();
+				}
+			}
+			try {
+				server.close();
+			} catch (IOException e) {
+				// Nothing more will be accepted either way
+			}
+			synchronized (this) {
+				for (Socket socket : connections) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// Already gone
+					}
+				}
+			}
+		}
+
+		private void accept() {
+			int count = 0;
+			while (!server.isClosed()) {
+				Socket socket;
+				try {
+					socket = server.accept();
+				} catch (IOException e) {
+					return;
+				}
+				synchronized (this) {
+					connections.add(socket);
+				}
+				Thread handler = new Thread(() -> serve(socket), "farm-connection-" + (++count));
+				handler.setDaemon(true);
+				handler.start();
+			}
+		}
+
+		/** Answer one worker connection until it closes. */
+		private void serve(Socket socket) {
+			String name = socket.getRemoteSocketAddress().toString();
+			Job leased = null;
+			int lease = -1;
+			try (Socket s = socket) {
+				s.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+				while (true) {
+					char message = in.readChar();
+					switch (message) {
+					case 'H': {
+						name = in.readUTF();
+						Job j = current();
+						if (j == null) {
+							reply(out, isClosed() ? 'Q' : 'W');
+						} else {
+							out.writeChar('J');
+							out.writeInt(j.id);
+							out.writeUTF(j.path.root == null ? "" : j.path.getRoot());
+							out.writeUTF(j.path.getFile());
+							out.writeLong(j.fingerprint);
+						}
+						break;
+					}
+					case 'R': {
+						int id = in.readInt();
+						Job j = current();
+						if (j == null || j.id != id) {
+							reply(out, j != null ? 'N' : isClosed() ? 'Q' : 'W');
+							break;
+						}
+						int i = j.lease(name);
+						if (i < 0) {
+							reply(out, 'W');
+							break;
+						}
+						leased = j;
+						lease = i;
+						out.writeChar('L');
+						out.writeInt(i);
+						out.writeInt(j.blocks.blockX[i]);
+						out.writeInt(j.blocks.blockY[i]);
+						out.writeInt(j.blocks.sizeX[i]);
+						out.writeInt(j.blocks.sizeY[i]);
+						break;
+					}
+					case 'B': {
+						int id = in.readInt();
+						int i = in.readInt();
+						long nanos = in.readLong();
+						int length = in.readInt();
+						// Only the block leased on this connection comes back, at its size
+						if (leased == null || leased.id != id || i != lease
+								|| length != 3 * leased.blocks.sizeX[i] * leased.blocks.sizeY[i])
+							throw new IOException("block " + i + " of job " + id + " with " + length
+									+ " values is not the one leased");
+						Job j = leased;
+						leased = null;
+						lease = -1;
+						try {
+							float[] block = new float[length];
+							for (int k = 0; k < length; k++)
+								block[k] = in.readFloat();
+							if (j == current())
+								j.finished(i, block, name, nanos);
+						} finally {
+							// Free again unless it is done
+							j.release(i, name);
+						}
+						break;
+					}
+					default:
+						throw new IOException("unknown message " + (int) message);
+					}
+					out.flush();
+				}
+			} catch (IOException e) {
+				if (!(e instanceof EOFException || e instanceof SocketException))
+					System.out.println("Render farm: dropping " + name + ": " + e.getMessage());
+			} finally {
+				// The worker has gone: its block, if any, is free again
+				if (leased != null)
+					leased.release(lease, name);
+				synchronized (this) {
+					connections.remove(socket);
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * @return the exit codes of the worker processes this coordinator
+		 *   started, if it started any, they have all exited, and no worker is
+		 *   connected; else null
+		 */
+		private synchronized String exitCodes() {
+			if (spawned.isEmpty() || !connections.isEmpty())
+				return null;
+			List<String> codes = new ArrayList<>();
+			for (Process process : spawned) {
+				if (process.isAlive())
+					return null;
+				codes.add(Integer.toString(process.exitValue()));
+			}
+			return String.join(", ", codes);
+		}
+
+		private static void reply(DataOutputStream out, char message) throws IOException {
+			out.writeChar(message);
+			if (message == 'W')
+				out.writeInt(WAIT_MILLIS);
+		}
+
+		private synchronized Job current() {
+			return job;
+		}
+
+		private synchronized boolean isClosed() {
+			return closed;
+		}
+	}
+
+	/**
+	 * The render of one scene: its blocks, who has them, and what each worker
+	 * did.  All the fields but the final ones are guarded by the Job's lock.
+	 */
+	private static class Job {
+		final int id;
+		final RayTracer.ScenePath path;
+		final long fingerprint;
+		final Image image;
+		final RayTracer.BlockProgress blocks;
+		final IntConsumer onBlock;
+
+		/** The worker holding each block's lease, or null, and when it runs out. */
+		final String[] holder;
+		final long[] deadline;
+		int remaining;
+		int released = 0, duplicates = 0;
+		final Map<String, WorkerStats> stats = new TreeMap<>();
+
+		Job(int id, RayTracer.ScenePath path, long fingerprint, Image image, RayTracer.BlockProgress blocks,
+				IntConsumer onBlock) {
+			this.id = id;
+			this.path = path;
+			this.fingerprint = fingerprint;
+			this.image = image;
+			this.blocks = blocks;
+			this.onBlock = onBlock;
+			holder = new String[blocks.numBlocks];
+			deadline = new long[blocks.numBlocks];
+			for (int i = 0; i < blocks.numBlocks; i++)
+				if (!blocks.isDone(i))
+					remaining++;
+		}
+
+		/**
+		 * @return the block to lease to a worker: the first in spiral order that
+		 *   is not done or leased, else the first whose lease has run out; or -1
+		 */
+		synchronized int lease(String worker) {
+			long now = System.nanoTime();
+			int expired = -1;
+			for (int i = 0; i < blocks.numBlocks; i++) {
+				if (blocks.isDone(i))
+					continue;
+				if (holder[i] == null) {
+					expired = i;
+					break;
+				}
+				if (expired < 0 && now - deadline[i] > 0)
+					expired = i;
+			}
+			if (expired < 0)
+				return -1;
+			if (holder[expired] != null) {
+				System.out.println("Render farm: lease on block " + expired + " by " + holder[expired]
+						+ " ran out, leasing it again");
+				released++;
+			}
+			holder[expired] = worker;
+			deadline[expired] = now + (long) (leaseTimeout * 1e9);
+			stats.computeIfAbsent(worker, k -> new WorkerStats());
+			return expired;
+		}
+
+		/** A worker went away while it held block i. */
+		synchronized void release(int i, String worker) {
+			if (worker.equals(holder[i]) && !blocks.isDone(i)) {
+				holder[i] = null;
+				released++;
+			}
+		}
+
+		/** A worker sent block i back. */
+		void finished(int i, float[] block, String worker, long nanos) {
+			synchronized (this) {
+				if (i < 0 || i >= blocks.numBlocks || blocks.isDone(i)
+						|| block.length != 3 * blocks.sizeX[i] * blocks.sizeY[i]) {
+					duplicates++;
+					return;
+				}
+				image.setBlock(block, blocks.blockX[i], blocks.blockY[i], blocks.sizeX[i], blocks.sizeY[i]);
+				blocks.finished(i);
+				holder[i] = null;
+				WorkerStats s = stats.computeIfAbsent(worker, k -> new WorkerStats());
+				s.blocks++;
+				s.busyNanos += nanos;
+				RenderStats.tileDone(worker, blocks.blockX[i], blocks.blockY[i], blocks.sizeX[i], blocks.sizeY[i],
+						System.nanoTime() - nanos, nanos);
+				remaining--;
+				notifyAll();
+			}
+			if (onBlock != null)
+				onBlock.accept(i);
+		}
+
+		/**
+		 * Print what each worker did.  As for a render on threads, the speedup
+		 * is the time spent rendering blocks, summed over the workers, divided
+		 * by the wall-clock time.
+		 */
+		synchronized void printReport(long wallNanos) {
+			long busyNanos = 0;
+			for (WorkerStats s : stats.values())
+				busyNanos += s.busyNanos;
+			double speedup = busyNanos / (double) wallNanos;
+			System.out.println("Render farm report: " + stats.size() + " worker threads");
+			for (Map.Entry<String, WorkerStats> e : stats.entrySet()) {
+				WorkerStats s = e.getValue();
+				System.out.printf("  %s: %d blocks, busy %.3f s%n", e.getKey(), s.blocks, s.busyNanos / 1e9);
+			}
+			System.out.printf("  wall %.3f s, summed block time %.3f s, %d leases given again, %d blocks ignored%n",
+					wallNanos / 1e9, busyNanos / 1e9, released, duplicates);
+			System.out.printf("  speedup %.2fx%n", speedup);
+		}
+	}
+
+	private static class WorkerStats {
+		int blocks = 0;
+		long busyNanos = 0;
+	}
+
+	/**
+	 * A worker process: connects to a coordinator on threads threads, each
+	 * rendering the blocks it is leased, until the coordinator says there is
+	 * no more work or goes away.  The scene of each job is parsed once, by
+	 * whichever thread gets to it first.
+	 */
+	public static class Worker {
+
+		private final String host;
+		private final int port;
+		private int sceneJob = -1;
+		private Scene scene;
+		private int blocksRendered = 0;
+		/** Whether RenderStats was counting before run(), as it is again for jobs without a heatmap. */
+		private boolean counting;
+
+		/** @param address the coordinator's host:port */
+		public Worker(String address) {
+			int colon = address.lastIndexOf(':');
+			if (colon < 0)
+				throw new IllegalArgumentException("Render farm: expected host:port, not " + address);
+			host = address.substring(0, colon);
+			port = Integer.parseInt(address.substring(colon + 1));
+		}
+
+		/** Work on threads threads until there is no more work, then return. */
+		public void run(int threads) {
+			Thread[] loops = new Thread[threads];
+			String name = ManagementFactory.getRuntimeMXBean().getName();
+			counting = RenderStats.isCounting();
+			try {
+				for (int t = 0; t < threads; t++) {
+					String loopName = name + "/" + t;
+					loops[t] = new Thread(() -> loop(loopName), "farm-worker-" + t);
+					loops[t].start();
+				}
+				for (Thread loop : loops) {
+					try {
+						loop.join();
+					} catch (InterruptedException e) {
+						throw new Error(e);
+					}
+				}
+			} finally {
+				RenderStats.setCounting(counting);
+			}
+			System.out.println("Render farm: worker done, " + blocksRendered + " blocks");
+		}
+
+		private void loop(String name) {
+			try (Socket socket = connect()) {
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+				Scene scene = null;
+				int job = -1;
+				boolean hello = true;
+				while (true) {
+					if (hello) {
+						out.writeChar('H');
+						out.writeUTF(name);
+					} else {
+						out.writeChar('R');
+						out.writeInt(job);
+					}
+					out.flush();
+
+					char message = in.readChar();
+					switch (message) {
+					case 'J': {
+						job = in.readInt();
+						String root = in.readUTF();
+						String file = in.readUTF();
+						scene = sceneFor(job, root.isEmpty() ? null : root, file, in.readLong());
+						hello = false;
+						break;
+					}
+					case 'W':
+						Thread.sleep(in.readInt());
+						break;
+					case 'N':
+						hello = true;
+						break;
+					case 'Q':
+						return;
+					case 'L': {
+						int i = in.readInt();
+						int x = in.readInt(), y = in.readInt(), w = in.readInt(), h = in.readInt();
+						Image image = scene.getImage();
+						long start = System.nanoTime();
+						RayTracer.renderBlock(scene, image, x, y, w, h);
+						long nanos = System.nanoTime() - start;
+						out.writeChar('B');
+						out.writeInt(job);
+						out.writeInt(i);
+						out.writeLong(nanos);
+						out.writeInt(3 * w * h);
+						float[] data = image.getData();
+						int width = image.getWidth();
+						for (int row = y; row < y + h; row++)
+							for (int k = 3 * (row * width + x); k < 3 * (row * width + x + w); k++)
+								out.writeFloat(data[k]);
+						synchronized (this) {
+							blocksRendered++;
+						}
+						break;
+					}
+					default:
+						throw new IOException("unknown message " + (int) message);
+					}
+				}
+			} catch (SocketException | EOFException e) {
+				System.out.println("Render farm: lost the coordinator (" + e + ")");
+			} catch (IOException e) {
+				throw new Error("Render farm: worker failed", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private Socket connect() throws IOException {
+			long start = System.nanoTime();
+			while (true) {
+				try {
+					return new Socket(host, port);
+				} catch (ConnectException e) {
+					if (System.nanoTime() - start > CONNECT_MILLIS * 1000000L)
+						throw e;
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e1) {
+						throw e;
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the scene of a job, parsed and initialized once for all the
+		 *   worker's threads
+		 */
+		private synchronized Scene sceneFor(int job, String root, String file, long fingerprint) throws IOException {
+			if (job == sceneJob)
+				return scene;
+			RayTracer.ScenePath p = new RayTracer.ScenePath(root, file);
+			RayTracer.setSceneWorkspace(p);
+			System.out.println("Render farm: loading " + p.file + "...");
+			Scene s = (Scene) new Parser().parse(p.getFile(), Scene.class);
+			s.init();
+			if (Checkpoint.fingerprint(p.getFile(), s) != fingerprint)
+				throw new IOException("the scene " + p.file + " is not the one the coordinator has");
+			RenderStats.setCounting(counting || s.getIntegrator() instanceof HeatmapIntegrator);
+			sceneJob = job;
+			scene = s;
+			return s;
+		}
+	}
+}
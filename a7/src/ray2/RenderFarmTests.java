@@ -0,0 +1,200 @@
+package ray2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RenderFarmTests {
+
+	private static final String SCENE =
+			"<scene>\n" +
+			"  <samples>2</samples>\n" +
+			"  <camera type=\"PerspectiveCamera\" />\n" +
+			"  <image>70 40</image>\n" +
+			"  <integrator type=\"ray2.ProgressiveRendererTests$NoiseIntegrator\" />\n" +
+			"  <backColor>0.5 0.5 0.5</backColor>\n" +
+			"  <surface type=\"Sphere\">\n" +
+			"    <center>0 0 -4</center>\n" +
+			"  </surface>\n" +
+			"</scene>\n";
+
+	private File file;
+	private RayTracer.ScenePath path;
+	private Scene scene;
+	private Image expected;
+
+	@Before
+	public void writeScene() throws IOException {
+		file = File.createTempFile("farm-test", ".xml");
+		Files.write(file.toPath(), SCENE.getBytes("UTF-8"));
+		path = new RayTracer.ScenePath(null, file.getPath());
+		RayTracer.setSceneWorkspace(path);
+		scene = (Scene) new Parser().parse(path.getFile(), Scene.class);
+		scene.init();
+		expected = new Image(70, 40);
+		RayTracer.renderBlock(scene, expected, 0, 0, 70, 40);
+	}
+
+	@After
+	public void deleteScene() {
+		file.delete();
+		RenderFarm.setLeaseTimeout(60);
+	}
+
+	private static Thread startWorker(String address, int threads) {
+		Thread worker = new Thread(() -> new RenderFarm.Worker(address).run(threads));
+		worker.start();
+		return worker;
+	}
+
+	@Test
+	public void testWorkersRenderTheSameImage() throws Exception {
+		Image image = new Image(70, 40);
+		Thread worker;
+		try (RenderFarm.Coordinator coordinator = new RenderFarm.Coordinator(0)) {
+			worker = startWorker(coordinator.getAddress(), 3);
+			coordinator.render(path, scene, image, new RayTracer.BlockProgress(image, 32, 32, null), null);
+		}
+		worker.join();
+		assertArrayEquals(expected.getData(), image.getData(), 0);
+	}
+
+	/** A worker that takes a lease, and then does whatever the test likes. */
+	private static class FakeWorker implements AutoCloseable {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		int job;
+
+		FakeWorker(String address) throws IOException {
+			socket = new Socket("localhost", Integer.parseInt(address.substring(address.lastIndexOf(':') + 1)));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(socket.getOutputStream());
+		}
+
+		/** Say hello until there is a job, then lease a block. */
+		int lease() throws IOException, InterruptedException {
+			while (true) {
+				out.writeChar('H');
+				out.writeUTF("fake");
+				char reply = in.readChar();
+				if (reply == 'J')
+					break;
+				assertEquals('W', reply);
+				Thread.sleep(in.readInt());
+			}
+			job = in.readInt();
+			in.readUTF();
+			in.readUTF();
+			in.readLong();
+			out.writeChar('R');
+			out.writeInt(job);
+			assertEquals('L', in.readChar());
+			int block = in.readInt();
+			for (int k = 0; k < 4; k++)
+				in.readInt();
+			return block;
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testLostLeasesAreLeasedAgain() throws Exception {
+		RenderFarm.setLeaseTimeout(0.2);
+		Image image = new Image(70, 40);
+		Thread worker;
+		try (RenderFarm.Coordinator coordinator = new RenderFarm.Coordinator(0);
+				FakeWorker hung = new FakeWorker(coordinator.getAddress())) {
+			Thread render = new Thread(() -> coordinator.render(path, scene, image,
+					new RayTracer.BlockProgress(image, 32, 32, null), null));
+			render.start();
+
+			// One worker keeps its lease and says nothing, the other goes away with it
+			assertEquals(0, hung.lease());
+			try (FakeWorker dead = new FakeWorker(coordinator.getAddress())) {
+				assertEquals(1, dead.lease());
+			}
+
+			worker = startWorker(coordinator.getAddress(), 1);
+			render.join();
+
+			// A block that comes too late is ignored
+			hung.out.writeChar('B');
+			hung.out.writeInt(hung.job);
+			hung.out.writeInt(0);
+			hung.out.writeLong(0);
+			hung.out.writeInt(3 * 32 * 32);
+			for (int k = 0; k < 3 * 32 * 32; k++)
+				hung.out.writeFloat(-1);
+			hung.out.writeChar('R');
+			hung.out.writeInt(hung.job);
+			assertEquals('W', hung.in.readChar());
+		}
+		worker.join();
+		assertArrayEquals(expected.getData(), image.getData(), 0);
+	}
+
+	@Test
+	public void testBadBlocksAreRefused() throws Exception {
+		Image image = new Image(70, 40);
+		Thread worker;
+		try (RenderFarm.Coordinator coordinator = new RenderFarm.Coordinator(0);
+				FakeWorker bad = new FakeWorker(coordinator.getAddress())) {
+			Thread render = new Thread(() -> coordinator.render(path, scene, image,
+					new RayTracer.BlockProgress(image, 32, 32, null), null));
+			render.start();
+
+			// A block far bigger than the one leased is not read, and the lease is free again
+			assertEquals(0, bad.lease());
+			bad.out.writeChar('B');
+			bad.out.writeInt(bad.job);
+			bad.out.writeInt(0);
+			bad.out.writeLong(0);
+			bad.out.writeInt(Integer.MAX_VALUE);
+			try {
+				bad.in.readChar();
+				fail("the coordinator kept the connection");
+			} catch (EOFException | SocketException e) {
+				// Dropped
+			}
+
+			worker = startWorker(coordinator.getAddress(), 1);
+			render.join();
+		}
+		worker.join();
+		assertArrayEquals(expected.getData(), image.getData(), 0);
+	}
+
+	@Test
+	public void testDeadWorkersFailTheRender() throws Exception {
+		// The workers parse a scene with other settings than this one, and give up
+		scene.setSamples(3);
+		Image image = new Image(70, 40);
+		try (RenderFarm.Coordinator coordinator = new RenderFarm.Coordinator(0)) {
+			coordinator.spawnWorkers(1, 1);
+			coordinator.render(path, scene, image, new RayTracer.BlockProgress(image, 32, 32, null), null);
+			fail("the render finished without workers");
+		} catch (Error e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("exited"));
+		}
+	}
+}
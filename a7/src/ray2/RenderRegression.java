@@ -0,0 +1,415 @@
+package ray2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A headless batch run of RayTracer that checks render quality and speed, so
+ * that a change meant to make rendering faster can be shown not to make it
+ * worse.  Each scene is rendered with the display off (and not written out),
+ * and compared with its reference image, reference/&lt;scene&gt;.xml.exr next
+ * to the scene file.  For each scene the run records:
+ *
+ *   seconds          the time to render (and denoise, if the scene does)
+ *   rays             the rays shadeRay traced (PathLengths), and rays per second,
+ *                    if the render counters are on (-stats); null otherwise
+ *   peakHeapBytes    the sum of the peak use of each heap memory pool
+ *   rmse, relMse     the RMS and relative mean square error (see relMse)
+ *   ssim             the structural similarity to the reference (see ssim)
+ *   qualityPerSecond 1 / (relMse x seconds), the efficiency of the render:
+ *                    it doubles if the render takes half the time for the
+ *                    same error, or has half the error in the same time
+ *
+ * The results are written to a JSON report, and checked against a budget: a
+ * properties file of the lowest quality per second each scene may have,
+ * keyed by the scene file relative to the scene path (as in
+ * "lightSampling/sphere-circ.xml"), and a "tolerance", the fraction below it
+ * that still passes (default 0.25, as the time of a short render varies
+ * that much from run to run).  A scene that falls below its budget
+ * regressed, and fails the run; a scene with no budget, or no reference, is
+ * reported but passes.  With updateBudget the budget file is rewritten with
+ * the qualities this run measured.
+ */
+public class RenderRegression {
+
+	/** The budget file, or null for none. */
+	protected String budgetFile = null;
+	public void setBudgetFile(String budgetFile) { this.budgetFile = budgetFile; }
+
+	/** The tolerance, or negative to take it from the budget file. */
+	protected double tolerance = -1;
+	public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+
+	/** Whether to write this run's qualities to the budget file. */
+	protected boolean updateBudget = false;
+	public void setUpdateBudget(boolean updateBudget) { this.updateBudget = updateBudget; }
+
+	/** The tolerance when neither the run nor the budget file gives one. */
+	public static final double DEFAULT_TOLERANCE = 0.25;
+
+	/** Where the report goes. */
+	private final String reportFile;
+
+	public RenderRegression(String reportFile) {
+		this.reportFile = reportFile;
+	}
+
+	/** What was measured for one scene. */
+	static class Result {
+		final String scene;
+		int width, height, samples;
+		double seconds;
+		/** The rays traced, or -1 if they were not counted. */
+		long rays = -1;
+		long peakHeap;
+		double rmse = Double.NaN, relMse = Double.NaN, ssim = Double.NaN;
+		/** The lowest quality per second that passes, or NaN if there is no budget. */
+		double budget = Double.NaN;
+		String status = "ok";
+
+		Result(String scene) {
+			this.scene = scene;
+		}
+
+		double raysPerSecond() {
+			return rays < 0 ? Double.NaN : rays / seconds;
+		}
+
+		double qualityPerSecond() {
+			return 1 / (relMse * seconds);
+		}
+
+		boolean passed() {
+			return !status.equals("regressed") && !status.startsWith("error");
+		}
+	}
+
+	/**
+	 * Render and measure each scene, write the report, and check the budget.
+	 *
+	 * @return true if no scene regressed or failed to render
+	 */
+	public boolean run(RayTracer rayTracer, List<RayTracer.ScenePath> scenes) {
+		boolean display = RayTracer.getDisplay();
+		RayTracer.setDisplay(false);
+		ArrayList<RayTracer.ScenePath> sorted = new ArrayList<>(scenes);
+		sorted.sort(Comparator.comparing(RenderRegression::key));
+		ArrayList<Result> results = new ArrayList<>();
+		try {
+			for (RayTracer.ScenePath p : sorted) {
+				System.err.println("Checking " + p.file + "...");
+				results.add(measure(rayTracer, p));
+			}
+		} finally {
+			RayTracer.setDisplay(display);
+		}
+
+		Properties budget = loadBudget();
+		boolean passed = check(results, budget, tolerance >= 0 ? tolerance
+				: Double.parseDouble(budget.getProperty("tolerance", Double.toString(DEFAULT_TOLERANCE))));
+		if (updateBudget)
+			saveBudget(budget, results);
+		writeReport(results, passed);
+		printReport(results, passed);
+		return passed;
+	}
+
+	/**
+	 * @return the name of a scene in the report and the budget: its file
+	 *   relative to the scene path, with '/' between the folders
+	 */
+	static String key(RayTracer.ScenePath p) {
+		Path f = p.file.toAbsolutePath().normalize();
+		if (p.root != null) {
+			Path root = p.root.toAbsolutePath().normalize();
+			if (f.startsWith(root))
+				f = root.relativize(f);
+		}
+		return f.toString().replace(File.separatorChar, '/');
+	}
+
+	private static Result measure(RayTracer rayTracer, RayTracer.ScenePath p) {
+		Result r = new Result(key(p));
+		try {
+			RayTracer.setSceneWorkspace(p);
+			Scene scene = (Scene) new Parser().parse(p.getFile(), Scene.class);
+			scene.init();
+			r.width = scene.getImage().getWidth();
+			r.height = scene.getImage().getHeight();
+			r.samples = scene.getSamples() * scene.getSamples();
+
+			resetPeakHeap();
+			long start = System.nanoTime();
+			rayTracer.renderImage(scene);
+			Image image = scene.getImage();
+			if (scene.getDenoiser() != null)
+				image = RayTracer.denoise(scene, RayTracer.findFeatures(scene));
+			r.seconds = (System.nanoTime() - start) * 1e-9;
+			if (RenderStats.isEnabled())
+				r.rays = PathLengths.getTotalRayCount();
+			r.peakHeap = peakHeap();
+			if (RenderStats.isTracing())
+				RenderStats.writeTrace(p.getFile() + ".trace.json");
+
+			File f = new File(p.file.getParent().toFile(), "reference/" + p.file.getFileName() + ".exr");
+			if (!f.exists()) {
+				r.status = "no reference";
+				return r;
+			}
+			Image reference = Image.readHDR(f.getPath());
+			r.rmse = rmse(image, reference);
+			r.relMse = relMse(image, reference);
+			r.ssim = ssim(image, reference);
+		} catch (IOException | Error | RuntimeException e) {
+			System.err.println("Cannot check " + p.file + ": " + e);
+			r.status = "error: " + e;
+		}
+		return r;
+	}
+
+	private static void resetPeakHeap() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+	}
+
+	private static long peakHeap() {
+		long sum = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+				sum += pool.getPeakUsage().getUsed();
+		return sum;
+	}
+
+	/**
+	 * Compare each measured scene with its budget, setting its budget and
+	 * status.
+	 *
+	 * @return true if no scene regressed or failed to render
+	 */
+	static boolean check(List<Result> results, Properties budget, double tolerance) {
+		boolean passed = true;
+		for (Result r : results) {
+			if (Double.isNaN(r.relMse)) {
+				if (!r.passed())
+					passed = false;
+				continue;
+			}
+			String b = budget.getProperty(r.scene);
+			if (b == null) {
+				r.status = "no budget";
+				continue;
+			}
+			r.budget = Double.parseDouble(b);
+			r.status = r.qualityPerSecond() < r.budget * (1 - tolerance) ? "regressed" : "ok";
+			if (!r.passed())
+				passed = false;
+		}
+		return passed;
+	}
+
+	private Properties loadBudget() {
+		Properties budget = new Properties();
+		if (budgetFile == null || !new File(budgetFile).exists())
+			return budget;
+		try (InputStream in = new FileInputStream(budgetFile)) {
+			budget.load(in);
+		} catch (IOException e) {
+			throw new Error("Cannot read the budget " + budgetFile, e);
+		}
+		return budget;
+	}
+
+	private void saveBudget(Properties budget, List<Result> results) {
+		if (budgetFile == null)
+			return;
+		for (Result r : results) {
+			double q = r.qualityPerSecond();
+			if (!Double.isNaN(q) && !Double.isInfinite(q))
+				budget.setProperty(r.scene, Double.toString(q));
+		}
+		try (OutputStream out = new FileOutputStream(budgetFile)) {
+			budget.store(out, "Lowest quality per second, 1 / (relMSE x seconds), for each scene");
+		} catch (IOException e) {
+			throw new Error("Cannot write the budget " + budgetFile, e);
+		}
+		System.out.println("Wrote the budget to " + budgetFile);
+	}
+
+	private void writeReport(List<Result> results, boolean passed) {
+		try (PrintWriter out = new PrintWriter(reportFile, "UTF-8")) {
+			out.println("{");
+			out.println("    \"threads\" : " + RayTracer.getNumThreads() + ",");
+			out.println("    \"passed\" : " + passed + ",");
+			out.println("    \"scenes\" : [");
+			for (int i = 0; i < results.size(); i++) {
+				Result r = results.get(i);
+				out.println("        {");
+				out.println("            \"scene\" : \"" + r.scene.replace("\\", "\\\\").replace("\"", "\\\"") + "\",");
+				out.println("            \"status\" : \"" + r.status.replace("\\", "\\\\").replace("\"", "\\\"") + "\",");
+				out.println("            \"width\" : " + r.width + ",");
+				out.println("            \"height\" : " + r.height + ",");
+				out.println("            \"samples\" : " + r.samples + ",");
+				out.println("            \"seconds\" : " + number(r.seconds) + ",");
+				out.println("            \"rays\" : " + (r.rays < 0 ? "null" : Long.toString(r.rays)) + ",");
+				out.println("            \"raysPerSecond\" : " + number(r.raysPerSecond()) + ",");
+				out.println("            \"peakHeapBytes\" : " + r.peakHeap + ",");
+				out.println("            \"rmse\" : " + number(r.rmse) + ",");
+				out.println("            \"relMse\" : " + number(r.relMse) + ",");
+				out.println("            \"ssim\" : " + number(r.ssim) + ",");
+				out.println("            \"qualityPerSecond\" : " + number(r.qualityPerSecond()) + ",");
+				out.println("            \"budget\" : " + number(r.budget));
+				out.println("        }" + (i + 1 < results.size() ? "," : ""));
+			}
+			out.println("    ]");
+			out.println("}");
+		} catch (IOException e) {
+			throw new Error("Cannot write the report " + reportFile, e);
+		}
+	}
+
+	/** @return x as a JSON number, or null if it is not finite */
+	private static String number(double x) {
+		return Double.isNaN(x) || Double.isInfinite(x) ? "null" : Double.toString(x);
+	}
+
+	private void printReport(List<Result> results, boolean passed) {
+		System.out.printf("%-40s %9s %12s %8s %10s %8s %12s %12s  %s%n", "scene", "seconds", "rays/s", "heap MB",
+				"relMSE", "SSIM", "quality/s", "budget", "status");
+		for (Result r : results)
+			System.out.printf("%-40s %9.2f %12.0f %8.1f %10.4g %8.4f %12.4g %12.4g  %s%n", r.scene, r.seconds,
+					r.raysPerSecond(), r.peakHeap / 1048576.0, r.relMse, r.ssim, r.qualityPerSecond(), r.budget,
+					r.status);
+		System.out.println((passed ? "Passed" : "FAILED") + "; wrote the report to " + reportFile);
+	}
+
+	private static void checkSizes(Image image, Image reference) {
+		if (image.getWidth() != reference.getWidth() || image.getHeight() != reference.getHeight())
+			throw new Error("Image is " + image.getWidth() + "x" + image.getHeight() + " but reference is "
+					+ reference.getWidth() + "x" + reference.getHeight());
+	}
+
+	/**
+	 * @return the root mean square difference of an image from a reference,
+	 *   over all pixels and channels
+	 */
+	public static double rmse(Image image, Image reference) {
+		checkSizes(image, reference);
+		float[] a = image.getData(), b = reference.getData();
+		double sum = 0;
+		for (int k = 0; k < a.length; k++) {
+			double d = a[k] - b[k];
+			sum += d * d;
+		}
+		return Math.sqrt(sum / a.length);
+	}
+
+	/**
+	 * @return the relative mean square error of an image against a reference,
+	 *   the mean over all pixels and channels of (a - b)^2 / (b^2 + 0.01),
+	 *   which weighs errors in dark parts of the image as much as in bright ones
+	 */
+	public static double relMse(Image image, Image reference) {
+		checkSizes(image, reference);
+		float[] a = image.getData(), b = reference.getData();
+		double sum = 0;
+		for (int k = 0; k < a.length; k++) {
+			double d = a[k] - b[k];
+			sum += d * d / (b[k] * (double) b[k] + 0.01);
+		}
+		return sum / a.length;
+	}
+
+	/** The standard deviation and half width of the SSIM window, in pixels. */
+	private static final double SSIM_SIGMA = 1.5;
+	private static final int SSIM_RADIUS = 5;
+
+	/**
+	 * @return the mean structural similarity (Wang et al. 2004) of an image to
+	 *   a reference, from 1 for the same image down to about 0 for unrelated
+	 *   ones, on their luminance clamped to [0, 1] (the range a display shows)
+	 *   in an 11 x 11 Gaussian window; unlike the mean square error, it is
+	 *   about as sensitive to noise in flat areas as to lost detail
+	 */
+	public static double ssim(Image image, Image reference) {
+		checkSizes(image, reference);
+		int width = image.getWidth(), height = image.getHeight();
+		double[] x = luminance(image), y = luminance(reference);
+		double[] xx = new double[x.length], yy = new double[x.length], xy = new double[x.length];
+		for (int i = 0; i < x.length; i++) {
+			xx[i] = x[i] * x[i];
+			yy[i] = y[i] * y[i];
+			xy[i] = x[i] * y[i];
+		}
+		double[] mx = blur(x, width, height), my = blur(y, width, height);
+		double[] sxx = blur(xx, width, height), syy = blur(yy, width, height), sxy = blur(xy, width, height);
+
+		final double c1 = 0.01 * 0.01, c2 = 0.03 * 0.03;
+		double sum = 0;
+		for (int i = 0; i < x.length; i++) {
+			double vx = sxx[i] - mx[i] * mx[i], vy = syy[i] - my[i] * my[i], cov = sxy[i] - mx[i] * my[i];
+			sum += (2 * mx[i] * my[i] + c1) * (2 * cov + c2)
+					/ ((mx[i] * mx[i] + my[i] * my[i] + c1) * (vx + vy + c2));
+		}
+		return sum / x.length;
+	}
+
+	private static double[] luminance(Image image) {
+		float[] data = image.getData();
+		double[] l = new double[data.length / 3];
+		for (int i = 0; i < l.length; i++) {
+			double v = 0.2126 * data[3 * i] + 0.7152 * data[3 * i + 1] + 0.0722 * data[3 * i + 2];
+			l[i] = Math.min(Math.max(v, 0), 1);
+		}
+		return l;
+	}
+
+	/**
+	 * @return v filtered with the SSIM window, which is cut off at the edges
+	 *   of the image and scaled so that it still sums to 1
+	 */
+	private static double[] blur(double[] v, int width, int height) {
+		double[] weight = new double[SSIM_RADIUS + 1];
+		for (int d = 0; d <= SSIM_RADIUS; d++)
+			weight[d] = Math.exp(-d * d / (2 * SSIM_SIGMA * SSIM_SIGMA));
+
+		double[] rows = new double[v.length], out = new double[v.length];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double sum = 0, wsum = 0;
+				for (int qx = Math.max(0, x - SSIM_RADIUS); qx <= Math.min(width - 1, x + SSIM_RADIUS); qx++) {
+					double w = weight[Math.abs(qx - x)];
+					sum += w * v[y * width + qx];
+					wsum += w;
+				}
+				rows[y * width + x] = sum / wsum;
+			}
+		}
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double sum = 0, wsum = 0;
+				for (int qy = Math.max(0, y - SSIM_RADIUS); qy <= Math.min(height - 1, y + SSIM_RADIUS); qy++) {
+					double w = weight[Math.abs(qy - y)];
+					sum += w * rows[qy * width + x];
+					wsum += w;
+				}
+				out[y * width + x] = sum / wsum;
+			}
+		}
+		return out;
+	}
+}
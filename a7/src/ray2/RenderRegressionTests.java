@@ -0,0 +1,83 @@
+package ray2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RenderRegressionTests {
+
+	private static Image gray(int size, float v) {
+		Image image = new Image(size, size);
+		Arrays.fill(image.getData(), v);
+		return image;
+	}
+
+	@Test
+	public void testErrors() {
+		Image a = gray(8, 0.5f), b = gray(8, 0.4f);
+		assertEquals(0.1, RenderRegression.rmse(a, b), 1e-6);
+		assertEquals(0.01 / (0.16 + 0.01), RenderRegression.relMse(a, b), 1e-6);
+		assertEquals(0, RenderRegression.rmse(a, a), 0);
+		assertEquals(0, RenderRegression.relMse(a, a), 0);
+	}
+
+	@Test
+	public void testSsim() {
+		int size = 32;
+		Image image = new Image(size, size), noisy = new Image(size, size);
+		Random random = new Random(4620);
+		for (int k = 0; k < image.getData().length; k++) {
+			image.getData()[k] = (k / 3) % size < size / 2 ? 0.2f : 0.8f;
+			noisy.getData()[k] = image.getData()[k] + 0.2f * (random.nextFloat() - 0.5f);
+		}
+		assertEquals(1, RenderRegression.ssim(image, image), 1e-9);
+		double s = RenderRegression.ssim(noisy, image);
+		assertTrue("SSIM " + s, s < 0.9 && s > 0);
+
+		// Noise hurts more where the image is flat and dark
+		assertTrue(RenderRegression.ssim(gray(size, 0.05f), image) < 0.5);
+	}
+
+	@Test
+	public void testBudget() {
+		RenderRegression.Result fast = new RenderRegression.Result("a.xml");
+		fast.relMse = 0.01;
+		fast.seconds = 2;
+		RenderRegression.Result slow = new RenderRegression.Result("b.xml");
+		slow.relMse = 0.01;
+		slow.seconds = 10;
+		RenderRegression.Result unknown = new RenderRegression.Result("c.xml");
+		unknown.relMse = 0.01;
+		unknown.seconds = 1;
+		List<RenderRegression.Result> results = Arrays.asList(fast, slow, unknown);
+
+		Properties budget = new Properties();
+		budget.setProperty("a.xml", "50");
+		budget.setProperty("b.xml", "12");
+		assertTrue(RenderRegression.check(results, budget, 0.2));
+		assertEquals("ok", fast.status);
+		assertEquals("ok", slow.status);
+		assertEquals("no budget", unknown.status);
+
+		// 10 is more than 10% below 12
+		assertFalse(RenderRegression.check(results, budget, 0.1));
+		assertEquals("ok", fast.status);
+		assertEquals("regressed", slow.status);
+		assertEquals(12, slow.budget, 0);
+	}
+
+	@Test
+	public void testKey() {
+		RayTracer.ScenePath p = new RayTracer.ScenePath("data/scenes/", "pointLight/bunny-norms.xml");
+		assertEquals("pointLight/bunny-norms.xml", RenderRegression.key(p));
+		p = new RayTracer.ScenePath("data/scenes/", p.getFile());
+		assertEquals("pointLight/bunny-norms.xml", RenderRegression.key(p));
+	}
+}
@@ -0,0 +1,257 @@
+package ray2;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the renderer counts while it renders, when it is enabled (-stats):
+ *
+ *   rays             rays traced through the scene, first or any intersection
+ *   shadow rays      the rays that only asked for any intersection, and the
+ *                    early-outs among them: those that stopped at the first
+ *                    hit found rather than searching the rest of the tree
+ *   node visits      BVH nodes whose boxes were tested, and how many were hit
+ *   primitive tests  ray-triangle and ray-sphere tests
+ *   tile times       a histogram of the time to render each image block
+ *
+ * and a progress line with an estimate of the time left, printed at most
+ * once a second as blocks finish.  The first four are kept by each thread in
+ * its IntersectionScratch, which no other thread writes, so counting is an
+ * add to a field with no atomic operation or shared cache line; they are
+ * summed over the threads here when asked for, once the threads' work is
+ * joined.  With tracing on (-trace) the renderer also keeps a timeline of
+ * the blocks each worker rendered, written as a Chrome trace
+ * (chrome://tracing, or ui.perfetto.dev) to &lt;input_file&gt;.trace.json.
+ *
+ * When it is off, which is the default, the hot paths skip counting after
+ * reading one static boolean (isCounting()), and the block methods return
+ * at once.  A render with HeatmapIntegrator turns the counters on without
+ * the rest, since it shows them per pixel instead, until the render ends.  Like PathLengths it is shared by all
+ * threads and all renders until reset().
+ */
+public class RenderStats {
+
+	private static boolean enabled = false;
+	public static boolean isEnabled() { return enabled; }
+	public static void setEnabled(boolean e) { enabled = e; counting = e; }
+
+	private static boolean counting = false;
+	/** Whether the intersection code counts rays, nodes and primitive tests. */
+	public static boolean isCounting() { return counting; }
+	/** Count, without timing blocks or printing anything, as a HeatmapIntegrator render does. */
+	public static void setCounting(boolean c) { counting = c || enabled; }
+
+	private static boolean tracing = false;
+	public static boolean isTracing() { return tracing; }
+	/** Keep a timeline of blocks; this also turns the rest on. */
+	public static void setTracing(boolean t) { tracing = t; if (t) setEnabled(true); }
+
+	/** The counts of all threads at the last reset(), as in IntersectionScratch.totals(). */
+	private static long[] baseline = new long[6];
+
+	private static long count(int i) {
+		return IntersectionScratch.totals()[i] - baseline[i];
+	}
+
+	public static long getRayCount() { return count(0); }
+	public static long getShadowRayCount() { return count(1); }
+	public static long getShadowEarlyOutCount() { return count(2); }
+	public static long getNodeVisitCount() { return count(3); }
+	public static long getNodeHitCount() { return count(4); }
+	public static long getPrimitiveTestCount() { return count(5); }
+
+	/**
+	 * Tile times go in power-of-two buckets of microseconds: bucket b holds
+	 * the tiles that took [2^(b-1), 2^b) us, and bucket 0 those under 1 us.
+	 */
+	public static final int TILE_BUCKETS = 40;
+	private static final LongAdder[] tileTimes = new LongAdder[TILE_BUCKETS];
+	static {
+		for (int b = 0; b < TILE_BUCKETS; b++)
+			tileTimes[b] = new LongAdder();
+	}
+
+	static int bucket(long nanos) {
+		long micros = nanos / 1000;
+		return Math.min(TILE_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	/** @return the number of tiles whose time fell in bucket b */
+	public static long getTileCount(int b) {
+		return tileTimes[b].sum();
+	}
+
+	/** A block in the timeline. */
+	private static class Tile {
+		final String worker;
+		final int x, y, width, height;
+		final long start, nanos;
+
+		Tile(String worker, int x, int y, int width, int height, long start, long nanos) {
+			this.worker = worker;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.start = start;
+			this.nanos = nanos;
+		}
+	}
+
+	private static final ConcurrentLinkedQueue<Tile> timeline = new ConcurrentLinkedQueue<>();
+
+	// Progress of the current render
+	private static final AtomicInteger tilesDone = new AtomicInteger();
+	private static volatile int tilesTotal, tilesResumed;
+	private static volatile long renderStart, lastProgress;
+
+	/**
+	 * A render of numTiles blocks is starting, of which resumed are already
+	 * done (from a checkpoint).
+	 */
+	public static void startTiles(int numTiles, int resumed) {
+		if (!enabled)
+			return;
+		tilesTotal = numTiles;
+		tilesResumed = resumed;
+		tilesDone.set(resumed);
+		renderStart = lastProgress = System.nanoTime();
+	}
+
+	/**
+	 * A block is done.
+	 *
+	 * @param worker the thread or process that rendered it
+	 * @param start its start time, in System.nanoTime()
+	 * @param nanos how long it took
+	 */
+	public static void tileDone(String worker, int x, int y, int width, int height, long start, long nanos) {
+		if (!enabled)
+			return;
+		tileTimes[bucket(nanos)].increment();
+		if (tracing)
+			timeline.add(new Tile(worker, x, y, width, height, start, nanos));
+
+		int done = tilesDone.incrementAndGet();
+		long now = System.nanoTime();
+		if (tilesTotal > 0 && (done == tilesTotal || now - lastProgress >= 1000000000L)) {
+			lastProgress = now;
+			System.out.println(progress(done, tilesTotal, tilesResumed, now - renderStart));
+		}
+	}
+
+	/**
+	 * @return the progress line for a render that has done done of total
+	 *   tiles, resumed of them from a checkpoint, in elapsed nanoseconds; the
+	 *   time left is estimated from the rate of the tiles done in this run
+	 */
+	static String progress(int done, int total, int resumed, long elapsed) {
+		String line = String.format("finished %d/%d blocks (%.1f%%), %.1f s", done, total, 100.0 * done / total,
+				elapsed * 1e-9);
+		if (done < total && done > resumed)
+			line += String.format(", about %.1f s left", elapsed * 1e-9 / (done - resumed) * (total - done));
+		return line;
+	}
+
+	public static void reset() {
+		baseline = IntersectionScratch.totals();
+		for (LongAdder a : tileTimes)
+			a.reset();
+		timeline.clear();
+		tilesDone.set(0);
+		tilesTotal = tilesResumed = 0;
+	}
+
+	/**
+	 * Print the counters, per second of a render that took seconds, and the
+	 * histogram of tile times, if enabled.
+	 */
+	public static void print(double seconds) {
+		if (!enabled)
+			return;
+		long[] c = IntersectionScratch.totals();
+		for (int i = 0; i < c.length; i++)
+			c[i] -= baseline[i];
+		long r = c[0], s = c[1], v = c[3];
+		System.out.printf("Rays traced: %d (%.0f per second)%n", r, r / seconds);
+		System.out.printf("Shadow rays: %d, of which %d (%.1f%%) stopped at the first hit%n", s, c[2],
+				s > 0 ? 100.0 * c[2] / s : 0);
+		System.out.printf("BVH node visits: %d (%.1f per ray), %.1f%% hit%n", v, r > 0 ? v / (double) r : 0,
+				v > 0 ? 100.0 * c[4] / v : 0);
+		System.out.printf("Primitive tests: %d (%.1f per ray)%n", c[5], r > 0 ? c[5] / (double) r : 0);
+
+		int first = TILE_BUCKETS, last = -1;
+		long max = 0;
+		for (int b = 0; b < TILE_BUCKETS; b++) {
+			long n = tileTimes[b].sum();
+			if (n > 0) {
+				first = Math.min(first, b);
+				last = b;
+				max = Math.max(max, n);
+			}
+		}
+		if (last < 0)
+			return;
+		System.out.println("Tile times:");
+		for (int b = first; b <= last; b++) {
+			long n = tileTimes[b].sum();
+			StringBuilder bar = new StringBuilder();
+			for (int i = 0; i < Math.round(40.0 * n / max); i++)
+				bar.append('#');
+			System.out.printf("  %10s - %-10s %8d %s%n", duration(b == 0 ? 0 : 1L << (b - 1)), duration(1L << b), n,
+					bar);
+		}
+	}
+
+	/** @return a time in microseconds in the unit that suits it */
+	private static String duration(long micros) {
+		if (micros < 1000)
+			return micros + " us";
+		if (micros < 1000000)
+			return String.format("%.3g ms", micros / 1e3);
+		return String.format("%.3g s", micros / 1e6);
+	}
+
+	/**
+	 * Write the timeline of the blocks rendered since reset() as a Chrome
+	 * trace: one complete ("X") event per block, on a row for each worker.
+	 */
+	public static void writeTrace(String fileName) {
+		ArrayList<Tile> tiles = new ArrayList<>(timeline);
+		long start = Long.MAX_VALUE;
+		for (Tile t : tiles)
+			start = Math.min(start, t.start);
+		Map<String, Integer> workers = new HashMap<>();
+		try (PrintWriter out = new PrintWriter(fileName, "UTF-8")) {
+			out.println("{\"displayTimeUnit\": \"ms\", \"traceEvents\": [");
+			boolean first = true;
+			for (Tile t : tiles) {
+				Integer tid = workers.get(t.worker);
+				if (tid == null) {
+					tid = workers.size() + 1;
+					workers.put(t.worker, tid);
+					out.print(first ? "" : ",\n");
+					out.printf(Locale.ROOT, "{\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": %d, \"args\": {\"name\": \"%s\"}}",
+							tid, t.worker.replace("\\", "\\\\").replace("\"", "\\\""));
+					first = false;
+				}
+				out.print(first ? "" : ",\n");
+				out.printf(Locale.ROOT, "{\"name\": \"block %d,%d\", \"cat\": \"tile\", \"ph\": \"X\", \"pid\": 1, \"tid\": %d, "
+						+ "\"ts\": %.3f, \"dur\": %.3f, \"args\": {\"x\": %d, \"y\": %d, \"width\": %d, \"height\": %d}}",
+						t.x, t.y, tid, (t.start - start) / 1e3, t.nanos / 1e3, t.x, t.y, t.width, t.height);
+				first = false;
+			}
+			out.println("\n]}");
+		} catch (IOException e) {
+			throw new Error("Cannot write the trace " + fileName, e);
+		}
+		System.out.println("Wrote the trace of " + tiles.size() + " blocks to " + fileName);
+	}
+}
@@ -0,0 +1,99 @@
+package ray2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import egl.math.Vector3d;
+import ray2.tests.TestUtils;
+
+public class RenderStatsTests {
+
+	@After
+	public void turnOff() {
+		RenderStats.setTracing(false);
+		RenderStats.setEnabled(false);
+		RenderStats.reset();
+	}
+
+	private static Scene sphere() {
+		Scene scene = TestUtils.sphereScene(null, 8, 8);
+		scene.init();
+		return scene;
+	}
+
+	private static Ray ray(double z) {
+		Ray ray = new Ray(new Vector3d(0, 0, 0), new Vector3d(0, 0, z));
+		ray.end = Double.POSITIVE_INFINITY;
+		return ray;
+	}
+
+	/** Trace a ray that hits the sphere, and shadow rays that do and do not. */
+	private static void trace(Scene scene) {
+		scene.getFirstIntersection(new IntersectionRecord(), ray(-1));
+		scene.getAnyIntersection(ray(-1));
+		scene.getAnyIntersection(ray(1));
+	}
+
+	@Test
+	public void testCounts() {
+		Scene scene = sphere();
+		RenderStats.reset();
+		RenderStats.setEnabled(true);
+		trace(scene);
+		assertEquals(3, RenderStats.getRayCount());
+		assertEquals(2, RenderStats.getShadowRayCount());
+		assertEquals(1, RenderStats.getShadowEarlyOutCount());
+		assertTrue(RenderStats.getNodeVisitCount() >= 3);
+		assertTrue(RenderStats.getNodeHitCount() >= 2);
+		assertTrue(RenderStats.getPrimitiveTestCount() >= 2);
+	}
+
+	@Test
+	public void testCountsOnOtherThreads() throws InterruptedException {
+		Scene scene = sphere();
+		RenderStats.reset();
+		RenderStats.setEnabled(true);
+		Thread thread = new Thread(() -> trace(scene));
+		thread.start();
+		thread.join();
+		trace(scene);
+		assertEquals(6, RenderStats.getRayCount());
+		assertEquals(2, RenderStats.getShadowEarlyOutCount());
+	}
+
+	@Test
+	public void testOff() {
+		Scene scene = sphere();
+		RenderStats.reset();
+		trace(scene);
+		RenderStats.startTiles(4, 0);
+		RenderStats.tileDone("worker", 0, 0, 8, 8, System.nanoTime(), 5000);
+		assertEquals(0, RenderStats.getRayCount());
+		assertEquals(0, RenderStats.getNodeVisitCount());
+		assertEquals(0, RenderStats.getPrimitiveTestCount());
+		assertEquals(0, RenderStats.getTileCount(RenderStats.bucket(5000)));
+	}
+
+	@Test
+	public void testTiles() {
+		assertEquals(0, RenderStats.bucket(999));
+		assertEquals(1, RenderStats.bucket(1000));
+		assertEquals(3, RenderStats.bucket(5000));
+		assertEquals(RenderStats.TILE_BUCKETS - 1, RenderStats.bucket(Long.MAX_VALUE));
+
+		RenderStats.setEnabled(true);
+		RenderStats.reset();
+		RenderStats.startTiles(4, 0);
+		RenderStats.tileDone("worker", 0, 0, 8, 8, System.nanoTime(), 5000);
+		RenderStats.tileDone("worker", 8, 0, 8, 8, System.nanoTime(), 6000);
+		assertEquals(2, RenderStats.getTileCount(3));
+
+		// Half done in 10 s, with a quarter resumed: the other quarter took 10 s
+		assertEquals("finished 2/4 blocks (50.0%), 10.0 s, about 20.0 s left",
+				RenderStats.progress(2, 4, 1, 10000000000L));
+		assertEquals("finished 4/4 blocks (100.0%), 10.0 s", RenderStats.progress(4, 4, 1, 10000000000L));
+	}
+}
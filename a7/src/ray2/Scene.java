@@ -8,12 +8,16 @@ import egl.math.Colord;
 import egl.math.Matrix4d;
 import ray2.accel.AccelStruct;
 import ray2.accel.Bvh;
+import ray2.accel.RayPacket;
 import ray2.camera.Camera;
 import ray2.integrator.Integrator;
 import ray2.light.Environment;
 import ray2.light.Light;
+import ray2.light.LightTree;
 import ray2.material.BSDF;
 import ray2.material.Texture;
+import ray2.sampler.IndependentSampler;
+import ray2.sampler.Sampler;
 import ray2.surface.Surface;
 
 /**
@@ -52,6 +56,10 @@ public class Scene {
 	protected ArrayList<Light> lights = new ArrayList<Light>();
 	public void addLight(Light toAdd) { lights.add(toAdd); }
 	public List<Light> getLights() { return this.lights; }
+
+	/** The tree for choosing among the lights, built by init(). */
+	protected LightTree lightTree;
+	public LightTree getLightTree() { return this.lightTree; }
 	
 	/** The list of surfaces for the scene. */
 	protected ArrayList<Surface> surfaces = new ArrayList<Surface>();
@@ -84,6 +92,55 @@ public class Scene {
 	public int getSamples() { return this.samples==0 ? 1 : this.samples; }
 	public void setSamples(int n) {	samples = (int)Math.round(Math.sqrt(n)); }
 
+	/** The source of random numbers; each render thread uses its own copy. **/
+	protected Sampler sampler = new IndependentSampler();
+	public Sampler getSampler() { return sampler; }
+	public void setSampler(Sampler sampler) { this.sampler = sampler; }
+
+	/** If not null, the image is rendered progressively, with adaptive sample counts. **/
+	protected ProgressiveRenderer progressive;
+	public ProgressiveRenderer getProgressive() { return progressive; }
+	public void setProgressive(ProgressiveRenderer progressive) { this.progressive = progressive; }
+
+	/** If not null, the image is rendered breadth-first, in batches of paths. **/
+	protected WavefrontRenderer wavefront;
+	public WavefrontRenderer getWavefront() { return wavefront; }
+	public void setWavefront(WavefrontRenderer wavefront) { this.wavefront = wavefront; }
+
+	/**
+	 * Whether to find albedo, normal and depth feature buffers for the image
+	 * once it is rendered, and write them to its EXR file as more channels.
+	 * They are found anyway when there is a denoiser.
+	 **/
+	protected boolean aovs = false;
+	public boolean getAovs() { return aovs; }
+	public void setAovs(boolean aovs) { this.aovs = aovs; }
+
+	/** If not null, the image is denoised once it is rendered. **/
+	protected Denoiser denoiser;
+	public Denoiser getDenoiser() { return denoiser; }
+	public void setDenoiser(Denoiser denoiser) { this.denoiser = denoiser; }
+
+	/**
+	 * The greatest depth of a ray: camera rays have depth 1, each recursive
+	 * ray one more, and rays deeper than this are not traced.
+	 **/
+	protected int maxDepth = RayTracer.MAX_DEPTH;
+	public int getMaxDepth() { return maxDepth; }
+	public void setMaxDepth(int maxDepth) { this.maxDepth = Math.max(1, maxDepth); }
+
+	/**
+	 * The number of rays traced together in a RayPacket by the renderers, or
+	 * 0 to trace every ray on its own.  Camera rays are grouped by square-ish
+	 * tiles of pixels, and the wavefront renderer sorts its rays with a
+	 * RaySorter before grouping them.  Only an accelStruct that traces packets
+	 * together (AccelStruct.tracesPackets()), which is LinearBvh, gains
+	 * anything from them; with any other, init() warns and sets this to 0.
+	 **/
+	protected int packetSize = 0;
+	public int getPacketSize() { return packetSize; }
+	public void setPacketSize(int packetSize) { this.packetSize = Math.max(0, Math.min(packetSize, RayPacket.MAX_SIZE)); }
+
 	/** The acceleration structure **/
 	protected AccelStruct accelStruct = new Bvh();
 	public void setAccelStruct(AccelStruct accelStruct) { this.accelStruct = accelStruct; }
@@ -118,6 +175,7 @@ public class Scene {
 		for (Light light : getLights()) {
 			light.init(this);
 		}
+		lightTree = new LightTree(getLights());
 
 		// Create the acceleration structure.
 		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
@@ -129,6 +187,12 @@ public class Scene {
 		Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
 		renderableSurfaces.toArray(surfaceArray);
 		getAccelStruct().build(surfaceArray);
+		if (packetSize > 1 && !getAccelStruct().tracesPackets()) {
+			System.out.println("Scene: warning: ignoring packetSize " + packetSize + ", since "
+					+ getAccelStruct().getClass().getSimpleName() + " traces rays one at a time"
+					+ " (use <accelStruct type=\"LinearBvh\" />)");
+			packetSize = 0;
+		}
 
 		// initialize surfaces
 		for ( Surface surface : getSurfaces()) {
@@ -137,6 +201,9 @@ public class Scene {
 
 		// initialize integrator
 		getIntegrator().init();
+
+		// initialize sampler
+		getSampler().init(this);
 	}
 
 	/**
@@ -149,8 +216,10 @@ public class Scene {
 	 * @return true if and intersection is found.
 	 */
 	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
-		return accelStruct.intersect(outRecord, ray, false);
-		
+		IntersectionScratch scratch = IntersectionScratch.get();
+		if (RenderStats.isCounting())
+			scratch.rays++;
+		return accelStruct.intersect(outRecord, ray, false, scratch);
 	}
 	
 	/**
@@ -161,7 +230,37 @@ public class Scene {
 	 * @return true if any intersection is found
 	 */
 	public boolean getAnyIntersection(Ray ray) {
-		return accelStruct.intersect(new IntersectionRecord(), ray, true);	
+		IntersectionScratch scratch = IntersectionScratch.get();
+		boolean hit = accelStruct.intersect(null, ray, true, scratch);
+		if (RenderStats.isCounting()) {
+			scratch.rays++;
+			scratch.shadowRays++;
+			if (hit)
+				scratch.shadowHits++;
+		}
+		return hit;
+	}
+
+	/**
+	 * Intersect all the rays of a packet with the scene, setting packet.hit
+	 * and, for first intersections, packet.records.
+	 *
+	 * @param packet the rays
+	 * @param anyIntersection true to find any intersection, as for shadow rays,
+	 *   rather than the first
+	 * @return the number of rays that hit something
+	 */
+	public int intersect(RayPacket packet, boolean anyIntersection) {
+		IntersectionScratch scratch = IntersectionScratch.get();
+		int hits = accelStruct.intersect(packet, anyIntersection, scratch);
+		if (RenderStats.isCounting()) {
+			scratch.rays += packet.size;
+			if (anyIntersection) {
+				scratch.shadowRays += packet.size;
+				scratch.shadowHits += hits;
+			}
+		}
+		return hits;
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,100 @@
+package ray2;
+
+import egl.math.Colord;
+
+/**
+ * One path being traced by the WavefrontRenderer, as an integrator sees it
+ * in Integrator.shadeWavefront().  Instead of calling back into the renderer,
+ * the integrator adds light to the path and asks for more rays, which the
+ * renderer traces later, together with those of all the other paths:
+ *
+ *   addRadiance():  light that reaches the path's ray from this hit, such as
+ *                   emission; it is weighted by the path's throughput
+ *   addShadowRay(): light that reaches it only if a shadow ray is unoccluded
+ *   extend():       continue the path with a new ray, weighting everything
+ *                   that it finds from then on
+ *
+ * A path is extended at most once per hit; the last extend() wins.
+ *
+ * The object is a cursor that the renderer moves from path to path, so it
+ * must not be kept after shadeWavefront() returns.
+ */
+public class WavefrontPath {
+
+	final WavefrontRenderer.Batch batch;
+	final WavefrontRenderer.ShadowQueue shadows;
+
+	/** The path's slot in the batch. */
+	int index;
+
+	WavefrontPath(WavefrontRenderer.Batch batch, WavefrontRenderer.ShadowQueue shadows) {
+		this.batch = batch;
+		this.shadows = shadows;
+	}
+
+	/**
+	 * @return the depth of the ray being shaded: 1 for camera rays, and one
+	 *   more for each extension, as for Integrator.shade()
+	 */
+	public int getDepth() {
+		return batch.depth[index];
+	}
+
+	/**
+	 * @param outThroughput set to the weight of light reaching the current ray
+	 *   in the pixel
+	 * @return outThroughput
+	 */
+	public Colord getThroughput(Colord outThroughput) {
+		double[] t = batch.throughput;
+		outThroughput.set(t[3 * index], t[3 * index + 1], t[3 * index + 2]);
+		return outThroughput;
+	}
+
+	/**
+	 * Add radiance that leaves the hit point towards the current ray.
+	 *
+	 * @param radiance the radiance, before the path's throughput is applied
+	 */
+	public void addRadiance(Colord radiance) {
+		int i = 3 * index;
+		double[] t = batch.throughput, r = batch.radiance;
+		r[i] += t[i] * radiance.x;
+		r[i + 1] += t[i + 1] * radiance.y;
+		r[i + 2] += t[i + 2] * radiance.z;
+	}
+
+	/**
+	 * Add radiance that leaves the hit point towards the current ray if, and
+	 * only if, shadowRay reaches its end without hitting anything.
+	 *
+	 * @param shadowRay the shadow ray; it is copied
+	 * @param contribution the radiance, before the path's throughput is applied
+	 */
+	public void addShadowRay(Ray shadowRay, Colord contribution) {
+		int i = 3 * index;
+		double[] t = batch.throughput;
+		shadows.add(index, shadowRay, t[i] * contribution.x, t[i + 1] * contribution.y, t[i + 2] * contribution.z);
+	}
+
+	/**
+	 * Continue the path: the radiance found along ray, weighted by weight, is
+	 * added to the radiance leaving the hit point towards the current ray.
+	 *
+	 * @param ray the next ray of the path; it is copied
+	 * @param weight the factor, such as brdf * cos theta / pdf, that multiplies
+	 *   the radiance coming back along ray
+	 */
+	public void extend(Ray ray, Colord weight) {
+		int i = 3 * index;
+		double[] t = batch.throughput;
+		batch.nextThroughput[i] = t[i] * weight.x;
+		batch.nextThroughput[i + 1] = t[i + 1] * weight.y;
+		batch.nextThroughput[i + 2] = t[i + 2] * weight.z;
+		batch.nextRays[index].origin.set(ray.origin);
+		batch.nextRays[index].direction.set(ray.direction);
+		batch.nextRays[index].start = ray.start;
+		batch.nextRays[index].end = ray.end;
+		batch.extended[index] = true;
+	}
+}
@@ -0,0 +1,478 @@
+package ray2;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import ray2.accel.RayPacket;
+import ray2.accel.RaySorter;
+import ray2.integrator.Integrator;
+import ray2.material.BSDF;
+import ray2.sampler.Sampler;
+
+/**
+ * Renders an image breadth-first: rather than following each camera ray's
+ * path to the end before starting the next, as RayTracer.renderBlock() does,
+ * it takes a batch of camera rays and moves all of their paths forward one
+ * bounce at a time.  A scene uses it when it has a &lt;wavefront&gt; element,
+ * whose children set the fields below.
+ *
+ * Each batch goes through a series of waves, and each wave through the same
+ * stages, each run in parallel over the whole batch:
+ *
+ *   intersect: find the first hit of every path's current ray
+ *   miss:      add the environment (or background) to paths that hit nothing
+ *   sort:      order the hits by the class of their BSDF, so that each
+ *              shading chunk mostly runs the same code
+ *   shade:     call Integrator.shadeWavefront() for every hit, which adds
+ *              light to the path and queues shadow rays and extension rays
+ *   shadow:    trace the queued shadow rays and add the light of those that
+ *              are unoccluded
+ *
+ * The extended paths make up the next wave, until none are left or they pass
+ * the scene's maxDepth.  The paths' state lives in arrays that are allocated
+ * once and reused for every batch and wave.
+ *
+ * If the scene has a packetSize, the rays of each wave, and each chunk's
+ * shadow rays, are sorted with a RaySorter so that similar rays are next to
+ * each other, and are traced in RayPackets of that size.
+ *
+ * Integrators that do not override shadeWavefront() are shaded by their
+ * recursive shade(), so they work unchanged (with their recursion still
+ * depth-first).  Every path has its own copy of the scene's sampler, started
+ * for its pixel and sample as in RayTracer.samplePixel(), and its samples
+ * are summed in the same order, so the image matches the one from
+ * RayTracer.renderBlock(): exactly for integrators that use the default, and
+ * to rounding for ones that are written for the wavefront.
+ */
+public class WavefrontRenderer {
+
+	/** The number of paths traced together. */
+	protected int batchSize = 1 << 16;
+	public void setBatchSize(int batchSize) { this.batchSize = Math.max(1, batchSize); }
+	public int getBatchSize() { return batchSize; }
+
+	/** The number of paths in a unit of parallel work. */
+	static final int CHUNK = 256;
+
+	/** The kind of checkpoint this renderer writes. */
+	static final String KIND = "wavefront";
+
+	/** Sorts the rays of each wave, when they are traced in packets. */
+	private final RaySorter sorter = new RaySorter();
+
+	/** Counts for the report at the end of a render. */
+	private long waves, cameraRays, extensionRays, shadowRays;
+
+	/**
+	 * The state of a batch of paths, in arrays indexed by slot.
+	 */
+	static class Batch {
+		final int capacity;
+		final long[] pixel;
+		final int[] sampleIndex;
+		final int[] depth;
+		final Sampler[] samplers;
+		Ray[] rays, nextRays;
+		final IntersectionRecord[] records;
+		final boolean[] hit, extended;
+		double[] throughput, nextThroughput;
+		final double[] radiance;
+
+		/** The slots of the paths in the current wave, and of its hits before and after sorting. */
+		final int[] active, hitSlots, keys, sorted;
+		int activeCount;
+
+		Batch(int capacity, Sampler sampler) {
+			this.capacity = capacity;
+			pixel = new long[capacity];
+			sampleIndex = new int[capacity];
+			depth = new int[capacity];
+			samplers = new Sampler[capacity];
+			rays = new Ray[capacity];
+			nextRays = new Ray[capacity];
+			records = new IntersectionRecord[capacity];
+			hit = new boolean[capacity];
+			extended = new boolean[capacity];
+			throughput = new double[3 * capacity];
+			nextThroughput = new double[3 * capacity];
+			radiance = new double[3 * capacity];
+			active = new int[capacity];
+			hitSlots = new int[capacity];
+			keys = new int[capacity];
+			sorted = new int[capacity];
+			for (int i = 0; i < capacity; i++) {
+				samplers[i] = sampler.copy();
+				rays[i] = new Ray();
+				nextRays[i] = new Ray();
+				records[i] = new IntersectionRecord();
+			}
+		}
+	}
+
+	/**
+	 * Shadow rays queued by one chunk of the shade stage, with the radiance
+	 * each one adds to its path if it is unoccluded.  It grows as needed and
+	 * keeps its rays from wave to wave.
+	 */
+	static class ShadowQueue {
+		int size;
+		int[] path = new int[CHUNK];
+		Ray[] rays = new Ray[CHUNK];
+		double[] contribution = new double[3 * CHUNK];
+
+		/** For tracing in packets: the order and results of the rays, and the chunk's packet and sorter. */
+		int[] order = new int[CHUNK];
+		boolean[] occluded = new boolean[CHUNK];
+		final RayPacket packet = new RayPacket();
+		final RaySorter sorter = new RaySorter();
+
+		void add(int slot, Ray ray, double r, double g, double b) {
+			if (size == path.length) {
+				path = Arrays.copyOf(path, 2 * size);
+				order = new int[2 * size];
+				occluded = new boolean[2 * size];
+				rays = Arrays.copyOf(rays, 2 * size);
+				contribution = Arrays.copyOf(contribution, 6 * size);
+			}
+			if (rays[size] == null)
+				rays[size] = new Ray();
+			Ray copy = rays[size];
+			copy.origin.set(ray.origin);
+			copy.direction.set(ray.direction);
+			copy.start = ray.start;
+			copy.end = ray.end;
+			path[size] = slot;
+			contribution[3 * size] = r;
+			contribution[3 * size + 1] = g;
+			contribution[3 * size + 2] = b;
+			size++;
+		}
+	}
+
+	/**
+	 * Render the scene into image.
+	 *
+	 * @param scene the scene, which must be initialized
+	 * @param image the output image
+	 * @param onBatch called after each batch with the image, in which the
+	 *   pixels finished so far are filled in, from the calling thread; may be null
+	 */
+	public void render(Scene scene, Image image, Consumer<Image> onBatch) {
+		render(scene, image, onBatch, null);
+	}
+
+	/**
+	 * Render the scene into image, saving to and resuming from a checkpoint.
+	 * Since paths are numbered pixel by pixel, after each batch the pixels
+	 * before some point are finished and at most one pixel has some of its
+	 * samples; a checkpoint holds the number of paths done, the finished
+	 * pixels as in the image, and the sums of the one unfinished pixel.  A
+	 * resumed render goes on with the next batch, and its image is the same
+	 * as if it had never stopped.
+	 *
+	 * @param scene the scene, which must be initialized
+	 * @param image the output image
+	 * @param onBatch called after each batch with the image, from the calling
+	 *   thread; may be null
+	 * @param checkpoint the checkpoint; may be null.  Its last save has
+	 *   finished when this returns, so the file can be resumed at once.
+	 */
+	public void render(Scene scene, Image image, Consumer<Image> onBatch, Checkpoint checkpoint) {
+		int width = image.getWidth(), height = image.getHeight();
+		int samples = scene.getSamples() * scene.getSamples();
+		long numPaths = (long) width * height * samples;
+		int capacity = (int) Math.min(batchSize, numPaths);
+		Batch batch = new Batch(capacity, scene.getSampler());
+		int maxChunks = (capacity + CHUNK - 1) / CHUNK;
+		WavefrontPath[] cursors = new WavefrontPath[maxChunks];
+		for (int c = 0; c < maxChunks; c++)
+			cursors[c] = new WavefrontPath(batch, new ShadowQueue());
+
+		// The sum of each pixel's samples
+		double[] sums = new double[3 * width * height];
+		float[] data = image.getData();
+		double exposure = scene.getExposure();
+		waves = cameraRays = extensionRays = shadowRays = 0;
+
+		long firstPath = 0, written = 0;
+		if (checkpoint != null) {
+			try (DataInputStream in = checkpoint.open(KIND)) {
+				if (in != null) {
+					firstPath = in.readLong();
+					written = in.readLong();
+					for (int i = 0; i < 3 * written; i++)
+						data[i] = in.readFloat();
+					if (written < (long) width * height) {
+						for (int k = 0; k < 3; k++)
+							sums[(int) (3 * written + k)] = in.readDouble();
+					}
+					System.out.printf("Checkpoint: %d of %d paths done%n", firstPath, numPaths);
+				}
+			} catch (IOException e) {
+				throw new Error("Cannot resume from the checkpoint", e);
+			}
+		}
+
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(RayTracer.getNumThreads());
+		try {
+			for (long first = firstPath; first < numPaths; first += capacity) {
+				int count = (int) Math.min(capacity, numPaths - first);
+				renderBatch(scene, batch, cursors, pool, first, count, samples, width, height);
+
+				// Add the samples to their pixels, in order
+				for (int i = 0; i < count; i++) {
+					int p = (int) batch.pixel[i];
+					sums[3 * p] += batch.radiance[3 * i];
+					sums[3 * p + 1] += batch.radiance[3 * i + 1];
+					sums[3 * p + 2] += batch.radiance[3 * i + 2];
+				}
+
+				// Fill in the pixels that have all their samples
+				long done = (first + count) / samples;
+				for (long p = written; p < done; p++) {
+					for (int k = 0; k < 3; k++)
+						data[(int) (3 * p + k)] = (float) (sums[(int) (3 * p + k)] * (1.0 / samples) * exposure);
+				}
+				written = done;
+				if (checkpoint != null)
+					save(checkpoint, first + count, written, image, sums);
+				if (onBatch != null)
+					onBatch.accept(image);
+			}
+		} finally {
+			pool.shutdown();
+			if (checkpoint != null)
+				checkpoint.flush();
+		}
+		double seconds = (System.nanoTime() - start) * 1e-9;
+		System.out.printf("Wavefront: %d paths in batches of %d, %d waves; %d camera, %d extension and %d shadow rays;"
+				+ " %.2f Mrays/s%n", numPaths, capacity, waves, cameraRays, extensionRays, shadowRays,
+				(cameraRays + extensionRays + shadowRays) * 1e-6 / seconds);
+	}
+
+	/**
+	 * Save the state after a batch, if a save is due.  The finished pixels
+	 * are read from the image while it is written, which is safe because
+	 * they do not change any more.
+	 */
+	private static void save(Checkpoint checkpoint, long pathsDone, long written, Image image, double[] sums) {
+		if (!checkpoint.isDue())
+			return;
+		float[] data = image.getData();
+		double[] partial = Arrays.copyOfRange(sums, (int) Math.min(3 * written, sums.length),
+				(int) Math.min(3 * written + 3, sums.length));
+		checkpoint.saveIfDue(KIND, out -> {
+			out.writeLong(pathsDone);
+			out.writeLong(written);
+			for (int i = 0; i < 3 * written; i++)
+				out.writeFloat(data[i]);
+			for (double d : partial)
+				out.writeDouble(d);
+		});
+	}
+
+	/**
+	 * Trace paths first to first + count - 1, numbered pixel by pixel and
+	 * sample by sample within each pixel, leaving their radiance in
+	 * batch.radiance.
+	 */
+	private void renderBatch(Scene scene, Batch batch, WavefrontPath[] cursors, ForkJoinPool pool,
+			long first, int count, int samples, int width, int height) {
+		// Generate the camera rays
+		int chunks = (count + CHUNK - 1) / CHUNK;
+		pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(c -> {
+			Vector2d pixelSample = new Vector2d();
+			for (int i = c * CHUNK; i < Math.min(count, (c + 1) * CHUNK); i++) {
+				long g = first + i;
+				long p = g / samples;
+				int x = (int) (p % width), y = (int) (p / width);
+				batch.pixel[i] = p;
+				batch.sampleIndex[i] = (int) (g % samples);
+				batch.depth[i] = 1;
+				Sampler sampler = batch.samplers[i];
+				sampler.startPixel(x, y, batch.sampleIndex[i]);
+				sampler.getPixelSample(pixelSample);
+				scene.getCamera().getRay(batch.rays[i], (x + pixelSample.x) / width, (y + pixelSample.y) / height);
+				batch.throughput[3 * i] = batch.throughput[3 * i + 1] = batch.throughput[3 * i + 2] = 1;
+				batch.radiance[3 * i] = batch.radiance[3 * i + 1] = batch.radiance[3 * i + 2] = 0;
+				batch.active[i] = i;
+			}
+		})).join();
+		batch.activeCount = count;
+		cameraRays += count;
+
+		Integrator integrator = scene.getIntegrator();
+		int packetSize = scene.getPacketSize();
+		int maxDepth = scene.getMaxDepth();
+		IdentityHashMap<Class<?>, Integer> bsdfKeys = new IdentityHashMap<Class<?>, Integer>();
+		while (batch.activeCount > 0) {
+			waves++;
+			int n = batch.activeCount;
+			int waveChunks = (n + CHUNK - 1) / CHUNK;
+			if (packetSize > 1)
+				sorter.sort(batch.rays, batch.active, n);
+
+			// Intersect, and add the background to the misses
+			pool.submit(() -> IntStream.range(0, waveChunks).parallel().forEach(c -> {
+				Colord background = new Colord();
+				int end = Math.min(n, (c + 1) * CHUNK);
+				if (packetSize > 1)
+					intersectPackets(scene, batch, cursors[c].shadows.packet, c * CHUNK, end, packetSize);
+				for (int k = c * CHUNK; k < end; k++) {
+					int i = batch.active[k];
+					batch.extended[i] = false;
+					if (batch.depth[i] <= maxDepth)
+						PathLengths.countRay(batch.depth[i]);
+					else
+						PathLengths.countCut(batch.depth[i]);
+					if (packetSize <= 1)
+						batch.hit[i] = batch.depth[i] <= maxDepth
+								&& scene.getFirstIntersection(batch.records[i], batch.rays[i]);
+					if (!batch.hit[i] && batch.depth[i] <= maxDepth) {
+						if (scene.envMap != null)
+							scene.envMap.eval(batch.rays[i].direction, background);
+						else
+							background.set(scene.getBackColor());
+						batch.radiance[3 * i] += batch.throughput[3 * i] * background.x;
+						batch.radiance[3 * i + 1] += batch.throughput[3 * i + 1] * background.y;
+						batch.radiance[3 * i + 2] += batch.throughput[3 * i + 2] * background.z;
+					}
+				}
+			})).join();
+
+			// Sort the hits by the class of their BSDF (a counting sort, which
+			// keeps the slots in order within a class)
+			int hits = 0, numKeys = 0;
+			for (int k = 0; k < n; k++) {
+				int i = batch.active[k];
+				if (!batch.hit[i])
+					continue;
+				BSDF bsdf = batch.records[i].surface.getBSDF();
+				Class<?> type = bsdf == null ? Object.class : bsdf.getClass();
+				Integer key = bsdfKeys.get(type);
+				if (key == null)
+					bsdfKeys.put(type, key = bsdfKeys.size());
+				batch.hitSlots[hits] = i;
+				batch.keys[hits++] = key;
+				numKeys = Math.max(numKeys, key + 1);
+			}
+			int[] offsets = new int[numKeys + 1];
+			for (int k = 0; k < hits; k++)
+				offsets[batch.keys[k] + 1]++;
+			for (int k = 0; k < numKeys; k++)
+				offsets[k + 1] += offsets[k];
+			for (int k = 0; k < hits; k++)
+				batch.sorted[offsets[batch.keys[k]]++] = batch.hitSlots[k];
+
+			// Shade, each chunk queueing its own shadow rays
+			int hitCount = hits;
+			int shadeChunks = (hits + CHUNK - 1) / CHUNK;
+			pool.submit(() -> IntStream.range(0, shadeChunks).parallel().forEach(c -> {
+				WavefrontPath path = cursors[c];
+				path.shadows.size = 0;
+				for (int k = c * CHUNK; k < Math.min(hitCount, (c + 1) * CHUNK); k++) {
+					int i = batch.sorted[k];
+					path.index = i;
+					integrator.shadeWavefront(path, scene, batch.rays[i], batch.records[i], batch.samplers[i]);
+				}
+
+				// Trace the shadow rays; a path's rays are all in its chunk's queue
+				ShadowQueue q = path.shadows;
+				if (packetSize > 1) {
+					traceShadowPackets(scene, batch, q, packetSize);
+				} else {
+					for (int s = 0; s < q.size; s++) {
+						if (!scene.getAnyIntersection(q.rays[s]))
+							addShadow(batch, q, s);
+					}
+				}
+			})).join();
+			for (int c = 0; c < shadeChunks; c++)
+				shadowRays += cursors[c].shadows.size;
+
+			// The extended paths make the next wave
+			int next = 0;
+			for (int k = 0; k < hits; k++) {
+				int i = batch.sorted[k];
+				if (batch.extended[i]) {
+					batch.active[next++] = i;
+					batch.depth[i]++;
+				}
+			}
+			extensionRays += next;
+			batch.activeCount = next;
+			Ray[] rays = batch.rays;
+			batch.rays = batch.nextRays;
+			batch.nextRays = rays;
+			double[] t = batch.throughput;
+			batch.throughput = batch.nextThroughput;
+			batch.nextThroughput = t;
+		}
+	}
+
+	/**
+	 * Find the first hits of the rays of batch.active[from .. to - 1], in
+	 * packets of packetSize consecutive rays.
+	 */
+	private static void intersectPackets(Scene scene, Batch batch, RayPacket packet, int from, int to, int packetSize) {
+		int maxDepth = scene.getMaxDepth();
+		int k = from;
+		while (k < to) {
+			packet.clear();
+			int first = k;
+			for (; k < to && packet.size < packetSize; k++) {
+				int i = batch.active[k];
+				batch.hit[i] = false;
+				if (batch.depth[i] <= maxDepth)
+					packet.add(batch.rays[i], batch.records[i]);
+			}
+			scene.intersect(packet, false);
+			for (int j = 0, m = first; j < packet.size; m++) {
+				int i = batch.active[m];
+				if (batch.depth[i] <= maxDepth)
+					batch.hit[i] = packet.hit[j++];
+			}
+		}
+	}
+
+	/**
+	 * Trace the shadow rays of q, sorted and in packets of packetSize, and add
+	 * the light of the unoccluded ones.  The light is added in queue order,
+	 * whatever order the rays are traced in.
+	 */
+	private static void traceShadowPackets(Scene scene, Batch batch, ShadowQueue q, int packetSize) {
+		for (int s = 0; s < q.size; s++)
+			q.order[s] = s;
+		q.sorter.sort(q.rays, q.order, q.size);
+		boolean[] occluded = q.occluded;
+		RayPacket packet = q.packet;
+		for (int k = 0; k < q.size; k += packetSize) {
+			packet.clear();
+			for (int m = k; m < Math.min(q.size, k + packetSize); m++)
+				packet.add(q.rays[q.order[m]], null);
+			scene.intersect(packet, true);
+			for (int j = 0; j < packet.size; j++)
+				occluded[q.order[k + j]] = packet.hit[j];
+		}
+		for (int s = 0; s < q.size; s++) {
+			if (!occluded[s])
+				addShadow(batch, q, s);
+		}
+	}
+
+	/** Add the light of shadow ray s of q to its path. */
+	private static void addShadow(Batch batch, ShadowQueue q, int s) {
+		int i = q.path[s];
+		batch.radiance[3 * i] += q.contribution[3 * s];
+		batch.radiance[3 * i + 1] += q.contribution[3 * s + 1];
+		batch.radiance[3 * i + 2] += q.contribution[3 * s + 2];
+	}
+}
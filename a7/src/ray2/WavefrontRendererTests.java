@@ -0,0 +1,181 @@
+package ray2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+import ray2.accel.LinearBvh;
+import ray2.integrator.Integrator;
+import ray2.integrator.RGBNormals;
+import ray2.material.LambertianBSDF;
+import ray2.sampler.Sampler;
+import ray2.sampler.StratifiedSampler;
+import ray2.surface.Sphere;
+import ray2.surface.Surface;
+import ray2.tests.TestUtils;
+
+public class WavefrontRendererTests {
+
+	/** Noisy gray, from a shade() that does not trace rays. */
+	static class NoiseIntegrator extends Integrator {
+		@Override
+		public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+			outRadiance.set(sampler.next1D(), sampler.next1D(), 0.5);
+		}
+	}
+
+	/**
+	 * Some emission, a shadow ray to a point light and a random bounce, written
+	 * both recursively and for the wavefront.  Both draw the same numbers in
+	 * the same order.
+	 */
+	static class BounceIntegrator extends Integrator {
+		static final Vector3d LIGHT = new Vector3d(2, 6, 3);
+
+		private void sample(Scene scene, IntersectionRecord iRec, Sampler sampler, Colord emitted,
+				Ray shadowRay, Colord direct, Ray bounce, Colord weight) {
+			emitted.set(0.05 * sampler.next1D(), 0.02, 0.01);
+
+			shadowRay.origin.set(iRec.location);
+			shadowRay.direction.set(LIGHT).sub(iRec.location);
+			double dist = shadowRay.direction.len();
+			shadowRay.direction.normalize();
+			shadowRay.makeOffsetSegment(dist);
+			double cos = Math.max(0, shadowRay.direction.dot(iRec.normal));
+			direct.set(cos * 20 / (dist * dist));
+
+			// A direction in the hemisphere around the normal
+			Vector2d seed = sampler.next2D(new Vector2d());
+			Vector3d d = new Vector3d(Math.cos(2 * Math.PI * seed.x), 2 * seed.y - 1, Math.sin(2 * Math.PI * seed.x));
+			if (d.dot(iRec.normal) < 0)
+				d.negate();
+			bounce.origin.set(iRec.location);
+			bounce.direction.set(d).normalize();
+			bounce.makeOffsetRay();
+			weight.set(0.6, 0.5, 0.4);
+		}
+
+		@Override
+		public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+			Colord emitted = new Colord(), direct = new Colord(), weight = new Colord(), incoming = new Colord();
+			Ray shadowRay = new Ray(), bounce = new Ray();
+			sample(scene, iRec, sampler, emitted, shadowRay, direct, bounce, weight);
+			outRadiance.set(emitted);
+			if (!scene.getAnyIntersection(shadowRay))
+				outRadiance.add(direct);
+			RayTracer.shadeRay(incoming, scene, bounce, sampler, depth + 1);
+			outRadiance.add(incoming.mul(weight));
+		}
+
+		@Override
+		public void shadeWavefront(WavefrontPath path, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler) {
+			Colord emitted = new Colord(), direct = new Colord(), weight = new Colord();
+			Ray shadowRay = new Ray(), bounce = new Ray();
+			sample(scene, iRec, sampler, emitted, shadowRay, direct, bounce, weight);
+			path.addRadiance(emitted);
+			path.addShadowRay(shadowRay, direct);
+			path.extend(bounce, weight);
+		}
+	}
+
+	private static Scene scene(Integrator integrator, int samples) {
+		// The shared sphere, with another beside it and a ground below
+		Scene scene = TestUtils.sphereScene(integrator, 20, 16);
+		double[][] spheres = { { 1.5, 0.5, -5, 0.8 }, { 0, -101, -4, 100 } };
+		for (double[] s : spheres) {
+			Sphere sphere = new Sphere();
+			sphere.setCenter(new Vector3d(s[0], s[1], s[2]));
+			sphere.setRadius(s[3]);
+			scene.addSurface(sphere);
+		}
+		for (Surface surface : scene.getSurfaces())
+			surface.setBSDF(new LambertianBSDF(new Colord(0.5, 0.5, 0.5)));
+		scene.setBackColor(new Colord(0.3, 0.4, 0.5));
+		scene.setSampler(new StratifiedSampler());
+		scene.setSamples(samples);
+		scene.init();
+		return scene;
+	}
+
+	private static Image renderRecursive(Scene scene) {
+		Image image = new Image(scene.getImage().getWidth(), scene.getImage().getHeight());
+		RayTracer.renderBlock(scene, image, 0, 0, image.getWidth(), image.getHeight());
+		return image;
+	}
+
+	private static Image renderWavefront(Scene scene, int batchSize) {
+		Image image = new Image(scene.getImage().getWidth(), scene.getImage().getHeight());
+		WavefrontRenderer wavefront = new WavefrontRenderer();
+		wavefront.setBatchSize(batchSize);
+		wavefront.render(scene, image, null);
+		return image;
+	}
+
+	@Test
+	public void testMatchesRecursiveExactly() {
+		for (Integrator integrator : new Integrator[] { new RGBNormals(), new NoiseIntegrator() }) {
+			Scene scene = scene(integrator, 9);
+			float[] expected = renderRecursive(scene).getData();
+			// Batches that split pixels, and one batch for everything
+			for (int batchSize : new int[] { 1000, 1 << 16 }) {
+				float[] actual = renderWavefront(scene, batchSize).getData();
+				for (int i = 0; i < expected.length; i++)
+					assertEquals(integrator + ", batch " + batchSize + ", value " + i, expected[i], actual[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testBreadthFirstMatchesRecursive() {
+		Scene scene = scene(new BounceIntegrator(), 4);
+		float[] expected = renderRecursive(scene).getData();
+		float[] actual = renderWavefront(scene, 777).getData();
+		double max = 0;
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("value " + i, expected[i], actual[i], 1e-5 * Math.max(1, Math.abs(expected[i])));
+			max = Math.max(max, expected[i]);
+		}
+		// The bounces, shadows and background all contribute something
+		assertTrue(max > 0.5);
+	}
+
+	@Test
+	public void testPacketsMatchSingleRays() {
+		for (Integrator integrator : new Integrator[] { new NoiseIntegrator(), new BounceIntegrator() }) {
+			Scene scene = scene(integrator, 3);
+			scene.setAccelStruct(new LinearBvh());
+			scene.init();
+			float[] recursive = renderRecursive(scene).getData();
+			float[] wavefront = renderWavefront(scene, 1000).getData();
+			for (int packetSize : new int[] { 4, 8, 16 }) {
+				scene.setPacketSize(packetSize);
+				float[] recursivePackets = renderRecursive(scene).getData();
+				float[] wavefrontPackets = renderWavefront(scene, 1000).getData();
+				for (int i = 0; i < recursive.length; i++) {
+					assertEquals("recursive, packets of " + packetSize + ", value " + i, recursive[i], recursivePackets[i], 0);
+					assertEquals("wavefront, packets of " + packetSize + ", value " + i, wavefront[i], wavefrontPackets[i], 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testIndependentOfThreadCount() {
+		int threads = RayTracer.getNumThreads();
+		try {
+			Scene scene = scene(new BounceIntegrator(), 4);
+			RayTracer.setNumThreads(1);
+			float[] one = renderWavefront(scene, 1 << 12).getData();
+			RayTracer.setNumThreads(4);
+			float[] four = renderWavefront(scene, 1 << 12).getData();
+			for (int i = 0; i < one.length; i++)
+				assertEquals("value " + i, one[i], four[i], 0);
+		} finally {
+			RayTracer.setNumThreads(threads);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package ray2.accel;
 
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
 import ray2.surface.Surface;
 
@@ -29,4 +30,46 @@ public interface AccelStruct {
 	 * @return true if the ray intersects a surface in the scene; false otherwise.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection);
+
+	/**
+	 * Same as intersect(outRecord, rayIn, anyIntersection), but uses the caller's
+	 * scratch space so that no temporaries have to be allocated.  The default
+	 * implementation ignores the scratch space.
+	 *
+	 * @param scratch scratch space owned by the calling thread
+	 */
+	default boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection,
+			IntersectionScratch scratch) {
+		return intersect(outRecord, rayIn, anyIntersection);
+	}
+
+	/**
+	 * Intersect every ray of a packet with the scene, as if by calling
+	 * intersect(packet.records[i], packet.rays[i], anyIntersection, scratch)
+	 * for each ray i, setting packet.hit[i] to the result.  Structures that can
+	 * trace coherent rays together override this; the default implementation
+	 * traces them one by one.
+	 *
+	 * @param packet the rays, and the records for their hits
+	 * @param anyIntersection as for intersect()
+	 * @param scratch scratch space owned by the calling thread
+	 * @return the number of rays that hit something
+	 */
+	default int intersect(RayPacket packet, boolean anyIntersection, IntersectionScratch scratch) {
+		int count = 0;
+		for (int i = 0; i < packet.size; i++) {
+			packet.hit[i] = intersect(packet.records[i], packet.rays[i], anyIntersection, scratch);
+			if (packet.hit[i])
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return whether intersect(packet, ...) traces the rays of a packet
+	 *   together, so that Scene.packetSize is worth setting
+	 */
+	default boolean tracesPackets() {
+		return false;
+	}
 }
@@ -0,0 +1,205 @@
+package ray2.accel;
+
+/**
+ * Builds a BVH over a set of primitives using the surface area heuristic (SAH).
+ * The builder only sees primitives through flat arrays of bounding boxes and
+ * centroids, so it can be used for any kind of primitive that has a box.
+ *
+ * Candidate splits are found by binning: the centroid range along each axis is
+ * divided into a fixed number of equal bins, the primitives are counted into
+ * them, and every boundary between two bins is evaluated as a split plane.  The
+ * split with the lowest expected cost
+ *
+ *    traversalCost + (area(left) * count(left) + area(right) * count(right)) / area(node)
+ *
+ * is taken, unless making a leaf (cost = count) is cheaper and the node is small
+ * enough to be a leaf.  Costs are measured in units of one primitive intersection.
+ *
+ * Binning and partitioning a node take time linear in its size, with no
+ * sorting.  The scratch space for the bins belongs to the builder, so each
+ * thread of a parallel build works with its own copy().
+ */
+public class BinnedSahBuilder extends BvhBuilder {
+
+	private final int numBins;
+	private final double traversalCost;
+
+	// Per-bin scratch space, reused at every node
+	private final int[] binCount;
+	private final double[] binBounds;
+	private final double[] rightArea;
+	private final double[] acc = new double[6];
+	private final double[] cbox = new double[6];
+
+	/**
+	 * @param primBounds bounds of each primitive, 6 values per primitive
+	 * @param centroids centroid of each primitive, 3 values per primitive
+	 * @param ids primitive indices to build over, reordered by the build
+	 * @param numBins number of bins per axis
+	 * @param traversalCost cost of visiting a node, relative to one primitive intersection
+	 * @param maxLeafSize largest number of primitives allowed in a leaf
+	 */
+	public BinnedSahBuilder(double[] primBounds, double[] centroids, int[] ids,
+			int numBins, double traversalCost, int maxLeafSize) {
+		super(primBounds, centroids, ids, maxLeafSize);
+		this.numBins = Math.max(2, numBins);
+		this.traversalCost = traversalCost;
+		binCount = new int[this.numBins];
+		binBounds = new double[6 * this.numBins];
+		rightArea = new double[this.numBins];
+	}
+
+	@Override
+	protected BvhBuilder copy() {
+		return new BinnedSahBuilder(primBounds, centroids, ids, numBins, traversalCost, maxLeafSize);
+	}
+
+	@Override
+	protected int split(int start, int end, double[] box) {
+		computeBounds(start, end, box, cbox);
+
+		int count = end - start;
+		if (count <= 1)
+			return -1;
+
+		// Find the cheapest split over all three axes
+		double nodeArea = halfArea(box, 0);
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestAxis = -1, bestBin = -1;
+		for (int axis = 0; axis < 3; axis++) {
+			double lo = cbox[axis], extent = cbox[axis + 3] - lo;
+			if (!(extent > 0))
+				continue;
+
+			binPrimitives(start, end, axis, lo, extent);
+
+			// Sweep from the right to get the area of every right-hand side
+			setEmpty(acc);
+			for (int b = numBins - 1; b > 0; b--) {
+				grow(acc, binBounds, 6 * b);
+				rightArea[b] = halfArea(acc, 0);
+			}
+
+			// Sweep from the left and evaluate each split
+			setEmpty(acc);
+			int leftCount = 0;
+			for (int b = 0; b < numBins - 1; b++) {
+				grow(acc, binBounds, 6 * b);
+				leftCount += binCount[b];
+				int rightCount = count - leftCount;
+				if (leftCount == 0 || rightCount == 0)
+					continue;
+				double cost = traversalCost
+						+ (halfArea(acc, 0) * leftCount + rightArea[b + 1] * rightCount) / nodeArea;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+
+		if (count <= maxLeafSize && (bestAxis < 0 || count <= bestCost))
+			return -1;
+
+		int mid = -1;
+		if (bestAxis >= 0) {
+			double lo = cbox[bestAxis], extent = cbox[bestAxis + 3] - lo;
+			mid = partition(start, end, bestAxis, lo, extent, bestBin);
+		}
+		// All centroids coincide (or the split degenerated): split the range in half
+		if (mid <= start || mid >= end)
+			mid = (start + end) >> 1;
+		return mid;
+	}
+
+	/**
+	 * Compute the bounds of the primitives and of their centroids in a range.
+	 */
+	private void computeBounds(int start, int end, double[] box, double[] cbox) {
+		setEmpty(box);
+		setEmpty(cbox);
+		for (int i = start; i < end; i++) {
+			int id = ids[i];
+			grow(box, primBounds, 6 * id);
+			for (int k = 0; k < 3; k++) {
+				double c = centroids[3 * id + k];
+				if (c < cbox[k]) cbox[k] = c;
+				if (c > cbox[k + 3]) cbox[k + 3] = c;
+			}
+		}
+	}
+
+	private int binIndex(int id, int axis, double lo, double extent) {
+		int b = (int) (numBins * (centroids[3 * id + axis] - lo) / extent);
+		return b < 0 ? 0 : (b >= numBins ? numBins - 1 : b);
+	}
+
+	private void binPrimitives(int start, int end, int axis, double lo, double extent) {
+		for (int b = 0; b < numBins; b++) {
+			binCount[b] = 0;
+			setEmpty(binBounds, 6 * b);
+		}
+		for (int i = start; i < end; i++) {
+			int id = ids[i];
+			int b = binIndex(id, axis, lo, extent);
+			binCount[b]++;
+			grow(binBounds, 6 * b, primBounds, 6 * id);
+		}
+	}
+
+	/**
+	 * Move every primitive whose bin is at most splitBin to the front of the range.
+	 * @return the index of the first primitive on the right-hand side
+	 */
+	private int partition(int start, int end, int axis, double lo, double extent, int splitBin) {
+		int i = start, j = end - 1;
+		while (i <= j) {
+			if (binIndex(ids[i], axis, lo, extent) <= splitBin) {
+				i++;
+			} else {
+				int t = ids[i];
+				ids[i] = ids[j];
+				ids[j] = t;
+				j--;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Compute the expected cost of traversing a tree under the same model the
+	 * builder optimizes: every node visit costs traversalCost, every primitive
+	 * test costs 1, and a node is visited with probability proportional to its
+	 * surface area.
+	 */
+	public static double sahCost(BvhNode root, double traversalCost) {
+		double rootArea = nodeArea(root);
+		if (!(rootArea > 0))
+			return root.surfaceIndexEnd - root.surfaceIndexStart;
+		return sahCostHelper(root, traversalCost) / rootArea;
+	}
+
+	private static double sahCostHelper(BvhNode node, double traversalCost) {
+		if (node.isLeaf())
+			return nodeArea(node) * (node.surfaceIndexEnd - node.surfaceIndexStart);
+		return nodeArea(node) * traversalCost
+				+ sahCostHelper(node.child[0], traversalCost)
+				+ sahCostHelper(node.child[1], traversalCost);
+	}
+
+	private static double nodeArea(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/** Half the surface area of a box; empty boxes have zero area. */
+	private static double halfArea(double[] b, int o) {
+		double dx = b[o + 3] - b[o], dy = b[o + 4] - b[o + 1], dz = b[o + 5] - b[o + 2];
+		if (dx < 0 || dy < 0 || dz < 0)
+			return 0;
+		return dx * dy + dy * dz + dz * dx;
+	}
+}
@@ -1,11 +1,14 @@
 
 package ray2.accel;
 
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
+import ray2.RenderStats;
+import ray2.RayTracer;
 import ray2.surface.Surface;
 import egl.math.Vector3d;
 
@@ -16,20 +19,46 @@ import egl.math.Vector3d;
  */
 public class Bvh implements AccelStruct {
 
-	// Performance counters
-	public static int hitCount = 0;
-	public static int missCount = 0;
-
 	/** A shared surfaces array that will be used across every node in the tree. */
-	private Surface[] surfaces;
-
-	/** A comparator class that can sort surfaces by x, y, or z coordinate.
-	 *  See the subclass declaration below for details.
-	 */
-	static MyComparator cmp = new MyComparator();
+	protected Surface[] surfaces;
 
 	/** The root of the BVH tree. */
 	BvhNode root;
+	public BvhNode getRoot() { return root; }
+
+	/**
+	 * How the tree is built: "median" splits each node at the median of its widest
+	 * axis (see MedianSplitBuilder), "sah" uses the binned surface area heuristic
+	 * (see BinnedSahBuilder).  With statistics on (-stats), an "sah" build also
+	 * builds the median-split tree, to report how much cheaper its own is.
+	 */
+	protected String buildMode = "median";
+	public void setBuildMode(String buildMode) {
+		buildMode = buildMode.trim().toLowerCase();
+		if (!buildMode.equals("median") && !buildMode.equals("sah"))
+			throw new Error("Unknown Bvh build mode: " + buildMode);
+		this.buildMode = buildMode;
+	}
+
+	/** Number of bins per axis used by the SAH build. */
+	protected int bins = 16;
+	public void setBins(int bins) { this.bins = bins; }
+
+	/** Cost of visiting a node, relative to the cost of one primitive intersection. */
+	protected double traversalCost = 0.125;
+	public void setTraversalCost(double traversalCost) { this.traversalCost = traversalCost; }
+
+	/** The largest number of surfaces stored in a leaf. */
+	protected int maxLeafSize = 10;
+	public void setMaxLeafSize(int maxLeafSize) { this.maxLeafSize = Math.max(1, maxLeafSize); }
+
+	/**
+	 * The number of threads that build the tree, or 0 (the default) for as many
+	 * as render (-threads).  Scenes of fewer than BvhBuilder.PARALLEL_GRAIN
+	 * surfaces are always built on the calling thread.
+	 */
+	protected int buildThreads = 0;
+	public void setBuildThreads(int buildThreads) { this.buildThreads = Math.max(0, buildThreads); }
 
 	public Bvh() { }
 
@@ -44,38 +73,44 @@ public class Bvh implements AccelStruct {
 	 * @return true if and intersection is found.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
-		return intersectHelper(root, outRecord, rayIn, anyIntersection);
+		return intersect(outRecord, rayIn, anyIntersection, IntersectionScratch.get());
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection,
+			IntersectionScratch scratch) {
+		return intersectHelper(root, outRecord, scratch.copyRay(rayIn), anyIntersection, scratch);
 	}
 
 	/**
 	 * A helper method to the main intersect method. It finds the intersection with
-	 * any of the surfaces under the given BVH node.
+	 * any of the surfaces under the given BVH node.  Each time a closer hit is
+	 * found, ray.end is moved up to it, so the rest of the search only looks for
+	 * closer hits.
 	 *
 	 * @param node a BVH node that we would like to find an intersection with surfaces under it
 	 * @param outRecord the output InsersectionMethod
-	 * @param rayIn the ray to intersect
+	 * @param ray the ray to intersect, which is modified
 	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @param scratch scratch space owned by the calling thread
 	 * @return true if an intersection is found with any surface under the given node
 	 */
-	private boolean intersectHelper(BvhNode node, IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection)
+	private boolean intersectHelper(BvhNode node, IntersectionRecord outRecord, Ray ray, boolean anyIntersection,
+			IntersectionScratch scratch)
 	{
-		// A7: fill in this function.
-		// Hint: For a leaf node, use a normal linear search. Otherwise, search in the left and right children.
-		// Another hint: save time by checking if the ray intersects the node first before checking the childrens.
-		if (!node.intersects(rayIn)) {
-			missCount++;
+		boolean counting = RenderStats.isCounting();
+		if (counting)
+			scratch.nodeVisits++;
+		if (!node.intersects(ray))
 			return false;
-		}
-		hitCount++;
+		if (counting)
+			scratch.nodeHits++;
 
 		boolean ret = false;
-		IntersectionRecord tmp = new IntersectionRecord();
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
 		if(node.isLeaf()) {
+			IntersectionRecord tmp = scratch.record;
 			for(int i=node.surfaceIndexStart; i<node.surfaceIndexEnd; i++) {
-				if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
+				if(surfaces[i].intersect(tmp, ray, scratch, anyIntersection) && tmp.t < ray.end ) {
 					if(anyIntersection) return true;
 					ret = true;
 					ray.end = tmp.t;
@@ -85,13 +120,9 @@ public class Bvh implements AccelStruct {
 			}
 		} else {
 			for(int i=0;i<2;i++) {
-				boolean hit = intersectHelper(node.child[i], tmp, ray, anyIntersection);
-				if (tmp.t < ray.end && hit) {
+				if (intersectHelper(node.child[i], outRecord, ray, anyIntersection, scratch)) {
 					if (anyIntersection) return true;
 					ret = true;
-					ray.end = tmp.t;
-					if (outRecord != null)
-						outRecord.set(tmp);
 				}
 			}
 		}
@@ -102,11 +133,73 @@ public class Bvh implements AccelStruct {
 	@Override
 	public void build(Surface[] surfaces) {
 		this.surfaces = surfaces;
-		root = createTree(0, surfaces.length);
-		System.out.println("Bvh: " + surfaces.length + " surfaces");
+		int n = surfaces.length;
+		int threads = n < BvhBuilder.PARALLEL_GRAIN ? 1 : (buildThreads > 0 ? buildThreads : RayTracer.getNumThreads());
+		ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		long startTime = System.currentTimeMillis();
+
+		double[] primBounds = new double[6 * n];
+		double[] centroids = new double[3 * n];
+		int[] ids = new int[n];
+		long boundsTime;
+		try {
+			if (pool != null)
+				pool.submit(() -> IntStream.range(0, n).parallel().forEach(i -> getBounds(i, primBounds, centroids, ids)))
+						.join();
+			else
+				for (int i = 0; i < n; i++)
+					getBounds(i, primBounds, centroids, ids);
+			boundsTime = System.currentTimeMillis() - startTime;
+
+			BvhBuilder builder = buildMode.equals("sah")
+					? new BinnedSahBuilder(primBounds, centroids, ids, bins, traversalCost, maxLeafSize)
+					: new MedianSplitBuilder(primBounds, centroids, ids, maxLeafSize);
+			if (n == 0)
+				root = new BvhNode();
+			else
+				root = pool != null ? builder.build(pool, 0, n) : builder.build(0, n);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+
+		// Put the surfaces in the order the builder chose so each node covers a contiguous range
+		Surface[] ordered = new Surface[n];
+		for (int i = 0; i < n; i++)
+			ordered[i] = surfaces[ids[i]];
+		System.arraycopy(ordered, 0, surfaces, 0, n);
+		long buildTime = System.currentTimeMillis() - startTime;
+
+		System.out.println("Bvh: " + n + " surfaces");
+		System.out.println("Bvh: " + buildMode + " build in " + buildTime + " ms on " + threads + " thread"
+				+ (threads > 1 ? "s" : "") + " (" + boundsTime + " ms gathering bounds)");
 		System.out.println("Bvh: " + nodeCount(root) + " nodes, " + leafCount(root) + " leaves");
 		System.out.println("Bvh: max depth " + maxDepth(root));
 		System.out.println("Bvh: average child volume ratio " + volRatio(root).mean);
+
+		double cost = BinnedSahBuilder.sahCost(root, traversalCost);
+		System.out.println("Bvh: expected SAH cost " + cost);
+		if (buildMode.equals("sah") && n > 0 && RenderStats.isEnabled()) {
+			// Build the median-split tree over a copy of the order, just to report how it compares
+			int[] medianIds = new int[n];
+			for (int i = 0; i < n; i++)
+				medianIds[i] = i;
+			double medianCost = BinnedSahBuilder.sahCost(
+					new MedianSplitBuilder(primBounds, centroids, medianIds, maxLeafSize).build(0, n), traversalCost);
+			System.out.printf("Bvh: median split SAH cost %g (SAH tree is %.1f%% cheaper)%n",
+					medianCost, 100 * (1 - cost / medianCost));
+		}
+	}
+
+	/** Copy the bounds and centroid of surface i into the builder's flat arrays. */
+	private void getBounds(int i, double[] primBounds, double[] centroids, int[] ids) {
+		Vector3d lo = surfaces[i].getMinBound();
+		Vector3d hi = surfaces[i].getMaxBound();
+		Vector3d c = surfaces[i].getAveragePosition();
+		primBounds[6*i  ] = lo.x; primBounds[6*i+1] = lo.y; primBounds[6*i+2] = lo.z;
+		primBounds[6*i+3] = hi.x; primBounds[6*i+4] = hi.y; primBounds[6*i+5] = hi.z;
+		centroids[3*i] = c.x; centroids[3*i+1] = c.y; centroids[3*i+2] = c.z;
+		ids[i] = i;
 	}
 
 	private int maxDepth(BvhNode node) {
@@ -155,93 +248,4 @@ public class Bvh implements AccelStruct {
 				(node.maxBound.z - node.minBound.z));
 	}
 
-	/**
-	 * Create a BVH [sub]tree.  This tree node will be responsible for storing
-	 * and processing surfaces[start] to surfaces[end-1]. If the range is small enough,
-	 * this will create a leaf BvhNode. Otherwise, the surfaces will be sorted according
-	 * to the axis of the axis-aligned bounding box that is widest, and split into 2
-	 * children.
-	 *
-	 * @param start The start index of surfaces
-	 * @param end The end index of surfaces
-	 */
-	private BvhNode createTree(int start, int end) {
-		// A7: fill in this function.
-		int i, j;
-
-		// ==== Step 1 ====
-		// Find out the BIG bounding box enclosing all the surfaces in the range [start, end)
-		// and store them in minB and maxB.
-		// Hint: To find the bounding box for each surface, use getMinBound() and getMaxBound() */
-		Vector3d minB = new Vector3d(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
-		Vector3d maxB = new Vector3d(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
-
-		for (i=start;i<end;i++) {
-			Vector3d lo = surfaces[i].getMinBound();
-			Vector3d hi = surfaces[i].getMaxBound();
-			for(j=0;j<3;j++) {
-				if(lo.get(j) < minB.get(j))
-					minB.set(j, lo.get(j));
-				if(hi.get(j) > maxB.get(j))
-					maxB.set(j, hi.get(j));
-			}
-		}
-
-
-		// ==== Step 2 ====
-		// Check for the base case.
-		// If the range [start, end) is small enough (e.g. less than or equal to 10), just return a new leaf node.
-		if(end - start <= 10)
-			return new BvhNode(minB, maxB, null, null, start, end);
-
-
-		// ==== Step 3 ====
-		// Figure out the widest dimension (x or y or z).
-		// If x is the widest, set widestDim = 0. If y, set widestDim = 1. If z, set widestDim = 2.
-		int widestDim = 0;
-		for(i=1;i<3;i++)
-			if(maxB.get(i)-minB.get(i)>maxB.get(widestDim)-minB.get(widestDim))
-				widestDim = i;
-
-
-		// ==== Step 4 ====
-		// Sort surfaces according to the widest dimension.
-		cmp.setIndex(widestDim);
-		Arrays.sort(surfaces, start, end, cmp);
-
-
-		// ==== Step 5 ====
-		// Recursively create left and right children.
-		BvhNode leftChild, rightChild;
-		int mid = (start + end) >> 1;
-		leftChild  = createTree(start, mid);
-		rightChild = createTree(mid, end);
-
-		return new BvhNode(minB, maxB, leftChild, rightChild, start, end);
-	}
-
-}
-
-/**
- * A subclass that compares the average position two surfaces by a given
- * axis. Use the setIndex(i) method to select which axis should be considered.
- * i=0 -> x-axis, i=1 -> y-axis, and i=2 -> z-axis.
- *
- */
-class MyComparator implements Comparator<Surface> {
-	int index;
-	public MyComparator() {  }
-
-	public void setIndex(int index) {
-		this.index = index;
-	}
-
-	public int compare(Surface o1, Surface o2) {
-		double v1 = o1.getAveragePosition().get(index);
-		double v2 = o2.getAveragePosition().get(index);
-		if(v1 < v2) return 1;
-		if(v1 > v2) return -1;
-		return 0;
-	}
-
 }
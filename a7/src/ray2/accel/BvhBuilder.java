@@ -0,0 +1,136 @@
+package ray2.accel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import egl.math.Vector3d;
+
+/**
+ * Builds a BVH top-down over a set of primitives, seen only through flat
+ * arrays of bounding boxes and centroids.  Subclasses choose how each node is
+ * split; this class does the recursion, either on the calling thread or as a
+ * fork/join task per subtree.
+ *
+ * The tree is built over the index array ids: each node covers ids[start] to
+ * ids[end-1], and ids is reordered so that every node covers a contiguous range.
+ * Since the two subtrees of a node cover disjoint ranges of ids, they can be
+ * built at the same time, and the tree is the same whichever way it is built.
+ */
+public abstract class BvhBuilder {
+
+	/**
+	 * Subtrees of fewer primitives than this are built by the task that reaches
+	 * them rather than forked, so a task does enough work to pay for itself.
+	 */
+	public static final int PARALLEL_GRAIN = 4096;
+
+	/** Bounds of each primitive: minX, minY, minZ, maxX, maxY, maxZ. */
+	protected final double[] primBounds;
+
+	/** Centroid of each primitive: x, y, z. */
+	protected final double[] centroids;
+
+	/** Primitive indices, reordered during the build. */
+	protected final int[] ids;
+
+	protected final int maxLeafSize;
+
+	protected BvhBuilder(double[] primBounds, double[] centroids, int[] ids, int maxLeafSize) {
+		this.primBounds = primBounds;
+		this.centroids = centroids;
+		this.ids = ids;
+		this.maxLeafSize = Math.max(1, maxLeafSize);
+	}
+
+	/**
+	 * Find the bounds of the primitives ids[start] to ids[end-1] and decide how
+	 * to split them.
+	 *
+	 * @param box set to the bounds of the range, as 6 values
+	 * @return -1 to make the range a leaf, or else the index of the first
+	 *   primitive of the right child, with ids reordered so that the left child
+	 *   covers [start, mid) and the right one [mid, end)
+	 */
+	protected abstract int split(int start, int end, double[] box);
+
+	/**
+	 * @return a builder over the same arrays, with the same settings but its
+	 *   own scratch space, for another thread to build a disjoint subtree with
+	 */
+	protected abstract BvhBuilder copy();
+
+	/**
+	 * Build the tree over ids[start] to ids[end-1] on this thread.
+	 */
+	public BvhNode build(int start, int end) {
+		double[] box = new double[6];
+		int mid = split(start, end, box);
+		if (mid < 0)
+			return node(box, null, null, start, end);
+		BvhNode left = build(start, mid);
+		BvhNode right = build(mid, end);
+		return node(box, left, right, start, end);
+	}
+
+	/**
+	 * Build the tree over ids[start] to ids[end-1] on the threads of pool,
+	 * forking a task for each subtree of at least PARALLEL_GRAIN primitives.
+	 */
+	public BvhNode build(ForkJoinPool pool, int start, int end) {
+		return pool.invoke(new BuildTask(copy(), start, end));
+	}
+
+	private static class BuildTask extends RecursiveTask<BvhNode> {
+		private static final long serialVersionUID = 1L;
+
+		final BvhBuilder builder;
+		final int start, end;
+
+		BuildTask(BvhBuilder builder, int start, int end) {
+			this.builder = builder;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected BvhNode compute() {
+			if (end - start < PARALLEL_GRAIN)
+				return builder.build(start, end);
+			double[] box = new double[6];
+			int mid = builder.split(start, end, box);
+			if (mid < 0)
+				return node(box, null, null, start, end);
+			BuildTask right = new BuildTask(builder.copy(), mid, end);
+			right.fork();
+			BvhNode left = new BuildTask(builder, start, mid).compute();
+			return node(box, left, right.join(), start, end);
+		}
+	}
+
+	private static BvhNode node(double[] box, BvhNode left, BvhNode right, int start, int end) {
+		return new BvhNode(new Vector3d(box[0], box[1], box[2]), new Vector3d(box[3], box[4], box[5]),
+				left, right, start, end);
+	}
+
+	// ---- Utilities for boxes stored as 6 doubles ----
+
+	protected static void setEmpty(double[] b) {
+		setEmpty(b, 0);
+	}
+
+	protected static void setEmpty(double[] b, int o) {
+		b[o] = b[o + 1] = b[o + 2] = Double.POSITIVE_INFINITY;
+		b[o + 3] = b[o + 4] = b[o + 5] = Double.NEGATIVE_INFINITY;
+	}
+
+	protected static void grow(double[] b, double[] src, int s) {
+		grow(b, 0, src, s);
+	}
+
+	protected static void grow(double[] b, int o, double[] src, int s) {
+		for (int k = 0; k < 3; k++) {
+			if (src[s + k] < b[o + k]) b[o + k] = src[s + k];
+			if (src[s + k + 3] > b[o + k + 3]) b[o + k + 3] = src[s + k + 3];
+		}
+	}
+}
@@ -9,6 +9,7 @@ import org.junit.Test;
 
 import ray2.mesh.OBJMesh;
 import ray2.mesh.OBJFace;
+import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.surface.Mesh;
 import ray2.surface.Sphere;
@@ -560,6 +561,82 @@ public class BvhTests {
                     !vectorsEqual(bvh40.root.child[0].child[0].maxBound, new Vector3d(31, 20, 1))));
     }
     
+    @Test
+    public void testSahTreeIntersection() {
+        // A SAH tree must find exactly the same first hits as the median split tree.
+        java.util.Random random = new java.util.Random(4620);
+        Surface spheres[] = new Surface[200];
+        for(int i = 0; i < spheres.length; ++i) {
+            Sphere si = new Sphere();
+            si.setCenter(new Vector3d(20 * random.nextDouble(), 20 * random.nextDouble(), 20 * random.nextDouble()));
+            si.setRadius(0.2 + random.nextDouble());
+            si.setTransformation(new Matrix4d(), new Matrix4d(), new Matrix4d());
+            spheres[i] = si;
+        }
+        Bvh median = new Bvh();
+        median.build(Arrays.copyOf(spheres, spheres.length));
+        Bvh sah = new Bvh();
+        sah.setBuildMode("sah");
+        sah.setMaxLeafSize(4);
+        sah.build(Arrays.copyOf(spheres, spheres.length));
+
+        for(int i = 0; i < 1000; ++i) {
+            Ray ray = new Ray(new Vector3d(-5, 20 * random.nextDouble(), 20 * random.nextDouble()),
+                              new Vector3d(1, random.nextDouble() - 0.5, random.nextDouble() - 0.5));
+            ray.makeOffsetRay();
+            IntersectionRecord r0 = new IntersectionRecord(), r1 = new IntersectionRecord();
+            boolean hit0 = median.intersect(r0, ray, false);
+            boolean hit1 = sah.intersect(r1, ray, false);
+            assertEquals("SAH and median trees disagree about a hit.", hit0, hit1);
+            if (hit0) {
+                assertEquals("SAH and median trees found different first hits.", r0.t, r1.t, 1e-9);
+                assertTrue("SAH and median trees found different surfaces.", r0.surface == r1.surface);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelBuild() {
+        // Enough spheres that the top of the tree is split in parallel tasks
+        java.util.Random random = new java.util.Random(4620);
+        Matrix4d identity = new Matrix4d();
+        Surface spheres[] = new Surface[2 * BvhBuilder.PARALLEL_GRAIN + 100];
+        for(int i = 0; i < spheres.length; ++i) {
+            Sphere si = new Sphere();
+            si.setCenter(new Vector3d(100 * random.nextDouble(), 100 * random.nextDouble(), 100 * random.nextDouble()));
+            si.setRadius(0.2 + random.nextDouble());
+            si.setTransformation(identity, identity, identity);
+            spheres[i] = si;
+        }
+        for (String mode : new String[] { "median", "sah" }) {
+            Surface sequential[] = Arrays.copyOf(spheres, spheres.length);
+            Bvh bvh1 = new Bvh();
+            bvh1.setBuildMode(mode);
+            bvh1.setBuildThreads(1);
+            bvh1.build(sequential);
+            Surface parallel[] = Arrays.copyOf(spheres, spheres.length);
+            Bvh bvh4 = new Bvh();
+            bvh4.setBuildMode(mode);
+            bvh4.setBuildThreads(4);
+            bvh4.build(parallel);
+
+            assertTrue(mode + ": parallel build put the surfaces in a different order.", Arrays.equals(sequential, parallel));
+            assertSameTree(mode, bvh1.root, bvh4.root);
+        }
+    }
+
+    private void assertSameTree(String mode, BvhNode a, BvhNode b) {
+        assertEquals(mode + ": parallel build made a different tree.", a.isLeaf(), b.isLeaf());
+        assertEquals(mode + ": parallel build made a different tree.", a.surfaceIndexStart, b.surfaceIndexStart);
+        assertEquals(mode + ": parallel build made a different tree.", a.surfaceIndexEnd, b.surfaceIndexEnd);
+        assertTrue(mode + ": parallel build made different bounds.",
+                vectorsEqual(a.minBound, b.minBound) && vectorsEqual(a.maxBound, b.maxBound));
+        if (!a.isLeaf()) {
+            assertSameTree(mode, a.child[0], b.child[0]);
+            assertSameTree(mode, a.child[1], b.child[1]);
+        }
+    }
+
     // Simple element-wise comparison.
     private boolean vectorsEqual(Vector3d v0, Vector3d v1) {
         double epsilon = 1e-4;
@@ -0,0 +1,130 @@
+package ray2.accel;
+
+/**
+ * A BVH flattened into primitive arrays, for fast traversal.
+ *
+ * Nodes are stored in depth-first order, so the first child of node i is always
+ * node i + 1 and only the index of the second child has to be stored.  For each
+ * node i:
+ *
+ *    bounds[6*i .. 6*i+5]  minX, minY, minZ, maxX, maxY, maxZ
+ *    nodes[2*i]            leaf: index of the first primitive
+ *                          internal: index of the second child
+ *    nodes[2*i+1]          leaf: number of primitives (>= 0)
+ *                          internal: ~axis (-1, -2 or -3 for x, y or z)
+ *
+ * The children of an internal node are ordered so that the first child lies on
+ * the low side along the node's axis.  A ray with a negative direction component
+ * along that axis should visit the second child first.
+ *
+ * The layout knows nothing about what the primitives are; primitive indices
+ * are the surfaceIndexStart/End ranges of the BvhNode tree it was made from.
+ */
+public class FlatBvh {
+
+	/** Node bounds, 6 values per node. */
+	public final double[] bounds;
+
+	/** Node contents, 2 values per node (see class comment). */
+	public final int[] nodes;
+
+	/** Number of nodes. */
+	public final int nodeCount;
+
+	/** Number of nodes on the longest path from the root to a leaf. */
+	public final int depth;
+
+	private int next;
+
+	/**
+	 * Flatten a BvhNode tree.
+	 */
+	public FlatBvh(BvhNode root) {
+		nodeCount = countNodes(root);
+		bounds = new double[6 * nodeCount];
+		nodes = new int[2 * nodeCount];
+		depth = flatten(root);
+	}
+
+	/**
+	 * @return true if node i is a leaf
+	 */
+	public boolean isLeaf(int i) {
+		return nodes[2 * i + 1] >= 0;
+	}
+
+	/**
+	 * Check if a ray hits the bounds of a node within [tMin, tMax].  The ray is
+	 * given by its origin and the reciprocal of its direction.
+	 */
+	public boolean hitsBox(int i, double ox, double oy, double oz,
+			double invDx, double invDy, double invDz, double tMin, double tMax) {
+		double[] b = bounds;
+		int o = 6 * i;
+
+		double t0 = (b[o] - ox) * invDx, t1 = (b[o + 3] - ox) * invDx;
+		if (invDx < 0) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		if (tMin > tMax) return false;
+
+		t0 = (b[o + 1] - oy) * invDy; t1 = (b[o + 4] - oy) * invDy;
+		if (invDy < 0) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		if (tMin > tMax) return false;
+
+		t0 = (b[o + 2] - oz) * invDz; t1 = (b[o + 5] - oz) * invDz;
+		if (invDz < 0) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		return tMin <= tMax;
+	}
+
+	private static int countNodes(BvhNode node) {
+		if (node.isLeaf())
+			return 1;
+		return 1 + countNodes(node.child[0]) + countNodes(node.child[1]);
+	}
+
+	/**
+	 * Write node and its subtree starting at index next.
+	 * @return the depth of the subtree
+	 */
+	private int flatten(BvhNode node) {
+		int i = next++;
+		bounds[6*i  ] = node.minBound.x; bounds[6*i+1] = node.minBound.y; bounds[6*i+2] = node.minBound.z;
+		bounds[6*i+3] = node.maxBound.x; bounds[6*i+4] = node.maxBound.y; bounds[6*i+5] = node.maxBound.z;
+
+		if (node.isLeaf()) {
+			nodes[2*i] = Math.max(0, node.surfaceIndexStart);
+			nodes[2*i+1] = Math.max(0, node.surfaceIndexEnd - node.surfaceIndexStart);
+			return 1;
+		}
+
+		// The split axis is the one along which the children's centers are farthest apart
+		BvhNode a = node.child[0], b = node.child[1];
+		int axis = 0;
+		double bestSep = -1;
+		for (int k = 0; k < 3; k++) {
+			double sep = Math.abs(center(b, k) - center(a, k));
+			if (sep > bestSep) {
+				bestSep = sep;
+				axis = k;
+			}
+		}
+		if (center(b, axis) < center(a, axis)) {
+			BvhNode t = a; a = b; b = t;
+		}
+
+		nodes[2*i+1] = ~axis;
+		int d0 = flatten(a);
+		nodes[2*i] = next;
+		int d1 = flatten(b);
+		return 1 + Math.max(d0, d1);
+	}
+
+	private static double center(BvhNode node, int axis) {
+		return node.minBound.get(axis) + node.maxBound.get(axis);
+	}
+}
@@ -0,0 +1,212 @@
+package ray2.accel;
+
+import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
+import ray2.Ray;
+import ray2.RenderStats;
+import ray2.surface.Surface;
+
+/**
+ * A BVH that is built like Bvh (with the same settings) but then flattened into
+ * a FlatBvh and traversed iteratively with an explicit stack.  The nearer child
+ * of each node is visited first, and the traversal does no allocation: the
+ * stack, ray copy and intersection record come from the IntersectionScratch.
+ * It can also trace a RayPacket of coherent rays in one traversal.
+ *
+ * Use it in a scene with <accelStruct type="LinearBvh"> ... </accelStruct>.
+ */
+public class LinearBvh extends Bvh {
+
+	/** The flattened tree. */
+	FlatBvh flat;
+
+	public LinearBvh() { }
+
+	@Override
+	public void build(Surface[] surfaces) {
+		super.build(surfaces);
+		flat = new FlatBvh(root);
+		System.out.println("Bvh: flattened to " + flat.nodeCount + " nodes, "
+				+ (flat.bounds.length * 8 + flat.nodes.length * 4) / 1024 + " KB");
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection,
+			IntersectionScratch scratch) {
+		int[] stack = scratch.stack(flat.depth);
+		int[] nodes = flat.nodes;
+		Ray ray = scratch.copyRay(rayIn);
+		IntersectionRecord tmp = scratch.record;
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double invDx = 1 / ray.direction.x, invDy = 1 / ray.direction.y, invDz = 1 / ray.direction.z;
+
+		boolean ret = false;
+		long hits = 0, misses = 0;
+		int top = 0;
+		int node = 0;
+		while (true) {
+			if (flat.hitsBox(node, ox, oy, oz, invDx, invDy, invDz, ray.start, ray.end)) {
+				hits++;
+				int a = nodes[2 * node], b = nodes[2 * node + 1];
+				if (b < 0) {
+					// Internal node: descend into the nearer child, save the other one
+					int axis = ~b;
+					double d = axis == 0 ? invDx : (axis == 1 ? invDy : invDz);
+					if (d < 0) {
+						stack[top++] = node + 1;
+						node = a;
+					} else {
+						stack[top++] = a;
+						node = node + 1;
+					}
+					continue;
+				}
+				for (int i = a; i < a + b; i++) {
+					if (surfaces[i].intersect(tmp, ray, scratch, anyIntersection) && tmp.t < ray.end) {
+						if (anyIntersection) {
+							countNodes(scratch, hits, misses);
+							return true;
+						}
+						ret = true;
+						ray.end = tmp.t;
+						if (outRecord != null)
+							outRecord.set(tmp);
+					}
+				}
+			} else {
+				misses++;
+			}
+			if (top == 0)
+				break;
+			node = stack[--top];
+		}
+		countNodes(scratch, hits, misses);
+		return ret;
+	}
+
+	@Override
+	public boolean tracesPackets() {
+		return true;
+	}
+
+	/**
+	 * Traverse the tree once for the whole packet.  Each node on the stack
+	 * carries the mask of the rays that may still hit it.  A node is visited
+	 * when one of them hits its box: they are tested in order until one does,
+	 * and the rays before that one are dropped from the mask, since they miss.
+	 * Usually the first ray of a coherent packet hits, and the node costs one
+	 * test; when it misses and the rays all point into the same octant, the
+	 * node is tested against the packet as a whole (see RayPacket.mayHitBox()),
+	 * which rejects most of the nodes that the packet misses with one more
+	 * test.  The children of a node are visited in the order of the direction
+	 * of the ray that hit it.  At a leaf, each ray of the mask that hits the
+	 * box is intersected with the leaf's surfaces.
+	 *
+	 * The hits are the ones single rays find, except that of two surfaces hit
+	 * at exactly the same t, a ray may record the other one.
+	 */
+	@Override
+	public int intersect(RayPacket packet, boolean anyIntersection, IntersectionScratch scratch) {
+		int mask = packet.prepare();
+		if (mask == 0)
+			return 0;
+		int[] stack = scratch.stack(2 * flat.depth);
+		int[] nodes = flat.nodes;
+		IntersectionRecord tmp = scratch.record;
+		double[] ox = packet.ox, oy = packet.oy, oz = packet.oz;
+		double[] invDx = packet.invDx, invDy = packet.invDy, invDz = packet.invDz;
+		double[] tStart = packet.tStart, tEnd = packet.tEnd;
+		boolean coherent = packet.coherent;
+		double maxEnd = packet.maxEnd;
+
+		// The rays still being traced: any-hit rays leave when they hit
+		int live = mask;
+		int count = 0;
+		long hits = 0, misses = 0;
+		int top = 0;
+		int node = 0;
+		while (true) {
+			// Find the first ray that hits the node
+			int first = -1;
+			mask &= live;
+			if (mask != 0) {
+				int r = Integer.numberOfTrailingZeros(mask);
+				if (flat.hitsBox(node, ox[r], oy[r], oz[r], invDx[r], invDy[r], invDz[r], tStart[r], tEnd[r])) {
+					first = r;
+				} else if (!coherent || packet.mayHitBox(flat, node, maxEnd)) {
+					for (int m = mask & (mask - 1); m != 0; m &= m - 1) {
+						r = Integer.numberOfTrailingZeros(m);
+						if (flat.hitsBox(node, ox[r], oy[r], oz[r], invDx[r], invDy[r], invDz[r], tStart[r], tEnd[r])) {
+							first = r;
+							break;
+						}
+					}
+				}
+			}
+
+			if (first >= 0) {
+				hits++;
+				mask &= -1 << first;
+				int a = nodes[2 * node], b = nodes[2 * node + 1];
+				if (b < 0) {
+					// Internal node: descend into the child nearer to the first ray
+					int axis = ~b;
+					double d = axis == 0 ? invDx[first] : (axis == 1 ? invDy[first] : invDz[first]);
+					if (d < 0) {
+						stack[top++] = node + 1;
+						node = a;
+					} else {
+						stack[top++] = a;
+						node = node + 1;
+					}
+					stack[top++] = mask;
+					continue;
+				}
+
+				boolean shortened = false;
+				for (int m = mask; m != 0; m &= m - 1) {
+					int r = Integer.numberOfTrailingZeros(m);
+					if (r != first && !flat.hitsBox(node, ox[r], oy[r], oz[r], invDx[r], invDy[r], invDz[r], tStart[r], tEnd[r]))
+						continue;
+					Ray ray = packet.work[r];
+					for (int i = a; i < a + b; i++) {
+						if (surfaces[i].intersect(tmp, ray, scratch, anyIntersection) && tmp.t < ray.end) {
+							if (!packet.hit[r])
+								count++;
+							packet.hit[r] = true;
+							if (anyIntersection) {
+								live &= ~(1 << r);
+								break;
+							}
+							ray.end = tEnd[r] = tmp.t;
+							shortened = true;
+							if (packet.records[r] != null)
+								packet.records[r].set(tmp);
+						}
+					}
+				}
+				if (shortened) {
+					maxEnd = Double.NEGATIVE_INFINITY;
+					for (int m = live; m != 0; m &= m - 1)
+						maxEnd = Math.max(maxEnd, tEnd[Integer.numberOfTrailingZeros(m)]);
+				}
+			} else {
+				misses++;
+			}
+			if (top == 0 || live == 0)
+				break;
+			mask = stack[--top];
+			node = stack[--top];
+		}
+		countNodes(scratch, hits, misses);
+		return count;
+	}
+
+	private static void countNodes(IntersectionScratch scratch, long hits, long misses) {
+		if (!RenderStats.isCounting())
+			return;
+		scratch.nodeVisits += hits + misses;
+		scratch.nodeHits += hits;
+	}
+}
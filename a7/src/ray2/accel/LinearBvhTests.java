@@ -0,0 +1,235 @@
+package ray2.accel;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
+import ray2.Ray;
+import ray2.surface.Sphere;
+import ray2.surface.Surface;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+
+public class LinearBvhTests {
+
+    @Test
+    public void testFlattenedLayout() {
+        Surface spheres[] = randomSpheres(new Random(4620), 100);
+        Bvh bvh = new Bvh();
+        bvh.build(spheres);
+        FlatBvh flat = new FlatBvh(bvh.root);
+
+        assertEquals("Flattened tree should have one entry per node.", countNodes(bvh.root), flat.nodeCount);
+        assertTrue("Root bounds should be preserved.",
+                flat.bounds[0] == bvh.root.minBound.x && flat.bounds[4] == bvh.root.maxBound.y);
+
+        // Every primitive should be in exactly one leaf, and children should be ordered along their axis.
+        int covered[] = new int[spheres.length];
+        for (int i = 0; i < flat.nodeCount; ++i) {
+            if (flat.isLeaf(i)) {
+                for (int j = flat.nodes[2*i]; j < flat.nodes[2*i] + flat.nodes[2*i+1]; ++j)
+                    covered[j]++;
+            } else {
+                int axis = ~flat.nodes[2*i+1];
+                int first = i + 1, second = flat.nodes[2*i];
+                double c0 = flat.bounds[6*first + axis] + flat.bounds[6*first + axis + 3];
+                double c1 = flat.bounds[6*second + axis] + flat.bounds[6*second + axis + 3];
+                assertTrue("First child should lie on the low side of the split axis.", c0 <= c1);
+            }
+        }
+        for (int j = 0; j < covered.length; ++j)
+            assertEquals("Surface " + j + " should be in exactly one leaf.", 1, covered[j]);
+    }
+
+    @Test
+    public void testMatchesBvh() {
+        Random random = new Random(4620);
+        Surface spheres[] = randomSpheres(random, 300);
+        for (String mode : new String[] { "median", "sah" }) {
+            Bvh bvh = new Bvh();
+            bvh.setBuildMode(mode);
+            bvh.build(Arrays.copyOf(spheres, spheres.length));
+            LinearBvh linear = new LinearBvh();
+            linear.setBuildMode(mode);
+            linear.build(Arrays.copyOf(spheres, spheres.length));
+
+            for (int i = 0; i < 2000; ++i) {
+                // Rays from all directions, so both child orders get visited
+                Vector3d origin = new Vector3d(10, 10, 10).add(
+                        new Vector3d(random.nextDouble() - 0.5, random.nextDouble() - 0.5, random.nextDouble() - 0.5).mul(60));
+                Vector3d target = new Vector3d(20 * random.nextDouble(), 20 * random.nextDouble(), 20 * random.nextDouble());
+                Ray ray = new Ray(origin, target.clone().sub(origin));
+                ray.makeOffsetRay();
+
+                IntersectionRecord r0 = new IntersectionRecord(), r1 = new IntersectionRecord();
+                boolean hit0 = bvh.intersect(r0, ray, false);
+                boolean hit1 = linear.intersect(r1, ray, false);
+                assertEquals(mode + ": linear and pointer trees disagree about a hit.", hit0, hit1);
+                assertEquals(mode + ": any-hit query disagrees with first-hit query.", hit0, linear.intersect(null, ray, true));
+                if (hit0) {
+                    assertEquals(mode + ": linear and pointer trees found different first hits.", r0.t, r1.t, 1e-9);
+                    assertTrue(mode + ": linear and pointer trees found different surfaces.", r0.surface == r1.surface);
+                }
+
+                // The input ray must not be modified
+                assertEquals(Double.POSITIVE_INFINITY, ray.end, 0);
+            }
+        }
+    }
+
+    @Test
+    public void testSpheresInALine() {
+        // The spheres used by BvhTests: a column of 20 unit spheres along y.
+        Surface spheres[] = new Surface[20];
+        for (int i = 0; i < 20; ++i) {
+            Sphere si = new Sphere();
+            si.setCenter(new Vector3d(0, i, 0));
+            si.setTransformation(new Matrix4d(), new Matrix4d(), new Matrix4d());
+            spheres[i] = si;
+        }
+        LinearBvh linear = new LinearBvh();
+        linear.build(spheres);
+
+        Ray up = new Ray(new Vector3d(0, -5, 0), new Vector3d(0, 1, 0));
+        up.makeOffsetRay();
+        IntersectionRecord rec = new IntersectionRecord();
+        assertTrue(linear.intersect(rec, up, false));
+        assertEquals("Ray going up should hit the bottom sphere.", 4, rec.t, 1e-6);
+
+        Ray down = new Ray(new Vector3d(0, 30, 0), new Vector3d(0, -1, 0));
+        down.makeOffsetRay();
+        assertTrue(linear.intersect(rec, down, false));
+        assertEquals("Ray going down should hit the top sphere.", 30 - 20, rec.t, 1e-6);
+
+        Ray miss = new Ray(new Vector3d(5, -5, 0), new Vector3d(0, 1, 0));
+        miss.makeOffsetRay();
+        assertFalse(linear.intersect(rec, miss, false));
+    }
+
+    @Test
+    public void testPacketsMatchSingleRays() {
+        Random random = new Random(4620);
+        LinearBvh linear = new LinearBvh();
+        linear.build(randomSpheres(random, 300));
+        IntersectionScratch scratch = new IntersectionScratch();
+        RayPacket packet = new RayPacket();
+
+        for (int size : new int[] { 1, 4, 8, 16, 32 }) {
+            for (int p = 0; p < 200; ++p) {
+                // Coherent packets: a pencil of rays from near one point; incoherent ones: anything
+                boolean coherent = p % 2 == 0;
+                Vector3d center = new Vector3d(random.nextDouble(), random.nextDouble(), random.nextDouble()).mul(60).sub(20);
+                Vector3d aim = new Vector3d(20 * random.nextDouble(), 20 * random.nextDouble(), 20 * random.nextDouble());
+                Ray rays[] = new Ray[size];
+                IntersectionRecord records[] = new IntersectionRecord[size];
+                packet.clear();
+                for (int i = 0; i < size; ++i) {
+                    Vector3d origin = coherent ? center.clone()
+                            : new Vector3d(random.nextDouble(), random.nextDouble(), random.nextDouble()).mul(60).sub(20);
+                    Vector3d target = aim.clone().add(new Vector3d(random.nextDouble() - 0.5, random.nextDouble() - 0.5,
+                            random.nextDouble() - 0.5).mul(coherent ? 4 : 40));
+                    rays[i] = new Ray(origin, target.sub(origin));
+                    rays[i].makeOffsetRay();
+                    // Some segments, as for shadow rays
+                    if (i % 3 == 2)
+                        rays[i].end = 30 * random.nextDouble();
+                    records[i] = new IntersectionRecord();
+                    packet.add(rays[i], records[i]);
+                }
+
+                int hits = linear.intersect(packet, false, scratch);
+                int count = 0;
+                for (int i = 0; i < size; ++i) {
+                    IntersectionRecord single = new IntersectionRecord();
+                    boolean hit = linear.intersect(single, rays[i], false);
+                    assertEquals("Packet of " + size + ": first-hit disagrees with a single ray.", hit, packet.hit[i]);
+                    if (hit) {
+                        count++;
+                        assertEquals("Packet of " + size + ": different first hit.", single.t, records[i].t, 0);
+                        assertTrue("Packet of " + size + ": different surface.", single.surface == records[i].surface);
+                    }
+                }
+                assertEquals(count, hits);
+
+                assertEquals("Packet of " + size + ": any-hit disagrees with first-hit.", hits,
+                        linear.intersect(packet, true, scratch));
+                for (int i = 0; i < size; ++i) {
+                    assertEquals(linear.intersect(null, rays[i], true), packet.hit[i]);
+                    assertEquals("The input rays must not be modified", i % 3 == 2, rays[i].end != Double.POSITIVE_INFINITY);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRaySorter() {
+        Random random = new Random(4620);
+        int n = 1000;
+        Ray rays[] = new Ray[n];
+        int indices[] = new int[n];
+        for (int i = 0; i < n; ++i) {
+            rays[i] = new Ray(new Vector3d(random.nextDouble(), random.nextDouble(), random.nextDouble()),
+                    new Vector3d(random.nextDouble() - 0.5, random.nextDouble() - 0.5, random.nextDouble() - 0.5));
+            indices[i] = n - 1 - i;
+        }
+        new RaySorter().sort(rays, indices, n);
+
+        // A permutation, grouped by octant, and stable within a cell
+        boolean seen[] = new boolean[n];
+        int lastOctant = -1;
+        for (int k = 0; k < n; ++k) {
+            assertFalse("Index " + indices[k] + " appears twice.", seen[indices[k]]);
+            seen[indices[k]] = true;
+            Vector3d d = rays[indices[k]].direction;
+            int octant = (d.x < 0 ? 4 : 0) | (d.y < 0 ? 2 : 0) | (d.z < 0 ? 1 : 0);
+            assertTrue("Octants should be in order.", octant >= lastOctant);
+            lastOctant = octant;
+        }
+
+        // Rays that start at the same point stay in their order
+        for (int i = 0; i < n; ++i)
+            rays[i].origin.set(0.5, 0.5, 0.5);
+        for (int i = 0; i < n; ++i)
+            indices[i] = i;
+        new RaySorter().sort(rays, indices, n);
+        for (int k = 1; k < n; ++k) {
+            Vector3d a = rays[indices[k - 1]].direction, b = rays[indices[k]].direction;
+            boolean sameOctant = (a.x < 0) == (b.x < 0) && (a.y < 0) == (b.y < 0) && (a.z < 0) == (b.z < 0);
+            if (sameOctant)
+                assertTrue("The sort should be stable.", indices[k - 1] < indices[k]);
+        }
+    }
+
+    @Test
+    public void testMorton() {
+        assertEquals(0, RaySorter.morton(0, 0, 0));
+        assertEquals(4, RaySorter.morton(1, 0, 0));
+        assertEquals(2, RaySorter.morton(0, 1, 0));
+        assertEquals(1, RaySorter.morton(0, 0, 1));
+        assertEquals((1 << 27) - 1, RaySorter.morton(511, 511, 511));
+        assertEquals(4 << 3, RaySorter.morton(2, 0, 0));
+    }
+
+    private static Surface[] randomSpheres(Random random, int n) {
+        Surface spheres[] = new Surface[n];
+        for (int i = 0; i < n; ++i) {
+            Sphere si = new Sphere();
+            si.setCenter(new Vector3d(20 * random.nextDouble(), 20 * random.nextDouble(), 20 * random.nextDouble()));
+            si.setRadius(0.2 + random.nextDouble());
+            si.setTransformation(new Matrix4d(), new Matrix4d(), new Matrix4d());
+            spheres[i] = si;
+        }
+        return spheres;
+    }
+
+    private static int countNodes(BvhNode node) {
+        if (node.isLeaf())
+            return 1;
+        return 1 + countNodes(node.child[0]) + countNodes(node.child[1]);
+    }
+}
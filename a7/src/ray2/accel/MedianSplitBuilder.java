@@ -0,0 +1,93 @@
+package ray2.accel;
+
+/**
+ * Builds a BVH by splitting each node in half at the median of its widest
+ * axis: the primitives whose centroids are higher along that axis go to the
+ * left child and the rest to the right, and a node of at most maxLeafSize
+ * primitives is a leaf.  This is the split Bvh used to make by sorting.
+ *
+ * Only the split point matters, not the order on either side of it, so each
+ * node selects its median (in linear time, expected) rather than sorting.
+ * Primitives whose centroids tie at the median may not land on the side a
+ * sort would have put them, so the tree can differ from the old one there.
+ */
+public class MedianSplitBuilder extends BvhBuilder {
+
+	/**
+	 * @param primBounds bounds of each primitive, 6 values per primitive
+	 * @param centroids centroid of each primitive, 3 values per primitive
+	 * @param ids primitive indices to build over, reordered by the build
+	 * @param maxLeafSize largest number of primitives allowed in a leaf
+	 */
+	public MedianSplitBuilder(double[] primBounds, double[] centroids, int[] ids, int maxLeafSize) {
+		super(primBounds, centroids, ids, maxLeafSize);
+	}
+
+	/** A median split keeps no scratch space, so every thread can share one builder. */
+	@Override
+	protected BvhBuilder copy() {
+		return this;
+	}
+
+	@Override
+	protected int split(int start, int end, double[] box) {
+		setEmpty(box);
+		for (int i = start; i < end; i++)
+			grow(box, primBounds, 6 * ids[i]);
+		if (end - start <= maxLeafSize)
+			return -1;
+
+		int widestDim = 0;
+		for (int k = 1; k < 3; k++)
+			if (box[k + 3] - box[k] > box[widestDim + 3] - box[widestDim])
+				widestDim = k;
+
+		int mid = (start + end) >> 1;
+		select(start, end, mid, widestDim);
+		return mid;
+	}
+
+	/**
+	 * Reorder ids[start] to ids[end-1] so that the primitives before mid have
+	 * centroids at least as high along axis as those from mid on.  Each pass
+	 * partitions around a median of three into higher, equal and lower parts,
+	 * so ranges with many equal centroids take no longer than others.
+	 */
+	private void select(int start, int end, int mid, int axis) {
+		int lo = start, hi = end - 1;
+		while (lo < hi) {
+			double pivot = medianOfThree(key(ids[lo], axis), key(ids[(lo + hi) >>> 1], axis), key(ids[hi], axis));
+			// [lo, lt) higher, [lt, i) equal, (gt, hi] lower
+			int lt = lo, i = lo, gt = hi;
+			while (i <= gt) {
+				double c = key(ids[i], axis);
+				if (c > pivot)
+					swap(lt++, i++);
+				else if (c < pivot)
+					swap(i, gt--);
+				else
+					i++;
+			}
+			if (mid < lt)
+				hi = lt - 1;
+			else if (mid > gt)
+				lo = gt + 1;
+			else
+				return;
+		}
+	}
+
+	private double key(int id, int axis) {
+		return centroids[3 * id + axis];
+	}
+
+	private void swap(int i, int j) {
+		int t = ids[i];
+		ids[i] = ids[j];
+		ids[j] = t;
+	}
+
+	private static double medianOfThree(double a, double b, double c) {
+		return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+	}
+}
@@ -1,6 +1,7 @@
 package ray2.accel;
 
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
 import ray2.surface.Surface;
 /**
@@ -26,13 +27,17 @@ public class NaiveAccelStruct implements AccelStruct {
 	 * @return true if and intersection is found.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		return intersect(outRecord, rayIn, anyIntersection, IntersectionScratch.get());
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection,
+			IntersectionScratch scratch) {
 		boolean ret = false;
-		IntersectionRecord tmp = new IntersectionRecord();
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
+		IntersectionRecord tmp = scratch.record;
+		Ray ray = scratch.copyRay(rayIn);
 		for(int i = 0; i < surfaces.length; i++) {
-			if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
+			if(surfaces[i].intersect(tmp, ray, scratch, anyIntersection) && tmp.t < ray.end ) {
 				if(anyIntersection) return true;
 				ret = true;
 				ray.end = tmp.t;
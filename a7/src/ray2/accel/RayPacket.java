@@ -0,0 +1,162 @@
+package ray2.accel;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+
+/**
+ * A group of up to MAX_SIZE rays that are intersected with the scene together
+ * by AccelStruct.intersect(RayPacket, ...).  Packets work best when the rays
+ * are coherent -- start near each other and point in similar directions, like
+ * the camera rays of neighboring pixels -- because they then visit nearly the
+ * same nodes, and a traversal can test a node once for the whole packet.
+ *
+ * The packet refers to the caller's rays and records, which are not changed
+ * except that a record is set when its ray hits something.  It also keeps,
+ * for the traversal, its own copy of each ray in structure-of-arrays form, and
+ * bounds on the origins and inverse directions of all the rays together.
+ *
+ * A packet can be filled and intersected any number of times; it allocates
+ * nothing after it is created.
+ */
+public class RayPacket {
+
+	/** The most rays a packet can hold (the number of bits in an int mask). */
+	public static final int MAX_SIZE = 32;
+
+	/** The rays, as given to add(). */
+	public final Ray[] rays = new Ray[MAX_SIZE];
+
+	/** Where each ray's hit is recorded; entries may be null. */
+	public final IntersectionRecord[] records = new IntersectionRecord[MAX_SIZE];
+
+	/** Whether each ray hit something, after intersection. */
+	public final boolean[] hit = new boolean[MAX_SIZE];
+
+	/** The number of rays in the packet. */
+	public int size;
+
+	/*
+	 * For traversals: the origins, inverse directions and t intervals of the
+	 * rays (the ends shrink as hits are found), and a copy of each ray that
+	 * surfaces can be intersected with.
+	 */
+	final double[] ox = new double[MAX_SIZE], oy = new double[MAX_SIZE], oz = new double[MAX_SIZE];
+	final double[] invDx = new double[MAX_SIZE], invDy = new double[MAX_SIZE], invDz = new double[MAX_SIZE];
+	final double[] tStart = new double[MAX_SIZE], tEnd = new double[MAX_SIZE];
+	final Ray[] work = new Ray[MAX_SIZE];
+
+	/*
+	 * Bounds over the packet: the origins, and the inverse directions; and
+	 * whether all the directions have the same sign along each axis, which
+	 * is needed for the bounds to be used to cull nodes.
+	 */
+	double oMinX, oMinY, oMinZ, oMaxX, oMaxY, oMaxZ;
+	double iMinX, iMinY, iMinZ, iMaxX, iMaxY, iMaxZ;
+	double minStart, maxEnd;
+	boolean coherent;
+
+	public RayPacket() {
+		for (int i = 0; i < MAX_SIZE; i++)
+			work[i] = new Ray();
+	}
+
+	/** Empty the packet. */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Add a ray to the packet.
+	 *
+	 * @param ray the ray
+	 * @param record where to record its hit, or null
+	 * @return the index of the ray in the packet
+	 */
+	public int add(Ray ray, IntersectionRecord record) {
+		if (size == MAX_SIZE)
+			throw new IndexOutOfBoundsException("RayPacket holds at most " + MAX_SIZE + " rays");
+		rays[size] = ray;
+		records[size] = record;
+		return size++;
+	}
+
+	/**
+	 * Set up the traversal data for the current rays.
+	 *
+	 * @return the mask of the rays, with bit i set for ray i
+	 */
+	int prepare() {
+		oMinX = oMinY = oMinZ = iMinX = iMinY = iMinZ = minStart = Double.POSITIVE_INFINITY;
+		oMaxX = oMaxY = oMaxZ = iMaxX = iMaxY = iMaxZ = maxEnd = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < size; i++) {
+			Ray r = rays[i];
+			ox[i] = r.origin.x; oy[i] = r.origin.y; oz[i] = r.origin.z;
+			invDx[i] = 1 / r.direction.x; invDy[i] = 1 / r.direction.y; invDz[i] = 1 / r.direction.z;
+			tStart[i] = r.start;
+			tEnd[i] = r.end;
+			work[i].set(r.origin, r.direction);
+			work[i].start = r.start;
+			work[i].end = r.end;
+			hit[i] = false;
+
+			oMinX = Math.min(oMinX, ox[i]); oMaxX = Math.max(oMaxX, ox[i]);
+			oMinY = Math.min(oMinY, oy[i]); oMaxY = Math.max(oMaxY, oy[i]);
+			oMinZ = Math.min(oMinZ, oz[i]); oMaxZ = Math.max(oMaxZ, oz[i]);
+			iMinX = Math.min(iMinX, invDx[i]); iMaxX = Math.max(iMaxX, invDx[i]);
+			iMinY = Math.min(iMinY, invDy[i]); iMaxY = Math.max(iMaxY, invDy[i]);
+			iMinZ = Math.min(iMinZ, invDz[i]); iMaxZ = Math.max(iMaxZ, invDz[i]);
+			minStart = Math.min(minStart, tStart[i]);
+			maxEnd = Math.max(maxEnd, tEnd[i]);
+		}
+		// Same signs, and no infinite inverse (a zero direction component)
+		coherent = sameSign(iMinX, iMaxX) && sameSign(iMinY, iMaxY) && sameSign(iMinZ, iMaxZ);
+		return size == MAX_SIZE ? -1 : (1 << size) - 1;
+	}
+
+	private static boolean sameSign(double lo, double hi) {
+		return (lo > 0 || hi < 0) && !Double.isInfinite(lo) && !Double.isInfinite(hi);
+	}
+
+	/**
+	 * Check whether node i of bvh might be hit by any ray of the packet, using
+	 * interval arithmetic on the packet's bounds: the slab entry and exit
+	 * distances of every ray lie in intervals computed from the bounds, so if
+	 * even the latest possible exit comes before the earliest possible entry
+	 * on some pair of axes, no ray can hit the box.  Only valid for coherent
+	 * packets.
+	 *
+	 * @return false if no ray of the packet can hit the box
+	 */
+	boolean mayHitBox(FlatBvh bvh, int i, double curMaxEnd) {
+		double[] b = bvh.bounds;
+		int o = 6 * i;
+		double near = minStart, far = curMaxEnd;
+
+		// For a positive direction the near plane is the min plane
+		double lo, hi;
+		if (iMinX > 0) { lo = b[o]; hi = b[o + 3]; } else { lo = b[o + 3]; hi = b[o]; }
+		near = Math.max(near, lowerProduct(lo - oMaxX, lo - oMinX, iMinX, iMaxX));
+		far = Math.min(far, upperProduct(hi - oMaxX, hi - oMinX, iMinX, iMaxX));
+		if (near > far) return false;
+
+		if (iMinY > 0) { lo = b[o + 1]; hi = b[o + 4]; } else { lo = b[o + 4]; hi = b[o + 1]; }
+		near = Math.max(near, lowerProduct(lo - oMaxY, lo - oMinY, iMinY, iMaxY));
+		far = Math.min(far, upperProduct(hi - oMaxY, hi - oMinY, iMinY, iMaxY));
+		if (near > far) return false;
+
+		if (iMinZ > 0) { lo = b[o + 2]; hi = b[o + 5]; } else { lo = b[o + 5]; hi = b[o + 2]; }
+		near = Math.max(near, lowerProduct(lo - oMaxZ, lo - oMinZ, iMinZ, iMaxZ));
+		far = Math.min(far, upperProduct(hi - oMaxZ, hi - oMinZ, iMinZ, iMaxZ));
+		return near <= far;
+	}
+
+	/** The least value of x * y for x in [x0, x1] and y in [y0, y1]. */
+	private static double lowerProduct(double x0, double x1, double y0, double y1) {
+		return Math.min(Math.min(x0 * y0, x0 * y1), Math.min(x1 * y0, x1 * y1));
+	}
+
+	/** The greatest value of x * y for x in [x0, x1] and y in [y0, y1]. */
+	private static double upperProduct(double x0, double x1, double y0, double y1) {
+		return Math.max(Math.max(x0 * y0, x0 * y1), Math.max(x1 * y0, x1 * y1));
+	}
+}
@@ -0,0 +1,100 @@
+package ray2.accel;
+
+import java.util.Arrays;
+
+import ray2.Ray;
+
+/**
+ * Reorders rays so that rays that are likely to visit the same parts of an
+ * acceleration structure are next to each other, and can be traced together
+ * in RayPackets.  Secondary rays, like the bounces and shadow rays of many
+ * paths, come in no useful order; sorting them by the octant of their
+ * direction (the signs of its components) and then by the cell of a grid
+ * over their origins makes consecutive rays start near each other and go
+ * the same way.  The cells are ordered along a Morton (Z-order) curve, so
+ * that nearby cells are mostly near each other in the order too.
+ *
+ * A sorter keeps its key array from call to call, so it should be owned by
+ * one thread.
+ */
+public class RaySorter {
+
+	/** The number of bits per axis of the grid over the origins. */
+	private static final int CELL_BITS = 9;
+
+	private long[] keys = new long[0];
+
+	/**
+	 * Sort indices[0 .. count - 1], which are indices into rays, by the
+	 * direction octant and origin cell of their rays.  The sort is stable:
+	 * rays with the same key keep their order.
+	 *
+	 * @param rays the rays
+	 * @param indices the indices of the rays to sort
+	 * @param count the number of indices
+	 */
+	public void sort(Ray[] rays, int[] indices, int count) {
+		if (count < 2)
+			return;
+		if (keys.length < count)
+			keys = new long[Math.max(count, 2 * keys.length)];
+
+		// The grid covers the bounding box of the origins
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < count; k++) {
+			Ray r = rays[indices[k]];
+			minX = Math.min(minX, r.origin.x); maxX = Math.max(maxX, r.origin.x);
+			minY = Math.min(minY, r.origin.y); maxY = Math.max(maxY, r.origin.y);
+			minZ = Math.min(minZ, r.origin.z); maxZ = Math.max(maxZ, r.origin.z);
+		}
+		int cells = 1 << CELL_BITS;
+		double sx = scale(minX, maxX, cells), sy = scale(minY, maxY, cells), sz = scale(minZ, maxZ, cells);
+
+		// The key goes in the high half, and the position in the low half to
+		// make the sort stable
+		for (int k = 0; k < count; k++) {
+			Ray r = rays[indices[k]];
+			int octant = (r.direction.x < 0 ? 4 : 0) | (r.direction.y < 0 ? 2 : 0) | (r.direction.z < 0 ? 1 : 0);
+			int cx = cell((r.origin.x - minX) * sx, cells);
+			int cy = cell((r.origin.y - minY) * sy, cells);
+			int cz = cell((r.origin.z - minZ) * sz, cells);
+			long key = ((long) octant << (3 * CELL_BITS)) | morton(cx, cy, cz);
+			keys[k] = (key << 32) | k;
+		}
+		Arrays.sort(keys, 0, count);
+
+		// Permute the indices, using the low halves of the keys for the old ones
+		for (int k = 0; k < count; k++)
+			keys[k] = (keys[k] & ~0xffffffffL) | indices[(int) keys[k]];
+		for (int k = 0; k < count; k++)
+			indices[k] = (int) keys[k];
+	}
+
+	private static double scale(double min, double max, int cells) {
+		return max > min ? cells / (max - min) : 0;
+	}
+
+	private static int cell(double x, int cells) {
+		return Math.min((int) x, cells - 1);
+	}
+
+	/**
+	 * @return the bits of x, y and z interleaved, x highest
+	 */
+	static int morton(int x, int y, int z) {
+		return (spread(x) << 2) | (spread(y) << 1) | spread(z);
+	}
+
+	/**
+	 * @return the low 10 bits of v, moved to every third bit
+	 */
+	private static int spread(int v) {
+		v &= 0x3ff;
+		v = (v | (v << 16)) & 0x030000ff;
+		v = (v | (v << 8)) & 0x0300f00f;
+		v = (v | (v << 4)) & 0x030c30c3;
+		v = (v | (v << 2)) & 0x09249249;
+		return v;
+	}
+}
@@ -0,0 +1,132 @@
+package ray2.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
+import ray2.Ray;
+import ray2.accel.AccelStruct;
+import ray2.accel.Bvh;
+import ray2.accel.LinearBvh;
+import ray2.accel.NaiveAccelStruct;
+import ray2.surface.Box;
+import ray2.surface.Cylinder;
+import ray2.surface.Sphere;
+import ray2.surface.Surface;
+
+/**
+ * Measures how many bytes the intersection path allocates per ray.
+ *
+ * A scene of randomly placed spheres, cylinders and boxes (which become
+ * triangle meshes) is intersected with random rays through each acceleration
+ * structure, both for first hits and for shadow (any-hit) queries.  The
+ * allocation counter of the current thread is read before and after each run,
+ * so after warm-up the intersection code should report 0 bytes per ray.
+ *
+ * Usage: java ray2.bench.AllocationBenchmark [numRays]
+ */
+public class AllocationBenchmark {
+
+	public static void main(String[] args) {
+		int numRays = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.err.println("This JVM does not report per-thread allocation.");
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long tid = Thread.currentThread().getId();
+
+		Surface[] surfaces = makeScene(new Random(4620));
+		Ray[] rays = makeRays(new Random(1618), 4096);
+
+		AccelStruct[] structs = { new NaiveAccelStruct(), new Bvh(), new LinearBvh() };
+		String[] names = { "NaiveAccelStruct", "Bvh", "LinearBvh" };
+
+		System.out.println();
+		System.out.printf("%d surfaces, %d rays per run%n", surfaces.length, numRays);
+		System.out.printf("%-18s %-10s %12s %12s %10s%n", "structure", "query", "bytes/ray", "Mrays/s", "hits");
+		for (int s = 0; s < structs.length; s++) {
+			structs[s].build(surfaces.clone());
+			// The naive structure tests every surface, so give it fewer rays
+			int n = structs[s] instanceof NaiveAccelStruct ? numRays / 20 : numRays;
+			for (boolean any : new boolean[] { false, true }) {
+				// Warm up so the measurement sees compiled code
+				run(structs[s], rays, n / 4, any);
+
+				long bytes = threads.getThreadAllocatedBytes(tid);
+				long start = System.nanoTime();
+				long hits = run(structs[s], rays, n, any);
+				long time = System.nanoTime() - start;
+				bytes = threads.getThreadAllocatedBytes(tid) - bytes;
+
+				System.out.printf("%-18s %-10s %12.2f %12.2f %10d%n", names[s], any ? "any-hit" : "first-hit",
+						(double) bytes / n, n / (time * 1e-3), hits);
+			}
+		}
+	}
+
+	private static long run(AccelStruct accel, Ray[] rays, int n, boolean any) {
+		IntersectionScratch scratch = IntersectionScratch.get();
+		IntersectionRecord record = new IntersectionRecord();
+		long hits = 0;
+		for (int i = 0; i < n; i++) {
+			if (accel.intersect(any ? null : record, rays[i % rays.length], any, scratch))
+				hits++;
+		}
+		return hits;
+	}
+
+	private static Surface[] makeScene(Random random) {
+		ArrayList<Surface> renderable = new ArrayList<Surface>();
+		for (int i = 0; i < 300; i++) {
+			Vector3d p = new Vector3d(20 * random.nextDouble(), 20 * random.nextDouble(), 20 * random.nextDouble());
+			double r = 0.2 + 0.5 * random.nextDouble();
+
+			// Give each surface its own transformation so every ray really is transformed
+			Matrix4d m = Matrix4d.createTranslation(p);
+			Matrix4d mInv = m.clone().invert();
+			Matrix4d mTInv = mInv.clone().transpose();
+
+			Surface surface;
+			switch (i % 3) {
+			case 0:
+				Sphere sphere = new Sphere();
+				sphere.setRadius(r);
+				surface = sphere;
+				break;
+			case 1:
+				Cylinder cylinder = new Cylinder();
+				cylinder.setRadius(r);
+				cylinder.setHeight(2 * r);
+				surface = cylinder;
+				break;
+			default:
+				Box box = new Box();
+				box.setMinPt(new Vector3d(-r, -r, -r));
+				box.setMaxPt(new Vector3d(r, r, r));
+				surface = box;
+			}
+			surface.setTransformation(m, mInv, mTInv);
+			surface.appendRenderableSurfaces(renderable);
+		}
+		return renderable.toArray(new Surface[renderable.size()]);
+	}
+
+	private static Ray[] makeRays(Random random, int n) {
+		Ray[] rays = new Ray[n];
+		for (int i = 0; i < n; i++) {
+			Vector3d origin = new Vector3d(-10 + 40 * random.nextDouble(), -10 + 40 * random.nextDouble(), -10);
+			Vector3d target = new Vector3d(20 * random.nextDouble(), 20 * random.nextDouble(), 20 * random.nextDouble());
+			rays[i] = new Ray(origin, target.sub(origin));
+			rays[i].makeOffsetRay();
+		}
+		return rays;
+	}
+}
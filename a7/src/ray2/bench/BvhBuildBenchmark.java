@@ -0,0 +1,150 @@
+package ray2.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+import ray2.Scene;
+import ray2.accel.BinnedSahBuilder;
+import ray2.accel.Bvh;
+import ray2.accel.BvhNode;
+import ray2.surface.Sphere;
+import ray2.surface.Surface;
+
+/**
+ * Measures how long Bvh takes to build, in each build mode, on 1, 2, 4, ...
+ * threads up to the number of cores, and the quality of the tree it builds.
+ * For each set of surfaces it prints a row per mode and thread count with the
+ * build time (the best of a few rounds), the speedup and parallel efficiency
+ * over one thread, and the tree: its expected SAH cost (Bvh's default
+ * traversal cost, in primitive tests per ray), nodes, leaves and depth.
+ *
+ * A parallel build splits every node the way a sequential one does, so the
+ * tree of a mode must be the same on any number of threads; the benchmark
+ * checks that its SAH cost is.  The speedup is bounded by the root's split,
+ * which one thread makes over all the surfaces, and by gathering the bounds
+ * of every surface, which is parallel but limited by memory bandwidth.
+ *
+ * The surfaces are those of each scene given, and a cloud of random spheres,
+ * which can be made as large as the heap allows.
+ *
+ * Usage: java ray2.bench.BvhBuildBenchmark [scene.xml,...] [numSpheres]
+ * (run from the a7 directory; scenes are in data/scenes, and the default is
+ * pointLight/bunny-norms.xml and 1000000 spheres)
+ */
+public class BvhBuildBenchmark {
+
+	private static final int ROUNDS = 3;
+	private static final double TRAVERSAL_COST = 0.125;
+
+	public static void main(String[] args) throws IOException {
+		String[] files = (args.length > 0 ? args[0] : "pointLight/bunny-norms.xml").split(",");
+		int numSpheres = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		ArrayList<Integer> threadCounts = new ArrayList<Integer>();
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int t = 1; t < cores; t *= 2)
+			threadCounts.add(t);
+		threadCounts.add(cores);
+
+		for (String file : files) {
+			Scene scene = PacketBenchmark.loadGeometry(file);
+			quietly(() -> scene.init());
+			ArrayList<Surface> surfaces = new ArrayList<Surface>();
+			for (Surface s : scene.getSurfaces())
+				s.appendRenderableSurfaces(surfaces);
+			measure(file, surfaces.toArray(new Surface[surfaces.size()]), threadCounts);
+		}
+		if (numSpheres > 0)
+			measure(numSpheres + " random spheres", randomSpheres(numSpheres), threadCounts);
+	}
+
+	/**
+	 * Build a Bvh over surfaces in each mode on each number of threads, and
+	 * print the table.
+	 */
+	private static void measure(String name, Surface[] surfaces, ArrayList<Integer> threadCounts) {
+		System.out.printf("%s: %d surfaces%n", name, surfaces.length);
+		System.out.printf("  %-7s %7s %10s %8s %10s %10s %9s %9s %6s%n", "mode", "threads", "build ms",
+				"speedup", "efficiency", "SAH cost", "nodes", "leaves", "depth");
+		for (String mode : new String[] { "median", "sah" }) {
+			double oneThread = 0, cost = Double.NaN;
+			for (int threads : threadCounts) {
+				Bvh bvh = new Bvh();
+				bvh.setBuildMode(mode);
+				bvh.setBuildThreads(threads);
+				long best = Long.MAX_VALUE;
+				for (int r = 0; r < ROUNDS; r++) {
+					Surface[] copy = Arrays.copyOf(surfaces, surfaces.length);
+					long start = System.nanoTime();
+					quietly(() -> bvh.build(copy));
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				double ms = best * 1e-6;
+				if (threads == 1)
+					oneThread = ms;
+
+				BvhNode root = bvh.getRoot();
+				double c = BinnedSahBuilder.sahCost(root, TRAVERSAL_COST);
+				if (!Double.isNaN(cost) && c != cost)
+					throw new Error(mode + " tree on " + threads + " threads differs from the one on "
+							+ threadCounts.get(0) + ": SAH cost " + c + " vs. " + cost);
+				cost = c;
+				int[] shape = new int[3];
+				shape(root, 0, shape);
+				System.out.printf("  %-7s %7d %10.1f %7.2fx %9.1f%% %10.3f %9d %9d %6d%n", mode, threads, ms,
+						oneThread / ms, 100 * oneThread / ms / threads, c, shape[0], shape[1], shape[2]);
+			}
+		}
+	}
+
+	/** Count the nodes and leaves under node, and the depth of its deepest leaf. */
+	private static void shape(BvhNode node, int depth, int[] shape) {
+		shape[0]++;
+		if (node.isLeaf()) {
+			shape[1]++;
+			shape[2] = Math.max(shape[2], depth);
+			return;
+		}
+		shape(node.child[0], depth + 1, shape);
+		shape(node.child[1], depth + 1, shape);
+	}
+
+	/**
+	 * @return n spheres of radii from 0.1 to 1 in a cube whose side grows with
+	 *   the cube root of n, so that the density stays the same
+	 */
+	private static Surface[] randomSpheres(int n) {
+		Random random = new Random(4620);
+		double side = 10 * Math.cbrt(n);
+		Matrix4d identity = new Matrix4d();
+		Surface[] spheres = new Surface[n];
+		for (int i = 0; i < n; i++) {
+			Sphere s = new Sphere();
+			s.setCenter(new Vector3d(side * random.nextDouble(), side * random.nextDouble(), side * random.nextDouble()));
+			s.setRadius(0.1 + 0.9 * random.nextDouble());
+			s.setTransformation(identity, identity, identity);
+			spheres[i] = s;
+		}
+		return spheres;
+	}
+
+	/** Run r without the report Bvh prints of every build. */
+	private static void quietly(Runnable r) {
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		}));
+		try {
+			r.run();
+		} finally {
+			System.setOut(out);
+		}
+	}
+}
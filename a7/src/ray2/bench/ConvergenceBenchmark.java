@@ -0,0 +1,132 @@
+package ray2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.stream.IntStream;
+
+import egl.math.Colord;
+import ray2.Image;
+import ray2.Parser;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.integrator.Integrator;
+import ray2.sampler.Sampler;
+import ray2.sampler.StratifiedSampler;
+
+/**
+ * Measures how fast each sampler converges: renders scenes with every sampler
+ * at a range of sample counts, and reports the time and the RMS error against
+ * the scene's reference image (reference/&lt;scene&gt;.xml.exr next to the scene
+ * file).  The last column, RMSE^2 x seconds, is the inverse of the efficiency
+ * of the estimator; the sampler with the smallest value reaches a given
+ * quality in the least time.
+ *
+ * The references are rendered with the sampling integrators, so until those
+ * are implemented, "-reference n" can be used instead to compare against an
+ * image rendered with the stratified sampler at n samples per pixel, for
+ * instance with "-integrator RGBNormals".  (Not the independent sampler: its
+ * pixel positions are on a fixed grid, which would favor it.)
+ *
+ * Usage: java ray2.bench.ConvergenceBenchmark [-samplers Independent,Stratified,Halton,Sobol]
+ *          [-counts 1,4,16,64] [-integrator name] [-reference n] scene.xml ...
+ * (run from the a7 directory; as for RayTracer, scene paths are relative to data/scenes)
+ */
+public class ConvergenceBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		String[] samplers = { "Independent", "Stratified", "Halton", "Sobol" };
+		String[] counts = { "1", "4", "16", "64" };
+		String integrator = null;
+		int referenceSamples = 0;
+		ArrayList<String> scenes = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-samplers": samplers = args[++i].split(","); break;
+			case "-counts": counts = args[++i].split(","); break;
+			case "-integrator": integrator = args[++i]; break;
+			case "-reference": referenceSamples = Integer.parseInt(args[++i]); break;
+			default: scenes.add(args[i]); break;
+			}
+		}
+		if (scenes.isEmpty()) {
+			System.out.println("Usage: java ray2.bench.ConvergenceBenchmark [-samplers Independent,Stratified,Halton,Sobol]");
+			System.out.println("         [-counts 1,4,16,64] [-integrator name] [-reference n] scene.xml ...");
+			return;
+		}
+
+		System.out.printf("%-28s %-12s %6s %10s %12s %14s%n", "scene", "sampler", "spp", "ms", "RMSE", "RMSE^2 x s");
+		for (String file : scenes) {
+			RayTracer.ScenePath p = new RayTracer.ScenePath(RayTracer.directory, file);
+			RayTracer.setSceneWorkspace(p);
+			Scene scene = (Scene) new Parser().parse(p.getFile(), Scene.class);
+			if (integrator != null)
+				scene.setIntegrator(newInstance("ray2.integrator." + integrator, Integrator.class));
+			scene.init();
+
+			Image reference;
+			if (referenceSamples > 0) {
+				reference = render(scene, new StratifiedSampler(), referenceSamples);
+			} else {
+				File f = new File(p.file.getParent().toFile(), "reference/" + p.file.getFileName() + ".exr");
+				reference = Image.readHDR(f.getPath());
+			}
+
+			String name = p.file.getFileName().toString();
+			for (String samplerName : samplers) {
+				for (String count : counts) {
+					Sampler sampler = newInstance("ray2.sampler." + samplerName + "Sampler", Sampler.class);
+					long start = System.nanoTime();
+					Image image = render(scene, sampler, Integer.parseInt(count));
+					double seconds = (System.nanoTime() - start) * 1e-9;
+					double rmse = rmse(image, reference);
+					System.out.printf("%-28s %-12s %6d %10.1f %12.6f %14.4g%n", name, samplerName,
+							scene.getSamples() * scene.getSamples(), seconds * 1e3, rmse, rmse * rmse * seconds);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Render the scene with the given sampler and number of samples per pixel
+	 * (rounded to a square), on all processors, into a new image.
+	 */
+	private static Image render(Scene scene, Sampler sampler, int samples) {
+		scene.setSampler(sampler);
+		scene.setSamples(samples);
+		sampler.init(scene);
+		Image image = new Image(scene.getImage().getWidth(), scene.getImage().getHeight());
+		IntStream.range(0, image.getHeight()).parallel()
+				.forEach(y -> RayTracer.renderBlock(scene, image, 0, y, image.getWidth(), 1));
+		return image;
+	}
+
+	/**
+	 * @return the root mean square difference of the images, over all pixels and channels
+	 */
+	static double rmse(Image a, Image b) {
+		if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+			throw new Error("Image is " + a.getWidth() + "x" + a.getHeight() + " but reference is "
+					+ b.getWidth() + "x" + b.getHeight());
+		Colord ca = new Colord(), cb = new Colord();
+		double sum = 0;
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				a.getPixelColor(ca, x, y);
+				b.getPixelColor(cb, x, y);
+				ca.sub(cb);
+				sum += ca.x * ca.x + ca.y * ca.y + ca.z * ca.z;
+			}
+		}
+		return Math.sqrt(sum / (3.0 * a.getWidth() * a.getHeight()));
+	}
+
+	/** @return a new instance, made with its no-argument constructor, of a class named on the command line */
+	static <T> T newInstance(String className, Class<T> type) {
+		try {
+			return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+		} catch (ReflectiveOperationException e) {
+			throw new Error("Unknown class " + className, e);
+		}
+	}
+}
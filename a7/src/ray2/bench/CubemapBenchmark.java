@@ -0,0 +1,114 @@
+package ray2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+import ray2.light.Cubemap;
+
+/**
+ * Measures Cubemap environment sampling: the time to load a map (including
+ * building its sampling table), then sample(), eval() and pdf() calls per
+ * second, on one thread.  The map is a generated sky (a gradient, a sun and
+ * some noise) of the given face size, written to a temporary PFM file.
+ *
+ * An 8K face map is a 9.7 GB file; its pixels are mapped, not loaded, but
+ * the sampling table takes 3.2 GB of heap (and 1.6 GB more while it is
+ * built).
+ *
+ * Usage: java -Xmx8g ray2.bench.CubemapBenchmark [faceSize ...]   (default 2048 8192)
+ */
+public class CubemapBenchmark {
+
+	private static final int SAMPLES = 10000000;
+
+	public static void main(String[] args) throws IOException {
+		String[] sizes = args.length > 0 ? args : new String[] { "2048", "8192" };
+		System.out.printf("%6s %9s %14s %14s %14s%n", "face", "load s", "samples/s", "evals/s", "pdfs/s");
+		for (String size : sizes) {
+			int blockSz = Integer.parseInt(size);
+			File file = File.createTempFile("cubemap", ".pfm");
+			try {
+				writeSky(file, blockSz);
+
+				long start = System.nanoTime();
+				Cubemap cm = new Cubemap();
+				cm.setFilename(file.getPath());
+				double load = (System.nanoTime() - start) * 1e-9;
+
+				// Sampling, with seeds from a simple LCG so the generator costs little
+				Vector2d seed = new Vector2d();
+				Vector3d dir = new Vector3d();
+				Colord radiance = new Colord();
+				double sum = 0;
+				long state = 1;
+				start = System.nanoTime();
+				for (int i = 0; i < SAMPLES; i++) {
+					state = state * 6364136223846793005L + 1442695040888963407L;
+					seed.set((state >>> 11) * 0x1.0p-53, ((state << 21) >>> 11) * 0x1.0p-53);
+					sum += cm.sample(seed, dir, radiance);
+				}
+				double sampleTime = (System.nanoTime() - start) * 1e-9;
+
+				// eval and pdf in random directions
+				start = System.nanoTime();
+				for (int i = 0; i < SAMPLES; i++) {
+					state = state * 6364136223846793005L + 1442695040888963407L;
+					dir.set((int) (state >> 43), (int) (state << 21 >> 43), (int) (state << 42 >> 43));
+					cm.eval(dir, radiance);
+					sum += radiance.x;
+				}
+				double evalTime = (System.nanoTime() - start) * 1e-9;
+				start = System.nanoTime();
+				for (int i = 0; i < SAMPLES; i++) {
+					state = state * 6364136223846793005L + 1442695040888963407L;
+					dir.set((int) (state >> 43), (int) (state << 21 >> 43), (int) (state << 42 >> 43));
+					sum += cm.pdf(dir);
+				}
+				double pdfTime = (System.nanoTime() - start) * 1e-9;
+
+				System.out.printf("%6d %9.2f %14.0f %14.0f %14.0f   (%g)%n", blockSz, load,
+						SAMPLES / sampleTime, SAMPLES / evalTime, SAMPLES / pdfTime, sum);
+			} finally {
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Write a 3x4 cross of faces of size blockSz, little-endian, one row at a
+	 * time.  The radiance depends only on the pixel position, which is enough
+	 * for a sampling table with a realistic spread of values.
+	 */
+	static void writeSky(File file, int blockSz) throws IOException {
+		int width = 3 * blockSz, height = 4 * blockSz;
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ch.write(ByteBuffer.wrap(("PF\n" + width + " " + height + "\n-1.0\n").getBytes("US-ASCII")));
+			ByteBuffer row = ByteBuffer.allocateDirect(12 * width).order(ByteOrder.LITTLE_ENDIAN);
+			for (int iy = 0; iy < height; iy++) {
+				row.clear();
+				double y = (double) iy / height;
+				for (int ix = 0; ix < width; ix++) {
+					double x = (double) ix / width;
+					double d2 = (x - 0.5) * (x - 0.5) + (y - 0.3) * (y - 0.3);
+					double sun = d2 < 1e-4 ? 5000 : 0;
+					int h = (ix * 73856093) ^ (iy * 19349663);
+					double noise = ((h >>> 8) & 0xFFFF) / 65536.0;
+					float r = (float) (0.2 + y + sun + 0.3 * noise);
+					row.putFloat(r).putFloat(0.8f * r).putFloat((float) (0.5 + 0.5 * y));
+				}
+				row.flip();
+				while (row.hasRemaining())
+					ch.write(row);
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package ray2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.stream.IntStream;
+
+import ray2.Denoiser;
+import ray2.FeatureBuffers;
+import ray2.Image;
+import ray2.Parser;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.integrator.Integrator;
+import ray2.sampler.StratifiedSampler;
+
+/**
+ * Measures what the Denoiser gains: renders scenes at a range of sample
+ * counts, denoises them with the scene's denoiser (or a default one), and
+ * reports the PSNR of the image before and after against the scene's
+ * reference image (reference/&lt;scene&gt;.xml.exr next to the scene file),
+ * and the time each step took.  The cheapest setting that looks final is the
+ * smallest count whose denoised PSNR is as good as the PSNR of a count that
+ * looks final without denoising.
+ *
+ * As for ConvergenceBenchmark, until the sampling integrators are
+ * implemented "-reference n" compares against an image rendered with n
+ * samples per pixel instead, for instance with "-integrator
+ * AmbientOcclusionIntegrator", which is noisy in the way a path tracer is.
+ *
+ * Usage: java ray2.bench.DenoiseBenchmark [-counts 1,4,16] [-integrator name] [-reference n] scene.xml ...
+ * (run from the a7 directory; as for RayTracer, scene paths are relative to data/scenes)
+ */
+public class DenoiseBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		String[] counts = { "1", "4", "16" };
+		String integrator = null;
+		int referenceSamples = 0;
+		ArrayList<String> scenes = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-counts": counts = args[++i].split(","); break;
+			case "-integrator": integrator = args[++i]; break;
+			case "-reference": referenceSamples = Integer.parseInt(args[++i]); break;
+			default: scenes.add(args[i]); break;
+			}
+		}
+		if (scenes.isEmpty()) {
+			System.out.println("Usage: java ray2.bench.DenoiseBenchmark [-counts 1,4,16] [-integrator name] [-reference n] scene.xml ...");
+			return;
+		}
+
+		System.out.printf("%-28s %6s %10s %10s %10s %10s %10s %8s%n", "scene", "spp", "render ms", "AOV ms",
+				"denoise ms", "PSNR", "denoised", "gain");
+		for (String file : scenes) {
+			RayTracer.ScenePath p = new RayTracer.ScenePath(RayTracer.directory, file);
+			RayTracer.setSceneWorkspace(p);
+			Scene scene = (Scene) new Parser().parse(p.getFile(), Scene.class);
+			if (integrator != null)
+				scene.setIntegrator(ConvergenceBenchmark.newInstance("ray2.integrator." + integrator, Integrator.class));
+			scene.setSampler(new StratifiedSampler());
+			scene.init();
+			Denoiser denoiser = scene.getDenoiser() != null ? scene.getDenoiser() : new Denoiser();
+
+			Image reference;
+			if (referenceSamples > 0) {
+				reference = render(scene, referenceSamples);
+			} else {
+				File f = new File(p.file.getParent().toFile(), "reference/" + p.file.getFileName() + ".exr");
+				reference = Image.readHDR(f.getPath());
+			}
+
+			String name = p.file.getFileName().toString();
+			for (String count : counts) {
+				long start = System.nanoTime();
+				Image image = render(scene, Integer.parseInt(count));
+				long rendered = System.nanoTime();
+				scene.setImage(image);
+				FeatureBuffers features = FeatureBuffers.render(scene);
+				long found = System.nanoTime();
+				int spp = scene.getSamples() * scene.getSamples();
+				Image denoised = denoiser.denoise(image, features, spp);
+				long end = System.nanoTime();
+				double before = Denoiser.psnr(image, reference), after = Denoiser.psnr(denoised, reference);
+				System.out.printf("%-28s %6d %10.1f %10.1f %10.1f %10.2f %10.2f %+8.2f%n", name, spp,
+						(rendered - start) * 1e-6, (found - rendered) * 1e-6, (end - found) * 1e-6, before, after,
+						after - before);
+			}
+		}
+	}
+
+	/**
+	 * Render the scene with the given number of samples per pixel (rounded to
+	 * a square), on all processors, into a new image.
+	 */
+	private static Image render(Scene scene, int samples) {
+		scene.setSamples(samples);
+		scene.getSampler().init(scene);
+		Image image = new Image(scene.getImage().getWidth(), scene.getImage().getHeight());
+		IntStream.range(0, image.getHeight()).parallel()
+				.forEach(y -> RayTracer.renderBlock(scene, image, 0, y, image.getWidth(), 1));
+		return image;
+	}
+}
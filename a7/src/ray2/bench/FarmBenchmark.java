@@ -0,0 +1,84 @@
+package ray2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import ray2.Image;
+import ray2.Parser;
+import ray2.RayTracer;
+import ray2.RenderFarm;
+import ray2.Scene;
+
+/**
+ * Measures the speedup of rendering a scene on a RenderFarm of 1, 2, 4, ...
+ * worker processes on this machine, over rendering it on one thread in this
+ * JVM.  The farm's time is the wall-clock time of the whole render, including
+ * starting the workers' JVMs and their parsing the scene, since that is what
+ * a farm render costs; each row also says whether the image is the same as
+ * the one rendered here, which it should be.
+ *
+ * The scene is rendered with the given number of samples (per side), from a
+ * copy of its file written next to it, since the workers read the file.
+ * Expect no speedup from more workers than there are cores.
+ *
+ * Usage: java ray2.bench.FarmBenchmark [scene.xml] [samples] [maxWorkers]
+ * (run from the a7 directory; scenes are in data/scenes, and the default is
+ * pointLight/bunny-norms.xml with 4 samples and up to 4 workers)
+ */
+public class FarmBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		String file = args.length > 0 ? args[0] : "pointLight/bunny-norms.xml";
+		int samples = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int maxWorkers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		File original = new RayTracer.ScenePath(RayTracer.directory, file).file.toFile();
+		File copy = File.createTempFile("farm-", ".xml", original.getParentFile());
+		copy.deleteOnExit();
+		String xml = new String(Files.readAllBytes(original.toPath()), StandardCharsets.UTF_8);
+		String setting = "<samples>" + samples + "</samples>";
+		xml = xml.contains("<samples>") ? xml.replaceFirst("<samples>[^<]*</samples>", setting)
+				: xml.replaceFirst("<scene>", "<scene>" + setting);
+		Files.write(copy.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+		try {
+			RayTracer.ScenePath p = new RayTracer.ScenePath(RayTracer.directory, copy.getAbsolutePath());
+			Scene scene = load(p);
+			Image image = scene.getImage();
+			long start = System.nanoTime();
+			RayTracer.renderBlock(scene, image, 0, 0, image.getWidth(), image.getHeight());
+			double local = (System.nanoTime() - start) / 1e9;
+			float[] expected = image.getData().clone();
+
+			System.out.printf("%n%s, %d x %d, %d samples per pixel, %d cores%n", file, image.getWidth(),
+					image.getHeight(), samples * samples, Runtime.getRuntime().availableProcessors());
+			System.out.printf("%8s %10s %9s %11s %6s%n", "workers", "time (s)", "speedup", "efficiency", "same");
+			System.out.printf("%8s %10.3f %9s %11s %6s%n", "local", local, "1.00x", "", "");
+			for (int workers = 1; workers <= maxWorkers; workers *= 2) {
+				scene = load(p);
+				double time;
+				try (RenderFarm.Coordinator coordinator = new RenderFarm.Coordinator(0)) {
+					start = System.nanoTime();
+					coordinator.spawnWorkers(workers, 1);
+					coordinator.render(p, scene);
+					time = (System.nanoTime() - start) / 1e9;
+				}
+				boolean same = Arrays.equals(expected, scene.getImage().getData());
+				System.out.printf("%8d %10.3f %8.2fx %10.1f%% %6s%n", workers, time, local / time,
+						100 * local / time / workers, same ? "yes" : "NO");
+			}
+		} finally {
+			copy.delete();
+		}
+	}
+
+	private static Scene load(RayTracer.ScenePath p) {
+		RayTracer.setSceneWorkspace(p);
+		Scene scene = (Scene) new Parser().parse(p.getFile(), Scene.class);
+		scene.init();
+		return scene;
+	}
+}
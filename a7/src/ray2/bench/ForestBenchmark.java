@@ -0,0 +1,132 @@
+package ray2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import ray2.IntersectionRecord;
+import ray2.Parser;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.Scene;
+
+/**
+ * Generates a "forest of teapots" scene -- one teapot mesh placed many times
+ * under different Group transformations -- and compares building it with and
+ * without instancing.  For each mode it reports the time to load and build the
+ * scene, the heap it retains, and how fast primary rays can be traced through
+ * it.  Both modes must see exactly the same hits.
+ *
+ * The generated scenes are left in the output directory (the system temporary
+ * directory by default) and can be rendered with RayTracer.
+ *
+ * Usage: java ray2.bench.ForestBenchmark [numTeapots] [outputDirectory]
+ * (run from the a7 directory so data/meshes/teapot.obj can be found)
+ */
+public class ForestBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int numTeapots = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+		String mesh = new File("data/meshes/teapot.obj").getAbsolutePath();
+
+		System.out.printf("%d teapots%n", numTeapots);
+		System.out.printf("%-12s %10s %10s %10s %12s%n", "instancing", "build ms", "heap MB", "Mrays/s", "checksum");
+		for (boolean instancing : new boolean[] { true, false }) {
+			File file = new File(dir, "forest-" + numTeapots + (instancing ? "-instanced" : "") + ".xml");
+			writeScene(file, numTeapots, mesh, instancing);
+			measure(file, instancing);
+		}
+	}
+
+	/**
+	 * Load and build one scene, and print its row of the table.
+	 */
+	private static void measure(File file, boolean instancing) {
+		long before = MeshMemoryBenchmark.usedHeap();
+		long start = System.currentTimeMillis();
+		RayTracer.ScenePath p = new RayTracer.ScenePath(null, file.getPath());
+		RayTracer.setSceneWorkspace(p);
+		Scene scene = (Scene) new Parser().parse(p.getFile(), Scene.class);
+		scene.init();
+		long buildTime = System.currentTimeMillis() - start;
+		long heap = MeshMemoryBenchmark.usedHeap() - before;
+
+		start = System.nanoTime();
+		double checksum = tracePrimaryRays(scene, 512);
+		long traceTime = System.nanoTime() - start;
+
+		System.out.printf("%-12s %10d %10.1f %10.2f %12.4f%n", instancing, buildTime, heap * 1e-6,
+				512 * 512 / (traceTime * 1e-3), checksum);
+	}
+
+	/**
+	 * Trace size x size camera rays and return their average hit distance
+	 * (counting misses as 0), as a check that both modes see the same hits.
+	 */
+	private static double tracePrimaryRays(Scene scene, int size) {
+		Ray ray = new Ray();
+		IntersectionRecord record = new IntersectionRecord();
+		double sum = 0;
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				scene.getCamera().getRay(ray, (x + 0.5) / size, (y + 0.5) / size);
+				if (scene.getFirstIntersection(record, ray))
+					sum += record.t;
+			}
+		}
+		return sum / (size * size);
+	}
+
+	/**
+	 * Write a scene with numTeapots randomly placed, turned and scaled teapots
+	 * on a square of ground.
+	 */
+	private static void writeScene(File file, int numTeapots, String mesh, boolean instancing) throws IOException {
+		Random random = new Random(4620);
+		int side = (int) Math.ceil(Math.sqrt(numTeapots));
+		double spacing = 6, extent = side * spacing;
+
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>");
+		out.println("<!-- A forest of " + numTeapots + " teapots, generated by ray2.bench.ForestBenchmark -->");
+		out.println("<scene>");
+		out.println("  <camera type=\"PerspectiveCamera\">");
+		out.printf("    <viewPoint>%g %g %g</viewPoint>%n", -0.2 * extent, 0.4 * extent, -0.2 * extent);
+		out.println("    <viewDir>1 -0.6 1</viewDir>");
+		out.println("    <viewUp>0 1 0</viewUp>");
+		out.println("    <projDistance>1</projDistance>");
+		out.println("    <viewWidth>1</viewWidth>");
+		out.println("    <viewHeight>1</viewHeight>");
+		out.println("  </camera>");
+		out.println("  <image>512 512</image>");
+		out.println("  <integrator type=\"RGBNormals\" />");
+		out.println("  <accelStruct type=\"LinearBvh\">");
+		out.println("    <buildMode>sah</buildMode>");
+		out.println("  </accelStruct>");
+		out.println("  <bsdf name=\"pot\" type=\"LambertianBSDF\"><diffuseColor>0.8 0.4 0.1</diffuseColor></bsdf>");
+		out.println("  <surface type=\"Box\">");
+		out.printf("    <minPt>-3 -1 -3</minPt><maxPt>%g 0 %g</maxPt>%n", extent, extent);
+		out.println("  </surface>");
+		out.println("  <surface type=\"Group\">");
+		out.println("    <instancing>" + instancing + "</instancing>");
+		for (int i = 0; i < numTeapots; i++) {
+			out.println("    <surface type=\"Group\">");
+			out.printf("      <translate>%g 0 %g</translate>%n", (i % side) * spacing + random.nextDouble(),
+					(i / side) * spacing + random.nextDouble());
+			out.printf("      <rotate>0 %g 0</rotate>%n", 360 * random.nextDouble());
+			double s = 0.7 + 0.6 * random.nextDouble();
+			out.printf("      <scale>%g %g %g</scale>%n", s, s, s);
+			out.println("      <surface type=\"Mesh\"><bsdf ref=\"pot\" /><data>" + mesh + "</data></surface>");
+			out.println("    </surface>");
+		}
+		out.println("  </surface>");
+		out.println("  <light type=\"PointLight\">");
+		out.printf("    <position>%g %g %g</position>%n", extent / 2, extent, extent / 2);
+		out.println("    <intensity>100 100 100</intensity>");
+		out.println("  </light>");
+		out.println("</scene>");
+		out.close();
+	}
+}
@@ -0,0 +1,524 @@
+package ray2.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.apache.commons.math3.distribution.TDistribution;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+import ray2.Image;
+import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.accel.Bvh;
+import ray2.accel.BvhNode;
+import ray2.camera.PerspectiveCamera;
+import ray2.integrator.AmbientOcclusionIntegrator;
+import ray2.light.Cubemap;
+import ray2.material.BSDF;
+import ray2.material.BSDFSamplingRecord;
+import ray2.material.GlassBSDF;
+import ray2.material.GlazedBSDF;
+import ray2.material.LambertianBSDF;
+import ray2.material.MicrofacetBSDF;
+import ray2.surface.Sphere;
+import ray2.surface.Surface;
+import ray2.surface.Triangle;
+
+/**
+ * A suite of micro-benchmarks of the renderer's hot paths, measured the way
+ * JMH measures them (JMH itself is not among the project's libraries): each
+ * benchmark runs warmup iterations and then measured ones of a fixed time on
+ * one thread, and the score is the mean time per operation, with the 99.9%
+ * confidence half-width of the mean as its error.
+ *
+ * As in JMH, each benchmark is measured in a JVM of its own (a fork), which
+ * builds the corpus and runs only that benchmark, so the loop that times it
+ * only ever calls one Op, and the JIT's code and profile from one benchmark
+ * do not carry over into the next.  -forks n measures each in n JVMs one
+ * after the other (default 1); -forks 0 measures them all in this JVM, in
+ * which case the later ones are not to be trusted.
+ *
+ * Every benchmark goes through a fixed corpus of inputs, made from fixed
+ * seeds and the bundled scenes, so runs on different versions see the same
+ * work.  Each also reports a checksum of its results over one pass of the
+ * corpus: if a change to the code changes a checksum, the benchmark is no
+ * longer measuring the same thing (or the change is not a pure speedup).
+ *
+ *   triangleIntersect   Triangle.intersect, bunny triangles, rays aimed near them (some miss)
+ *   sphereIntersect     Sphere.intersect, rays aimed near a unit sphere (some miss)
+ *   bvhNodeIntersects   BvhNode.intersects, the (ray, node) tests of traversing
+ *                       the bunny's Bvh with its camera rays
+ *   bvhIntersect        Bvh.intersect, first hit and any hit, camera rays of bunny and teapot
+ *   cubemapSample/Eval  Cubemap.sample and eval, a generated 256 x 256 face sky
+ *   bsdfSample/Eval     BSDF.sample and eval: Beckmann and GGX MicrofacetBSDF,
+ *                       GlassBSDF, GlazedBSDF (on Lambertian) and LambertianBSDF
+ *   renderBlock         RayTracer.renderBlock of 16 x 16 tiles of bunny-norms, with
+ *                       AmbientOcclusionIntegrator (the scene's own is left for students)
+ *
+ * The results are printed as a table and, with -json, written in the layout
+ * of JMH's JSON output (plus each benchmark's checksum), so that the files
+ * of two versions can be diffed, or read by tools made for JMH.
+ *
+ * Usage: java ray2.bench.HotPathBenchmark [-json file] [-filter regex] [-forks n]
+ *          [-warmup n] [-iterations n] [-time ms]   (defaults 1, 5, 10, 200)
+ * (run from the a7 directory)
+ */
+public class HotPathBenchmark {
+
+	/** The seed of every random choice in the corpus. */
+	private static final long SEED = 4620;
+
+	/** The number of inputs of each benchmark's corpus. */
+	private static final int CORPUS = 4096;
+
+	/** What one benchmark does with input i of its corpus; the result goes into the checksum. */
+	private interface Op {
+		double run(int i);
+	}
+
+	private static class Benchmark {
+		final String name;
+		final Map<String, String> params = new LinkedHashMap<>();
+		final int corpus;
+		final Op op;
+		double checksum;
+		/** The measured iterations, fork after fork. */
+		double[] nanosPerOp;
+
+		Benchmark(String name, int corpus, Op op, String... params) {
+			this.name = name;
+			this.corpus = corpus;
+			this.op = op;
+			for (int i = 0; i < params.length; i += 2)
+				this.params.put(params[i], params[i + 1]);
+		}
+
+		String label() {
+			return params.isEmpty() ? name : name + params.values();
+		}
+	}
+
+	/** Results of timed operations go here, so that the JIT cannot drop them. */
+	static volatile double sink;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String json = null;
+		Pattern filter = null;
+		int forks = 1, warmup = 5, iterations = 10;
+		long time = 200;
+		String fork = null, result = null;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-json": json = args[++i]; break;
+			case "-filter": filter = Pattern.compile(args[++i]); break;
+			case "-forks": forks = Integer.parseInt(args[++i]); break;
+			case "-warmup": warmup = Integer.parseInt(args[++i]); break;
+			case "-iterations": iterations = Integer.parseInt(args[++i]); break;
+			case "-time": time = Long.parseLong(args[++i]); break;
+			case "-fork": fork = args[++i]; result = args[++i]; break;
+			default:
+				System.out.println("Usage: java ray2.bench.HotPathBenchmark [-json file] [-filter regex] [-forks n]");
+				System.out.println("         [-warmup n] [-iterations n] [-time ms]");
+				return;
+			}
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<>();
+		for (Benchmark b : corpus())
+			if (filter == null || filter.matcher(b.label()).find())
+				benchmarks.add(b);
+
+		// In a fork, measure the one benchmark and hand the results back
+		if (fork != null) {
+			for (Benchmark b : benchmarks) {
+				if (b.label().equals(fork)) {
+					measure(b, warmup, iterations, time * 1000000);
+					writeResult(new File(result), b);
+					return;
+				}
+			}
+			throw new Error("HotPathBenchmark: no benchmark " + fork);
+		}
+
+		if (forks == 0)
+			System.out.println("Warning: not forking, so each benchmark runs with the JIT state the ones before it left");
+		System.out.printf("%-36s %14s %12s %22s%n", "benchmark", "ns/op", "error", "checksum");
+		for (Benchmark b : benchmarks) {
+			if (forks == 0)
+				measure(b, warmup, iterations, time * 1000000);
+			else
+				fork(b, forks, warmup, iterations, time);
+			double mean = mean(b.nanosPerOp);
+			System.out.printf("%-36s %14.3f %12.3f %22s%n", b.label(), mean, error(b.nanosPerOp), b.checksum);
+		}
+
+		if (json != null) {
+			writeJson(new File(json), benchmarks, forks, warmup, iterations, time);
+			System.out.println("Wrote " + json);
+		}
+	}
+
+	/**
+	 * Run the checksum pass, then the warmup and measured iterations.  Each
+	 * iteration runs the corpus round and round, in batches sized to take
+	 * about 1 ms, until the iteration time has passed.
+	 */
+	private static void measure(Benchmark b, int warmup, int iterations, long iterationNanos) {
+		double checksum = 0;
+		for (int i = 0; i < b.corpus; i++)
+			checksum += b.op.run(i);
+		b.checksum = checksum;
+
+		int batch = 1;
+		int next = 0;
+		b.nanosPerOp = new double[iterations];
+		for (int iteration = -warmup; iteration < iterations; iteration++) {
+			long ops = 0, start = System.nanoTime(), elapsed = 0;
+			double sum = 0;
+			do {
+				for (int k = 0; k < batch; k++) {
+					sum += b.op.run(next);
+					if (++next == b.corpus)
+						next = 0;
+				}
+				ops += batch;
+				long before = elapsed;
+				elapsed = System.nanoTime() - start;
+				if (iteration < 0 && elapsed - before < 1000000)
+					batch = Math.min(1 << 20, 2 * batch);
+			} while (elapsed < iterationNanos);
+			sink += sum;
+			if (iteration >= 0)
+				b.nanosPerOp[iteration] = elapsed / (double) ops;
+		}
+	}
+
+	/**
+	 * Measure a benchmark in forks new JVMs, one at a time, each run with this
+	 * JVM's java, class path and options.  Their output other than errors is
+	 * discarded.
+	 */
+	private static void fork(Benchmark b, int forks, int warmup, int iterations, long time)
+			throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		b.nanosPerOp = new double[forks * iterations];
+		File result = File.createTempFile("hotpaths", ".result");
+		try {
+			for (int f = 0; f < forks; f++) {
+				List<String> command = new ArrayList<>();
+				command.add(java);
+				command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(HotPathBenchmark.class.getName());
+				command.add("-warmup");
+				command.add(Integer.toString(warmup));
+				command.add("-iterations");
+				command.add(Integer.toString(iterations));
+				command.add("-time");
+				command.add(Long.toString(time));
+				command.add("-fork");
+				command.add(b.label());
+				command.add(result.getPath());
+				ProcessBuilder builder = new ProcessBuilder(command);
+				builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+				builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+				int exit = builder.start().waitFor();
+				if (exit != 0)
+					throw new Error("HotPathBenchmark: the fork measuring " + b.label() + " exited with " + exit);
+				try (DataInputStream in = new DataInputStream(new FileInputStream(result))) {
+					b.checksum = in.readDouble();
+					for (int i = 0; i < iterations; i++)
+						b.nanosPerOp[f * iterations + i] = in.readDouble();
+				}
+			}
+		} finally {
+			result.delete();
+		}
+	}
+
+	/** Write what a fork measured, for fork() to read. */
+	private static void writeResult(File file, Benchmark b) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+			out.writeDouble(b.checksum);
+			for (double v : b.nanosPerOp)
+				out.writeDouble(v);
+		}
+	}
+
+	private static double mean(double[] x) {
+		double sum = 0;
+		for (double v : x)
+			sum += v;
+		return sum / x.length;
+	}
+
+	/** @return the half-width of the 99.9% confidence interval of the mean, as JMH reports it */
+	private static double error(double[] x) {
+		if (x.length < 2)
+			return Double.NaN;
+		double m = mean(x), ss = 0;
+		for (double v : x)
+			ss += (v - m) * (v - m);
+		double sd = Math.sqrt(ss / (x.length - 1));
+		return new TDistribution(x.length - 1).inverseCumulativeProbability(0.9995) * sd / Math.sqrt(x.length);
+	}
+
+	/**
+	 * @return the benchmarks, with their corpora
+	 */
+	private static List<Benchmark> corpus() throws IOException {
+		List<Benchmark> list = new ArrayList<>();
+		IntersectionScratch scratch = IntersectionScratch.get();
+		IntersectionRecord record = new IntersectionRecord();
+
+		// Triangles of the bunny, and rays from around it to points on and near them
+		Scene bunny = PacketBenchmark.loadGeometry("pointLight/bunny-norms.xml");
+		bunny.init();
+		ArrayList<Surface> surfaces = new ArrayList<>();
+		for (Surface s : bunny.getSurfaces())
+			s.appendRenderableSurfaces(surfaces);
+		ArrayList<Triangle> triangles = new ArrayList<>();
+		for (Surface s : surfaces)
+			if (s instanceof Triangle)
+				triangles.add((Triangle) s);
+		Random random = new Random(SEED);
+		Triangle[] triangleOf = new Triangle[CORPUS];
+		Ray[] triangleRays = new Ray[CORPUS];
+		for (int i = 0; i < CORPUS; i++) {
+			Triangle t = triangles.get(random.nextInt(triangles.size()));
+			double u = 1.5 * random.nextDouble() - 0.25, v = (1 - u) * (1.5 * random.nextDouble() - 0.25);
+			Vector3d target = new Vector3d(t.owner.getMesh().getPosition(t.face, 0)).mul(1 - u - v)
+					.addMultiple(u, t.owner.getMesh().getPosition(t.face, 1))
+					.addMultiple(v, t.owner.getMesh().getPosition(t.face, 2));
+			triangleOf[i] = t;
+			triangleRays[i] = rayTo(target, random, 3);
+		}
+		list.add(new Benchmark("triangleIntersect", CORPUS,
+				i -> triangleOf[i].intersect(record, triangleRays[i], scratch) ? record.t : 0));
+
+		// A unit sphere, and rays to points within 1.5 of its center
+		Scene one = new Scene();
+		one.setCamera(new PerspectiveCamera());
+		Sphere sphere = new Sphere();
+		one.addSurface(sphere);
+		one.setImage(new Image(1, 1));
+		one.init();
+		Ray[] sphereRays = new Ray[CORPUS];
+		for (int i = 0; i < CORPUS; i++) {
+			Vector3d target = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+			target.normalize().mul(1.5 * random.nextDouble());
+			sphereRays[i] = rayTo(target, random, 4);
+		}
+		list.add(new Benchmark("sphereIntersect", CORPUS,
+				i -> sphere.intersect(record, sphereRays[i], scratch) ? record.t : 0));
+
+		// Camera rays of the two scenes, through random points of the image
+		String[][] scenes = { { "bunny", "pointLight/bunny-norms.xml" }, { "teapot", "MISampling/teapot-envlight.xml" } };
+		for (String[] s : scenes) {
+			Scene scene = s[0].equals("bunny") ? bunny : PacketBenchmark.loadGeometry(s[1]);
+			if (scene != bunny)
+				scene.init();
+			Ray[] rays = cameraRays(scene, random);
+			list.add(new Benchmark("bvhIntersect", CORPUS,
+					i -> scene.getFirstIntersection(record, rays[i]) ? record.t : 0, "scene", s[0], "hit", "first"));
+			list.add(new Benchmark("bvhIntersect", CORPUS,
+					i -> scene.getAnyIntersection(rays[i]) ? 1 : 0, "scene", s[0], "hit", "any"));
+
+			// The box tests a traversal of the bunny's tree does
+			if (scene == bunny && scene.getAccelStruct() instanceof Bvh) {
+				ArrayList<Ray> rayList = new ArrayList<>();
+				ArrayList<BvhNode> nodeList = new ArrayList<>();
+				for (int i = 0; nodeList.size() < CORPUS; i = (i + 1) % CORPUS)
+					traverse(((Bvh) scene.getAccelStruct()).getRoot(), rays[i], rayList, nodeList);
+				Ray[] nodeRays = rayList.toArray(new Ray[CORPUS]);
+				BvhNode[] nodes = nodeList.toArray(new BvhNode[CORPUS]);
+				list.add(new Benchmark("bvhNodeIntersects", CORPUS, i -> nodes[i].intersects(nodeRays[i]) ? 1 : 0));
+			}
+		}
+
+		// A generated sky
+		File sky = File.createTempFile("hotpaths", ".pfm");
+		try {
+			CubemapBenchmark.writeSky(sky, 256);
+			Cubemap cubemap = new Cubemap();
+			cubemap.setFilename(sky.getPath());
+			Vector2d[] seeds = seeds(random);
+			Vector3d[] dirs = new Vector3d[CORPUS];
+			for (int i = 0; i < CORPUS; i++)
+				dirs[i] = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize();
+			Vector3d dir = new Vector3d();
+			Colord radiance = new Colord();
+			list.add(new Benchmark("cubemapSample", CORPUS, i -> cubemap.sample(seeds[i], dir, radiance) + radiance.x));
+			list.add(new Benchmark("cubemapEval", CORPUS, i -> {
+				cubemap.eval(dirs[i], radiance);
+				return radiance.x;
+			}));
+		} finally {
+			sky.delete();
+		}
+
+		// BSDFs, at a normal of +z, with incoming directions from the upper hemisphere
+		Map<String, BSDF> bsdfs = new LinkedHashMap<>();
+		bsdfs.put("Beckmann", new MicrofacetBSDF(new Colord(0.5, 0.4, 0.3), new Colord(0.9, 0.9, 0.9), 0.3, 1.5, 0));
+		bsdfs.put("GGX", new MicrofacetBSDF(new Colord(0.5, 0.4, 0.3), new Colord(0.9, 0.9, 0.9), 0.3, 1.5, 1));
+		bsdfs.put("Glass", new GlassBSDF(1.5));
+		GlazedBSDF glazed = new GlazedBSDF(1.5);
+		glazed.setSubstrate(new LambertianBSDF(new Colord(0.5, 0.4, 0.3)));
+		bsdfs.put("Glazed", glazed);
+		bsdfs.put("Lambertian", new LambertianBSDF(new Colord(0.5, 0.4, 0.3)));
+		Vector3d normal = new Vector3d(0, 0, 1);
+		Vector3d[] dir1 = new Vector3d[CORPUS], dir2 = new Vector3d[CORPUS];
+		for (int i = 0; i < CORPUS; i++) {
+			dir1[i] = hemisphere(random);
+			dir2[i] = hemisphere(random);
+		}
+		Vector2d[] seeds = seeds(random);
+		for (Map.Entry<String, BSDF> e : bsdfs.entrySet()) {
+			BSDF bsdf = e.getValue();
+			BSDFSamplingRecord sampleRecord = new BSDFSamplingRecord();
+			Colord value = new Colord();
+			list.add(new Benchmark("bsdfSample", CORPUS, i -> {
+				sampleRecord.dir1.set(dir1[i]);
+				sampleRecord.normal.set(normal);
+				double pdf = bsdf.sample(sampleRecord, seeds[i], value);
+				return pdf + value.x + sampleRecord.dir2.z;
+			}, "bsdf", e.getKey()));
+			list.add(new Benchmark("bsdfEval", CORPUS, i -> {
+				bsdf.eval(dir1[i], dir2[i], normal, value);
+				return value.x;
+			}, "bsdf", e.getKey()));
+		}
+
+		// A 4 x 4 grid of tiles spread over bunny-norms, shaded with ambient occlusion
+		RayTracer.ScenePath p = new RayTracer.ScenePath(RayTracer.directory, "pointLight/bunny-norms.xml");
+		RayTracer.setSceneWorkspace(p);
+		Scene render = PacketBenchmark.loadGeometry("pointLight/bunny-norms.xml");
+		render.setIntegrator(new AmbientOcclusionIntegrator());
+		render.init();
+		Image image = render.getImage();
+		int tile = 16, stepX = (image.getWidth() - tile) / 3, stepY = (image.getHeight() - tile) / 3;
+		list.add(new Benchmark("renderBlock", 16, i -> {
+			int x = (i % 4) * stepX, y = (i / 4) * stepY;
+			RayTracer.renderBlock(render, image, x, y, tile, tile);
+			float[] data = image.getData();
+			double sum = 0;
+			for (int row = y; row < y + tile; row++)
+				for (int k = 3 * (row * image.getWidth() + x); k < 3 * (row * image.getWidth() + x + tile); k++)
+					sum += data[k];
+			return sum;
+		}, "scene", "bunny", "tile", tile + "x" + tile, "integrator", "AmbientOcclusion"));
+
+		return list;
+	}
+
+	/** @return a ray to target, from a random point at distance away */
+	private static Ray rayTo(Vector3d target, Random random, double distance) {
+		Vector3d dir = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize();
+		Ray ray = new Ray(new Vector3d(target).addMultiple(-distance, dir), dir);
+		ray.makeOffsetRay();
+		return ray;
+	}
+
+	private static Ray[] cameraRays(Scene scene, Random random) {
+		Ray[] rays = new Ray[CORPUS];
+		for (int i = 0; i < CORPUS; i++) {
+			rays[i] = new Ray();
+			scene.getCamera().getRay(rays[i], random.nextDouble(), random.nextDouble());
+		}
+		return rays;
+	}
+
+	/** Record the box tests of a traversal of the tree, as Bvh.intersect does them, without the surfaces. */
+	private static void traverse(BvhNode node, Ray ray, List<Ray> rays, List<BvhNode> nodes) {
+		if (nodes.size() == CORPUS)
+			return;
+		rays.add(ray);
+		nodes.add(node);
+		if (node.intersects(ray) && !node.isLeaf()) {
+			traverse(node.child[0], ray, rays, nodes);
+			traverse(node.child[1], ray, rays, nodes);
+		}
+	}
+
+	private static Vector2d[] seeds(Random random) {
+		Vector2d[] seeds = new Vector2d[CORPUS];
+		for (int i = 0; i < CORPUS; i++)
+			seeds[i] = new Vector2d(random.nextDouble(), random.nextDouble());
+		return seeds;
+	}
+
+	private static Vector3d hemisphere(Random random) {
+		Vector3d d = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize();
+		if (d.z < 0)
+			d.z = -d.z;
+		return d;
+	}
+
+	/** Write the results in the layout of JMH's JSON output. */
+	private static void writeJson(File file, List<Benchmark> benchmarks, int forks, int warmup, int iterations,
+			long time) throws IOException {
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			out.println("[");
+			for (int k = 0; k < benchmarks.size(); k++) {
+				Benchmark b = benchmarks.get(k);
+				out.println("    {");
+				out.println("        \"benchmark\" : \"" + HotPathBenchmark.class.getName() + "." + b.name + "\",");
+				out.println("        \"mode\" : \"avgt\",");
+				out.println("        \"threads\" : 1,");
+				out.println("        \"forks\" : " + forks + ",");
+				out.println("        \"jvm\" : \"" + escape(System.getProperty("java.home")) + "\",");
+				out.println("        \"jdkVersion\" : \"" + escape(System.getProperty("java.version")) + "\",");
+				out.println("        \"vmName\" : \"" + escape(System.getProperty("java.vm.name")) + "\",");
+				out.println("        \"warmupIterations\" : " + warmup + ",");
+				out.println("        \"warmupTime\" : \"" + time + " ms\",");
+				out.println("        \"measurementIterations\" : " + iterations + ",");
+				out.println("        \"measurementTime\" : \"" + time + " ms\",");
+				if (!b.params.isEmpty()) {
+					out.println("        \"params\" : {");
+					int n = 0;
+					for (Map.Entry<String, String> e : b.params.entrySet())
+						out.println("            \"" + e.getKey() + "\" : \"" + escape(e.getValue()) + "\""
+								+ (++n < b.params.size() ? "," : ""));
+					out.println("        },");
+				}
+				double mean = mean(b.nanosPerOp), error = error(b.nanosPerOp);
+				out.println("        \"primaryMetric\" : {");
+				out.println("            \"score\" : " + mean + ",");
+				out.println("            \"scoreError\" : " + (Double.isNaN(error) ? "\"NaN\"" : error) + ",");
+				out.println("            \"scoreConfidence\" : [ " + (mean - error) + ", " + (mean + error) + " ],");
+				out.println("            \"scoreUnit\" : \"ns/op\",");
+				StringBuilder raw = new StringBuilder();
+				for (int i = 0; i < b.nanosPerOp.length; i++)
+					raw.append(i == 0 ? "[ " : i % iterations == 0 ? " ], [ " : ", ").append(b.nanosPerOp[i]);
+				out.println("            \"rawData\" : [ " + raw + " ] ]");
+				out.println("        },");
+				out.println("        \"secondaryMetrics\" : {},");
+				out.println("        \"checksum\" : " + b.checksum);
+				out.println("    }" + (k + 1 < benchmarks.size() ? "," : ""));
+			}
+			out.println("]");
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,246 @@
+package ray2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Random;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+import ray2.Parser;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.light.AliasTable;
+import ray2.light.Light;
+import ray2.light.LightSamplingRecord;
+import ray2.light.LightTree;
+
+/**
+ * Compares ways of sampling direct illumination from many area lights.  For
+ * each light count it generates an open-plan office: a floor under a grid of
+ * RectangleLights of varied brightness, divided by partition walls that stop
+ * short of the ceiling.  At random points on the floor it then estimates the
+ * light reflected by a diffuse floor, with shadow rays, using
+ *
+ *   all:     one sample of every light, which is what LightSamplingIntegrator
+ *            does with lightSamples = 0
+ *   uniform: one light, chosen uniformly
+ *   power:   one light, chosen with probability proportional to its power
+ *   tree:    one light, chosen from the scene's LightTree
+ *
+ * For each it reports the time per estimate, the noise (the standard
+ * deviation of one estimate relative to the mean, from repeated estimates at
+ * each point) and noise^2 x time, which is the inverse of the efficiency: the
+ * method with the smallest value reaches a given quality in the least time.
+ * The means of all methods should agree.
+ *
+ * Sampling every light once is a perfectly stratified estimate, so where
+ * shadow rays are as cheap as they are here it can have the best noise^2 x
+ * time; but one estimate costs time in proportion to the number of lights,
+ * which sets the least time a pixel can take.  The one-light methods cost
+ * about the same for any number of lights.
+ *
+ * The generated scenes are left in the output directory (the system temporary
+ * directory by default) and can be rendered with RayTracer, using
+ * LightSamplingIntegrator with lightSamples = 1.
+ *
+ * Usage: java ray2.bench.ManyLightBenchmark [numLights,...] [outputDirectory]   (default 10,100,1000)
+ */
+public class ManyLightBenchmark {
+
+	private static final int POINTS = 400;
+	private static final int REPEATS = 16;
+	private static final double ALBEDO = 0.5;
+
+	private static final String[] METHODS = { "all", "uniform", "power", "tree" };
+
+	public static void main(String[] args) throws IOException {
+		String[] counts = (args.length > 0 ? args[0] : "10,100,1000").split(",");
+		File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+		System.out.printf("%7s %-8s %12s %10s %14s %12s%n", "lights", "method", "us/estimate", "noise", "noise^2 x us", "mean");
+		for (String count : counts) {
+			int numLights = Integer.parseInt(count);
+			File file = new File(dir, "office-" + numLights + ".xml");
+			double extent = writeScene(file, numLights);
+			RayTracer.ScenePath p = new RayTracer.ScenePath(null, file.getPath());
+			RayTracer.setSceneWorkspace(p);
+			Scene scene = (Scene) new Parser().parse(p.getFile(), Scene.class);
+			scene.init();
+
+			// Shading points on the floor, away from the walls
+			Random random = new Random(4620);
+			Vector3d[] points = new Vector3d[POINTS];
+			for (int i = 0; i < POINTS; i++) {
+				double x, z;
+				do {
+					x = extent * random.nextDouble();
+					z = extent * random.nextDouble();
+				} while (nearWall(x) || nearWall(z));
+				points[i] = new Vector3d(x, 0, z);
+			}
+
+			for (String method : METHODS) {
+				Estimator estimator = new Estimator(scene, method);
+				double sumVariance = 0, sumMean = 0;
+				long start = System.nanoTime();
+				for (Vector3d point : points) {
+					double sum = 0, sumSq = 0;
+					for (int k = 0; k < REPEATS; k++) {
+						double e = estimator.estimate(point);
+						sum += e;
+						sumSq += e * e;
+					}
+					double mean = sum / REPEATS;
+					sumMean += mean;
+					sumVariance += Math.max(0, sumSq - REPEATS * mean * mean) / (REPEATS - 1);
+				}
+				double us = (System.nanoTime() - start) * 1e-3 / (POINTS * REPEATS);
+				double mean = sumMean / POINTS;
+				double noise = Math.sqrt(sumVariance / POINTS) / mean;
+				System.out.printf("%7d %-8s %12.2f %10.4f %14.4g %12.6f%n", numLights, method, us, noise, noise * noise * us, mean);
+			}
+		}
+	}
+
+	/**
+	 * Estimates the radiance reflected upwards by the diffuse floor, from
+	 * scene's lights only.
+	 */
+	private static class Estimator {
+		final Scene scene;
+		final String method;
+		final List<Light> lights;
+		final LightTree tree;
+		final AliasTable powerTable;
+		final Random random = new Random(1);
+		final Vector3d normal = new Vector3d(0, 1, 0);
+		final LightSamplingRecord lRec = new LightSamplingRecord();
+		final Vector2d seed = new Vector2d();
+		final Ray shadowRay = new Ray();
+		final Colord radiance = new Colord();
+
+		Estimator(Scene scene, String method) {
+			this.scene = scene;
+			this.method = method;
+			lights = scene.getLights();
+			tree = scene.getLightTree();
+			powerTable = new AliasTable(lights.size(), i -> lights.get(i).getPower());
+		}
+
+		double estimate(Vector3d point) {
+			int n = lights.size();
+			switch (method) {
+			case "all":
+				double sum = 0;
+				for (Light light : lights) {
+					seed.set(random.nextDouble(), random.nextDouble());
+					light.sample(lRec, point, seed);
+					sum += contribution(light, point);
+				}
+				return sum;
+			case "uniform": {
+				Light light = lights.get(Math.min((int) (random.nextDouble() * n), n - 1));
+				seed.set(random.nextDouble(), random.nextDouble());
+				light.sample(lRec, point, seed);
+				return contribution(light, point) * n;
+			}
+			case "power": {
+				int i = powerTable.sample(random.nextDouble());
+				Light light = lights.get(i);
+				seed.set(random.nextDouble(), random.nextDouble());
+				light.sample(lRec, point, seed);
+				return contribution(light, point) * powerTable.getTotalWeight() / light.getPower();
+			}
+			default: {
+				seed.set(random.nextDouble(), random.nextDouble());
+				Light light = tree.sample(lRec, point, normal, seed);
+				return light == null ? 0 : contribution(light, point);
+			}
+			}
+		}
+
+		/**
+		 * The estimate for the light sample in lRec: (source radiance) * brdf *
+		 * attenuation * (cos theta) / pdf, or 0 if it is shadowed.
+		 */
+		double contribution(Light light, Vector3d point) {
+			double cos = lRec.direction.dot(normal);
+			if (cos <= 0 || lRec.attenuation <= 0 || lRec.probability <= 0)
+				return 0;
+			shadowRay.origin.set(point);
+			shadowRay.direction.set(lRec.direction);
+			shadowRay.makeOffsetSegment(lRec.distance);
+			if (scene.getAnyIntersection(shadowRay))
+				return 0;
+			light.eval(shadowRay, radiance);
+			double luminance = (radiance.x + radiance.y + radiance.z) / 3;
+			return luminance * (ALBEDO / Math.PI) * lRec.attenuation * cos / lRec.probability;
+		}
+	}
+
+	/** The partition walls are every WALL_SPACING along x and z. */
+	private static final double LIGHT_SPACING = 3, WALL_SPACING = 6;
+
+	private static boolean nearWall(double x) {
+		double d = Math.IEEEremainder(x, WALL_SPACING);
+		return Math.abs(d) < 0.2;
+	}
+
+	/**
+	 * Write the office scene with numLights lights and return the size of
+	 * its (square) floor.
+	 */
+	private static double writeScene(File file, int numLights) throws IOException {
+		Random random = new Random(4620);
+		int side = (int) Math.ceil(Math.sqrt(numLights));
+		double extent = side * LIGHT_SPACING, ceiling = 3, wallHeight = 2.2;
+
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>");
+		out.println("<!-- An office lit by " + numLights + " area lights, generated by ray2.bench.ManyLightBenchmark -->");
+		out.println("<scene>");
+		out.println("  <samples>16</samples>");
+		out.println("  <camera type=\"PerspectiveCamera\">");
+		out.printf("    <viewPoint>%g %g %g</viewPoint>%n", -0.1 * extent, 0.6 * extent + ceiling, -0.1 * extent);
+		out.println("    <viewDir>1 -1.2 1</viewDir>");
+		out.println("    <viewUp>0 1 0</viewUp>");
+		out.println("    <projDistance>1</projDistance>");
+		out.println("    <viewWidth>1</viewWidth>");
+		out.println("    <viewHeight>1</viewHeight>");
+		out.println("  </camera>");
+		out.println("  <image>256 256</image>");
+		out.println("  <integrator type=\"LightSamplingIntegrator\"><lightSamples>1</lightSamples></integrator>");
+		out.println("  <accelStruct type=\"LinearBvh\" />");
+		out.printf("  <bsdf name=\"floor\" type=\"LambertianBSDF\"><diffuseColor>%g %g %g</diffuseColor></bsdf>%n", ALBEDO, ALBEDO, ALBEDO);
+		out.println("  <bsdf name=\"wall\" type=\"LambertianBSDF\"><diffuseColor>0.7 0.7 0.6</diffuseColor></bsdf>");
+		out.println("  <surface type=\"Box\">");
+		out.printf("    <minPt>0 -0.1 0</minPt><maxPt>%g 0 %g</maxPt>%n", extent, extent);
+		out.println("    <bsdf ref=\"floor\" />");
+		out.println("  </surface>");
+		for (double w = WALL_SPACING; w < extent; w += WALL_SPACING) {
+			out.printf("  <surface type=\"Box\"><minPt>%g 0 0</minPt><maxPt>%g %g %g</maxPt><bsdf ref=\"wall\" /></surface>%n",
+					w - 0.05, w + 0.05, wallHeight, extent);
+			out.printf("  <surface type=\"Box\"><minPt>0 0 %g</minPt><maxPt>%g %g %g</maxPt><bsdf ref=\"wall\" /></surface>%n",
+					w - 0.05, extent, wallHeight, w + 0.05);
+		}
+		for (int i = 0; i < numLights; i++) {
+			double brightness = 5 + 20 * random.nextDouble();
+			out.println("  <light type=\"RectangleLight\">");
+			out.printf("    <position>%g %g %g</position>%n", ((i % side) + 0.5) * LIGHT_SPACING, ceiling,
+					((i / side) + 0.5) * LIGHT_SPACING);
+			out.println("    <normalDir>0 -1 0</normalDir>");
+			out.println("    <upDir>0 0 1</upDir>");
+			out.println("    <width>0.6</width>");
+			out.println("    <height>1.2</height>");
+			out.printf("    <intensity>%g %g %g</intensity>%n", brightness, brightness, 0.9 * brightness);
+			out.println("  </light>");
+		}
+		out.println("</scene>");
+		out.close();
+		return extent;
+	}
+}
@@ -0,0 +1,93 @@
+package ray2.bench;
+
+import java.util.ArrayList;
+
+import egl.math.Matrix4d;
+import egl.math.Vector3;
+import ray2.accel.Bvh;
+import ray2.accel.LinearBvh;
+import ray2.mesh.OBJFace;
+import ray2.mesh.OBJMesh;
+import ray2.surface.Mesh;
+import ray2.surface.Surface;
+
+/**
+ * Compares the heap used by a large mesh in the two Mesh storage modes:
+ * "objects" (a Triangle per face plus the scene BVH over them) and "packed"
+ * (one TriangleSoup with its own BVH, under a LinearBvh).  The mesh is a
+ * generated height field, and the OBJMesh it comes from is not counted.
+ *
+ * Usage: java -Xmx8g ray2.bench.MeshMemoryBenchmark [numTriangles]
+ */
+public class MeshMemoryBenchmark {
+
+	/** Keeps the structures being measured reachable. */
+	private static Object retained;
+
+	public static void main(String[] args) {
+		int numTriangles = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		OBJMesh md = heightField(numTriangles);
+		System.out.printf("%d triangles, %d vertices%n", md.faces.size(), md.positions.size());
+
+		for (String storage : new String[] { "objects", "packed" }) {
+			long before = usedHeap();
+			long start = System.currentTimeMillis();
+
+			Mesh mesh = new Mesh(md);
+			mesh.setStorage(storage);
+			Matrix4d id = new Matrix4d();
+			mesh.setTransformation(id, id, id);
+			ArrayList<Surface> surfaces = new ArrayList<Surface>();
+			mesh.appendRenderableSurfaces(surfaces);
+			Bvh accel = storage.equals("packed") ? new LinearBvh() : new Bvh();
+			accel.build(surfaces.toArray(new Surface[surfaces.size()]));
+			surfaces = null;
+			retained = accel;
+
+			long time = System.currentTimeMillis() - start;
+			long bytes = usedHeap() - before;
+			System.out.printf("%-8s %8.1f MB %6d bytes/triangle %8d ms%n", storage, bytes * 1e-6,
+					bytes / md.faces.size(), time);
+			retained = null;
+		}
+	}
+
+	/**
+	 * A square grid of vertices with a bumpy height, two triangles per cell.
+	 */
+	private static OBJMesh heightField(int numTriangles) {
+		int n = Math.max(1, (int) Math.sqrt(numTriangles / 2));
+		OBJMesh md = new OBJMesh();
+		for (int i = 0; i <= n; i++) {
+			for (int j = 0; j <= n; j++) {
+				float x = (float) i / n, z = (float) j / n;
+				float y = 0.05f * (float) (Math.sin(40 * x) * Math.cos(30 * z));
+				md.positions.add(new Vector3(x, y, z));
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				int v00 = i * (n + 1) + j, v01 = v00 + 1, v10 = v00 + n + 1, v11 = v10 + 1;
+				md.faces.add(face(v00, v01, v11));
+				md.faces.add(face(v00, v11, v10));
+			}
+		}
+		return md;
+	}
+
+	private static OBJFace face(int a, int b, int c) {
+		OBJFace f = new OBJFace(3, false, false);
+		f.positions[0] = a + OBJFace.indexBase;
+		f.positions[1] = b + OBJFace.indexBase;
+		f.positions[2] = c + OBJFace.indexBase;
+		return f;
+	}
+
+	/** @return the heap in use after collecting garbage, for the benchmarks that measure memory */
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
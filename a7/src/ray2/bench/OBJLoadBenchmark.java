@@ -0,0 +1,101 @@
+package ray2.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import ray2.mesh.OBJMesh;
+import ray2.mesh.OBJReader;
+import ray2.mesh.PackedOBJ;
+
+/**
+ * Compares the ways of loading an OBJ file: the line-by-line parser
+ * (OBJMesh.parseOBJFromString), OBJReader's parallel parse of the mapped file,
+ * and reading the .objbin cache.  The file is a generated height field with
+ * texture coordinates and normals, and each way is timed as the best of a few
+ * runs.  Throughput is in MB of the OBJ file (or of the cache file) per second.
+ *
+ * Usage: java -Xmx8g ray2.bench.OBJLoadBenchmark [numTriangles]
+ */
+public class OBJLoadBenchmark {
+
+	private static final int RUNS = 3;
+
+	public static void main(String[] args) throws IOException {
+		int numTriangles = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Path dir = Files.createTempDirectory("objbench");
+		Path obj = dir.resolve("heightfield.obj");
+		Path cache = PackedOBJ.cachePath(obj);
+		try {
+			writeHeightField(obj, numTriangles);
+			long size = Files.size(obj);
+			long modified = Files.getLastModifiedTime(obj).toMillis();
+
+			double best = Double.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				OBJMesh mesh = new OBJMesh();
+				mesh.parseOBJFromString(new String(Files.readAllBytes(obj), StandardCharsets.UTF_8));
+				best = Math.min(best, (System.nanoTime() - start) * 1e-9);
+			}
+			report("line by line", size, best);
+
+			PackedOBJ packed = null;
+			best = Double.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				packed = OBJReader.read(obj);
+				best = Math.min(best, (System.nanoTime() - start) * 1e-9);
+			}
+			report("OBJReader", size, best);
+
+			packed.writeCache(cache, size, modified);
+			long cacheSize = Files.size(cache);
+			best = Double.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				PackedOBJ.readCache(cache, size, modified);
+				best = Math.min(best, (System.nanoTime() - start) * 1e-9);
+			}
+			report(".objbin", cacheSize, best);
+		} finally {
+			Files.deleteIfExists(obj);
+			Files.deleteIfExists(cache);
+			Files.delete(dir);
+		}
+	}
+
+	private static void report(String what, long bytes, double seconds) {
+		System.out.printf("%-14s %8.1f MB %8.3f s %8.1f MB/s%n", what, bytes * 1e-6, seconds, bytes * 1e-6 / seconds);
+	}
+
+	/**
+	 * A square grid of vertices with a bumpy height, two triangles per cell,
+	 * like MeshMemoryBenchmark's but written out with uvs and normals.
+	 */
+	private static void writeHeightField(Path path, int numTriangles) throws IOException {
+		int n = Math.max(1, (int) Math.sqrt(numTriangles / 2));
+		try (BufferedWriter w = Files.newBufferedWriter(path)) {
+			for (int i = 0; i <= n; i++) {
+				for (int j = 0; j <= n; j++) {
+					float x = (float) i / n, z = (float) j / n;
+					float y = 0.05f * (float) (Math.sin(40 * x) * Math.cos(30 * z));
+					w.write("v " + x + " " + y + " " + z + "\n");
+					w.write("vt " + x + " " + z + "\n");
+					float nx = -2 * (float) (Math.cos(40 * x) * Math.cos(30 * z)), nz = 1.5f * (float) (Math.sin(40 * x) * Math.sin(30 * z));
+					float len = (float) Math.sqrt(nx * nx + 1 + nz * nz);
+					w.write("vn " + nx / len + " " + 1 / len + " " + nz / len + "\n");
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					int v00 = i * (n + 1) + j + 1, v01 = v00 + 1, v10 = v00 + n + 1, v11 = v10 + 1;
+					w.write("f " + v00 + "/" + v00 + "/" + v00 + " " + v01 + "/" + v01 + "/" + v01 + " " + v11 + "/" + v11 + "/" + v11 + "\n");
+					w.write("f " + v00 + "/" + v00 + "/" + v00 + " " + v11 + "/" + v11 + "/" + v11 + " " + v10 + "/" + v10 + "/" + v10 + "\n");
+				}
+			}
+		}
+	}
+}
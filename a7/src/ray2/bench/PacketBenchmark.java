@@ -0,0 +1,258 @@
+package ray2.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import egl.math.Vector3d;
+import ray2.IntersectionRecord;
+import ray2.Parser;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.accel.LinearBvh;
+import ray2.accel.RayPacket;
+import ray2.accel.RaySorter;
+import ray2.light.Light;
+
+/**
+ * Compares tracing rays one at a time with tracing them in RayPackets, in a
+ * LinearBvh.  For each scene it makes three sets of rays:
+ *
+ *   primary: one camera ray through the center of each pixel
+ *   bounce:  from each hit of a primary ray, a diffuse (cosine-distributed)
+ *            bounce, first-hit
+ *   shadow:  from each hit of a primary ray, a shadow ray to the first light,
+ *            or to a random direction of the upper hemisphere if the scene has
+ *            no lights, any-hit
+ *
+ * and traces each set one ray at a time and in packets of 4, 8 and 16.
+ * Primary packets are tiles of pixels.  The bounce and shadow rays are made
+ * in pixel order, which says little about where they go; they are traced both
+ * in that order and sorted with a RaySorter.  Each row gives the rays per
+ * second (the best of a few rounds) and a checksum of the hits, which should be
+ * the same for every row of a set.
+ *
+ * Usage: java ray2.bench.PacketBenchmark [scene.xml,...] [imageSize]
+ * (run from the a7 directory; scenes are in data/scenes, and the default is
+ * pointLight/bunny-norms.xml and MISampling/teapot-envlight.xml at 512 x 512)
+ */
+public class PacketBenchmark {
+
+	private static final int ROUNDS = 5;
+	private static final int[] PACKET_SIZES = { 4, 8, 16 };
+
+	public static void main(String[] args) throws IOException {
+		String[] files = (args.length > 0 ? args[0]
+				: "pointLight/bunny-norms.xml,MISampling/teapot-envlight.xml").split(",");
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+
+		for (String file : files) {
+			Scene scene = loadGeometry(file);
+			scene.setAccelStruct(new LinearBvh());
+			scene.init();
+			List<Row> rows = new ArrayList<Row>();
+
+			// The camera rays, in scanline order
+			Ray[] primary = new Ray[size * size];
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					primary[y * size + x] = new Ray();
+					scene.getCamera().getRay(primary[y * size + x], (x + 0.5) / size, (y + 0.5) / size);
+				}
+			}
+			rows.add(new Row("primary", "scanline", primary, identity(primary.length), 1, false));
+			for (int packetSize : PACKET_SIZES)
+				rows.add(new Row("primary", "tiles", primary, tileOrder(size, packetSize), packetSize, false));
+
+			// The secondary rays, from the primary hits
+			Ray[][] secondary = secondaryRays(scene, primary);
+			for (int k = 0; k < 2; k++) {
+				Ray[] rays = secondary[k];
+				String name = k == 0 ? "bounce" : "shadow";
+				boolean any = k == 1;
+				int[] sorted = identity(rays.length);
+				new RaySorter().sort(rays, sorted, rays.length);
+				rows.add(new Row(name, "pixels", rays, identity(rays.length), 1, any));
+				rows.add(new Row(name, "sorted", rays, sorted, 1, any));
+				for (int packetSize : PACKET_SIZES) {
+					rows.add(new Row(name, "pixels", rays, identity(rays.length), packetSize, any));
+					rows.add(new Row(name, "sorted", rays, sorted, packetSize, any));
+				}
+			}
+
+			// Take turns, so that the rows all see the same JIT and machine load
+			for (int round = 0; round < ROUNDS; round++) {
+				for (Row row : rows)
+					row.run(scene);
+			}
+			System.out.printf("%n%s, %d x %d%n", file, size, size);
+			System.out.printf("%-8s %-9s %7s %10s %16s%n", "rays", "order", "packet", "Mrays/s", "checksum");
+			for (Row row : rows)
+				System.out.printf("%-8s %-9s %7s %10.3f %16.6f%n", row.name, row.orderName,
+						row.packetSize == 1 ? "single" : row.packetSize, row.rays.length * 1e3 / row.best, row.checksum);
+		}
+	}
+
+	/**
+	 * One row of the table: a set of rays, traced in some order and packet size.
+	 * The sorting time is not included.
+	 */
+	private static class Row {
+		final String name, orderName;
+		final Ray[] rays;
+		final int[] order;
+		final int packetSize;
+		final boolean any;
+		long best = Long.MAX_VALUE;
+		double checksum;
+
+		Row(String name, String orderName, Ray[] rays, int[] order, int packetSize, boolean any) {
+			this.name = name;
+			this.orderName = orderName;
+			this.rays = rays;
+			this.order = order;
+			this.packetSize = packetSize;
+			this.any = any;
+		}
+
+		void run(Scene scene) {
+			long start = System.nanoTime();
+			checksum = packetSize == 1 ? traceSingle(scene, rays, order, any) : tracePackets(scene, rays, order, packetSize, any);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Load a scene for its geometry, camera and lights only.  Its integrator
+	 * and environment are left out, since some scenes name integrators that
+	 * are left for students to write, and tracing rays needs neither.
+	 */
+	static Scene loadGeometry(String file) throws IOException {
+		RayTracer.ScenePath p = new RayTracer.ScenePath("data/scenes", file);
+		RayTracer.setSceneWorkspace(p);
+		String xml = new String(Files.readAllBytes(Paths.get(p.getFile())), StandardCharsets.UTF_8);
+		Path copy = Files.createTempFile("packet-benchmark", ".xml");
+		try {
+			Files.write(copy, xml.replaceAll("(?s)<(integrator|environment)[^>]*/>|<(integrator|environment).*?</\\2>", "")
+					.getBytes(StandardCharsets.UTF_8));
+			return (Scene) new Parser().parse(copy.toString(), Scene.class);
+		} finally {
+			Files.delete(copy);
+		}
+	}
+
+	/**
+	 * @return the number of hits, plus the mean t of the hits for first-hit rays
+	 */
+	private static double traceSingle(Scene scene, Ray[] rays, int[] order, boolean any) {
+		IntersectionRecord record = new IntersectionRecord();
+		long hits = 0;
+		double sumT = 0;
+		for (int k = 0; k < order.length; k++) {
+			Ray ray = rays[order[k]];
+			if (any ? scene.getAnyIntersection(ray) : scene.getFirstIntersection(record, ray)) {
+				hits++;
+				if (!any)
+					sumT += record.t;
+			}
+		}
+		return hits + (hits > 0 ? sumT / hits : 0);
+	}
+
+	private static double tracePackets(Scene scene, Ray[] rays, int[] order, int packetSize, boolean any) {
+		RayPacket packet = new RayPacket();
+		IntersectionRecord[] records = new IntersectionRecord[packetSize];
+		for (int j = 0; j < packetSize; j++)
+			records[j] = new IntersectionRecord();
+		long hits = 0;
+		double sumT = 0;
+		for (int k = 0; k < order.length; k += packetSize) {
+			packet.clear();
+			for (int m = k; m < Math.min(order.length, k + packetSize); m++)
+				packet.add(rays[order[m]], any ? null : records[m - k]);
+			hits += scene.intersect(packet, any);
+			if (!any) {
+				for (int j = 0; j < packet.size; j++) {
+					if (packet.hit[j])
+						sumT += records[j].t;
+				}
+			}
+		}
+		return hits + (hits > 0 ? sumT / hits : 0);
+	}
+
+	/**
+	 * Make a bounce ray and a shadow ray at each hit of the primary rays.
+	 */
+	private static Ray[][] secondaryRays(Scene scene, Ray[] primary) {
+		Random random = new Random(4620);
+		Light light = scene.getLights().isEmpty() ? null : scene.getLights().get(0);
+		Vector3d lightPos = new Vector3d(), lightMax = new Vector3d();
+		if (light != null)
+			light.getBounds(lightPos, lightMax);
+		lightPos.add(lightMax).mul(0.5);
+
+		IntersectionRecord record = new IntersectionRecord();
+		int count = 0;
+		Ray[] bounce = new Ray[primary.length], shadow = new Ray[primary.length];
+		for (Ray ray : primary) {
+			if (!scene.getFirstIntersection(record, ray))
+				continue;
+
+			// A cosine-distributed direction around the normal
+			Vector3d n = record.normal;
+			Vector3d u = Math.abs(n.x) > 0.5 ? new Vector3d(0, 1, 0) : new Vector3d(1, 0, 0);
+			u.set(u.clone().cross(n)).normalize();
+			Vector3d v = n.clone().cross(u);
+			double phi = 2 * Math.PI * random.nextDouble(), r = Math.sqrt(random.nextDouble());
+			Vector3d d = u.clone().mul(r * Math.cos(phi)).add(v.clone().mul(r * Math.sin(phi)))
+					.add(n.clone().mul(Math.sqrt(Math.max(0, 1 - r * r))));
+			bounce[count] = new Ray(record.location, d.normalize());
+			bounce[count].makeOffsetRay();
+
+			if (light != null) {
+				Vector3d toLight = lightPos.clone().sub(record.location);
+				double dist = toLight.len();
+				shadow[count] = new Ray(record.location, toLight.div(dist));
+				shadow[count].makeOffsetSegment(dist);
+			} else {
+				double z = random.nextDouble(), a = 2 * Math.PI * random.nextDouble(), s = Math.sqrt(1 - z * z);
+				shadow[count] = new Ray(record.location, new Vector3d(s * Math.cos(a), z, s * Math.sin(a)));
+				shadow[count].makeOffsetRay();
+			}
+			count++;
+		}
+		return new Ray[][] { Arrays.copyOf(bounce, count), Arrays.copyOf(shadow, count) };
+	}
+
+	private static int[] identity(int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		return order;
+	}
+
+	/**
+	 * @return the pixels of a size x size image in tiles of packetSize pixels,
+	 *   shaped as RayTracer shapes them
+	 */
+	private static int[] tileOrder(int size, int packetSize) {
+		int tileW = 1 << ((32 - Integer.numberOfLeadingZeros(packetSize)) / 2);
+		int tileH = Math.max(1, packetSize / tileW);
+		int[] order = new int[size * size];
+		int k = 0;
+		for (int ty = 0; ty < size; ty += tileH)
+			for (int tx = 0; tx < size; tx += tileW)
+				for (int y = ty; y < Math.min(ty + tileH, size); y++)
+					for (int x = tx; x < Math.min(tx + tileW, size); x++)
+						order[k++] = y * size + x;
+		return order;
+	}
+}
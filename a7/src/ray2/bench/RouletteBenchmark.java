@@ -0,0 +1,250 @@
+package ray2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+import ray2.Image;
+import ray2.IntersectionRecord;
+import ray2.Parser;
+import ray2.PathLengths;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.RenderStats;
+import ray2.Scene;
+import ray2.integrator.Integrator;
+import ray2.light.Light;
+import ray2.light.LightSamplingRecord;
+import ray2.light.PointLight;
+import ray2.material.BSDF;
+import ray2.material.BSDFSamplingRecord;
+import ray2.sampler.Sampler;
+
+/**
+ * Measures what Russian roulette and the scene's maxDepth save.  Each scene
+ * is rendered with a small path tracer (below), which follows every bounce,
+ * diffuse ones included, so that paths are long enough for the path length
+ * to matter; first many samples per pixel with no roulette, as the reference,
+ * and then with fewer samples in each of several modes:
+ *
+ *   depth N:           no roulette, paths stop at depth N
+ *   roulette D, Q:     roulette from depth D on, with minSurvival Q
+ *
+ * For each mode it reports the rays (camera, bounce and shadow) per pixel,
+ * the RMSE against the reference, and the rays per pixel that the mode would
+ * need to reach the RMSE of the first mode, assuming that the squared error
+ * falls as 1 / samples.  (Cutting paths short is biased, so those modes stop
+ * improving once the bias dominates.)  The path length histogram of each
+ * mode is printed after the table.
+ *
+ * The reference images in the data directories were made with integrators
+ * that are left for students to write and that do not follow diffuse
+ * bounces, so the reference here is rendered by the same path tracer.
+ *
+ * The shipped scenes are open, so most paths leave them after a bounce or
+ * two; the benchmark also generates a closed room with a glass ball and a
+ * glazed block in it (left in the system temporary directory as room.xml),
+ * where every path goes on until it is stopped.
+ *
+ * Usage: java ray2.bench.RouletteBenchmark [scene.xml,...] [width] [samples] [referenceSamples]
+ * (run from the a7 directory; scenes are in data/scenes, or "room" for the
+ * generated one, and the default is room, bsdfSampling/glass-ball.xml and
+ * lightSampling/overlap.xml, 128 pixels wide, 8 x 8 samples per pixel and
+ * 32 x 32 for the reference)
+ */
+public class RouletteBenchmark {
+
+	/** The modes: maxDepth, rouletteDepth and minSurvival. */
+	private static final double[][] MODES = {
+		{ 12, 0, 0 }, { 64, 0, 0 }, { 4, 0, 0 }, { 2, 0, 0 },
+		{ 12, 2, 0.05 }, { 12, 3, 0.05 }, { 12, 5, 0.05 }, { 64, 3, 0.05 }, { 64, 3, 0.5 },
+	};
+
+	public static void main(String[] args) throws IOException {
+		String[] files = (args.length > 0 ? args[0] : "room,bsdfSampling/glass-ball.xml,lightSampling/overlap.xml").split(",");
+		int width = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+		int samples = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int referenceSamples = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+		// The rays per pixel and the histograms come from PathLengths
+		RenderStats.setEnabled(true);
+
+		for (String file : files) {
+			if (file.equals("room")) {
+				File room = new File(System.getProperty("java.io.tmpdir"), "room.xml");
+				writeRoom(room);
+				file = room.getAbsolutePath();
+			}
+			RayTracer.ScenePath p = new RayTracer.ScenePath("data/scenes", file);
+			RayTracer.setSceneWorkspace(p);
+			Scene scene = (Scene) new Parser().parse(p.getFile(), Scene.class);
+			PathTracer integrator = new PathTracer();
+			scene.setIntegrator(integrator);
+			Image full = scene.getImage();
+			int height = Math.max(1, (int) Math.round((double) width * full.getHeight() / full.getWidth()));
+			scene.setImage(new Image(width, height));
+			scene.init();
+
+			scene.setSamples(referenceSamples);
+			scene.setMaxDepth(RayTracer.MAX_DEPTH);
+			integrator.setRouletteDepth(0);
+			long start = System.nanoTime();
+			float[] reference = render(scene, integrator).getData();
+			System.out.printf("%n%s, %d x %d; reference %d spp in %.1f s%n", file, width, height,
+					referenceSamples * referenceSamples, (System.nanoTime() - start) * 1e-9);
+			System.out.printf("%-22s %10s %10s %12s %16s%n", "mode", "rays/px", "seconds", "RMSE", "rays/px @ RMSE0");
+
+			scene.setSamples(samples);
+			double baseRmse = 0;
+			StringBuilder histograms = new StringBuilder();
+			for (double[] mode : MODES) {
+				scene.setMaxDepth((int) mode[0]);
+				integrator.setRouletteDepth((int) mode[1]);
+				integrator.setMinSurvival(mode[2] > 0 ? mode[2] : 0.05);
+				String name = mode[1] > 0 ? String.format("roulette %d, %.2f%s", (int) mode[1], mode[2],
+						mode[0] != RayTracer.MAX_DEPTH ? ", depth " + (int) mode[0] : "") : "depth " + (int) mode[0];
+
+				start = System.nanoTime();
+				float[] data = render(scene, integrator).getData();
+				double seconds = (System.nanoTime() - start) * 1e-9;
+				double raysPerPixel = (PathLengths.getTotalRayCount() + integrator.shadowRays.sum()) / (double) (width * height);
+				double rmse = rmse(data, reference);
+				if (baseRmse == 0)
+					baseRmse = rmse;
+				System.out.printf("%-22s %10.2f %10.2f %12.6f %16.2f%n", name, raysPerPixel, seconds, rmse,
+						raysPerPixel * (rmse * rmse) / (baseRmse * baseRmse));
+
+				histograms.append(String.format("  %-22s", name));
+				for (int d = 1; d <= 8; d++)
+					histograms.append(String.format(" %6.2f", 100.0 * PathLengths.getRayCount(d) / PathLengths.getRayCount(1)));
+				histograms.append('\n');
+			}
+			System.out.println("Paths at least this long, % of camera rays:");
+			System.out.printf("  %-22s", "depth");
+			for (int d = 1; d <= 8; d++)
+				System.out.printf(" %6d", d);
+			System.out.println();
+			System.out.print(histograms);
+		}
+	}
+
+	/**
+	 * Write a closed room: six walls, a point light near the ceiling, a glass
+	 * ball and a glazed block.
+	 */
+	private static void writeRoom(File file) throws IOException {
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>");
+		out.println("<!-- A closed room, generated by ray2.bench.RouletteBenchmark -->");
+		out.println("<scene>");
+		out.println("  <samples>8</samples>");
+		out.println("  <camera type=\"PerspectiveCamera\">");
+		out.println("    <viewPoint>0 1.5 1.9</viewPoint><viewDir>0 -0.25 -1</viewDir><viewUp>0 1 0</viewUp>");
+		out.println("    <projDistance>1</projDistance><viewWidth>1.4</viewWidth><viewHeight>1.4</viewHeight>");
+		out.println("  </camera>");
+		out.println("  <image>256 256</image>");
+		out.println("  <bsdf name=\"white\" type=\"LambertianBSDF\"><diffuseColor>0.7 0.7 0.7</diffuseColor></bsdf>");
+		out.println("  <bsdf name=\"red\" type=\"LambertianBSDF\"><diffuseColor>0.7 0.2 0.15</diffuseColor></bsdf>");
+		out.println("  <bsdf name=\"green\" type=\"LambertianBSDF\"><diffuseColor>0.2 0.6 0.2</diffuseColor></bsdf>");
+		out.println("  <bsdf name=\"glass\" type=\"GlassBSDF\"><refractiveIndex>1.5</refractiveIndex></bsdf>");
+		out.println("  <bsdf name=\"glazed\" type=\"GlazedBSDF\"><refractiveIndex>1.5</refractiveIndex>");
+		out.println("    <substrate type=\"LambertianBSDF\"><diffuseColor>0.2 0.3 0.8</diffuseColor></substrate></bsdf>");
+		String[][] walls = {
+			{ "-2.1 -0.1 -2.1", "2.1 0 2.1", "white" }, { "-2.1 3 -2.1", "2.1 3.1 2.1", "white" },
+			{ "-2.1 0 -2.1", "2.1 3 -2", "white" }, { "-2.1 0 2", "2.1 3 2.1", "white" },
+			{ "-2.1 0 -2", "-2 3 2", "red" }, { "2 0 -2", "2.1 3 2", "green" },
+		};
+		for (String[] w : walls)
+			out.printf("  <surface type=\"Box\"><minPt>%s</minPt><maxPt>%s</maxPt><bsdf ref=\"%s\" /></surface>%n", w[0], w[1], w[2]);
+		out.println("  <surface type=\"Sphere\"><center>-0.7 0.6 -0.8</center><radius>0.6</radius><bsdf ref=\"glass\" /></surface>");
+		out.println("  <surface type=\"Box\"><minPt>0.4 0 -1.4</minPt><maxPt>1.3 0.9 -0.5</maxPt><bsdf ref=\"glazed\" /></surface>");
+		out.println("  <light type=\"PointLight\"><position>0 2.6 -0.3</position><intensity>4 4 4</intensity></light>");
+		out.println("</scene>");
+		out.close();
+	}
+
+	private static Image render(Scene scene, PathTracer integrator) {
+		Image image = new Image(scene.getImage().getWidth(), scene.getImage().getHeight());
+		PathLengths.reset();
+		integrator.shadowRays.reset();
+		RayTracer.renderBlock(scene, image, 0, 0, image.getWidth(), image.getHeight());
+		return image;
+	}
+
+	private static double rmse(float[] a, float[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += (a[i] - b[i]) * (double) (a[i] - b[i]);
+		return Math.sqrt(sum / a.length);
+	}
+
+	/**
+	 * A path tracer: direct light from point lights by shadow rays, and
+	 * everything else, emission and environment included, by following the
+	 * BSDF's samples, with Russian roulette on the path throughput before
+	 * each bounce.
+	 */
+	static class PathTracer extends Integrator {
+		final LongAdder shadowRays = new LongAdder();
+
+		@Override
+		public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+			shade(outRadiance, scene, ray, iRec, sampler, depth, Colord.WHITE);
+		}
+
+		@Override
+		public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth,
+				Colord throughput) {
+			outRadiance.setZero();
+			Vector3d toEye = ray.direction.clone().negate().normalize();
+			BSDF bsdf = iRec.surface.getBSDF();
+			if (iRec.surface.getLight() != null) {
+				Colord emitted = new Colord();
+				iRec.surface.getLight().eval(ray, emitted);
+				outRadiance.add(emitted);
+			}
+
+			// Point lights, which rays cannot hit
+			LightSamplingRecord lRec = new LightSamplingRecord();
+			Colord radiance = new Colord(), brdf = new Colord();
+			Ray shadowRay = new Ray();
+			for (Light light : scene.getLights()) {
+				Vector2d seed = sampler.next2D(new Vector2d());
+				if (!(light instanceof PointLight))
+					continue;
+				light.sample(lRec, iRec.location, seed);
+				double cos = lRec.direction.dot(iRec.normal);
+				if (cos <= 0)
+					continue;
+				shadowRay.origin.set(iRec.location);
+				shadowRay.direction.set(lRec.direction).normalize();
+				shadowRay.makeOffsetSegment(lRec.distance);
+				shadowRays.increment();
+				if (scene.getAnyIntersection(shadowRay))
+					continue;
+				light.eval(shadowRay, radiance);
+				bsdf.eval(toEye, lRec.direction, iRec.normal, brdf);
+				outRadiance.add(radiance.mul(brdf).mul(cos * lRec.attenuation / lRec.probability));
+			}
+
+			// One bounce, chosen by the BSDF
+			BSDFSamplingRecord bRec = new BSDFSamplingRecord(toEye, iRec.normal);
+			Colord weight = new Colord();
+			double pdf = bsdf.sample(bRec, sampler.next2D(new Vector2d()), weight);
+			if (pdf <= 0)
+				return;
+			weight.mul(Math.abs(bRec.dir2.dot(iRec.normal)) / pdf);
+			if (!survives(weight, throughput, depth + 1, sampler))
+				return;
+			Ray bounce = new Ray(iRec.location, bRec.dir2);
+			bounce.makeOffsetRay();
+			Colord incoming = new Colord(), bounceThroughput = new Colord(weight);
+			bounceThroughput.mul(throughput);
+			RayTracer.shadeRay(incoming, scene, bounce, sampler, depth + 1, bounceThroughput);
+			outRadiance.add(incoming.mul(weight));
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package ray2.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+import egl.math.Color;
+import egl.math.Colord;
+import egl.math.Vector2d;
+import ray2.material.RepeatTexture;
+import ray2.material.Texture;
+
+/**
+ * Measures texture lookups, on one thread, with a generated 1024 x 1024
+ * image of one-texel checks (the worst case for aliasing), repeated.
+ *
+ * First, lookups per second: the way textures used to be looked up
+ * (BufferedImage.getRGB, nearest texel, a new Colord each time), then
+ * getTexColor(uv), which does the same from the decoded floats, then
+ * bilinear lookups at the finest level, then trilinear lookups.  The UVs are
+ * either random, with a footprint of 4 texels, or one jittered sample per
+ * pixel of a 1024 x 1024 image of the ground plane below, in scanline
+ * order, with the pixel's footprint.
+ *
+ * Second, how fast an image of the texture on a ground plane running to the
+ * horizon converges: each pixel averages n jittered samples, either point
+ * samples (bilinear at the finest level) or trilinear samples with the
+ * footprint of the pixel, and the RMSE against a point-sampled reference of
+ * 4096 samples per pixel is reported.  Trilinear filtering is a little
+ * blurry, so it converges to a slightly different image; the last row, at
+ * 256 samples, says how far that is.
+ *
+ * Usage: java ray2.bench.TextureBenchmark [imageSize]   (default 256)
+ */
+public class TextureBenchmark {
+
+	private static final int LOOKUPS = 10000000;
+	private static final int ROUNDS = 5;
+	private static final int TEXTURE_SIZE = 1024;
+	private static final int REFERENCE_SAMPLES = 4096;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		BufferedImage image = new BufferedImage(TEXTURE_SIZE, TEXTURE_SIZE, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < TEXTURE_SIZE; y++)
+			for (int x = 0; x < TEXTURE_SIZE; x++)
+				image.setRGB(x, y, ((x + y) & 1) == 0 ? 0xFFFFFF : 0x202020);
+		Texture texture = new RepeatTexture();
+		texture.useImage(image);
+
+		// Lookups, at random UVs and at the pixels of the ground plane image in scanline order
+		int n = 1 << 20;
+		double[][] uvs = new double[2][3 * n];
+		Random random = new Random(4620);
+		for (int i = 0; i < n; i++) {
+			uvs[0][3 * i] = 4 * random.nextDouble() - 2;
+			uvs[0][3 * i + 1] = 4 * random.nextDouble() - 2;
+			uvs[0][3 * i + 2] = 4.0 / TEXTURE_SIZE;
+		}
+		Vector2d texCoord = new Vector2d();
+		for (int i = 0, side = 1024; i < n; i++) {
+			int px = i % side, py = i / side;
+			toUV(px + random.nextDouble(), py + random.nextDouble(), side, texCoord);
+			uvs[1][3 * i] = texCoord.x;
+			uvs[1][3 * i + 1] = texCoord.y;
+			uvs[1][3 * i + 2] = footprint(px, py, side);
+		}
+
+		// Take turns, so that each kind sees the same JIT and machine load
+		String[] names = { "getRGB, nearest", "nearest", "bilinear", "trilinear" };
+		long[][] best = new long[2][names.length];
+		for (long[] b : best)
+			Arrays.fill(b, Long.MAX_VALUE);
+		double checksum = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int p = 0; p < 2; p++) {
+				for (int k = 0; k < names.length; k++) {
+					long start = System.nanoTime();
+					checksum += lookups(texture, image, uvs[p], k);
+					best[p][k] = Math.min(best[p][k], System.nanoTime() - start);
+				}
+			}
+		}
+		System.out.printf("%d x %d texture (checksum %.3f)%n", TEXTURE_SIZE, TEXTURE_SIZE, checksum);
+		System.out.printf("%-18s %14s %14s%n", "Mlookups/s", "random", "ground plane");
+		for (int k = 0; k < names.length; k++)
+			System.out.printf("%-18s %14.2f %14.2f%n", names[k], LOOKUPS * 1e3 / best[0][k], LOOKUPS * 1e3 / best[1][k]);
+
+		// Convergence on a ground plane
+		double[] reference = render(texture, size, REFERENCE_SAMPLES, false);
+		System.out.printf("%nground plane, %d x %d, RMSE against %d point samples per pixel%n", size, size, REFERENCE_SAMPLES);
+		System.out.printf("%8s %12s %12s%n", "samples", "point", "trilinear");
+		for (int spp = 1; spp <= 64; spp *= 4)
+			System.out.printf("%8d %12.5f %12.5f%n", spp, rmse(render(texture, size, spp, false), reference),
+					rmse(render(texture, size, spp, true), reference));
+		System.out.printf("%8d %12s %12.5f%n", 256, "", rmse(render(texture, size, 256, true), reference));
+	}
+
+	/** Look up LOOKUPS times, going through uvs (u, v, footprint triples) as often as needed. */
+	private static double lookups(Texture texture, BufferedImage image, double[] uvs, int kind) {
+		Vector2d texCoord = new Vector2d();
+		Colord color = new Colord();
+		double sum = 0;
+		int count = uvs.length / 3;
+		for (int i = 0; i < LOOKUPS; i++) {
+			int j = 3 * (i % count);
+			texCoord.set(uvs[j], uvs[j + 1]);
+			if (kind == 0)
+				sum += getRGBNearest(image, texCoord).y;
+			else if (kind == 1)
+				sum += texture.getTexColor(texCoord).y;
+			else {
+				texture.getTexColor(texCoord, kind == 2 ? 0 : uvs[j + 2], color);
+				sum += color.y;
+			}
+		}
+		return sum;
+	}
+
+	/** How RepeatTexture used to look up a texel. */
+	private static Colord getRGBNearest(BufferedImage image, Vector2d texCoord) {
+		int x = (int) (texCoord.x * image.getWidth() + 0.5);
+		int y = (int) ((1.0 - texCoord.y) * image.getHeight() + 0.5);
+		x = x % image.getWidth();
+		if (x < 0) x += image.getWidth();
+		y = y % image.getHeight();
+		if (y < 0) y += image.getHeight();
+		return new Colord(Color.fromIntRGB(image.getRGB(x, y)));
+	}
+
+	/**
+	 * Render the green channel of the texture on a ground plane, seen from
+	 * just above it: screen position (sx, sy) maps to the plane point at depth
+	 * z = 1 / sy, and the texture repeats every 1/8 unit.
+	 */
+	private static double[] render(Texture texture, int size, int samples, boolean filter) {
+		double[] out = new double[size * size];
+		Random random = new Random(size * 31 + samples);
+		Vector2d texCoord = new Vector2d();
+		Colord color = new Colord();
+		for (int py = 0; py < size; py++) {
+			for (int px = 0; px < size; px++) {
+				double footprint = filter ? footprint(px, py, size) : 0;
+				double sum = 0;
+				for (int s = 0; s < samples; s++) {
+					toUV(px + random.nextDouble(), py + random.nextDouble(), size, texCoord);
+					texture.getTexColor(texCoord, footprint, color);
+					sum += color.y;
+				}
+				out[py * size + px] = sum / samples;
+			}
+		}
+		return out;
+	}
+
+	/** @return the UV extent of a pixel, from its neighbors */
+	private static double footprint(int px, int py, int size) {
+		Vector2d uv = new Vector2d(), dx = new Vector2d(), dy = new Vector2d();
+		toUV(px + 0.5, py + 0.5, size, uv);
+		toUV(px + 1.5, py + 0.5, size, dx);
+		toUV(px + 0.5, py + 1.5, size, dy);
+		return Math.max(dx.sub(uv).len(), dy.sub(uv).len());
+	}
+
+	private static void toUV(double x, double y, int size, Vector2d outUV) {
+		double sx = x / size - 0.5, sy = (y + 2) / size;
+		double z = 1 / sy;
+		outUV.set(8 * sx * z, 8 * z);
+	}
+
+	private static double rmse(double[] a, double[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += (a[i] - b[i]) * (a[i] - b[i]);
+		return Math.sqrt(sum / a.length);
+	}
+}
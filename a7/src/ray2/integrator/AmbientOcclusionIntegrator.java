@@ -0,0 +1,72 @@
+package ray2.integrator;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.Scene;
+import ray2.material.BSDF;
+import ray2.sampler.Sampler;
+
+/**
+ * An Integrator for quick previews: the diffuse reflectance of the surface,
+ * times the fraction of the hemisphere above it that is open, as if the
+ * surface were lit by a uniform white sky.  It ignores the lights.
+ *
+ * Each sample traces one shadow ray in a cosine-distributed direction, so
+ * the image is noisy at low sample counts in the same way as a path traced
+ * one, but much cheaper.  The vectors and the ray it needs are kept per
+ * thread, so shading allocates nothing.
+ */
+public class AmbientOcclusionIntegrator extends Integrator {
+
+	/** How far away an occluder can be and still count; infinite by default. */
+	protected double distance = Double.POSITIVE_INFINITY;
+	public void setDistance(double distance) { this.distance = distance; }
+	public double getDistance() { return distance; }
+
+	/** The temporaries of one thread's shade() calls. */
+	private static class Scratch {
+		final Vector3d n = new Vector3d(), u = new Vector3d(), v = new Vector3d();
+		final Vector2d seed = new Vector2d();
+		final Ray shadowRay = new Ray();
+	}
+
+	private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	@Override
+	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+		BSDF bsdf = iRec.surface.getBSDF();
+		if (bsdf != null)
+			outRadiance.set(bsdf.getDiffuseReflectance());
+		else
+			outRadiance.set(1);
+
+		// The normal facing the ray
+		Scratch t = scratch.get();
+		Vector3d n = t.n.set(iRec.normal);
+		if (n.dot(ray.direction) > 0)
+			n.negate();
+
+		// A cosine-distributed direction about n
+		Vector2d seed = sampler.next2D(t.seed);
+		double r = Math.sqrt(seed.x), phi = 2 * Math.PI * seed.y;
+		Vector3d u = t.u, v = t.v;
+		if (Math.abs(n.x) < 0.5)
+			u.set(1, 0, 0);
+		else
+			u.set(0, 1, 0);
+		u.cross(n).normalize();
+		v.set(n).cross(u);
+		Ray shadowRay = t.shadowRay;
+		shadowRay.origin.set(iRec.location);
+		shadowRay.direction.set(n).mul(Math.sqrt(1 - seed.x));
+		shadowRay.direction.addMultiple(r * Math.cos(phi), u);
+		shadowRay.direction.addMultiple(r * Math.sin(phi), v);
+		shadowRay.makeOffsetSegment(distance);
+
+		if (scene.getAnyIntersection(shadowRay))
+			outRadiance.setZero();
+	}
+}
@@ -11,6 +11,7 @@ import ray2.light.Light;
 import ray2.light.PointLight;
 import ray2.material.BSDF;
 import ray2.material.BSDFSamplingRecord;
+import ray2.sampler.Sampler;
 import ray2.surface.Surface;
 
 /**
@@ -34,9 +35,12 @@ public class BSDFSamplingIntegrator extends Integrator {
 	 *      if you hit nothing:
 	 *        look up incident radiance from the environment
 	 *      if you hit a surface:
-	 *        for discrete directions, shade the ray recursively to get incident radiance
+	 *        for discrete directions, shade the ray recursively to get incident radiance,
+	 *          unless Russian roulette stops it: compute weight = brdf * cos theta / pdf
+	 *          first, and recurse only if survives(weight, throughput, depth + 1, sampler),
+	 *          with throughput * weight as the recursive ray's throughput
 	 *        for non-discrete, incident radiance is source radiance if you hit a source (else 0)
-	 *      compute the estimate for reflected radiance as incident radiance * brdf * cos theta / pdf
+	 *      compute the estimate for reflected radiance as incident radiance * weight
 	 *   2. point light source:
 	 *      for each point light in the scene:
 	 *        compute the light direction and distance
@@ -50,19 +54,29 @@ public class BSDFSamplingIntegrator extends Integrator {
 	 * directions belonging to perfectly sharp reflection and refraction components) we are leaving
 	 * out diffuse and glossy interreflections.
 	 *
-	 * @see ray2.integrator.Integrator#shade(egl.math.Colord, ray2.Scene, ray2.Ray, ray2.IntersectionRecord, int)
+	 * @see ray2.integrator.Integrator#shade(egl.math.Colord, ray2.Scene, ray2.Ray, ray2.IntersectionRecord, ray2.sampler.Sampler, int, egl.math.Colord)
 	 */
 	@Override
-	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, int depth) {
+	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth,
+			Colord throughput) {
 	   // TODO#A7: Calculate outRadiance at current shading point
        // You need to add contribution from source emission if the current surface has a light source,
        // generate a sample from the BSDF,
        // look up lighting in that direction and get incident radiance.
        // Before you calculate the reflected radiance, you need to check whether the probability value
        // from bsdf sample is 0.
+       // Take the seed for the BSDF sample from sampler.next2D(), and pass the sampler on
+       // to RayTracer.shadeRay for recursive rays.  Before a recursive ray, play Russian
+       // roulette with survives(), which also adjusts the ray's weight, and give shadeRay
+       // the recursive ray's throughput, throughput * weight.
 		
 	}
 
+	@Override
+	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+		shade(outRadiance, scene, ray, iRec, sampler, depth, Colord.WHITE);
+	}
+
 	/**
 	 * A utility method to check if there is any surface between the given intersection
 	 * point and the given light.
@@ -0,0 +1,143 @@
+package ray2.integrator;
+
+import java.util.Arrays;
+
+import egl.math.Colord;
+import ray2.Image;
+import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
+import ray2.Ray;
+import ray2.Scene;
+import ray2.sampler.Sampler;
+
+/**
+ * An Integrator that shows what each pixel costs to trace instead of how it
+ * looks, to find the geometry that makes a scene slow.  Each pixel is the
+ * average over its samples of the work done for the whole path, from the
+ * camera ray on, whether it hits anything or not:
+ *
+ *   red    the number of BVH nodes visited
+ *   green  the number of ray-primitive intersection tests
+ *   blue   the number of rays traced
+ *
+ * as counted in the thread's IntersectionScratch, whose counters RayTracer
+ * turns on for the render, without the rest of RenderStats, and off again
+ * when it ends.  The paths are shaded by
+ * another integrator, given with &lt;integrator type="..."&gt; inside this one,
+ * so that the costs are those of a real render; with none, which is the
+ * default, only the camera rays are traced.
+ *
+ * RayTracer writes the image with the counts as usual, and also a
+ * false-color PNG of each measure, &lt;input_file&gt;.nodes.png, .tests.png and
+ * .rays.png, with black for none and white for as many as the pixel at the
+ * 99.5th percentile, so that a few extreme pixels do not wash the rest out.
+ * Long thin triangles and overlapping objects show up as bright spots in
+ * the nodes and tests maps.
+ *
+ * Since the counts are per sample, this works with the renderers that take
+ * a sample at a time: block renders and ProgressiveRenderer.  With packets,
+ * each camera ray is traced again inside shadeSample() to be counted.
+ * RayTracer refuses to render it with the WavefrontRenderer.
+ */
+public class HeatmapIntegrator extends Integrator {
+
+	/** The integrator that shades the paths, or null to trace only camera rays. */
+	protected Integrator integrator = null;
+	public void setIntegrator(Integrator integrator) { this.integrator = integrator; }
+	public Integrator getIntegrator() { return integrator; }
+
+	/** The file suffixes of the heatmaps of each channel. */
+	public static final String[] MAPS = { "nodes", "tests", "rays" };
+
+	/** The percentile of each channel that is shown as white. */
+	public static final double TOP_PERCENTILE = 99.5;
+
+	public HeatmapIntegrator() { }
+
+	@Override
+	public void init() {
+		if (integrator != null)
+			integrator.init();
+	}
+
+	@Override
+	public void shadeSample(Colord outRadiance, Scene scene, Ray ray, Sampler sampler) {
+		IntersectionScratch scratch = IntersectionScratch.get();
+		long nodes = scratch.nodeVisits, tests = scratch.primitiveTests, rays = scratch.rays;
+		super.shadeSample(outRadiance, scene, ray, sampler);
+		outRadiance.set(scratch.nodeVisits - nodes, scratch.primitiveTests - tests, scratch.rays - rays);
+		outRadiance.mul(1 / scene.getExposure());
+	}
+
+	@Override
+	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+		shade(outRadiance, scene, ray, iRec, sampler, depth, Colord.WHITE);
+	}
+
+	@Override
+	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth,
+			Colord throughput) {
+		if (integrator != null)
+			integrator.shade(outRadiance, scene, ray, iRec, sampler, depth, throughput);
+		else
+			outRadiance.setZero();
+	}
+
+	/**
+	 * Write the false-color heatmap of each channel of a rendered image to
+	 * &lt;baseName&gt;.&lt;map&gt;.png, and print the range of each.
+	 */
+	public static void writeHeatmaps(Image image, String baseName) {
+		float[] data = image.getData();
+		int numPixels = image.getWidth() * image.getHeight();
+		for (int c = 0; c < MAPS.length; c++) {
+			float[] values = new float[numPixels];
+			double sum = 0;
+			for (int i = 0; i < numPixels; i++) {
+				values[i] = data[3 * i + c];
+				sum += values[i];
+			}
+			float[] sorted = values.clone();
+			Arrays.sort(sorted);
+			double max = sorted[numPixels - 1];
+			double top = sorted[Math.min(numPixels - 1, (int) (numPixels * TOP_PERCENTILE / 100))];
+			if (top <= 0)
+				top = 1;
+
+			Image map = new Image(image.getWidth(), image.getHeight());
+			float[] out = map.getData();
+			Colord color = new Colord();
+			for (int i = 0; i < numPixels; i++) {
+				falseColor(values[i] / top, color);
+				out[3 * i] = (float) color.x;
+				out[3 * i + 1] = (float) color.y;
+				out[3 * i + 2] = (float) color.z;
+			}
+			String fileName = baseName + "." + MAPS[c] + ".png";
+			map.write(fileName);
+			System.out.printf("Heatmap: %s per sample: mean %.1f, %.1f%% under %.1f (white), max %.1f; wrote %s%n",
+					MAPS[c], sum / numPixels, TOP_PERCENTILE, top, max, fileName);
+		}
+	}
+
+	/** The false-color scale, from 0 to 1, in sRGB: black, purple, red, orange, yellow, white. */
+	private static final double[][] SCALE = {
+		{ 0, 0, 0 }, { 0.35, 0.05, 0.5 }, { 0.8, 0.1, 0.25 }, { 1, 0.5, 0 }, { 1, 0.9, 0.1 }, { 1, 1, 1 } };
+
+	/**
+	 * Set color to the false color of t, clamped to [0, 1], in linear RGB
+	 * (as Image.write() expects).
+	 */
+	static void falseColor(double t, Colord color) {
+		t = Math.max(0, Math.min(t, 1)) * (SCALE.length - 1);
+		int i = Math.min((int) t, SCALE.length - 2);
+		double f = t - i;
+		double[] a = SCALE[i], b = SCALE[i + 1];
+		color.set(toLinear(a[0] + f * (b[0] - a[0])), toLinear(a[1] + f * (b[1] - a[1])),
+				toLinear(a[2] + f * (b[2] - a[2])));
+	}
+
+	private static double toLinear(double c) {
+		return c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+	}
+}
@@ -3,19 +3,48 @@ package ray2.integrator;
 import egl.math.Colord;
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.PathLengths;
+import ray2.RayTracer;
 import ray2.Scene;
+import ray2.WavefrontPath;
+import ray2.sampler.Sampler;
 
 /**
  * An Integrator encapsulates an algorithm for shading surfaces. Different integrators
  * will have different strategies for estimating reflected radiance, and they may also
  * have different policies about what illumination to include (such as only paying attention
  * to certain kinds of light sources, or omitting certain types of interreflections.
+ *
+ * Integrators must draw all their random numbers from the sampler they are given,
+ * so that every pixel can be rendered again exactly.
  * 
  * @author srm
  */
 public abstract class Integrator {
 	
 	public static final Integrator DEFAULT_INTEGRATOR = new LightSamplingIntegrator(); 
+
+	/**
+	 * Russian roulette: recursive rays at this depth or deeper are traced only
+	 * with a probability that follows their weight, and the ones that survive
+	 * are weighted up to make up for the others (see survives()).  0 turns it
+	 * off, so that paths stop only at the scene's maxDepth.
+	 */
+	protected int rouletteDepth = 0;
+	public void setRouletteDepth(int rouletteDepth) { this.rouletteDepth = Math.max(0, rouletteDepth); }
+	public int getRouletteDepth() { return rouletteDepth; }
+
+	/**
+	 * The least probability with which Russian roulette lets a ray survive,
+	 * however small its weight.  Smaller values stop more dim paths, but the
+	 * few that survive get large weights, which shows up as fireflies.
+	 */
+	protected double minSurvival = 0.05;
+	public void setMinSurvival(double minSurvival) { this.minSurvival = Math.max(1e-3, Math.min(minSurvival, 1)); }
+	public double getMinSurvival() { return minSurvival; }
+
+	/** Whether this class overrides shadeSample(outRadiance, scene, ray, sampler). */
+	private final boolean customSample = overridesShadeSample();
 	
 	/**
 	 * Compute the reflected radiance for a ray intersection.  Implementations can do 
@@ -29,10 +58,136 @@ public abstract class Integrator {
 	 * @param scene The scene containing sources and geometry
 	 * @param ray The ray being shaded
 	 * @param iRec Record with information about the ray intersection
+	 * @param sampler The source of random numbers for this sample of the pixel
 	 * @param depth The recursion depth of the ray
 	 */
 	public abstract void shade(Colord outRadiance, Scene scene, Ray ray, 
-			IntersectionRecord iRec, int depth);
+			IntersectionRecord iRec, Sampler sampler, int depth);
+
+	/**
+	 * Same as shade(), but also given the throughput of the path up to ray:
+	 * the product of the weights of the rays before it, which multiplies the
+	 * radiance shaded here on its way to the camera.  This is what RayTracer
+	 * calls.  The default ignores the throughput and calls shade().
+	 *
+	 * Integrators that trace recursive rays should override this one, pass
+	 * throughput times the ray's weight to RayTracer.shadeRay() for the
+	 * recursive ray, and give throughput to survives(), so that Russian
+	 * roulette follows the weight of the whole path rather than of one
+	 * bounce.  Their shade() can call this with Colord.WHITE, the throughput
+	 * of a camera ray.
+	 *
+	 * @param throughput the throughput of the path up to ray, which is not modified
+	 */
+	public void shade(Colord outRadiance, Scene scene, Ray ray,
+			IntersectionRecord iRec, Sampler sampler, int depth, Colord throughput) {
+		shade(outRadiance, scene, ray, iRec, sampler, depth);
+	}
+
+	/**
+	 * Shade the camera ray of one sample of a pixel, as RayTracer.samplePixel()
+	 * does for the renderers that take a sample at a time.  The default traces
+	 * it with RayTracer.shadeRay(), which calls shade() if it hits something;
+	 * integrators that need to see the whole sample, hit or miss, as
+	 * HeatmapIntegrator does, can override it.
+	 *
+	 * @param outRadiance The radiance along the ray
+	 * @param scene The scene containing sources and geometry
+	 * @param ray The camera ray
+	 * @param sampler The source of random numbers for this sample of the pixel
+	 */
+	public void shadeSample(Colord outRadiance, Scene scene, Ray ray, Sampler sampler) {
+		RayTracer.shadeRay(outRadiance, scene, ray, sampler, 1);
+	}
+
+	/**
+	 * The same for a camera ray that the renderer has already intersected with
+	 * the scene, as the packet renderer does.  By default this shades the hit
+	 * as shadeSample(outRadiance, scene, ray, sampler) would have; if a
+	 * subclass overrides that method, this calls it instead, tracing the ray
+	 * again, so that the image is the same with packets or without.
+	 *
+	 * @param iRec the camera ray's first intersection, or null if it hit nothing
+	 */
+	public void shadeSample(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler) {
+		if (customSample)
+			shadeSample(outRadiance, scene, ray, sampler);
+		else
+			RayTracer.shadeTracedRay(outRadiance, scene, ray, iRec, sampler, 1, Colord.WHITE);
+	}
+
+	private boolean overridesShadeSample() {
+		try {
+			return getClass().getMethod("shadeSample", Colord.class, Scene.class, Ray.class, Sampler.class)
+					.getDeclaringClass() != Integrator.class;
+		} catch (NoSuchMethodException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Shade a ray intersection for the WavefrontRenderer.  Instead of returning
+	 * the radiance and tracing further rays itself, the integrator adds light
+	 * to the path and asks for shadow and extension rays through path, and the
+	 * renderer traces those rays later in batches (see WavefrontPath).  The
+	 * rules for random numbers are the same as for shade().
+	 *
+	 * The default calls shade(), with the path's throughput, and adds its
+	 * result, so that every integrator can be used with the WavefrontRenderer;
+	 * integrators that trace rays should override it to let the renderer
+	 * trace them breadth-first.
+	 *
+	 * @param path The path being traced, through which the results are given
+	 * @param scene The scene containing sources and geometry
+	 * @param ray The ray being shaded
+	 * @param iRec Record with information about the ray intersection
+	 * @param sampler The source of random numbers for this sample of the pixel
+	 */
+	public void shadeWavefront(WavefrontPath path, Scene scene, Ray ray,
+			IntersectionRecord iRec, Sampler sampler) {
+		Colord radiance = new Colord();
+		shade(radiance, scene, ray, iRec, sampler, path.getDepth(), path.getThroughput(new Colord()));
+		path.addRadiance(radiance);
+	}
+
+	/**
+	 * Play Russian roulette for a recursive ray.  Below rouletteDepth every
+	 * ray survives.  From there on the ray survives with probability
+	 *
+	 *   q = max(minSurvival, min(1, largest component of throughput * weight))
+	 *
+	 * and if it does, weight is divided by q, so that the estimate stays
+	 * unbiased: paths that carry little light are mostly stopped, and the
+	 * ones that go on stand in for them.  A random number is drawn from the
+	 * sampler only when the roulette is played.
+	 *
+	 * @param weight the factor, such as brdf * cos theta / pdf, that multiplies
+	 *   the radiance coming back along the ray; divided by the survival
+	 *   probability if the ray survives
+	 * @param throughput the throughput of the path up to the ray that is
+	 *   shading, as given to shade() or by WavefrontPath.getThroughput(); null
+	 *   decides on weight alone, the roulette of a single bounce
+	 * @param depth the depth of the recursive ray
+	 * @param sampler the source of random numbers for this sample of the pixel
+	 * @return true if the ray should be traced
+	 */
+	protected boolean survives(Colord weight, Colord throughput, int depth, Sampler sampler) {
+		if (rouletteDepth <= 0 || depth < rouletteDepth)
+			return true;
+		double x = weight.x, y = weight.y, z = weight.z;
+		if (throughput != null) {
+			x *= throughput.x;
+			y *= throughput.y;
+			z *= throughput.z;
+		}
+		double q = Math.max(minSurvival, Math.min(1, Math.max(x, Math.max(y, z))));
+		if (sampler.next1D() >= q) {
+			PathLengths.countRoulette(depth);
+			return false;
+		}
+		weight.mul(1 / q);
+		return true;
+	}
 
 	public void init() { }
 }
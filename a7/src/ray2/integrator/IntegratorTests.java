@@ -0,0 +1,304 @@
+package ray2.integrator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import egl.math.Colord;
+import egl.math.Vector3d;
+import ray2.Image;
+import ray2.IntersectionRecord;
+import ray2.PathLengths;
+import ray2.Ray;
+import ray2.RenderStats;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.WavefrontRenderer;
+import ray2.accel.AccelStruct;
+import ray2.accel.Bvh;
+import ray2.accel.LinearBvh;
+import ray2.camera.PerspectiveCamera;
+import ray2.sampler.IndependentSampler;
+import ray2.sampler.Sampler;
+import ray2.surface.Sphere;
+
+public class IntegratorTests {
+
+	/** Bounces back along z with a fixed weight, stopped only by the roulette or the depth. */
+	static class MirrorIntegrator extends Integrator {
+		@Override
+		public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+			shade(outRadiance, scene, ray, iRec, sampler, depth, Colord.WHITE);
+		}
+
+		@Override
+		public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth,
+				Colord throughput) {
+			outRadiance.set(0.1);
+			Colord weight = new Colord(0.5, 0.5, 0.5);
+			if (!survives(weight, throughput, depth + 1, sampler))
+				return;
+			Ray back = new Ray(iRec.location, new Vector3d(0, 0, -ray.direction.z));
+			back.makeOffsetRay();
+			Colord incoming = new Colord(), backThroughput = new Colord(weight);
+			backThroughput.mul(throughput);
+			RayTracer.shadeRay(incoming, scene, back, sampler, depth + 1, backThroughput);
+			outRadiance.add(incoming.mul(weight));
+		}
+	}
+
+	@After
+	public void turnOffStats() {
+		RenderStats.setEnabled(false);
+	}
+
+	@Test
+	public void testSurvivesIsUnbiased() {
+		Integrator integrator = new MirrorIntegrator();
+		Sampler sampler = new IndependentSampler();
+		sampler.startPixel(0, 0, 0);
+		Colord weight = new Colord();
+
+		// Off, or below the start depth: always survives, and draws nothing
+		assertTrue(integrator.survives(new Colord(0.001, 0.001, 0.001), null, 20, sampler));
+		integrator.setRouletteDepth(3);
+		weight.set(0.001);
+		assertTrue(integrator.survives(weight, null, 2, sampler));
+		assertEquals(0.001, weight.x, 0);
+
+		// The expected weight is unchanged, and the survival rate follows the weight
+		int n = 200000, survived = 0;
+		double sum = 0;
+		Colord throughput = new Colord(0.5, 1, 1);
+		for (int i = 0; i < n; i++) {
+			weight.set(0.3, 0.2, 0.1);
+			if (integrator.survives(weight, throughput, 3, sampler)) {
+				survived++;
+				sum += weight.y;
+			}
+		}
+		assertEquals(0.2, (double) survived / n, 0.005);
+		assertEquals(0.2, sum / n, 0.005);
+
+		// Never below minSurvival
+		integrator.setMinSurvival(0.25);
+		survived = 0;
+		for (int i = 0; i < n; i++) {
+			weight.set(0.01);
+			if (integrator.survives(weight, null, 5, sampler))
+				survived++;
+		}
+		assertEquals(0.25, (double) survived / n, 0.005);
+	}
+
+	@Test
+	public void testMaxDepthAndRoulette() {
+		// A ray going back and forth between two mirrors forever
+		Scene scene = new Scene();
+		scene.setCamera(new PerspectiveCamera());
+		for (double z : new double[] { -3, 3 }) {
+			Sphere sphere = new Sphere();
+			sphere.setCenter(new Vector3d(0, 0, z));
+			sphere.setRadius(1);
+			scene.addSurface(sphere);
+		}
+		MirrorIntegrator integrator = new MirrorIntegrator();
+		scene.setIntegrator(integrator);
+		scene.setImage(new Image(1, 1));
+		scene.init();
+		Sampler sampler = new IndependentSampler();
+		Ray ray = new Ray(new Vector3d(), new Vector3d(0, 0, -1));
+		ray.makeOffsetRay();
+		Colord radiance = new Colord();
+
+		// Without roulette the path is as long as maxDepth, and its radiance is a geometric series
+		RenderStats.setEnabled(true);
+		scene.setMaxDepth(5);
+		PathLengths.reset();
+		sampler.startPixel(0, 0, 0);
+		RayTracer.shadeRay(radiance, scene, ray, sampler, 1);
+		assertEquals(0.1 * (1 - Math.pow(0.5, 5)) / 0.5, radiance.x, 1e-12);
+		assertEquals(1, PathLengths.getRayCount(5));
+		assertEquals(0, PathLengths.getRayCount(6));
+		assertEquals(1, PathLengths.getCutCount(6));
+
+		// With roulette, the paths have the length distribution that the weights say, and the mean is right
+		scene.setMaxDepth(200);
+		integrator.setRouletteDepth(2);
+		PathLengths.reset();
+		int n = 20000;
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sampler.startPixel(i, 0, 0);
+			RayTracer.shadeRay(radiance, scene, ray, sampler, 1);
+			sum += radiance.x;
+		}
+		assertEquals(0.2, sum / n, 0.005);
+		assertEquals(n, PathLengths.getRayCount(1));
+		assertEquals(n / 2, PathLengths.getRayCount(2), 0.02 * n);
+		assertEquals(n / 4, PathLengths.getRayCount(3), 0.02 * n);
+		for (int d = 2; d < 10; d++)
+			assertEquals(PathLengths.getRayCount(d - 1), PathLengths.getRayCount(d) + PathLengths.getRouletteCount(d));
+		assertFalse(PathLengths.getCutCount(201) > 0);
+
+		// The roulette follows the throughput of the whole path: a path that
+		// starts at a tenth survives its first bounce as often as minSurvival
+		PathLengths.reset();
+		Colord dim = new Colord(0.1, 0.1, 0.1);
+		for (int i = 0; i < n; i++) {
+			sampler.startPixel(i, 1, 0);
+			RayTracer.shadeRay(radiance, scene, ray, sampler, 1, dim);
+		}
+		assertEquals(n * 0.05, PathLengths.getRayCount(2), 0.005 * n);
+
+		// With the counters off, nothing is counted
+		RenderStats.setEnabled(false);
+		PathLengths.reset();
+		RayTracer.shadeRay(radiance, scene, ray, sampler, 1);
+		assertEquals(0, PathLengths.getRayCount(1));
+	}
+
+	@Test
+	public void testHeatmap() {
+		Scene scene = new Scene();
+		scene.setCamera(new PerspectiveCamera());
+		for (double z : new double[] { -3, 3 }) {
+			Sphere sphere = new Sphere();
+			sphere.setCenter(new Vector3d(0, 0, z));
+			sphere.setRadius(1);
+			scene.addSurface(sphere);
+		}
+		HeatmapIntegrator heatmap = new HeatmapIntegrator();
+		heatmap.setIntegrator(new MirrorIntegrator());
+		scene.setIntegrator(heatmap);
+		scene.setMaxDepth(5);
+		scene.setImage(new Image(1, 1));
+		scene.init();
+		RenderStats.setCounting(true);
+		Sampler sampler = new IndependentSampler();
+		sampler.startPixel(0, 0, 0);
+		Colord cost = new Colord();
+
+		// Between the mirrors the path is maxDepth rays long; the BVH is one leaf of both spheres
+		Ray ray = new Ray(new Vector3d(), new Vector3d(0, 0, -1));
+		ray.makeOffsetRay();
+		heatmap.shadeSample(cost, scene, ray, sampler);
+		assertEquals(5, cost.z, 0);
+		assertEquals(5, cost.x, 0);
+		assertEquals(10, cost.y, 0);
+
+		// A miss costs its ray too, and starting inside the leaf's box it still tests both spheres
+		ray = new Ray(new Vector3d(), new Vector3d(1, 0, 0));
+		ray.makeOffsetRay();
+		heatmap.shadeSample(cost, scene, ray, sampler);
+		assertEquals(1, cost.z, 0);
+		assertEquals(1, cost.x, 0);
+		assertEquals(2, cost.y, 0);
+
+		// Black to white
+		HeatmapIntegrator.falseColor(-1, cost);
+		assertEquals(0, cost.x + cost.y + cost.z, 0);
+		HeatmapIntegrator.falseColor(2, cost);
+		assertEquals(3, cost.x + cost.y + cost.z, 1e-12);
+	}
+
+	/** Shades by the normal and the sampler, and marks each sample it sees whole. */
+	static class SampleIntegrator extends Integrator {
+		@Override
+		public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+			outRadiance.set(iRec.normal.x + sampler.next1D(), iRec.normal.y, iRec.normal.z);
+		}
+
+		@Override
+		public void shadeSample(Colord outRadiance, Scene scene, Ray ray, Sampler sampler) {
+			super.shadeSample(outRadiance, scene, ray, sampler);
+			outRadiance.add(0.25);
+		}
+	}
+
+	@Test
+	public void testHeatmapCountsForItsRenderOnly() {
+		Scene scene = new Scene();
+		scene.setCamera(new PerspectiveCamera());
+		scene.setIntegrator(new HeatmapIntegrator());
+		scene.setImage(new Image(2, 2));
+		scene.init();
+		assertFalse(RenderStats.isCounting());
+
+		// Every pixel traces its camera ray, and once the render is over nothing counts
+		boolean display = RayTracer.getDisplay();
+		RayTracer.setDisplay(false);
+		try {
+			new RayTracer().renderImage(scene);
+		} finally {
+			RayTracer.setDisplay(display);
+		}
+		Colord cost = new Colord();
+		scene.getImage().getPixelColor(cost, 1, 1);
+		assertEquals(1, cost.z * scene.getExposure(), 1e-6);
+		assertFalse(RenderStats.isCounting());
+	}
+
+	@Test
+	public void testPacketsRenderTheSameImage() {
+		for (Integrator integrator : new Integrator[] { new MirrorIntegrator(), new SampleIntegrator() }) {
+			Scene scene = new Scene();
+			scene.setCamera(new PerspectiveCamera());
+			for (int k = 0; k < 5; k++) {
+				Sphere sphere = new Sphere();
+				sphere.setCenter(new Vector3d(k - 2, 0.5 * (k % 2), -4 - k));
+				sphere.setRadius(0.6);
+				scene.addSurface(sphere);
+			}
+			scene.setAccelStruct(new LinearBvh());
+			scene.setIntegrator(integrator);
+			scene.setSamples(2);
+			scene.setImage(new Image(20, 12));
+			scene.init();
+
+			Image[] images = new Image[2];
+			for (int k = 0; k < 2; k++) {
+				scene.setPacketSize(k == 0 ? 0 : 16);
+				images[k] = new Image(20, 12);
+				RayTracer.renderBlock(scene, images[k], 0, 0, 20, 12);
+			}
+			Colord c0 = new Colord(), c1 = new Colord();
+			for (int y = 0; y < 12; y++) {
+				for (int x = 0; x < 20; x++) {
+					images[0].getPixelColor(c0, x, y);
+					images[1].getPixelColor(c1, x, y);
+					assertTrue(integrator + ": pixel " + x + ", " + y + " differs with packets: " + c0 + " vs " + c1,
+							c0.x == c1.x && c0.y == c1.y && c0.z == c1.z);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testPacketSizeNeedsPacketTraversal() {
+		for (AccelStruct accel : new AccelStruct[] { new Bvh(), new LinearBvh() }) {
+			Scene scene = new Scene();
+			scene.setCamera(new PerspectiveCamera());
+			scene.addSurface(new Sphere());
+			scene.setAccelStruct(accel);
+			scene.setPacketSize(16);
+			scene.setImage(new Image(1, 1));
+			scene.init();
+			assertEquals(accel.getClass().getSimpleName(), accel.tracesPackets() ? 16 : 0, scene.getPacketSize());
+		}
+	}
+
+	@Test(expected = Error.class)
+	public void testHeatmapRejectsWavefronts() {
+		Scene scene = new Scene();
+		scene.setCamera(new PerspectiveCamera());
+		scene.setIntegrator(new HeatmapIntegrator());
+		scene.setWavefront(new WavefrontRenderer());
+		scene.setImage(new Image(1, 1));
+		scene.init();
+		new RayTracer().renderImage(scene);
+	}
+}
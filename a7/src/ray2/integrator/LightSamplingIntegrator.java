@@ -12,6 +12,7 @@ import ray2.light.Light;
 import ray2.light.LightSamplingRecord;
 import ray2.material.BSDF;
 import ray2.material.BSDFSamplingRecord;
+import ray2.sampler.Sampler;
 import ray2.surface.Surface;
 
 /**
@@ -23,6 +24,17 @@ import ray2.surface.Surface;
  */
 public class LightSamplingIntegrator extends Integrator {
 
+	/**
+	 * The number of light samples per shading point.  If it is 0, every light
+	 * is sampled once (step 1 below).  Otherwise the lights are chosen from
+	 * scene.getLightTree() this many times, which costs time that grows with
+	 * the log of the number of lights rather than linearly; use it for scenes
+	 * with many lights, with <lightSamples>1</lightSamples> in the integrator.
+	 */
+	protected int lightSamples = 0;
+	public void setLightSamples(int lightSamples) { this.lightSamples = lightSamples; }
+	public int getLightSamples() { return lightSamples; }
+
 	/*
 	 * The illumination algorithm is:
 	 *
@@ -36,6 +48,11 @@ public class LightSamplingIntegrator extends Integrator {
 	 *        do a shadow test
 	 *        compute the estimate of this light's contribution
 	 *          as (source radiance) * brdf * attenuation * (cos theta) / pdf, and add it
+	 *      or, if lightSamples > 0, lightSamples times:
+	 *        choose a light and a point on it with scene.getLightTree().sample()
+	 *        and compute the estimate in the same way; the probability it
+	 *        returns includes the probability of choosing that light.
+	 *        Average the lightSamples estimates.
 	 *   2. environment:
 	 *      choose a direction from the environment
 	 *      evaluate the BRDF
@@ -44,8 +61,10 @@ public class LightSamplingIntegrator extends Integrator {
 	 *        as (env radiance) * brdf * (cos theta) / pdf, and add it
 	 *   3. mirror reflections and refractions:
 	 *      choose a direction from the BSDF, continuing only if it is discrete
-	 *      trace a recursive ray
-	 *      add the recursive radiance weighted by (cos theta) * (brdf value) / (probability)
+	 *      compute weight = (cos theta) * (brdf value) / (probability)
+	 *      play Russian roulette: continue only if survives(weight, throughput, depth + 1, sampler)
+	 *      trace a recursive ray, with throughput * weight as its throughput
+	 *      add the recursive radiance multiplied by weight
 	 *
 	 * Step 3 is violating the idea of light source sampling a bit, but it is needed because it's impossible
 	 * to choose a light source point exactly in the reflection or refraction direction, and we do like to be
@@ -58,17 +77,28 @@ public class LightSamplingIntegrator extends Integrator {
 	 * by the Light subclasses: Point light sets its attenuation to 1 / r^2 whereas RectangleLight sets the
 	 * attenuation to (cos theta_source) / r^2.
 	 *
-	 * @see ray2.integrator.Integrator#shade(egl.math.Colord, ray2.Scene, ray2.Ray, ray2.IntersectionRecord, int)
+	 * @see ray2.integrator.Integrator#shade(egl.math.Colord, ray2.Scene, ray2.Ray, ray2.IntersectionRecord, ray2.sampler.Sampler, int, egl.math.Colord)
 	 */
 	@Override
-	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, int depth) {
+	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth,
+			Colord throughput) {
 		// TODO#A7: Calculate outRadiance at current shading point.
 	    // You need to add contribution from each light,
+	    // (or, if lightSamples > 0, from lights chosen with scene.getLightTree().sample()),
 	    // add contribution from environment light if there is any.
 	    // add mirror reflection and refraction.
+	    // Take every seed (for lights, the environment and the BSDF) from sampler.next2D(),
+	    // and pass the sampler on to RayTracer.shadeRay for recursive rays.  Before a
+	    // recursive ray, play Russian roulette with survives(), which also adjusts its weight,
+	    // and give shadeRay the recursive ray's throughput, throughput * weight.
 		 
 	}
 
+	@Override
+	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+		shade(outRadiance, scene, ray, iRec, sampler, depth, Colord.WHITE);
+	}
+
 	/**
 	 * A utility method to check if there is any surface between the given intersection
 	 * point and the given light. shadowRay is set to point from the intersection point
@@ -8,6 +8,7 @@ import ray2.Scene;
 import ray2.light.Light;
 import ray2.light.PointLight;
 import ray2.material.BSDF;
+import ray2.sampler.Sampler;
 import ray2.surface.Surface;
 
 /**
@@ -25,10 +26,10 @@ public class PointLightIntegrator extends Integrator {
 	 *     evaluate the BRDF
 	 *     add a contribution to the reflected radiance due to that source
 	 *
-	 * @see ray2.integrator.Integrator#shade(egl.math.Colord, ray2.Scene, ray2.Ray, ray2.IntersectionRecord, int)
+	 * @see ray2.integrator.Integrator#shade(egl.math.Colord, ray2.Scene, ray2.Ray, ray2.IntersectionRecord, ray2.sampler.Sampler, int)
 	 */
 	@Override
-	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, int depth) {
+	public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
 		// TODO#A7: Calculate outRaidance at current shading point.
 		
 	}
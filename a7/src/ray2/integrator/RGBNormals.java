@@ -3,6 +3,7 @@ package ray2.integrator;
 import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.Scene;
+import ray2.sampler.Sampler;
 import egl.math.Colord;
 
 public class RGBNormals extends Integrator {
@@ -24,7 +25,7 @@ public class RGBNormals extends Integrator {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 */
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, Sampler sampler, int depth) {
 		outIntensity.x = (record.normal.x + 1) / 2;
 		outIntensity.y = (record.normal.y + 1) / 2;
 		outIntensity.z = (record.normal.z + 1) / 2;
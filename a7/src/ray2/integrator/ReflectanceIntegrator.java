@@ -4,11 +4,12 @@ import egl.math.Colord;
 import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.Scene;
+import ray2.sampler.Sampler;
 
 public class ReflectanceIntegrator extends Integrator {
 
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord iRec, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
 		outIntensity.set(iRec.surface.getBSDF().getDiffuseReflectance());
 	}
 
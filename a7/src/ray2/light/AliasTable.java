@@ -0,0 +1,117 @@
+package ray2.light;
+
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Walker's alias method for sampling from a discrete distribution in constant
+ * time, built with Vose's algorithm.
+ *
+ * The n outcomes each get a bucket of probability 1/n.  Bucket i holds
+ * outcome i with probability prob[i] and outcome alias[i] otherwise, so a
+ * sample takes one uniform number: its integer part (times n) chooses the
+ * bucket and its fractional part chooses between the two outcomes.  What is
+ * left of the fraction is again uniform, and remap() returns it for use as
+ * another random number (Cubemap uses it for the position in the pixel).
+ *
+ * The probabilities are stored as floats, so a table takes 8 bytes per
+ * outcome, and the probability of each outcome is accurate to about float
+ * precision.
+ */
+public class AliasTable {
+
+	private final float[] prob;
+	private final int[] alias;
+	private final double totalWeight;
+
+	/**
+	 * Build a table for outcomes 0 to n - 1 with probabilities proportional
+	 * to weight.  The weights are asked for once each, so they need not be
+	 * kept in an array.  If they are all zero, every outcome is equally
+	 * likely.
+	 *
+	 * @param n the number of outcomes
+	 * @param weight the (non-negative) weight of each outcome
+	 */
+	public AliasTable(int n, IntToDoubleFunction weight) {
+		prob = new float[n];
+		alias = new int[n];
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			double w = weight.applyAsDouble(i);
+			prob[i] = (float) w;
+			total += w;
+		}
+		totalWeight = total;
+
+		// Scale so the average is 1, then sort into small (below 1) and large
+		// outcomes: one array holds the small ones from the front and the
+		// large ones from the back
+		int[] work = new int[n];
+		int small = 0, large = n;
+		for (int i = 0; i < n; i++) {
+			prob[i] = total > 0 ? (float) (prob[i] * (n / total)) : 1;
+			alias[i] = i;
+			if (prob[i] < 1)
+				work[small++] = i;
+			else
+				work[--large] = i;
+		}
+
+		// Fill each small outcome's bucket up with part of a large one
+		while (small > 0 && large < n) {
+			int s = work[--small], l = work[large++];
+			alias[s] = l;
+			double left = (double) prob[l] + prob[s] - 1;
+			prob[l] = (float) left;
+			if (left < 1)
+				work[small++] = l;
+			else
+				work[--large] = l;
+		}
+
+		// What is left is 1 up to rounding
+		while (large < n)
+			prob[work[large++]] = 1;
+		while (small > 0)
+			prob[work[--small]] = 1;
+	}
+
+	/**
+	 * @return the number of outcomes
+	 */
+	public int size() {
+		return prob.length;
+	}
+
+	/**
+	 * @return the sum of the weights the table was built from
+	 */
+	public double getTotalWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * Choose an outcome.
+	 *
+	 * @param u a uniform random number in [0, 1)
+	 * @return the outcome
+	 */
+	public int sample(double u) {
+		double t = u * prob.length;
+		int i = Math.min((int) t, prob.length - 1);
+		return t - i < prob[i] ? i : alias[i];
+	}
+
+	/**
+	 * @param u the number passed to sample()
+	 * @return the part of u that sample() did not use to choose the outcome,
+	 *   which is uniform in [0, 1) and independent of the outcome
+	 */
+	public double remap(double u) {
+		double t = u * prob.length;
+		int i = Math.min((int) t, prob.length - 1);
+		double f = t - i, p = prob[i];
+		double r = f < p ? f / p : (f - p) / (1 - p);
+		return Math.min(r, 0x1.fffffffffffffp-1);
+	}
+}
@@ -0,0 +1,51 @@
+package ray2.light;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AliasTableTests {
+
+	@Test
+	public void testProbabilities() {
+		double[] weights = { 0, 1, 2, 3, 0, 10, 0.5, 0.25, 0 };
+		AliasTable table = new AliasTable(weights.length, i -> weights[i]);
+		assertEquals(16.75, table.getTotalWeight(), 1e-12);
+
+		// Sweep u over a fine grid: each outcome gets exactly its share
+		int n = 1 << 20;
+		int[] counts = new int[weights.length];
+		for (int i = 0; i < n; i++)
+			counts[table.sample((i + 0.5) / n)]++;
+		for (int k = 0; k < weights.length; k++)
+			assertEquals("outcome " + k, weights[k] / 16.75, counts[k] / (double) n, 1e-5);
+	}
+
+	@Test
+	public void testRemapIsUniformWithinOutcome() {
+		double[] weights = { 1, 3, 0.1, 7 };
+		AliasTable table = new AliasTable(weights.length, i -> weights[i]);
+		int n = 1 << 18, bins = 8;
+		int[][] hist = new int[weights.length][bins];
+		int[] counts = new int[weights.length];
+		for (int i = 0; i < n; i++) {
+			double u = (i + 0.5) / n;
+			int k = table.sample(u);
+			double r = table.remap(u);
+			assertTrue(r >= 0 && r < 1);
+			hist[k][(int) (r * bins)]++;
+			counts[k]++;
+		}
+		for (int k = 0; k < weights.length; k++)
+			for (int b = 0; b < bins; b++)
+				assertEquals(1.0 / bins, hist[k][b] / (double) counts[k], 2e-3);
+	}
+
+	@Test
+	public void testAllZero() {
+		AliasTable table = new AliasTable(4, i -> 0);
+		for (int k = 0; k < 4; k++)
+			assertEquals(k, table.sample((k + 0.5) / 4));
+	}
+}
@@ -1,13 +1,14 @@
 package ray2.light;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import egl.math.Vector2d;
 import egl.math.Vector3d;
 import egl.math.Colord;
@@ -20,19 +21,25 @@ public class Cubemap implements Environment {
 
 	// Size of full cubemap texture
 	int width, height;
-	
+
 	// Size of (square) single-face texture
 	int blockSz;
-	
-	// Image data representing constant radiance over each pixel's area
-	float[] imageData;
-	
-	// Table of cumulative probability with which each pixel will be selected
-	// in random sampling.
-	double[] cumProb;
-	
-	// Number of bits in representation of pixel count
-	int mapBits; // 2^(mapBits-1) < width*height <= 2^mapBits
+
+	// Image data representing constant radiance over each pixel's area, mapped
+	// from the file.  Band b holds rows b << bandBits up to ((b + 1) << bandBits) - 1.
+	FloatBuffer[] imageBands;
+	int bandBits;
+
+	// Table for choosing a pixel in random sampling.  It covers only the six
+	// faces, not the empty half of the 3x4 grid: entry t is pixel t % blockSz^2
+	// (in row-major order) of face t / blockSz^2.
+	AliasTable pixelTable;
+
+	// Table of where to find each face in the 3x4 grid of the map
+	static final int[][] faceLoc = { {2, 2}, {0, 2}, {1, 3}, {1, 1}, {1, 0}, {1, 2} };
+
+	// Table of which face is at each position in the 3x4 grid of the map
+	static final int[][] locFace = { {-1, 4, -1}, { -1, 3, -1}, {1, 5, 0}, {-1, 2, -1} };
 
 	public Cubemap() { }
 
@@ -40,23 +47,17 @@ public class Cubemap implements Environment {
 		this.filename = filename;
 
 		PNMHeaderInfo hdr = new PNMHeaderInfo();
-		imageData = readPFM(new File(filename), hdr);
+		readPFM(new File(filename), hdr);
 
 		width = hdr.width;
 		height = hdr.height;
 		blockSz = width / 3;
 
-		// Set up cumulative probability table for sampling with binary search
-		cumProb = new double[width*height+1];
-		cumProb[0] = 0;
-
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] = cumProb[k-1] + calcPixelProb(k-1);
-
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] /= cumProb[width*height];
-
-		for (mapBits = 0; (1 << mapBits) < width*height; mapBits++);
+		// Set up the alias table for sampling
+		long faceSize = (long) blockSz * blockSz;
+		if (6 * faceSize > Integer.MAX_VALUE)
+			throw new Error("Cubemap: faces too large to sample: " + blockSz);
+		pixelTable = new AliasTable((int) (6 * faceSize), t -> calcPixelProb(t));
 	}
 
 	public void setScaleFactor(double scaleFactor) {
@@ -69,96 +70,102 @@ public class Cubemap implements Environment {
 	 */
 	@Override
 	public void eval(Vector3d dir, Colord outRadiance) {
-		Vector2d faceUV = new Vector2d();
-		
-		int iFace = dirToFace(dir, faceUV);
-		int k = faceToIndex(iFace, faceUV);
+		int iFace = dirToFace(dir);
+		int k = faceToIndex(iFace, faceU(iFace, dir), faceV(iFace, dir));
 
-		outRadiance.set(imageData[0 + 3*k], imageData[1 + 3*k], imageData[2 + 3*k]);
+		outRadiance.set(pixel(k, 0), pixel(k, 1), pixel(k, 2));
 		outRadiance.mul(scaleFactor);
 	}
 
-	/* 
+	/*
 	 * @see ray2.light.Environment#sample(egl.math.Vector2d, egl.math.Vector3d, egl.math.Colord)
-	 * In this implementation, sampling is achieved by performing a
-	 * binary search on a cumulative probability table, which selects a pixel to
-	 * sample, followed by selecting a random point within that pixel's square area.  Probability
+	 * In this implementation, sampling is achieved by drawing from an alias
+	 * table, which selects a pixel to sample in constant time, followed by
+	 * selecting a random point within that pixel's square area.  Probability
 	 * is defined by max(R,G,B) weighted by solid angle.
 	 */
 	@Override
 	public double sample(Vector2d seed, Vector3d outDirection, Colord outRadiance) {
 
 		// choose a pixel
-		double searchProb = seed.x;
-		int k = 0;
-
-		for (int p = mapBits-1; p >= 0; p--)
-			if (searchProb > cumProb[k + (1 << p)])
-				k += (1 << p);
+		int t = pixelTable.sample(seed.x);
+		double seedX = pixelTable.remap(seed.x);
 
-		double pixelProb = cumProb[k + 1] - cumProb[k];
-		double seedX = (searchProb - cumProb[k]) / pixelProb;
-
-		// choose u and v randomly in that pixel.  faceUV is the pixel center.
-		Vector2d faceUV = new Vector2d();
-		int iFace = indexToFace(k, faceUV);
-		faceUV.x += (2 * seedX - 1) / blockSz;
-		faceUV.y += (2 * seed.y - 1) / blockSz;
+		// choose u and v randomly in that pixel, around its center
+		int iFace = tableFace(t);
+		int iu = tableU(t), iv = tableV(t);
+		double u = 2 * (iu + seedX) / blockSz - 1;
+		double v = 2 * (iv + seed.y) / blockSz - 1;
 
 		// choose the direction based on face index and (u,v)
-		faceToDir(iFace, faceUV, outDirection);
-		
-		double u = faceUV.x;
-		double v = faceUV.y;
-		
-		outRadiance.set(imageData[0 + 3*k], imageData[1 + 3*k], imageData[2 + 3*k]);
+		faceToDir(iFace, u, v, outDirection);
+
+		int k = faceToIndex(iFace, iu, iv);
+		outRadiance.set(pixel(k, 0), pixel(k, 1), pixel(k, 2));
 		outRadiance.mul(scaleFactor);
 
-		return pixelProb * (blockSz*blockSz/4.0) * Math.pow(1 + u*u + v*v, 1.5);
+		return pixelProb(t) * (blockSz*blockSz/4.0) * jacobian(u, v);
 	}
-	
+
 	/*
 	 * @see ray2.light.Environment#pdf(egl.math.Vector3d)
 	 */
 	@Override
 	public double pdf(Vector3d dir) {
-		Vector2d faceUV = new Vector2d();
-		int iFace = dirToFace(dir, faceUV);
-		int k = faceToIndex(iFace, faceUV);
-		double pixelProb = cumProb[k+1] - cumProb[k];
-		return pixelProb * (blockSz*blockSz/4.0) * Math.pow(1 + faceUV.x*faceUV.x + faceUV.y*faceUV.y, 1.5);
+		int iFace = dirToFace(dir);
+		double u = faceU(iFace, dir), v = faceV(iFace, dir);
+		int t = iFace * blockSz * blockSz + pixelCoord(v) * blockSz + pixelCoord(u);
+		return pixelProb(t) * (blockSz*blockSz/4.0) * jacobian(u, v);
 	}
-	
-	
+
+
 
 
 	static protected int dirToFace(Vector3d dir, Vector2d outFaceUV) {
-		// direction to cube face
-		int iFace;
-		double u, v;
-
-		if (Math.abs(dir.x) > Math.abs(dir.y) && Math.abs(dir.x) > Math.abs(dir.z)) {
-			iFace = (dir.x > 0) ? 0 : 1;
-			u = dir.z / dir.x;
-			v = dir.y / Math.abs(dir.x);
-		} else if (Math.abs(dir.y) > Math.abs(dir.z)) {
-			iFace = (dir.y > 0) ? 2 : 3;
-			u = dir.x / Math.abs(dir.y);
-			v = dir.z / dir.y;
-		} else {
-			iFace = (dir.z > 0) ? 4 : 5;
-			u = dir.x / Math.abs(dir.z);
-			v = -dir.y / dir.z;
+		int iFace = dirToFace(dir);
+		outFaceUV.set(faceU(iFace, dir), faceV(iFace, dir));
+		return iFace;
+	}
+
+	/**
+	 * @return the index of the cube face that dir points into
+	 */
+	static int dirToFace(Vector3d dir) {
+		if (Math.abs(dir.x) > Math.abs(dir.y) && Math.abs(dir.x) > Math.abs(dir.z))
+			return (dir.x > 0) ? 0 : 1;
+		else if (Math.abs(dir.y) > Math.abs(dir.z))
+			return (dir.y > 0) ? 2 : 3;
+		else
+			return (dir.z > 0) ? 4 : 5;
+	}
+
+	/**
+	 * @return the u coordinate, in [-1, 1], of dir on face iFace
+	 */
+	static double faceU(int iFace, Vector3d dir) {
+		switch (iFace) {
+		case 0: case 1: return dir.z / dir.x;
+		case 2: case 3: return dir.x / Math.abs(dir.y);
+		default: return dir.x / Math.abs(dir.z);
 		}
+	}
 
-		outFaceUV.set(u, v);
-		return iFace;
+	/**
+	 * @return the v coordinate, in [-1, 1], of dir on face iFace
+	 */
+	static double faceV(int iFace, Vector3d dir) {
+		switch (iFace) {
+		case 0: case 1: return dir.y / Math.abs(dir.x);
+		case 2: case 3: return dir.z / dir.y;
+		default: return -dir.y / dir.z;
+		}
 	}
-	
+
 	static protected void faceToDir(int iFace, Vector2d faceUV, Vector3d outDir) {
-		double u = faceUV.x;
-		double v = faceUV.y;
+		faceToDir(iFace, faceUV.x, faceUV.y, outDir);
+	}
 
+	static void faceToDir(int iFace, double u, double v, Vector3d outDir) {
 		switch (iFace) {
 		case 0:
 			outDir.set(1, v, u);
@@ -184,25 +191,33 @@ public class Cubemap implements Environment {
 	}
 
 	protected int faceToIndex(int iFace, Vector2d faceUV) {
-		// Table of where to find each face in the 3x4 grid of the map
-		final int[][] faceLoc = { {2, 2}, {0, 2}, {1, 3}, {1, 1}, {1, 0}, {1, 2} }; 
+		return faceToIndex(iFace, faceUV.x, faceUV.y);
+	}
 
-		// (iu, iv) are the pixel coordinates within the face
-		int iu = (int) (blockSz * (faceUV.x + 1) / 2);
-		int iv = (int) (blockSz * (faceUV.y + 1) / 2);
+	int faceToIndex(int iFace, double u, double v) {
+		return faceToIndex(iFace, pixelCoord(u), pixelCoord(v));
+	}
 
+	/**
+	 * @return the index in the whole map of pixel (iu, iv) of face iFace
+	 */
+	int faceToIndex(int iFace, int iu, int iv) {
 		// (ix, iy) are the pixel coords in the whole map
 		int ix = iu + blockSz * faceLoc[iFace][0];
 		int iy = iv + blockSz * faceLoc[iFace][1];
 
 		return ix + width * iy;
 	}
-	
-	protected int indexToFace(int index, Vector2d outFaceUV) {
-		
-		// Table of which face is at each position in the 3x4 grid of the map
-		final int[][] locFace = { {-1, 4, -1}, { -1, 3, -1}, {1, 5, 0}, {-1, 2, -1} };
 
+	/**
+	 * @return the pixel coordinate within a face of face coordinate u (or v);
+	 *   u = 1 belongs to the last pixel
+	 */
+	int pixelCoord(double u) {
+		return Math.max(0, Math.min((int) (blockSz * (u + 1) / 2), blockSz - 1));
+	}
+
+	protected int indexToFace(int index, Vector2d outFaceUV) {
 		// (ix, iy) are the pixel coords in the whole map
 		int ix = index % width;
 		int iy = index / width;
@@ -217,99 +232,117 @@ public class Cubemap implements Environment {
 		return iFace;
 	}
 
-	protected double calcPixelProb(int k) {
-		final double INV_4PI = 1 / (4*Math.PI);
-		Vector2d faceUV = new Vector2d();
-		if (indexToFace(k, faceUV) == -1) return 0;
+	// The face and pixel coordinates of entry t of the sampling table
+	int tableFace(int t) { return t / (blockSz * blockSz); }
+	int tableU(int t) { return t % blockSz; }
+	int tableV(int t) { return (t / blockSz) % blockSz; }
 
-		float r = imageData[0 + 3*k];
-		float g = imageData[1 + 3*k];
-		float b = imageData[2 + 3*k];
-
-		double u = faceUV.x;
-		double v = faceUV.y;
-
-		return INV_4PI * Math.max(Math.max(r, g), b) / (float) Math.pow(1 + u*u + v*v, 1.5) / (blockSz * blockSz / 4.0);
+	/**
+	 * @return the solid angle Jacobian (1 + u^2 + v^2)^(3/2) at face coordinates (u, v)
+	 */
+	static double jacobian(double u, double v) {
+		double r2 = 1 + u*u + v*v;
+		return r2 * Math.sqrt(r2);
 	}
 
-	public static class PNMHeaderInfo { 
-		int width, height, bands;
-		float maxval; 
+	/**
+	 * @return the probability that sample() chooses entry t of the table
+	 */
+	double pixelProb(int t) {
+		double total = pixelTable.getTotalWeight();
+		// An all-black map is sampled uniformly by pixel
+		return total > 0 ? calcPixelProb(t) / total : 1.0 / pixelTable.size();
 	}
 
-	public float[] readPFM(File pfmFile, PNMHeaderInfo hdr) {
-		
-		try {
-			FileInputStream inf = new FileInputStream(pfmFile);
-			DataInputStream inSt = new DataInputStream(inf);
-			FileChannel inCh = inf.getChannel();
-
-			int imageSize = readPPMHeader(inSt, hdr);
-
-			if (imageSize == -1) return null;
+	/**
+	 * @return the (unnormalized) weight of entry t of the sampling table
+	 */
+	protected double calcPixelProb(int t) {
+		int k = faceToIndex(tableFace(t), tableU(t), tableV(t));
+		double u = 2 * (tableU(t) + 0.5) / blockSz - 1;
+		double v = 2 * (tableV(t) + 0.5) / blockSz - 1;
+		return Math.max(Math.max(pixel(k, 0), pixel(k, 1)), pixel(k, 2)) / jacobian(u, v);
+	}
 
-			ByteBuffer imageBuffer = ByteBuffer.allocate(imageSize * 4);
-			imageBuffer.order(ByteOrder.LITTLE_ENDIAN);
-			imageBuffer.clear();
-			inCh.read(imageBuffer);
+	/**
+	 * @return channel c of the pixel at index k in the whole map
+	 */
+	float pixel(int k, int c) {
+		int ix = k % width, iy = k / width;
+		return imageBands[iy >> bandBits].get(3 * (ix + width * (iy & ((1 << bandBits) - 1))) + c);
+	}
 
-			float[] imageData = new float[imageSize];
-			imageBuffer.flip();
-			imageBuffer.asFloatBuffer().get(imageData);
+	public static class PNMHeaderInfo {
+		int width, height, bands;
+		float maxval;
+	}
 
-			return imageData;
-		} catch (FileNotFoundException e) {
-			System.err.println("readPFM: file not found: " + pfmFile.getName());
-			System.exit(1);
+	/**
+	 * Map a PFM file into memory, setting imageBands and bandBits.  The pixels
+	 * are used in place; nothing is copied onto the heap.  The file is mapped
+	 * in bands of whole rows, each under 1 GB.  The byte order is the one the
+	 * sign of the header's scale gives (negative for little-endian).
+	 */
+	public void readPFM(File pfmFile, PNMHeaderInfo hdr) {
+		try (FileChannel ch = FileChannel.open(pfmFile.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(ch.size(), 256));
+			int dataStart = readPPMHeader(head, hdr);
+
+			long rowBytes = 4L * 3 * hdr.width;
+			long dataBytes = rowBytes * hdr.height;
+			if (ch.size() < dataStart + dataBytes)
+				throw new Error("readPFM: file too short: " + pfmFile.getName());
+			ByteOrder order = hdr.maxval < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+			for (bandBits = 0; (2L << bandBits) * rowBytes < (1 << 30) && (1L << bandBits) < hdr.height; bandBits++);
+			int numBands = (int) ((hdr.height + (1L << bandBits) - 1) >> bandBits);
+			imageBands = new FloatBuffer[numBands];
+			for (int b = 0; b < numBands; b++) {
+				long rows = Math.min(1L << bandBits, hdr.height - ((long) b << bandBits));
+				MappedByteBuffer band = ch.map(FileChannel.MapMode.READ_ONLY,
+						dataStart + (rowBytes << bandBits) * b, rowBytes * rows);
+				imageBands[b] = band.order(order).asFloatBuffer();
+			}
+		} catch (BufferUnderflowException | NumberFormatException e) {
+			throw new Error("readPFM: bad header in " + pfmFile.getName());
+		} catch (NoSuchFileException e) {
+			throw new Error("readPFM: file not found: " + pfmFile.getName());
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new Error("readPFM: could not read " + pfmFile.getName() + ": " + e);
 		}
-
-		return null;
 	}
 
-	public static int readPPMHeader(DataInputStream in, PNMHeaderInfo info) throws IOException {
-		
-		// Read PNM header of the form 'P[F]\n<width> <height>\n<maxval>\n'
-		if (in.readByte() != 'P') {
-			System.err.println("readPFM: not a PNM file");
-			return -1;
-		}
-
-		byte magic = in.readByte();
-		int bands;
-
-		if (magic == 'F') bands = 3;
-		else {
-			System.err.println("readPFM: Unsupported PNM variant 'P" + magic + "'");
-			return -1;
-		}
+	/**
+	 * Read a PNM header of the form 'P[F]\n&lt;width&gt; &lt;height&gt;\n&lt;maxval&gt;\n'.
+	 * @return the offset of the pixel data
+	 */
+	static int readPPMHeader(MappedByteBuffer in, PNMHeaderInfo info) {
+		if (in.remaining() < 2 || in.get() != 'P')
+			throw new Error("readPFM: not a PNM file");
 
-		int width = Integer.parseInt(readWord(in));
-		int height = Integer.parseInt(readWord(in));
-		int imageSize = width * height * bands;
-		float maxval = Float.parseFloat(readWord(in));
+		byte magic = in.get();
+		if (magic != 'F')
+			throw new Error("readPFM: Unsupported PNM variant 'P" + (char) magic + "'");
 
-		if (info != null) {
-			info.width = width;
-			info.height = height;
-			info.bands = bands;
-			info.maxval = maxval;
-		}
+		info.bands = 3;
+		info.width = Integer.parseInt(readWord(in));
+		info.height = Integer.parseInt(readWord(in));
+		info.maxval = Float.parseFloat(readWord(in));
 
-		return imageSize;
+		// A single whitespace character ends the header; readWord stepped over it
+		return in.position();
 	}
 
-	static String readWord(DataInputStream in) throws IOException {
+	static String readWord(MappedByteBuffer in) {
+		StringBuilder s = new StringBuilder();
 		char c;
-		String s = "";
 
-		while (Character.isWhitespace(c = (char) in.readByte()))
+		while (Character.isWhitespace(c = (char) in.get()))
 			;
-		s += c;
-		while (!Character.isWhitespace(c = (char) in.readByte()))
-			s += c;
+		s.append(c);
+		while (!Character.isWhitespace(c = (char) in.get()))
+			s.append(c);
 
-		return s;
+		return s.toString();
 	}
 }
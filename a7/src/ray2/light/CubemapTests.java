@@ -3,6 +3,12 @@ package ray2.light;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -91,6 +97,104 @@ public class CubemapTests extends Cubemap {
 	}
 
 	
+	/**
+	 * Write a cross-format PFM cubemap whose radiance in each face pixel is
+	 * radiance(direction of the pixel center).  The unused cells of the grid
+	 * are filled with a huge value, which no lookup should ever see.
+	 */
+	static File writePFM(int blockSz, boolean littleEndian, Function<Vector3d, Colord> radiance) throws IOException {
+		File file = File.createTempFile("cubemap", ".pfm");
+		file.deleteOnExit();
+		int width = 3 * blockSz, height = 4 * blockSz;
+		byte[] header = ("PF\n" + width + " " + height + "\n" + (littleEndian ? "-1.0" : "1.0") + "\n")
+				.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer data = ByteBuffer.allocate(header.length + 12 * width * height);
+		data.put(header);
+		data.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		Vector3d dir = new Vector3d();
+		for (int iy = 0; iy < height; iy++) {
+			for (int ix = 0; ix < width; ix++) {
+				int iFace = locFace[iy / blockSz][ix / blockSz];
+				if (iFace < 0) {
+					data.putFloat(1e30f).putFloat(1e30f).putFloat(1e30f);
+					continue;
+				}
+				double u = 2 * (ix % blockSz + 0.5) / blockSz - 1, v = 2 * (iy % blockSz + 0.5) / blockSz - 1;
+				faceToDir(iFace, u, v, dir);
+				Colord c = radiance.apply(dir);
+				data.putFloat((float) c.x).putFloat((float) c.y).putFloat((float) c.z);
+			}
+		}
+		Files.write(file.toPath(), data.array());
+		return file;
+	}
+
+	/** A sky with a bright colored spot around +y and a little light everywhere else. */
+	static Colord spotSky(Vector3d dir) {
+		double spot = Math.max(0, dir.y - 0.8) * 50;
+		return new Colord(0.1 + spot, 0.05 + 0.5 * spot, 0.02 + dir.x * dir.x);
+	}
+
+	@Test
+	public void testGeneratedCubemap() throws IOException {
+		for (boolean littleEndian : new boolean[] { true, false }) {
+			Cubemap cm = new Cubemap();
+			cm.setFilename(writePFM(16, littleEndian, CubemapTests::spotSky).getPath());
+
+			// eval at pixel centers gives back the pixel, and never an unused cell
+			Vector3d dir = new Vector3d();
+			Colord radiance = new Colord();
+			for (int iFace = 0; iFace < 6; iFace++) {
+				for (int iu = 0; iu < 16; iu++) {
+					for (int iv = 0; iv < 16; iv++) {
+						faceToDir(iFace, 2 * (iu + 0.5) / 16 - 1, 2 * (iv + 0.5) / 16 - 1, dir);
+						cm.eval(dir, radiance);
+						Colord expected = spotSky(dir);
+						assertEquals(expected.x, radiance.x, 1e-6);
+						assertEquals(expected.y, radiance.y, 1e-6);
+						assertEquals(expected.z, radiance.z, 1e-6);
+					}
+				}
+			}
+			// Exactly along the edges and corners of the cube
+			for (Vector3d d : new Vector3d[] { new Vector3d(1, 1, 1), new Vector3d(-1, 1, 0), new Vector3d(0, -1, -1) }) {
+				cm.eval(d.normalize(), radiance);
+				assertTrue(radiance.x < 1e6);
+				assertTrue(cm.pdf(d) > 0 && cm.pdf(d) < 1e6);
+			}
+		}
+	}
+
+	@Test
+	public void testSampleGenerated() throws IOException {
+		Cubemap cm = new Cubemap();
+		cm.setFilename(writePFM(32, true, CubemapTests::spotSky).getPath());
+		testSample((seed, outDir, outRad) -> cm.sample(seed, outDir, outRad),
+				(dir) -> cm.pdf(dir));
+
+		// Samples and radiance agree with eval
+		Vector3d dir = new Vector3d();
+		Colord radiance = new Colord(), evaluated = new Colord();
+		for (int i = 0; i < 1000; i++) {
+			cm.sample(new Vector2d(rand(), rand()), dir, radiance);
+			cm.eval(dir, evaluated);
+			assertTrue(radiance.equalsApprox(evaluated, 1e-9));
+		}
+	}
+
+	@Test
+	public void testSampleBlack() throws IOException {
+		Cubemap cm = new Cubemap();
+		cm.setFilename(writePFM(8, true, d -> new Colord()).getPath());
+		Vector3d dir = new Vector3d();
+		Colord radiance = new Colord();
+		for (int i = 0; i < 100; i++) {
+			double pdf = cm.sample(new Vector2d(rand(), rand()), dir, radiance);
+			assertEquals(pdf, cm.pdf(dir), 1e-9);
+			assertTrue(pdf > 0 && !Double.isInfinite(pdf));
+		}
+	}
+
 	static double rand() {
 		return Math.random();
 	}
@@ -1,6 +1,7 @@
 package ray2.light;
 
 import egl.math.Colord;
+import egl.math.Vector2d;
 import egl.math.Vector3d;
 import ray2.Ray;
 import ray2.Scene;
@@ -48,8 +49,9 @@ public abstract class Light {
 	 *   record.probability: the probability (point lights) or pdf with respect to
 	 *     area (for area lights) with which the point was chosen.
 	 * @param shadingPoint the surface point where illumination is being computed
+	 * @param seed a pair of uniform random numbers, which determine the light point
 	 */
-	public abstract void sample(LightSamplingRecord record, Vector3d shadingPoint);
+	public abstract void sample(LightSamplingRecord record, Vector3d shadingPoint, Vector2d seed);
 		
 	/**
 	 * Compute the probability (for point lights) or pdf with respect to area (area 
@@ -61,12 +63,43 @@ public abstract class Light {
 	public abstract double pdf(Ray shadowRay);
 	
 	/**
-	 * Compute the factor from area to solid angle domain, 
-	 * this is equal to attenuation factor
-	 * @param shadingPoint
+	 * Compute the factor from area to solid angle domain at the light point
+	 * sample() chose, which is the inverse of its attenuation factor.
+	 * @param lRec the record sample() wrote for that point
 	 * @return The conversion factor
 	 */
-	public abstract double areaToSolidAnlge(Vector3d shadingPoint);
+	public abstract double areaToSolidAnlge(LightSamplingRecord lRec);
+
+	/*
+	 * The following describe the light to a LightTree, which uses them to
+	 * bound how much a group of lights can contribute at a shading point.
+	 * They are called after init().
+	 */
+
+	/**
+	 * @return the total power emitted by the light, averaged over the color
+	 *   channels
+	 */
+	public abstract double getPower();
+
+	/**
+	 * Get a box that contains all points from which the light emits.
+	 *
+	 * @param outMin the minimum corner of the box
+	 * @param outMax the maximum corner of the box
+	 */
+	public abstract void getBounds(Vector3d outMin, Vector3d outMax);
+
+	/**
+	 * Get a cone that contains the normals of the emitting points.  Light
+	 * leaves each point only within 90 degrees of its normal, so it is
+	 * emitted only within the cone's half-angle plus 90 degrees of the axis.
+	 * Lights that emit in all directions return PI.
+	 *
+	 * @param outAxis the unit axis of the cone
+	 * @return the half-angle of the cone, in radians
+	 */
+	public abstract double getNormalCone(Vector3d outAxis);
 	
 	/**
 	 * @see Object#toString()
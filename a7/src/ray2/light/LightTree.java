@@ -0,0 +1,321 @@
+package ray2.light;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * A bounding volume hierarchy over the lights of a scene, used to choose one
+ * light per shading point with a probability roughly proportional to its
+ * contribution there, instead of sampling every light.
+ *
+ * Each node stores the bounding box of its lights, their total power and a
+ * cone that bounds their normals.  From these, importance() computes an upper
+ * bound on how much the node's lights can contribute at a shading point: the
+ * power, divided by the squared distance to the box, times bounds on the
+ * cosines at the lights and at the surface.  A light is chosen by walking
+ * down from the root and picking each child with probability proportional to
+ * its importance, so it takes O(log n) steps, and the probability of the
+ * light is the product of the probabilities of the choices.  This is the
+ * scheme of Conty Estevez and Kulla, "Importance Sampling of Many Lights with
+ * Adaptive Tree Splitting" (2018), with the tree split at the median of the
+ * longest axis rather than by their cost function.
+ *
+ * The bounds are conservative, so a light is never given probability zero
+ * where it can contribute, and the estimates stay unbiased.
+ */
+public class LightTree {
+
+	/** The lights, in the order of the Scene's list. */
+	private final Light[] lights;
+
+	/** The node of the leaf for each light. */
+	private final int[] leafOf;
+	private final IdentityHashMap<Light, Integer> indexOf = new IdentityHashMap<Light, Integer>();
+
+	/*
+	 * The nodes, in depth-first order, so the left child of an internal node
+	 * is the next node.  child[i] is the right child of an internal node and
+	 * ~(light index) for a leaf.
+	 */
+	private final int[] child;
+	private final int[] parent;
+	private final double[] bounds;  // minX, minY, minZ, maxX, maxY, maxZ per node
+	private final double[] axis;    // the normal cone's axis, 3 per node
+	private final double[] theta;   // the normal cone's half-angle
+	private final double[] cosTheta, sinTheta;
+	private final double[] power;
+	private int nodeCount;
+
+	/**
+	 * Build the tree.  The lights must have been initialized.
+	 *
+	 * @param lightList the lights of the scene
+	 */
+	public LightTree(List<Light> lightList) {
+		int n = lightList.size();
+		lights = lightList.toArray(new Light[n]);
+		leafOf = new int[n];
+		int nodes = Math.max(0, 2 * n - 1);
+		child = new int[nodes];
+		parent = new int[nodes];
+		bounds = new double[6 * nodes];
+		axis = new double[3 * nodes];
+		theta = new double[nodes];
+		cosTheta = new double[nodes];
+		sinTheta = new double[nodes];
+		power = new double[nodes];
+
+		// The box centers, for splitting
+		double[] centers = new double[3 * n];
+		Vector3d min = new Vector3d(), max = new Vector3d();
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			indexOf.put(lights[i], i);
+			lights[i].getBounds(min, max);
+			centers[3 * i] = 0.5 * (min.x + max.x);
+			centers[3 * i + 1] = 0.5 * (min.y + max.y);
+			centers[3 * i + 2] = 0.5 * (min.z + max.z);
+			order[i] = i;
+		}
+		if (n > 0)
+			build(order, 0, n, -1, centers);
+		for (int i = 0; i < nodes; i++) {
+			cosTheta[i] = Math.cos(theta[i]);
+			sinTheta[i] = Math.sin(theta[i]);
+		}
+	}
+
+	/**
+	 * Build the subtree for lights order[start] to order[end - 1] at the next
+	 * free node, and return that node.
+	 */
+	private int build(Integer[] order, int start, int end, int parentNode, double[] centers) {
+		int node = nodeCount++;
+		parent[node] = parentNode;
+		if (end - start == 1) {
+			int light = order[start];
+			Light l = lights[light];
+			Vector3d min = new Vector3d(), max = new Vector3d(), a = new Vector3d();
+			l.getBounds(min, max);
+			bounds[6 * node] = min.x;
+			bounds[6 * node + 1] = min.y;
+			bounds[6 * node + 2] = min.z;
+			bounds[6 * node + 3] = max.x;
+			bounds[6 * node + 4] = max.y;
+			bounds[6 * node + 5] = max.z;
+			theta[node] = l.getNormalCone(a);
+			a.normalize();
+			axis[3 * node] = a.x;
+			axis[3 * node + 1] = a.y;
+			axis[3 * node + 2] = a.z;
+			power[node] = l.getPower();
+			child[node] = ~light;
+			leafOf[light] = node;
+			return node;
+		}
+
+		// Split at the median along the longest axis of the centers
+		double[] lo = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] hi = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (int i = start; i < end; i++) {
+			for (int k = 0; k < 3; k++) {
+				lo[k] = Math.min(lo[k], centers[3 * order[i] + k]);
+				hi[k] = Math.max(hi[k], centers[3 * order[i] + k]);
+			}
+		}
+		int k = 0;
+		if (hi[1] - lo[1] > hi[k] - lo[k]) k = 1;
+		if (hi[2] - lo[2] > hi[k] - lo[k]) k = 2;
+		final int splitAxis = k;
+		Arrays.sort(order, start, end, (a, b) -> Double.compare(centers[3 * a + splitAxis], centers[3 * b + splitAxis]));
+		int mid = (start + end) / 2;
+
+		int left = build(order, start, mid, node, centers);
+		int right = build(order, mid, end, node, centers);
+		child[node] = right;
+
+		for (int i = 0; i < 3; i++) {
+			bounds[6 * node + i] = Math.min(bounds[6 * left + i], bounds[6 * right + i]);
+			bounds[6 * node + 3 + i] = Math.max(bounds[6 * left + 3 + i], bounds[6 * right + 3 + i]);
+		}
+		power[node] = power[left] + power[right];
+		mergeCones(node, left, right);
+		return node;
+	}
+
+	/**
+	 * Set the normal cone of node to the smallest cone that contains the cones
+	 * of a and b.
+	 */
+	private void mergeCones(int node, int a, int b) {
+		if (theta[b] > theta[a]) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		double ax = axis[3 * a], ay = axis[3 * a + 1], az = axis[3 * a + 2];
+		double cosD = ax * axis[3 * b] + ay * axis[3 * b + 1] + az * axis[3 * b + 2];
+		double thetaD = Math.acos(Math.max(-1, Math.min(1, cosD)));
+		double thetaO = 0.5 * (theta[a] + thetaD + theta[b]);
+		if (Math.min(thetaD + theta[b], Math.PI) <= theta[a]) {
+			// b's cone is inside a's
+			thetaO = theta[a];
+		} else if (thetaO >= Math.PI) {
+			thetaO = Math.PI;
+		} else {
+			// Rotate a's axis towards b's by the growth of the angle
+			double wx = axis[3 * b] - cosD * ax, wy = axis[3 * b + 1] - cosD * ay, wz = axis[3 * b + 2] - cosD * az;
+			double len = Math.sqrt(wx * wx + wy * wy + wz * wz);
+			if (len < 1e-12) {
+				// Opposite axes: any perpendicular direction will do
+				Vector3d w = new Vector3d(ax, ay, az).cross(Math.abs(ax) < 0.9 ? new Vector3d(1, 0, 0) : new Vector3d(0, 1, 0)).normalize();
+				wx = w.x; wy = w.y; wz = w.z;
+			} else {
+				wx /= len; wy /= len; wz /= len;
+			}
+			double r = thetaO - theta[a], c = Math.cos(r), s = Math.sin(r);
+			ax = c * ax + s * wx;
+			ay = c * ay + s * wy;
+			az = c * az + s * wz;
+		}
+		axis[3 * node] = ax;
+		axis[3 * node + 1] = ay;
+		axis[3 * node + 2] = az;
+		theta[node] = thetaO;
+	}
+
+	/**
+	 * @return the number of lights in the tree
+	 */
+	public int size() {
+		return lights.length;
+	}
+
+	/**
+	 * An upper bound on the contribution of the node's lights at a shading
+	 * point, up to a constant factor that is the same for all nodes.
+	 *
+	 * @param normal the surface normal, or null to ignore the cosine at the
+	 *   surface.  Both sides of the surface count, for transmission.
+	 */
+	double importance(int node, Vector3d point, Vector3d normal) {
+		int b = 6 * node;
+		double dx = 0.5 * (bounds[b] + bounds[b + 3]) - point.x;
+		double dy = 0.5 * (bounds[b + 1] + bounds[b + 4]) - point.y;
+		double dz = 0.5 * (bounds[b + 2] + bounds[b + 5]) - point.z;
+		double ex = bounds[b + 3] - bounds[b], ey = bounds[b + 4] - bounds[b + 1], ez = bounds[b + 5] - bounds[b + 2];
+		double r2 = 0.25 * (ex * ex + ey * ey + ez * ez);
+		double dist2 = dx * dx + dy * dy + dz * dz;
+
+		// Inside the bounding sphere, the lights can be in any direction
+		// and no nearer than zero, so limit the distance to the radius
+		if (dist2 <= r2)
+			return r2 > 0 ? power[node] / r2 : power[node];
+
+		// The half-angle the bounding sphere subtends, and the cone around
+		// the axis that contains the normals of all points in it; angles are
+		// handled through their cosines and sines, which is much faster
+		double dist = Math.sqrt(dist2);
+		double sinU = Math.sqrt(r2 / dist2), cosU = Math.sqrt(1 - r2 / dist2);
+		double emit = 1;
+		if (cosU > -cosTheta[node]) {
+			// The cone's half-angle theta + thetaU is below PI
+			double cosB = cosTheta[node] * cosU - sinTheta[node] * sinU;
+			double sinB = sinTheta[node] * cosU + cosTheta[node] * sinU;
+
+			// The smallest angle between an emitting normal and the direction to the point
+			double cosE = -(axis[3 * node] * dx + axis[3 * node + 1] * dy + axis[3 * node + 2] * dz) / dist;
+			if (cosE < cosB) {
+				emit = cosE * cosB + Math.sqrt(Math.max(0, 1 - cosE * cosE)) * sinB;
+				if (emit <= 0)
+					return 0;
+			}
+		}
+
+		// The smallest angle between the surface normal and a direction to the lights
+		double receive = 1;
+		if (normal != null) {
+			double cosI = Math.abs(normal.x * dx + normal.y * dy + normal.z * dz) / (dist * normal.len());
+			if (cosI < cosU)
+				receive = cosI * cosU + Math.sqrt(1 - cosI * cosI) * sinU;
+		}
+		return power[node] * emit * receive / dist2;
+	}
+
+	/**
+	 * Choose a light for a shading point, then sample a point on it.
+	 *
+	 * The light is chosen with seed.x, and seed.x is then replaced by the part
+	 * of it that was not used, which is again uniform, before the light's
+	 * sample() is called with the seed.  lRec is as set by the light, except
+	 * that lRec.probability also includes the probability of choosing the
+	 * light, so the sample can be used as if it came from one light that is
+	 * the union of all of them.
+	 *
+	 * @param lRec the record where the output is written
+	 * @param shadingPoint the surface point where illumination is being computed
+	 * @param normal the surface normal at the point, or null
+	 * @param seed a pair of uniform random numbers; seed.x is changed
+	 * @return the chosen light, or null if no light can illuminate the point
+	 */
+	public Light sample(LightSamplingRecord lRec, Vector3d shadingPoint, Vector3d normal, Vector2d seed) {
+		if (lights.length == 0)
+			return null;
+		double u = seed.x, probability = 1;
+		int node = 0;
+		while (child[node] >= 0) {
+			int left = node + 1, right = child[node];
+			double iLeft = importance(left, shadingPoint, normal);
+			double iRight = importance(right, shadingPoint, normal);
+			double sum = iLeft + iRight;
+			if (!(sum > 0))
+				return null;
+			double pLeft = iLeft / sum;
+			if (u < pLeft) {
+				u = u / pLeft;
+				probability *= pLeft;
+				node = left;
+			} else {
+				u = (u - pLeft) / (1 - pLeft);
+				probability *= iRight / sum;
+				node = right;
+			}
+			u = Math.min(u, 0x1.fffffffffffffp-1);
+		}
+		Light light = lights[~child[node]];
+		seed.x = u;
+		light.sample(lRec, shadingPoint, seed);
+		lRec.probability *= probability;
+		return light;
+	}
+
+	/**
+	 * The probability with which sample() chooses a light at a shading point.
+	 * Multiply it by light.pdf() for the pdf of the point on the light.
+	 *
+	 * @param light a light in the tree
+	 * @param shadingPoint the surface point where illumination is being computed
+	 * @param normal the surface normal at the point, or null
+	 * @return the probability of choosing the light
+	 */
+	public double probability(Light light, Vector3d shadingPoint, Vector3d normal) {
+		Integer index = indexOf.get(light);
+		if (index == null)
+			return 0;
+		double probability = 1;
+		for (int node = leafOf[index]; parent[node] >= 0; node = parent[node]) {
+			int p = parent[node];
+			int sibling = node == p + 1 ? child[p] : p + 1;
+			double iNode = importance(node, shadingPoint, normal);
+			double sum = iNode + importance(sibling, shadingPoint, normal);
+			if (!(sum > 0))
+				return 0;
+			probability *= iNode / sum;
+		}
+		return probability;
+	}
+}
@@ -0,0 +1,156 @@
+package ray2.light;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+import ray2.Scene;
+
+public class LightTreeTests {
+
+	/** Rectangle lights facing in random directions and point lights, in a 10-unit cube. */
+	private static List<Light> randomLights(int n, long seed) {
+		Random random = new Random(seed);
+		Scene scene = new Scene();
+		List<Light> lights = new ArrayList<Light>();
+		for (int i = 0; i < n; i++) {
+			Vector3d position = new Vector3d(10 * random.nextDouble(), 10 * random.nextDouble(), 10 * random.nextDouble());
+			Colord intensity = new Colord(random.nextDouble(), random.nextDouble(), random.nextDouble());
+			Light light;
+			if (i % 4 == 3) {
+				PointLight p = new PointLight();
+				p.setPosition(position);
+				light = p;
+			} else {
+				RectangleLight r = new RectangleLight();
+				r.setPosition(position);
+				r.setNormalDir(new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize());
+				r.setUpDir(new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize());
+				r.setWidth(0.1 + random.nextDouble());
+				r.setHeight(0.1 + random.nextDouble());
+				light = r;
+			}
+			light.setIntensity(intensity);
+			light.init(scene);
+			lights.add(light);
+		}
+		return lights;
+	}
+
+	@Test
+	public void testProbabilitiesMatchSampling() {
+		List<Light> lights = randomLights(37, 1);
+		LightTree tree = new LightTree(lights);
+		assertEquals(37, tree.size());
+		Random random = new Random(2);
+		LightSamplingRecord lRec = new LightSamplingRecord();
+		Vector2d seed = new Vector2d();
+		for (int trial = 0; trial < 5; trial++) {
+			Vector3d point = new Vector3d(10 * random.nextDouble(), 10 * random.nextDouble(), 10 * random.nextDouble());
+			Vector3d normal = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize();
+
+			double sum = 0;
+			for (Light light : lights)
+				sum += tree.probability(light, point, normal);
+			// Below 1 where a whole subtree can be seen to be unable to contribute
+			assertTrue(sum > 0.5 && sum < 1 + 1e-12);
+
+			// Sweep seed.x: each light is chosen with its probability, and the
+			// sample's probability includes it
+			int none = 0;
+			int n = 1 << 16;
+			IdentityHashMap<Light, Integer> counts = new IdentityHashMap<Light, Integer>();
+			for (int i = 0; i < n; i++) {
+				seed.set((i + 0.5) / n, 0.5);
+				Light light = tree.sample(lRec, point, normal, seed);
+				if (light == null) {
+					none++;
+					continue;
+				}
+				assertTrue(seed.x >= 0 && seed.x < 1);
+				counts.merge(light, 1, Integer::sum);
+				double p = tree.probability(light, point, normal);
+				if (light instanceof PointLight) {
+					assertEquals(p, lRec.probability, 1e-12 * p);
+					assertEquals(point.dist(((PointLight) light).position), lRec.distance, 1e-9);
+				} else {
+					RectangleLight r = (RectangleLight) light;
+					assertEquals(p / (r.width * r.height), lRec.probability, 1e-12 * lRec.probability);
+					double halfDiagonal = 0.5 * Math.sqrt(r.width * r.width + r.height * r.height);
+					assertEquals(point.dist(r.position), lRec.distance, halfDiagonal);
+				}
+			}
+			for (Light light : lights) {
+				Integer count = counts.get(light);
+				assertEquals(tree.probability(light, point, normal), count == null ? 0 : count / (double) n, 2e-4);
+			}
+			assertEquals(1 - sum, none / (double) n, 2e-4);
+		}
+	}
+
+	@Test
+	public void testNoLightThatCanContributeIsLeftOut() {
+		List<Light> lights = randomLights(200, 3);
+		LightTree tree = new LightTree(lights);
+		Random random = new Random(4);
+		LightSamplingRecord lRec = new LightSamplingRecord();
+		Vector2d seed = new Vector2d();
+		for (int trial = 0; trial < 200; trial++) {
+			Vector3d point = new Vector3d(12 * random.nextDouble() - 1, 12 * random.nextDouble() - 1, 12 * random.nextDouble() - 1);
+			Vector3d normal = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize();
+			for (Light light : lights) {
+				// Any point on the light that faces the shading point must be reachable
+				boolean contributes = false;
+				for (int k = 0; k < 9 && !contributes; k++) {
+					seed.set((k % 3 + 0.5) / 3, (k / 3 + 0.5) / 3);
+					light.sample(lRec, point, seed);
+					contributes = lRec.attenuation > 0 && Math.abs(lRec.direction.dot(normal)) > 0;
+				}
+				if (contributes)
+					assertTrue("Light " + light + " at " + point, tree.probability(light, point, normal) > 0);
+			}
+		}
+	}
+
+	@Test
+	public void testNearLightsArePreferred() {
+		Scene scene = new Scene();
+		List<Light> lights = new ArrayList<Light>();
+		for (int i = 0; i < 64; i++) {
+			PointLight light = new PointLight();
+			light.setPosition(new Vector3d(i, 0, 1));
+			light.init(scene);
+			lights.add(light);
+		}
+		LightTree tree = new LightTree(lights);
+		Vector3d point = new Vector3d(10, 0, 0), normal = new Vector3d(0, 0, 1);
+		double near = tree.probability(lights.get(10), point, normal);
+		assertTrue(near > 0.1);
+		assertTrue(near > 20 * tree.probability(lights.get(60), point, normal));
+		assertTrue(near > tree.probability(lights.get(13), point, normal));
+	}
+
+	@Test
+	public void testSmallTrees() {
+		LightSamplingRecord lRec = new LightSamplingRecord();
+		Vector3d point = new Vector3d(0, 0, 0);
+		assertNull(new LightTree(new ArrayList<Light>()).sample(lRec, point, null, new Vector2d(0.5, 0.5)));
+
+		List<Light> lights = randomLights(1, 5);
+		LightTree tree = new LightTree(lights);
+		assertSame(lights.get(0), tree.sample(lRec, point, null, new Vector2d(0.5, 0.5)));
+		assertEquals(1, tree.probability(lights.get(0), point, null), 0);
+		assertEquals(0, tree.probability(new PointLight(), point, null), 0);
+	}
+}
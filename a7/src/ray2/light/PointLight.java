@@ -2,6 +2,7 @@ package ray2.light;
 
 
 import egl.math.Colord;
+import egl.math.Vector2d;
 import egl.math.Vector3d;
 import ray2.Ray;
 import ray2.Scene;
@@ -43,9 +44,10 @@ public class PointLight extends Light {
 	 *
 	 * @param record the record where the output is written:
 	 * @param shadingPoint the surface point where illumination is being computed
+	 * @param seed not used, since there is only one point to choose
 	 */
 	@Override
-	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint) {
+	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint, Vector2d seed) {
 		lRec.direction.set(position).sub(shadingPoint);
 		lRec.attenuation = 1.0 / shadingPoint.distSq(this.position);
 		lRec.distance = lRec.direction.len();
@@ -59,8 +61,25 @@ public class PointLight extends Light {
 	}
 	
 	@Override
-	public double areaToSolidAnlge(Vector3d shadingPoint) {
-		return shadingPoint.distSq(this.position);
+	public double areaToSolidAnlge(LightSamplingRecord lRec) {
+		return lRec.distance * lRec.distance;
+	}
+
+	@Override
+	public double getPower() {
+		return 4 * Math.PI * (intensity.x + intensity.y + intensity.z) / 3;
+	}
+
+	@Override
+	public void getBounds(Vector3d outMin, Vector3d outMax) {
+		outMin.set(position);
+		outMax.set(position);
+	}
+
+	@Override
+	public double getNormalCone(Vector3d outAxis) {
+		outAxis.set(0, 0, 1);
+		return Math.PI;
 	}
 	
 	/**
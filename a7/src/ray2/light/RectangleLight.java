@@ -5,6 +5,7 @@ import java.io.IOException;
 
 import egl.math.Colord;
 import egl.math.Matrix4d;
+import egl.math.Vector2d;
 import egl.math.Vector3d;
 import ray2.Ray;
 import ray2.Scene;
@@ -111,13 +112,15 @@ public class RectangleLight extends Light {
 	 *    lRec.attenuation includes both the inverse squared distance and the cosine with the source's normal
 	 *    lRec.probability is a probability density over the source's area.
 	 *
-	 * @see ray2.light.Light#sample(ray2.light.LightSamplingRecord, egl.math.Vector3d)
+	 * The seed is mapped uniformly onto the rectangle.
+	 *
+	 * @see ray2.light.Light#sample(ray2.light.LightSamplingRecord, egl.math.Vector3d, egl.math.Vector2d)
 	 */
 	@Override
-	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint) {
+	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint, Vector2d seed) {
 		Vector3d lightPoint = position.clone()
-			.addMultiple(width * (Math.random() - 0.5), basisU)
-			.addMultiple(height * (Math.random() - 0.5), basisV);
+			.addMultiple(width * (seed.x - 0.5), basisU)
+			.addMultiple(height * (seed.y - 0.5), basisV);
 		lRec.direction.set(lightPoint).sub(shadingPoint);
 		lRec.distance = lRec.direction.len();
 		lRec.direction.normalize();
@@ -130,15 +133,37 @@ public class RectangleLight extends Light {
 		return 1.0 / (width * height);
 	}
 	
+	/*
+	 * The factor is distance^2 / cosine at the point sample() chose, whose
+	 * distance and (normalized) direction are in the record.
+	 */
 	@Override
-	public double areaToSolidAnlge(Vector3d shadingPoint) {
-		Vector3d lightPoint = position.clone()
-				.addMultiple(width * (Math.random() - 0.5), basisU)
-				.addMultiple(height * (Math.random() - 0.5), basisV);
-		Vector3d direction = lightPoint.sub(shadingPoint);
-		double factor = Math.max(0, direction.dot(basisW)) / shadingPoint.distSq(lightPoint);
+	public double areaToSolidAnlge(LightSamplingRecord lRec) {
+		double factor = Math.max(0, lRec.direction.dot(basisW)) / (lRec.distance * lRec.distance);
 		return 1.0 / factor;
 	}
+
+	@Override
+	public double getPower() {
+		return Math.PI * width * height * (intensity.x + intensity.y + intensity.z) / 3;
+	}
+
+	@Override
+	public void getBounds(Vector3d outMin, Vector3d outMax) {
+		// The corners are position +/- half the width along basisU and half the height along basisV
+		double ex = 0.5 * (width * Math.abs(basisU.x) + height * Math.abs(basisV.x));
+		double ey = 0.5 * (width * Math.abs(basisU.y) + height * Math.abs(basisV.y));
+		double ez = 0.5 * (width * Math.abs(basisU.z) + height * Math.abs(basisV.z));
+		outMin.set(position).sub(ex, ey, ez);
+		outMax.set(position).add(ex, ey, ez);
+	}
+
+	@Override
+	public double getNormalCone(Vector3d outAxis) {
+		// basisW points into the light; it emits the other way
+		outAxis.set(basisW).negate();
+		return 0;
+	}
 	
 
 	/**
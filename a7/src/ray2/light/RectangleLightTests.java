@@ -0,0 +1,33 @@
+package ray2.light;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+import ray2.Scene;
+
+public class RectangleLightTests {
+
+	@Test
+	public void testSolidAngleFactorAtTheSampledPoint() {
+		// A 2 x 2 light at z = 1 facing down, just above a shading point under one corner
+		RectangleLight light = new RectangleLight();
+		light.setPosition(new Vector3d(0, 0, 1));
+		light.setWidth(2);
+		light.setHeight(2);
+		light.init(new Scene());
+		Vector3d shadingPoint = new Vector3d(1, 1, 0);
+		LightSamplingRecord lRec = new LightSamplingRecord();
+
+		for (Vector2d seed : new Vector2d[] { new Vector2d(0.5, 0.5), new Vector2d(1, 1), new Vector2d(0, 0.25) }) {
+			light.sample(lRec, shadingPoint, seed);
+			Vector3d lightPoint = new Vector3d(2 * seed.x - 1, 2 * seed.y - 1, 1);
+			double d2 = shadingPoint.distSq(lightPoint);
+			double cosine = 1 / Math.sqrt(d2);
+			assertEquals(d2 / cosine, light.areaToSolidAnlge(lRec), 1e-9);
+			assertEquals(1, light.areaToSolidAnlge(lRec) * lRec.attenuation, 1e-9);
+		}
+	}
+}
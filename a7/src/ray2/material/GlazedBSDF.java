@@ -68,6 +68,9 @@ public class GlazedBSDF extends BSDF {
 	 * we choose between the specular reflection direction and the diffuse direction based on fresenel
 	 * for specular reflection, the discrete probability is R
 	 * for diffuse reflection, the probability is (1-R) * cos(theta) / pi
+	 *
+	 * seed.x makes the choice, and for the diffuse case it is stretched back to
+	 * [0, 1) to be reused for the direction, so one pair of numbers is enough.
 	 * */
 	public
 	double sample(BSDFSamplingRecord sampleRecord, Vector2d seed, Colord outValue) {
@@ -79,8 +82,8 @@ public class GlazedBSDF extends BSDF {
 		double cos_1 = IncomingVec.dot(normal);
 		double R = fresnel(normal, IncomingVec, refractiveIndex);
 
-		double xi = Math.random();
-		if (xi <= R) {
+		double xi = seed.x;
+		if (xi < R) {
 			// Compute specular reflected ray direction
 			sampleRecord.dir2.addMultiple(2*cos_1, normal).sub(IncomingVec).normalize();
 			outValue.set(R).div(cos_1);
@@ -89,7 +92,7 @@ public class GlazedBSDF extends BSDF {
 		} else {
 			// Randomly generate diffuse direction
 			Vector3d outDirLocal = new Vector3d();
-			cosineHemisphere(seed, outDirLocal);
+			cosineHemisphere(new Vector2d((xi - R) / (1 - R), seed.y), outDirLocal);
 			Vector3d u = new Vector3d();
 			Vector3d v = new Vector3d();
 			basisFromW(sampleRecord.normal, u, v);
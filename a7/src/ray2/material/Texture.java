@@ -12,7 +12,20 @@ import egl.math.Vector2d;
 /**
  * This class represents a simple 2D texture implementation for a shader. It stores and
  * reads from a BufferedImage which is read in from an arbitrary image file on disk.
- * 
+ *
+ * When the image is set it is decoded once into RGB floats, and a MIP
+ * pyramid is built from it: each level is half the size of the one above,
+ * and each of its texels is the average of the texels it covers.  Lookups
+ * filter bilinearly within a level and linearly between the two levels whose
+ * texels are closest in size to the lookup's footprint (trilinear filtering),
+ * so that a texture seen from far away, or at a grazing angle, is averaged
+ * over the area a pixel sees rather than point-sampled and aliased.
+ *
+ * getTexColor(uv) still looks up the nearest texel, as textures always
+ * have; the filtered lookups are getTexColor(uv, footprint, outColor).
+ *
+ * Subclasses say what happens outside [0, 1] in wrap().
+ *
  * @author eschweickart
  *
  */
@@ -23,24 +36,259 @@ public abstract class Texture {
 	public BufferedImage getImage() { return image; }
 	/** Set the BufferedImage from a given file on disk. */
 	public void setImage(String filename) {
-		System.out.println("Loading: " + RayTracer.sceneWorkspace.resolve(filename));
+		System.out.println("Loading: " + RayTracer.getSceneWorkspace().resolve(filename));
 		try {
-			File f = new File(RayTracer.sceneWorkspace.resolve(filename));
-			image = ImageIO.read(f);
+			File f = new File(RayTracer.getSceneWorkspace().resolve(filename));
+			useImage(ImageIO.read(f));
 		} catch (Exception e) {
 			System.err.println("Error loading texture: " + e);
 			System.exit(1);
 		}
 	}
-	
+
+	/**
+	 * Whether the image's values are used as they are, each 8-bit value over
+	 * 255, which is the default and what textures have always done.  Set it to
+	 * false for an image that is sRGB-encoded, like most photos and painted
+	 * textures, to decode it to linear, which is what the renderer works in
+	 * and the only space in which averaging texels is right; such a texture
+	 * renders darker than with the default.
+	 */
+	protected boolean linear = true;
+	public void setLinear(boolean linear) {
+		this.linear = linear;
+		if (image != null)
+			buildLevels();
+	}
+
+	/*
+	 * The MIP pyramid: level 0 is the image, and each level is RGB triples
+	 * in rows from the top of the image.
+	 */
+	protected float[][] levels;
+	protected int[] widths, heights;
+
+	/** The linear value of each 8-bit sRGB code. */
+	private static final float[] SRGB_TO_LINEAR = new float[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			double c = i / 255.0;
+			SRGB_TO_LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+		}
+	}
+
 	/** Default constructor. Creates an empty Texture object. */
 	public Texture() {	}
-	
+
+	/**
+	 * Use the given image, and build its MIP pyramid.
+	 *
+	 * @param newImage the image
+	 */
+	public void useImage(BufferedImage newImage) {
+		image = newImage;
+		buildLevels();
+	}
+
+	private void buildLevels() {
+		int w = image.getWidth(), h = image.getHeight();
+		int count = 1;
+		while ((w >> count) > 0 || (h >> count) > 0)
+			count++;
+		levels = new float[count][];
+		widths = new int[count];
+		heights = new int[count];
+
+		// Decode the whole image at once; getRGB() per texel is very slow
+		int[] argb = image.getRGB(0, 0, w, h, null, 0, w);
+		float[] top = new float[3 * w * h];
+		for (int i = 0; i < w * h; i++) {
+			int c = argb[i];
+			if (linear) {
+				top[3 * i] = ((c >> 16) & 0xFF) / 255f;
+				top[3 * i + 1] = ((c >> 8) & 0xFF) / 255f;
+				top[3 * i + 2] = (c & 0xFF) / 255f;
+			} else {
+				top[3 * i] = SRGB_TO_LINEAR[(c >> 16) & 0xFF];
+				top[3 * i + 1] = SRGB_TO_LINEAR[(c >> 8) & 0xFF];
+				top[3 * i + 2] = SRGB_TO_LINEAR[c & 0xFF];
+			}
+		}
+		levels[0] = top;
+		widths[0] = w;
+		heights[0] = h;
+
+		for (int l = 1; l < count; l++)
+			downsample(l);
+	}
+
+	/**
+	 * Make level l from level l - 1.  Each texel averages the block of texels
+	 * above that it covers, which is 2 x 2 for even sizes and takes in the
+	 * last row or column too for odd ones.
+	 */
+	private void downsample(int l) {
+		int sw = widths[l - 1], sh = heights[l - 1];
+		int w = Math.max(1, sw / 2), h = Math.max(1, sh / 2);
+		float[] src = levels[l - 1], dst = new float[3 * w * h];
+		for (int y = 0; y < h; y++) {
+			int y0 = y * sh / h, y1 = (y + 1) * sh / h;
+			for (int x = 0; x < w; x++) {
+				int x0 = x * sw / w, x1 = (x + 1) * sw / w;
+				float r = 0, g = 0, b = 0;
+				for (int sy = y0; sy < y1; sy++) {
+					for (int sx = x0; sx < x1; sx++) {
+						int k = 3 * (sy * sw + sx);
+						r += src[k];
+						g += src[k + 1];
+						b += src[k + 2];
+					}
+				}
+				float n = (x1 - x0) * (y1 - y0);
+				int k = 3 * (y * w + x);
+				dst[k] = r / n;
+				dst[k + 1] = g / n;
+				dst[k + 2] = b / n;
+			}
+		}
+		levels[l] = dst;
+		widths[l] = w;
+		heights[l] = h;
+	}
+
+	/** @return the number of levels in the MIP pyramid, or 0 if there is no image */
+	public int getLevelCount() {
+		return levels == null ? 0 : levels.length;
+	}
+
 	/**
-	 * Get the texture color at a given UV coordinate.
-	 * 
+	 * Map a texel index to one inside the image.
+	 *
+	 * @param i the texel index along one axis, which may be outside [0, size)
+	 * @param size the size of the image along that axis, at the current level
+	 * @return the index of the texel to use, in [0, size)
+	 */
+	protected abstract int wrap(int i, int size);
+
+	/**
+	 * Optionally move a texture coordinate to an equivalent one, so that
+	 * lookups mostly fall inside the image and need no wrap() calls, which
+	 * are slow for repeating.  By default the coordinate is left alone.
+	 *
+	 * @param u a U or V coordinate
+	 * @return a coordinate that looks up the same texels
+	 */
+	protected double reduce(double u) {
+		return u;
+	}
+
+	/**
+	 * Get the texture color at a given UV coordinate: the nearest texel of
+	 * the finest level, unfiltered.  Prefer the version that takes a
+	 * footprint, which filters and doesn't allocate.
+	 *
 	 * @param texCoord The UV texture coordinates.
 	 * @return The color at the given point.
 	 */
-	public abstract Colord getTexColor(Vector2d texCoord); 
+	public Colord getTexColor(Vector2d texCoord) {
+		if (levels == null) {
+			System.err.println("Warning: Texture uninitialized!");
+			return new Colord();
+		}
+
+		// Rounded as textures always have been
+		int w = widths[0], h = heights[0];
+		int x = (int) (texCoord.x * w + 0.5);
+		int y = (int) ((1.0 - texCoord.y) * h + 0.5);
+		if (x < 0 || x >= w)
+			x = wrap(x, w);
+		if (y < 0 || y >= h)
+			y = wrap(y, h);
+		int k = 3 * (y * w + x);
+		float[] t = levels[0];
+		return new Colord(t[k], t[k + 1], t[k + 2]);
+	}
+
+	/**
+	 * Get the texture color at a given UV coordinate, averaged over the
+	 * footprint of the ray there.  The footprint is the width, in UV units,
+	 * of the area of the texture that the ray stands for: for a camera ray
+	 * this is about the angle a pixel subtends, times the distance to the
+	 * hit, divided by the cosine at the hit and by the world-space size of
+	 * one UV unit.  0 gives the finest level.
+	 *
+	 * @param texCoord The UV texture coordinates.
+	 * @param footprint The width of the lookup in UV units.
+	 * @param outColor Where the (linear) color is written.
+	 */
+	public void getTexColor(Vector2d texCoord, double footprint, Colord outColor) {
+		if (levels == null) {
+			System.err.println("Warning: Texture uninitialized!");
+			outColor.set(0);
+			return;
+		}
+
+		// The level whose texels are about as wide as the footprint
+		double u = reduce(texCoord.x), v = reduce(texCoord.y);
+		double lod = footprint > 0 ? log2(footprint * Math.max(widths[0], heights[0])) : 0;
+		int last = levels.length - 1;
+		outColor.set(0);
+		if (!(lod > 0)) {
+			addBilinear(0, u, v, 1, outColor);
+		} else if (lod >= last) {
+			addBilinear(last, u, v, 1, outColor);
+		} else {
+			int l = (int) lod;
+			double f = lod - l;
+			addBilinear(l, u, v, 1 - f, outColor);
+			addBilinear(l + 1, u, v, f, outColor);
+		}
+	}
+
+	/**
+	 * Filter bilinearly at one level, and add the result times weight to
+	 * outColor.  Texel i covers [i, i+1) / size, with its value at the
+	 * center, and v runs from the bottom of the image up.
+	 */
+	private void addBilinear(int l, double u, double v, double weight, Colord outColor) {
+		int w = widths[l], h = heights[l];
+		float[] t = levels[l];
+		double s = u * w - 0.5, r = (1.0 - v) * h - 0.5;
+		int ix = floor(s), iy = floor(r);
+		double ax = s - ix, ay = r - iy;
+		int x0 = ix, x1 = ix + 1, y0 = iy, y1 = iy + 1;
+		if (ix < 0 || x1 >= w) {
+			x0 = wrap(ix, w);
+			x1 = wrap(ix + 1, w);
+		}
+		if (iy < 0 || y1 >= h) {
+			y0 = wrap(iy, h);
+			y1 = wrap(iy + 1, h);
+		}
+		int k00 = 3 * (y0 * w + x0), k10 = 3 * (y0 * w + x1);
+		int k01 = 3 * (y1 * w + x0), k11 = 3 * (y1 * w + x1);
+		double bx = weight - weight * ax;
+		double w00 = bx * (1 - ay), w10 = weight * ax * (1 - ay), w01 = bx * ay, w11 = weight * ax * ay;
+		outColor.x += w00 * t[k00] + w10 * t[k10] + w01 * t[k01] + w11 * t[k11];
+		outColor.y += w00 * t[k00 + 1] + w10 * t[k10 + 1] + w01 * t[k01 + 1] + w11 * t[k11 + 1];
+		outColor.z += w00 * t[k00 + 2] + w10 * t[k10 + 2] + w01 * t[k01 + 2] + w11 * t[k11 + 2];
+	}
+
+	/** Math.floor() for the values lookups see, which is much faster when x >= 0. */
+	private static int floor(double x) {
+		return x >= 0 ? (int) x : (int) Math.floor(x);
+	}
+
+	/**
+	 * An approximate base 2 logarithm of x > 0: the exponent, plus the
+	 * mantissa taken linearly, which is exact at powers of 2 and is off by at
+	 * most 0.09 between them.  That is close enough to pick MIP levels, and
+	 * much faster than Math.log().
+	 */
+	static double log2(double x) {
+		long bits = Double.doubleToRawLongBits(x);
+		int exponent = (int) (bits >>> 52) - 1023;
+		double mantissa = Double.longBitsToDouble((bits & 0x000FFFFFFFFFFFFFL) | 0x3FF0000000000000L);
+		return exponent + mantissa - 1;
+	}
 }
@@ -0,0 +1,129 @@
+package ray2.material;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+
+public class TextureTests {
+
+	/** A w x h image of 1-texel black and white checks. */
+	static BufferedImage checkerboard(int w, int h) {
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < h; y++)
+			for (int x = 0; x < w; x++)
+				image.setRGB(x, y, ((x + y) & 1) == 0 ? 0xFFFFFF : 0);
+		return image;
+	}
+
+	@Test
+	public void testLevels() {
+		Texture texture = new RepeatTexture();
+		texture.useImage(checkerboard(16, 4));
+		assertEquals(5, texture.getLevelCount());
+		int[] widths = { 16, 8, 4, 2, 1 }, heights = { 4, 2, 1, 1, 1 };
+		for (int l = 0; l < 5; l++) {
+			assertEquals(widths[l], texture.widths[l]);
+			assertEquals(heights[l], texture.heights[l]);
+		}
+
+		// Every level past the first is uniform gray; odd sizes fold the extra texels into the last block
+		for (int l = 1; l < 5; l++)
+			for (float value : texture.levels[l])
+				assertEquals(0.5, value, 1e-6);
+		texture.useImage(checkerboard(5, 3));
+		assertEquals(3, texture.getLevelCount());
+		assertEquals(0.5, texture.levels[1][0], 1e-6);
+		assertEquals(5 / 9.0, texture.levels[1][3], 1e-6);
+	}
+
+	@Test
+	public void testDecoding() {
+		BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, 0xFF8000);
+		Texture texture = new ClampTexture();
+		texture.useImage(image);
+		Colord color = new Colord();
+		texture.getTexColor(new Vector2d(0.3, 0.6), 0, color);
+		assertEquals(1, color.x, 1e-6);
+		assertEquals(128 / 255.0, color.y, 1e-6);
+		assertEquals(0, color.z, 1e-6);
+
+		texture.setLinear(false);
+		texture.getTexColor(new Vector2d(0.3, 0.6), 0, color);
+		assertEquals(Math.pow((128 / 255.0 + 0.055) / 1.055, 2.4), color.y, 1e-6);
+	}
+
+	@Test
+	public void testFiltering() {
+		// Two texels: black on the left, white on the right
+		BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(1, 0, 0xFFFFFF);
+		Texture repeat = new RepeatTexture(), clamp = new ClampTexture();
+		repeat.useImage(image);
+		clamp.useImage(image);
+		Colord color = new Colord();
+
+		// Texel centers, and halfway between them
+		clamp.getTexColor(new Vector2d(0.25, 0.5), 0, color);
+		assertEquals(0, color.x, 1e-9);
+		clamp.getTexColor(new Vector2d(0.75, 0.5), 0, color);
+		assertEquals(1, color.x, 1e-9);
+		clamp.getTexColor(new Vector2d(0.5, 0.5), 0, color);
+		assertEquals(0.5, color.x, 1e-9);
+
+		// At the edges and outside, clamping holds the edge texel and repeating blends across
+		clamp.getTexColor(new Vector2d(0, 0.5), 0, color);
+		assertEquals(0, color.x, 1e-9);
+		repeat.getTexColor(new Vector2d(0, 0.5), 0, color);
+		assertEquals(0.5, color.x, 1e-9);
+		repeat.getTexColor(new Vector2d(-2.25, 7.5), 0, color);
+		assertEquals(1, color.x, 1e-9);
+		clamp.getTexColor(new Vector2d(-2.25, 0.5), 0, color);
+		assertEquals(0, color.x, 1e-9);
+
+		// Footprints pick levels: one texel is level 0, two is level 1, and between blends them
+		// (by the approximate log2, which is linear between powers of 2)
+		clamp.getTexColor(new Vector2d(0.25, 0.5), 0.5, color);
+		assertEquals(0, color.x, 1e-9);
+		clamp.getTexColor(new Vector2d(0.25, 0.5), 1, color);
+		assertEquals(0.5, color.x, 1e-9);
+		clamp.getTexColor(new Vector2d(0.25, 0.5), 100, color);
+		assertEquals(0.5, color.x, 1e-9);
+		clamp.getTexColor(new Vector2d(0.25, 0.5), 0.75, color);
+		assertEquals(0.25, color.x, 1e-9);
+	}
+
+	@Test
+	public void testNearest() {
+		// The texel values as they are, rounded to texels as RepeatTexture and ClampTexture always did
+		BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 2; y++)
+			for (int x = 0; x < 4; x++)
+				image.setRGB(x, y, (40 * x + 100 * y) << 8);
+		Texture repeat = new RepeatTexture(), clamp = new ClampTexture();
+		repeat.useImage(image);
+		clamp.useImage(image);
+		double[][] lookups = { { 0.1, 0.9, 0, 0 }, { 0.2, 0.9, 1, 0 }, { 0.5, 0.6, 2, 1 }, { 0.95, 0.1, 0, 0 },
+				{ -0.2, 0.9, 0, 0 }, { -0.5, 0.9, 3, 0 }, { 1.3, -0.8, 1, 0 } };
+		for (double[] l : lookups) {
+			Vector2d uv = new Vector2d(l[0], l[1]);
+			assertEquals((40 * l[2] + 100 * l[3]) / 255, repeat.getTexColor(uv).y, 1e-6);
+			int x = (int) Math.max(0, Math.min(3, (int) (l[0] * 4 + 0.5)));
+			int y = (int) Math.max(0, Math.min(1, (int) ((1 - l[1]) * 2 + 0.5)));
+			assertEquals((40 * x + 100 * y) / 255.0, clamp.getTexColor(uv).y, 1e-6);
+		}
+	}
+
+	@Test
+	public void testLog2() {
+		for (int e = -20; e <= 20; e++)
+			assertEquals(e, Texture.log2(Math.scalb(1.0, e)), 0);
+		for (double x = 1e-3; x < 1e3; x *= 1.01)
+			assertEquals(Math.log(x) / Math.log(2), Texture.log2(x), 0.09);
+	}
+}
@@ -5,6 +5,7 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.StringReader;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 
@@ -47,6 +48,14 @@ public class OBJMesh {
 	 */
 	public final ArrayList<OBJFace> faces;
 	
+	/**
+	 * Whether parseOBJFromFile keeps a binary copy of each OBJ file it reads
+	 * (see PackedOBJ) and reads that instead when the OBJ file has not changed.
+	 */
+	private static boolean binaryCache = true;
+	public static void setBinaryCache(boolean binaryCache) { OBJMesh.binaryCache = binaryCache; }
+	public static boolean getBinaryCache() { return binaryCache; }
+
 	/**
 	 * Constructs an empty mesh
 	 */
@@ -90,15 +99,79 @@ public class OBJMesh {
 	}
 
 	/**
-	 * Parses an OBJ file and sets this to its contents.
+	 * Parses an OBJ file and sets this to its contents.  The file is read
+	 * with OBJReader, or from its .objbin cache if it has one that is up to
+	 * date; otherwise the cache is written, if the binary cache is on.
 	 * @throws IOException if there is a problem reading the file.
 	 * @throws OBJFileFormatException if the input OBJ file is malformed.
 	 */
 	public void parseOBJFromFile(String filename) throws IOException, OBJFileFormatException {
+		Path path = Paths.get(filename);
+		long size = Files.size(path);
+		long modified = Files.getLastModifiedTime(path).toMillis();
+		Path cache = PackedOBJ.cachePath(path);
+
+		long start = System.nanoTime();
+		PackedOBJ packed = binaryCache ? PackedOBJ.readCache(cache, size, modified) : null;
+		if (packed != null) {
+			report("read cached", cache, packed.sizeInBytes(), start);
+		} else {
+			try {
+				packed = OBJReader.read(path);
+			} catch (OBJReader.MalformedOBJException e) {
+				throw new OBJFileFormatException(e.getMessage());
+			}
+			report("parsed", path, size, start);
+			if (binaryCache) {
+				try {
+					packed.writeCache(cache, size, modified);
+				} catch (IOException e) {
+					System.err.println("Warning: could not write OBJ cache " + cache + ": " + e);
+				}
+			}
+		}
+		set(packed);
+	}
 
-		BufferedReader reader = Files.newBufferedReader(Paths.get(filename));
+	private static void report(String what, Path path, long bytes, long start) {
+		double seconds = (System.nanoTime() - start) * 1e-9;
+		System.out.printf("OBJMesh: %s %s: %.1f MB in %.3f s, %.0f MB/s%n", what, path.getFileName(),
+				bytes * 1e-6, seconds, bytes * 1e-6 / Math.max(seconds, 1e-9));
+	}
 
-		parseOBJ(reader);
+	/**
+	 * Sets this to the contents of a PackedOBJ.
+	 */
+	public void set(PackedOBJ packed) {
+		positions.clear();
+		uvs.clear();
+		normals.clear();
+		faces.clear();
+
+		positions.ensureCapacity(packed.numPositions());
+		for (int i = 0; i < packed.positions.length; i += 3)
+			positions.add(new Vector3(packed.positions[i], packed.positions[i + 1], packed.positions[i + 2]));
+		uvs.ensureCapacity(packed.numUVs());
+		for (int i = 0; i < packed.uvs.length; i += 2)
+			uvs.add(new Vector2(packed.uvs[i], packed.uvs[i + 1]));
+		normals.ensureCapacity(packed.numNormals());
+		for (int i = 0; i < packed.normals.length; i += 3)
+			normals.add(new Vector3(packed.normals[i], packed.normals[i + 1], packed.normals[i + 2]));
+
+		faces.ensureCapacity(packed.numFaces());
+		for (int f = 0; f < packed.numFaces(); f++) {
+			int first = packed.faceStarts[f], n = packed.faceStarts[f + 1] - first;
+			OBJFace face = new OBJFace(n, packed.cornerUVs[first] != PackedOBJ.NONE,
+					packed.cornerNormals[first] != PackedOBJ.NONE);
+			for (int i = 0; i < n; i++) {
+				face.positions[i] = packed.cornerPositions[first + i] + OBJFace.indexBase;
+				if (face.uvs != null)
+					face.uvs[i] = packed.cornerUVs[first + i] + OBJFace.indexBase;
+				if (face.normals != null)
+					face.normals[i] = packed.cornerNormals[first + i] + OBJFace.indexBase;
+			}
+			faces.add(face);
+		}
 	}
 	
 	/**
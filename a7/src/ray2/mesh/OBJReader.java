@@ -0,0 +1,489 @@
+package ray2.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+/**
+ * A fast reader for OBJ files, which accepts the same files as
+ * OBJMesh.parseOBJ but reads them into a PackedOBJ.
+ *
+ * The file is mapped into memory and cut into chunks of about CHUNK_BYTES at
+ * line breaks.  The chunks are parsed in parallel, each straight from the
+ * mapped bytes into growable primitive arrays, with no Strings or boxed
+ * vectors along the way, and then the chunks' arrays are joined.  The indices
+ * in a face refer to vertices counted from the start of the file, so they
+ * need no change when the chunks are joined; only relative (negative)
+ * indices, which count back from the face, are fixed up then.
+ *
+ * Numbers are converted by hand when that is certain to give the same float
+ * as Float.parseFloat, which is nearly always, and by Float.parseFloat when
+ * it is not.
+ */
+public class OBJReader {
+
+	/** The approximate number of bytes of the file each task parses. */
+	static int CHUNK_BYTES = 1 << 22;
+
+	/** An OBJ file that does not follow the format. */
+	@SuppressWarnings("serial")
+	public static class MalformedOBJException extends IOException {
+		public MalformedOBJException(String error) {
+			super(error);
+		}
+	}
+
+	/**
+	 * Read an OBJ file.
+	 *
+	 * @param path the file
+	 * @return the file's contents
+	 * @throws MalformedOBJException if the file is not a valid OBJ file
+	 * @throws IOException if the file cannot be read
+	 */
+	public static PackedOBJ read(Path path) throws IOException {
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			long[] bounds = chunkBounds(ch);
+			Chunk[] chunks = new Chunk[bounds.length - 1];
+			for (int k = 0; k < chunks.length; k++) {
+				if (bounds[k + 1] - bounds[k] > Integer.MAX_VALUE)
+					throw new MalformedOBJException("Line too long in " + path);
+				chunks[k] = new Chunk(ch.map(FileChannel.MapMode.READ_ONLY, bounds[k], bounds[k + 1] - bounds[k]));
+			}
+			try {
+				IntStream.range(0, chunks.length).parallel().forEach(k -> chunks[k].parse());
+			} catch (UncheckedMalformed e) {
+				throw new MalformedOBJException(e.getMessage());
+			}
+			return join(chunks);
+		}
+	}
+
+	/**
+	 * @return the offsets at which the chunks start, and then the file size;
+	 *   each chunk starts at the beginning of a line
+	 */
+	private static long[] chunkBounds(FileChannel ch) throws IOException {
+		long size = ch.size();
+		ArrayList<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		for (long nominal = CHUNK_BYTES; nominal < size; nominal += CHUNK_BYTES) {
+			if (nominal <= bounds.get(bounds.size() - 1))
+				continue;
+			// Start the next chunk just after the first line break at or after nominal - 1
+			long pos = nominal - 1, start = size;
+			search: while (pos < size) {
+				probe.clear();
+				int n = ch.read(probe, pos);
+				if (n <= 0)
+					break;
+				for (int i = 0; i < n; i++) {
+					if (probe.get(i) == '\n') {
+						start = pos + i + 1;
+						break search;
+					}
+				}
+				pos += n;
+			}
+			if (start >= size)
+				break;
+			bounds.add(start);
+		}
+		bounds.add(size);
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = bounds.get(i);
+		return result;
+	}
+
+	/**
+	 * Join the arrays of the chunks, in order.
+	 */
+	private static PackedOBJ join(Chunk[] chunks) {
+		int nP = 0, nUV = 0, nN = 0, nF = 0, nC = 0;
+		TreeSet<String> ignored = new TreeSet<String>();
+		for (Chunk c : chunks) {
+			nP += c.positions.size;
+			nUV += c.uvs.size;
+			nN += c.normals.size;
+			nF += c.faceSizes.size;
+			nC += c.cornerPositions.size;
+			ignored.addAll(c.ignored);
+		}
+		for (String s : ignored)
+			System.err.println("Warning: ignored unrecognized OBJ specifier: " + s);
+
+		PackedOBJ obj = new PackedOBJ();
+		obj.positions = new float[nP];
+		obj.uvs = new float[nUV];
+		obj.normals = new float[nN];
+		obj.faceStarts = new int[nF + 1];
+		obj.cornerPositions = new int[nC];
+		obj.cornerUVs = new int[nC];
+		obj.cornerNormals = new int[nC];
+
+		// Where each chunk's data goes, counted in vertices (for the relative
+		// indices), faces and corners
+		int p = 0, t = 0, n = 0, f = 0, corner = 0;
+		for (Chunk c : chunks) {
+			System.arraycopy(c.positions.data, 0, obj.positions, p, c.positions.size);
+			System.arraycopy(c.uvs.data, 0, obj.uvs, t, c.uvs.size);
+			System.arraycopy(c.normals.data, 0, obj.normals, n, c.normals.size);
+			System.arraycopy(c.cornerPositions.data, 0, obj.cornerPositions, corner, c.cornerPositions.size);
+			System.arraycopy(c.cornerUVs.data, 0, obj.cornerUVs, corner, c.cornerUVs.size);
+			System.arraycopy(c.cornerNormals.data, 0, obj.cornerNormals, corner, c.cornerNormals.size);
+			fixRelative(obj.cornerPositions, corner, c.relativePositions, p / 3);
+			fixRelative(obj.cornerUVs, corner, c.relativeUVs, t / 2);
+			fixRelative(obj.cornerNormals, corner, c.relativeNormals, n / 3);
+			for (int i = 0; i < c.faceSizes.size; i++) {
+				obj.faceStarts[f + i] = corner;
+				corner += c.faceSizes.data[i];
+			}
+			p += c.positions.size;
+			t += c.uvs.size;
+			n += c.normals.size;
+			f += c.faceSizes.size;
+		}
+		obj.faceStarts[nF] = nC;
+		return obj;
+	}
+
+	/**
+	 * Relative indices are stored relative to the start of their chunk; add
+	 * the number of vertices before the chunk.
+	 */
+	private static void fixRelative(int[] indices, int firstCorner, IntList relative, int offset) {
+		for (int i = 0; i < relative.size; i++)
+			indices[firstCorner + relative.data[i]] += offset;
+	}
+
+	/** Thrown out of the parallel parse, and turned into a MalformedOBJException. */
+	@SuppressWarnings("serial")
+	private static class UncheckedMalformed extends RuntimeException {
+		UncheckedMalformed(String error) {
+			super(error);
+		}
+	}
+
+	/**
+	 * One chunk of the file and what was parsed from it.
+	 */
+	private static class Chunk {
+		final MappedByteBuffer buf;
+		final int end;
+		int pos, lineStart;
+
+		final FloatList positions, uvs, normals;
+		final IntList faceSizes = new IntList(1024);
+		final IntList cornerPositions, cornerUVs, cornerNormals;
+
+		/** The corners (within the chunk) whose index is relative to the chunk's first vertex. */
+		final IntList relativePositions = new IntList(16), relativeUVs = new IntList(16), relativeNormals = new IntList(16);
+
+		final TreeSet<String> ignored = new TreeSet<String>();
+
+		Chunk(MappedByteBuffer buf) {
+			this.buf = buf;
+			this.end = buf.limit();
+			// A rough guess of how much there is of each, to save on growing
+			int guess = Math.max(16, end / 32);
+			positions = new FloatList(guess);
+			uvs = new FloatList(16);
+			normals = new FloatList(16);
+			cornerPositions = new IntList(guess);
+			cornerUVs = new IntList(guess);
+			cornerNormals = new IntList(guess);
+		}
+
+		void parse() {
+			while (pos < end) {
+				lineStart = pos;
+				skipSpaces();
+				if (atLineEnd()) {
+					// A blank line
+				} else {
+					int k0 = pos;
+					while (pos < end && !isSpace(buf.get(pos)))
+						pos++;
+					int len = pos - k0;
+					byte c0 = buf.get(k0), c1 = len > 1 ? buf.get(k0 + 1) : 0;
+					if (c0 == '#') {
+						pos = lineEnd();
+					} else if (len == 1 && (c0 == 's' || c0 == 'o')) {
+						pos = lineEnd();
+					} else if (len == 1 && c0 == 'v') {
+						vertex(positions, 3, "vertex position");
+					} else if (len == 2 && c0 == 'v' && c1 == 't') {
+						vertex(uvs, 2, "vertex texture coordinate");
+					} else if (len == 2 && c0 == 'v' && c1 == 'n') {
+						vertex(normals, 3, "vertex normal");
+					} else if (len == 1 && c0 == 'f') {
+						face();
+					} else {
+						ignored.add(text(k0, pos));
+						pos = lineEnd();
+					}
+				}
+				// Step over the line break
+				pos = lineEnd() + 1;
+			}
+		}
+
+		private void vertex(FloatList out, int n, String what) {
+			for (int i = 0; i < n; i++) {
+				skipSpaces();
+				if (atLineEnd())
+					throw malformed(what);
+				out.add(parseFloat());
+			}
+			skipSpaces();
+			if (!atLineEnd())
+				throw malformed(what);
+		}
+
+		private void face() {
+			int first = cornerPositions.size;
+			boolean anyUV = false, anyNormal = false;
+			while (true) {
+				skipSpaces();
+				if (atLineEnd())
+					break;
+				int corner = cornerPositions.size;
+				cornerPositions.add(index(positions.size / 3, relativePositions, corner));
+				int uv = PackedOBJ.NONE, normal = PackedOBJ.NONE;
+				if (pos < end && buf.get(pos) == '/') {
+					pos++;
+					if (pos < end && buf.get(pos) != '/' && !isSpace(buf.get(pos))) {
+						uv = index(uvs.size / 2, relativeUVs, corner);
+						anyUV = true;
+					}
+					if (pos < end && buf.get(pos) == '/') {
+						pos++;
+						if (pos < end && !isSpace(buf.get(pos))) {
+							normal = index(normals.size / 3, relativeNormals, corner);
+							anyNormal = true;
+						}
+					}
+				}
+				if (pos < end && !isSpace(buf.get(pos)))
+					throw malformed("face");
+				cornerUVs.add(uv);
+				cornerNormals.add(normal);
+			}
+			int n = cornerPositions.size - first;
+			if (n < 3)
+				throw malformed("face");
+			// Like OBJMesh, a face that gives an attribute for some corners gives index 0 for the others
+			for (int i = first; anyUV && i < first + n; i++)
+				if (cornerUVs.data[i] == PackedOBJ.NONE)
+					cornerUVs.data[i] = 0;
+			for (int i = first; anyNormal && i < first + n; i++)
+				if (cornerNormals.data[i] == PackedOBJ.NONE)
+					cornerNormals.data[i] = 0;
+			faceSizes.add(n);
+		}
+
+		/**
+		 * Parse a vertex index: 1-based from the start of the file, or if
+		 * negative, counting back from the last vertex before this line.
+		 *
+		 * @return the 0-based index; for a relative index, counted from the
+		 *   chunk's first vertex, and the corner is remembered in relative
+		 */
+		private int index(int count, IntList relative, int corner) {
+			boolean negative = pos < end && buf.get(pos) == '-';
+			if (negative || (pos < end && buf.get(pos) == '+'))
+				pos++;
+			long value = 0;
+			int start = pos;
+			while (pos < end) {
+				int d = buf.get(pos) - '0';
+				if (d < 0 || d > 9)
+					break;
+				value = value * 10 + d;
+				if (value > Integer.MAX_VALUE)
+					throw malformed("face");
+				pos++;
+			}
+			if (pos == start || value == 0)
+				throw malformed("face");
+			if (negative) {
+				relative.add(corner);
+				return count - (int) value;
+			}
+			return (int) value - 1;
+		}
+
+		/** Powers of ten that are exact as doubles. */
+		private static final double[] POW10 = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+		};
+
+		/**
+		 * Parse a decimal number.  With at most 15 significant digits and a
+		 * small exponent, the digits and the power of ten are exact doubles,
+		 * so one multiplication or division gives the correctly rounded
+		 * double.  Rounding that to float gives the correctly rounded float
+		 * too, unless the double falls exactly halfway between two floats or
+		 * is subnormal as a float; those cases, and anything that is not a
+		 * plain decimal number, are left to Float.parseFloat.
+		 */
+		private float parseFloat() {
+			int start = pos;
+			boolean negative = false;
+			byte c = buf.get(pos);
+			if (c == '-' || c == '+') {
+				negative = c == '-';
+				pos++;
+			}
+			long digits = 0;
+			int numDigits = 0, exponent = 0;
+			boolean any = false;
+			while (pos < end && (c = buf.get(pos)) >= '0' && c <= '9') {
+				any = true;
+				if (digits != 0 || c != '0') {
+					if (numDigits < 18) {
+						digits = digits * 10 + (c - '0');
+						numDigits++;
+					} else {
+						exponent++;
+						numDigits = 99;
+					}
+				}
+				pos++;
+			}
+			if (pos < end && buf.get(pos) == '.') {
+				pos++;
+				while (pos < end && (c = buf.get(pos)) >= '0' && c <= '9') {
+					any = true;
+					if (digits != 0 || c != '0') {
+						if (numDigits < 18) {
+							digits = digits * 10 + (c - '0');
+							numDigits++;
+							exponent--;
+						} else {
+							numDigits = 99;
+						}
+					} else {
+						exponent--;
+					}
+					pos++;
+				}
+			}
+			if (any && pos < end && ((c = buf.get(pos)) == 'e' || c == 'E')) {
+				pos++;
+				boolean negativeExponent = false;
+				if (pos < end && ((c = buf.get(pos)) == '-' || c == '+')) {
+					negativeExponent = c == '-';
+					pos++;
+				}
+				int e = 0, eStart = pos;
+				while (pos < end && (c = buf.get(pos)) >= '0' && c <= '9') {
+					e = Math.min(e * 10 + (c - '0'), 100000);
+					pos++;
+				}
+				if (pos == eStart)
+					any = false;
+				exponent += negativeExponent ? -e : e;
+			}
+			if (any && (pos == end || isSpace(buf.get(pos))) && numDigits <= 15) {
+				if (digits == 0)
+					return negative ? -0f : 0f;
+				if (exponent >= -22 && exponent <= 22) {
+					double d = exponent >= 0 ? digits * POW10[exponent] : digits / POW10[-exponent];
+					float f = (float) d;
+					long bits = Double.doubleToRawLongBits(d);
+					if ((bits & 0x1FFFFFFFL) != 0x10000000L && Math.abs(f) >= Float.MIN_NORMAL
+							&& !Float.isInfinite(f))
+						return negative ? -f : f;
+				}
+			}
+
+			// Anything else: the whole token, by the book
+			pos = start;
+			while (pos < end && !isSpace(buf.get(pos)))
+				pos++;
+			try {
+				return Float.parseFloat(text(start, pos));
+			} catch (NumberFormatException e) {
+				throw malformed("number");
+			}
+		}
+
+		/** The same characters as \s in a regular expression. */
+		private static boolean isSpace(byte c) {
+			return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == 0x0B || c == '\f';
+		}
+
+		private void skipSpaces() {
+			byte c;
+			while (pos < end && (c = buf.get(pos)) != '\n' && isSpace(c))
+				pos++;
+		}
+
+		private boolean atLineEnd() {
+			return pos >= end || buf.get(pos) == '\n';
+		}
+
+		/** @return the position of the '\n' that ends the current line, or end */
+		private int lineEnd() {
+			int p = pos;
+			while (p < end && buf.get(p) != '\n')
+				p++;
+			return p;
+		}
+
+		private String text(int from, int to) {
+			byte[] b = new byte[to - from];
+			for (int i = 0; i < b.length; i++)
+				b[i] = buf.get(from + i);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+
+		private UncheckedMalformed malformed(String what) {
+			return new UncheckedMalformed("Malformed " + what + " specification: " + text(lineStart, lineEnd()).trim());
+		}
+	}
+
+	/** A growable array of floats. */
+	private static class FloatList {
+		float[] data;
+		int size;
+
+		FloatList(int capacity) {
+			data = new float[capacity];
+		}
+
+		void add(float v) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, Math.max(16, size + (size >> 1)));
+			data[size++] = v;
+		}
+	}
+
+	/** A growable array of ints. */
+	private static class IntList {
+		int[] data;
+		int size;
+
+		IntList(int capacity) {
+			data = new int[capacity];
+		}
+
+		void add(int v) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, Math.max(16, size + (size >> 1)));
+			data[size++] = v;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package ray2.mesh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+
+public class OBJReaderTests {
+
+	private static final String[] MESHES = {
+		"data/meshes/teapot.obj", "data/meshes/bunny10k_norms.obj", "data/meshes/bunnyNV.obj"
+	};
+
+	/** Compare with the line-by-line parser, down to the bits of every float. */
+	private static void assertSameAsSlowParser(String text, OBJMesh fast) throws IOException {
+		OBJMesh slow = new OBJMesh();
+		slow.parseOBJFromString(text);
+		assertEquals(slow.positions.size(), fast.positions.size());
+		for (int i = 0; i < slow.positions.size(); i++) {
+			assertEquals(Float.floatToIntBits(slow.positions.get(i).x), Float.floatToIntBits(fast.positions.get(i).x));
+			assertEquals(Float.floatToIntBits(slow.positions.get(i).y), Float.floatToIntBits(fast.positions.get(i).y));
+			assertEquals(Float.floatToIntBits(slow.positions.get(i).z), Float.floatToIntBits(fast.positions.get(i).z));
+		}
+		assertEquals(slow.uvs.size(), fast.uvs.size());
+		for (int i = 0; i < slow.uvs.size(); i++) {
+			assertEquals(Float.floatToIntBits(slow.uvs.get(i).x), Float.floatToIntBits(fast.uvs.get(i).x));
+			assertEquals(Float.floatToIntBits(slow.uvs.get(i).y), Float.floatToIntBits(fast.uvs.get(i).y));
+		}
+		assertEquals(slow.normals.size(), fast.normals.size());
+		for (int i = 0; i < slow.normals.size(); i++) {
+			assertEquals(Float.floatToIntBits(slow.normals.get(i).x), Float.floatToIntBits(fast.normals.get(i).x));
+			assertEquals(Float.floatToIntBits(slow.normals.get(i).y), Float.floatToIntBits(fast.normals.get(i).y));
+			assertEquals(Float.floatToIntBits(slow.normals.get(i).z), Float.floatToIntBits(fast.normals.get(i).z));
+		}
+		assertEquals(slow.faces.size(), fast.faces.size());
+		for (int f = 0; f < slow.faces.size(); f++) {
+			assertArrayEquals(slow.faces.get(f).positions, fast.faces.get(f).positions);
+			assertArrayEquals(slow.faces.get(f).uvs, fast.faces.get(f).uvs);
+			assertArrayEquals(slow.faces.get(f).normals, fast.faces.get(f).normals);
+		}
+	}
+
+	private static OBJMesh readFast(Path path) throws IOException {
+		OBJMesh mesh = new OBJMesh();
+		mesh.set(OBJReader.read(path));
+		return mesh;
+	}
+
+	@Test
+	public void testMatchesSlowParser() throws IOException {
+		int chunkBytes = OBJReader.CHUNK_BYTES;
+		try {
+			for (String file : MESHES) {
+				Path path = Paths.get(file);
+				String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+				OBJReader.CHUNK_BYTES = 1 << 22;
+				assertSameAsSlowParser(text, readFast(path));
+				// Many small chunks, so that chunk boundaries fall everywhere
+				OBJReader.CHUNK_BYTES = 997;
+				assertSameAsSlowParser(text, readFast(path));
+			}
+		} finally {
+			OBJReader.CHUNK_BYTES = chunkBytes;
+		}
+	}
+
+	@Test
+	public void testNumbersAndIndices() throws IOException {
+		String text = "# A comment\n"
+				+ "v 1 -2.5 3e2\n"
+				+ "v 0.1 1.0000001 -0\n"
+				+ "v 123456789012345678901234 1e-40 .5\n"
+				+ "v 3.4028235e38 0.30000001192092896 7.006492321624085e-46\n"
+				+ "vt 0.25 0.75\r\n"
+				+ "vn 0 0 1\n"
+				+ "f 1/1/1 2/1/1 3/1/1\n"
+				+ "f 1//1 3//1 4//1\n"
+				+ "f 2 3 4 1\n";
+		Path file = Files.createTempFile("objreader", ".obj");
+		try {
+			Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+			assertSameAsSlowParser(text, readFast(file));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testBlankLines() throws IOException {
+		// The line-by-line parser cannot read these
+		String text = "\nv 0 0 0\n  v 1 0 0\n\t\nv 0 1 0\r\n\r\nf 1 2 3\n\n";
+		Path file = Files.createTempFile("objreader", ".obj");
+		try {
+			Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+			PackedOBJ obj = OBJReader.read(file);
+			assertEquals(3, obj.numPositions());
+			assertArrayEquals(new int[] { 0, 1, 2 }, obj.cornerPositions);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testRelativeIndices() throws IOException {
+		String text = "v 0 0 0\nv 1 0 0\nv 0 1 0\nf -3 -2 -1\nv 1 1 0\nf 2 -1 -2\n";
+		Path file = Files.createTempFile("objreader", ".obj");
+		int chunkBytes = OBJReader.CHUNK_BYTES;
+		try {
+			Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+			for (int chunk : new int[] { 1 << 22, 8 }) {
+				OBJReader.CHUNK_BYTES = chunk;
+				PackedOBJ obj = OBJReader.read(file);
+				assertArrayEquals(new int[] { 0, 3, 6 }, obj.faceStarts);
+				assertArrayEquals(new int[] { 0, 1, 2, 1, 3, 2 }, obj.cornerPositions);
+			}
+		} finally {
+			OBJReader.CHUNK_BYTES = chunkBytes;
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testMalformed() throws IOException {
+		String[] bad = { "v 1 2\n", "v 1 2 3 4\n", "vt 1\n", "v 1 2 x\n", "f 1 2\n", "f 1/2/3/4 1 1\n", "f 1 a 2\n" };
+		Path file = Files.createTempFile("objreader", ".obj");
+		try {
+			for (String text : bad) {
+				Files.write(file, ("v 0 0 0\n" + text).getBytes(StandardCharsets.UTF_8));
+				try {
+					new OBJMesh(file.toString());
+					fail("Accepted " + text);
+				} catch (OBJMesh.OBJFileFormatException e) {
+					// Expected
+				}
+			}
+		} finally {
+			Files.delete(file);
+			Files.deleteIfExists(PackedOBJ.cachePath(file));
+		}
+	}
+
+	@Test
+	public void testBinaryCache() throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("objreader");
+		Path file = dir.resolve("teapot.obj");
+		Path cache = dir.resolve("teapot.objbin");
+		try {
+			Files.copy(Paths.get("data/meshes/teapot.obj"), file);
+			String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+			long size = Files.size(file), modified = Files.getLastModifiedTime(file).toMillis();
+
+			// The first load writes the cache, the second reads it
+			assertSameAsSlowParser(text, new OBJMesh(file.toString()));
+			PackedOBJ cached = PackedOBJ.readCache(cache, size, modified);
+			assertNotNull(cached);
+			PackedOBJ parsed = OBJReader.read(file);
+			assertArrayEquals(parsed.positions, cached.positions, 0);
+			assertArrayEquals(parsed.faceStarts, cached.faceStarts);
+			assertArrayEquals(parsed.cornerNormals, cached.cornerNormals);
+			assertSameAsSlowParser(text, new OBJMesh(file.toString()));
+
+			// Writers racing on the same cache each write their own temporary file
+			Thread[] writers = new Thread[4];
+			for (int i = 0; i < writers.length; i++) {
+				writers[i] = new Thread(() -> {
+					try {
+						parsed.writeCache(cache, size, modified);
+					} catch (IOException e) {
+						throw new Error(e);
+					}
+				});
+				writers[i].start();
+			}
+			for (Thread t : writers)
+				t.join();
+			assertArrayEquals(parsed.cornerNormals, PackedOBJ.readCache(cache, size, modified).cornerNormals);
+
+			// A cache for a different version of the file is not used
+			assertNull(PackedOBJ.readCache(cache, size + 1, modified));
+			assertNull(PackedOBJ.readCache(cache, size, modified + 1000));
+			Files.write(file, "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n".getBytes(StandardCharsets.UTF_8));
+			Files.setLastModifiedTime(file, FileTime.fromMillis(modified + 5000));
+			OBJMesh changed = new OBJMesh(file.toString());
+			assertEquals(1, changed.faces.size());
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(cache);
+			Files.delete(dir);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package ray2.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The contents of an OBJ file in flat arrays of primitives, as produced by
+ * OBJReader, and its binary form, the .objbin file.
+ *
+ * Vertex attributes are packed one vertex after another (3 floats per position
+ * and normal, 2 per texture coordinate).  The corners of face f are corners
+ * faceStarts[f] to faceStarts[f + 1] - 1, and each corner has a 0-based
+ * index into each attribute array, or NONE if the OBJ file did not give one.
+ *
+ * The .objbin file is just these arrays, little-endian, after a header that
+ * records the size and modification time of the OBJ file they came from.  A
+ * cache file whose header does not match the OBJ file is ignored.
+ */
+public class PackedOBJ {
+
+	/** The index of an attribute a corner does not have. */
+	public static final int NONE = -1;
+
+	public float[] positions, uvs, normals;
+	public int[] faceStarts;
+	public int[] cornerPositions, cornerUVs, cornerNormals;
+
+	private static final long MAGIC = 0x314e49424a424f00L; // "\0OBJBIN1" read little-endian
+	private static final int HEADER_BYTES = 8 + 8 + 8 + 5 * 4;
+
+	/** Largest region mapped or buffered at once. */
+	private static final int SEGMENT = 1 << 26;
+
+	public int numPositions() { return positions.length / 3; }
+	public int numUVs() { return uvs.length / 2; }
+	public int numNormals() { return normals.length / 3; }
+	public int numFaces() { return faceStarts.length - 1; }
+	public int numCorners() { return cornerPositions.length; }
+
+	/**
+	 * @return the total size of the arrays in bytes, which is also the size of
+	 *   the .objbin file less its header
+	 */
+	public long sizeInBytes() {
+		return 4L * (positions.length + uvs.length + normals.length + faceStarts.length + 3L * numCorners());
+	}
+
+	/**
+	 * @return the .objbin file that caches the OBJ file at objPath
+	 */
+	public static Path cachePath(Path objPath) {
+		String name = objPath.getFileName().toString();
+		String base = name.toLowerCase().endsWith(".obj") ? name.substring(0, name.length() - 4) : name;
+		return objPath.resolveSibling(base + ".objbin");
+	}
+
+	/**
+	 * Write the arrays to an .objbin file, stamped with the size and
+	 * modification time of the OBJ file they were read from.  The file is
+	 * written under a temporary name and then renamed, so that a reader never
+	 * sees it half written.  The temporary file is new and unique to this
+	 * call, so threads or processes writing the same cache at once (like the
+	 * workers of a render farm loading one scene) never write to one file.
+	 */
+	public void writeCache(Path path, long sourceSize, long sourceModified) throws IOException {
+		path = path.toAbsolutePath();
+		Path temp = Files.createTempFile(path.getParent(), path.getFileName() + ".", ".tmp");
+		try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(SEGMENT).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putLong(MAGIC).putLong(sourceSize).putLong(sourceModified);
+			buf.putInt(numPositions()).putInt(numUVs()).putInt(numNormals()).putInt(numFaces()).putInt(numCorners());
+			for (float[] a : new float[][] { positions, uvs, normals }) {
+				for (int i = 0; i < a.length; ) {
+					int n = Math.min(a.length - i, buf.remaining() / 4);
+					buf.asFloatBuffer().put(a, i, n);
+					buf.position(buf.position() + 4 * n);
+					i += n;
+					if (!buf.hasRemaining())
+						flush(ch, buf);
+				}
+			}
+			for (int[] a : new int[][] { faceStarts, cornerPositions, cornerUVs, cornerNormals }) {
+				for (int i = 0; i < a.length; ) {
+					int n = Math.min(a.length - i, buf.remaining() / 4);
+					buf.asIntBuffer().put(a, i, n);
+					buf.position(buf.position() + 4 * n);
+					i += n;
+					if (!buf.hasRemaining())
+						flush(ch, buf);
+				}
+			}
+			flush(ch, buf);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			ch.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Read an .objbin file by mapping it into memory.
+	 *
+	 * @return the arrays, or null if the file does not exist, is not an
+	 *   .objbin file, or was made from an OBJ file of a different size or
+	 *   modification time
+	 */
+	public static PackedOBJ readCache(Path path, long sourceSize, long sourceModified) throws IOException {
+		if (!Files.isRegularFile(path))
+			return null;
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (ch.size() < HEADER_BYTES)
+				return null;
+			ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getLong() != MAGIC || header.getLong() != sourceSize || header.getLong() != sourceModified)
+				return null;
+			PackedOBJ obj = new PackedOBJ();
+			long nP = header.getInt(), nUV = header.getInt(), nN = header.getInt(), nF = header.getInt(), nC = header.getInt();
+			if (nP < 0 || nUV < 0 || nN < 0 || nF < 0 || nC < 0
+					|| ch.size() != HEADER_BYTES + 4 * (3 * nP + 2 * nUV + 3 * nN + nF + 1 + 3 * nC))
+				return null;
+			long pos = HEADER_BYTES;
+			pos = read(ch, pos, obj.positions = new float[(int) (3 * nP)]);
+			pos = read(ch, pos, obj.uvs = new float[(int) (2 * nUV)]);
+			pos = read(ch, pos, obj.normals = new float[(int) (3 * nN)]);
+			pos = read(ch, pos, obj.faceStarts = new int[(int) nF + 1]);
+			pos = read(ch, pos, obj.cornerPositions = new int[(int) nC]);
+			pos = read(ch, pos, obj.cornerUVs = new int[(int) nC]);
+			read(ch, pos, obj.cornerNormals = new int[(int) nC]);
+			return obj;
+		}
+	}
+
+	private static long read(FileChannel ch, long pos, float[] out) throws IOException {
+		for (int i = 0; i < out.length; ) {
+			int n = Math.min(out.length - i, SEGMENT / 4);
+			MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, pos, 4L * n);
+			m.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(out, i, n);
+			i += n;
+			pos += 4L * n;
+		}
+		return pos;
+	}
+
+	private static long read(FileChannel ch, long pos, int[] out) throws IOException {
+		for (int i = 0; i < out.length; ) {
+			int n = Math.min(out.length - i, SEGMENT / 4);
+			MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, pos, 4L * n);
+			m.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(out, i, n);
+			i += n;
+			pos += 4L * n;
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,96 @@
+package ray2.sampler;
+
+import egl.math.Vector2d;
+
+/**
+ * A quasi-Monte Carlo sampler using the Halton sequence with Owen scrambling.
+ *
+ * Dimension d of sample i is the radical inverse of i in the d-th prime base:
+ * the pixel position uses bases 2 and 3, and the following dimensions the
+ * following primes.  Each radical inverse is Owen scrambled with a scramble
+ * that depends on the pixel and the dimension: every digit is permuted by a
+ * random permutation chosen by the digits before it.  This keeps the
+ * stratification of the sequence but removes the correlation between the
+ * higher, large-base dimensions that makes plain Halton points line up, and
+ * decorrelates neighboring pixels.  The permutations used are random affine
+ * maps d -> (a d + c) mod b, which are cheap to compute for any prime base.
+ *
+ * Past the last prime in the table the bases start again from 2, with
+ * different scrambles.
+ */
+public class HaltonSampler extends Sampler {
+
+	/** The bases: the first 64 primes. */
+	static final int[] PRIMES = primes(64);
+
+	@Override
+	public double next1D() {
+		int d = dimension++;
+		return owenRadicalInverse(sampleIndex, PRIMES[d % PRIMES.length], pixelHash(~(long) d));
+	}
+
+	@Override
+	public Vector2d next2D(Vector2d out) {
+		double u = next1D();
+		return out.set(u, next1D());
+	}
+
+	@Override
+	public Vector2d getPixelSample(Vector2d out) {
+		return next2D(out);
+	}
+
+	/**
+	 * The Owen scrambled radical inverse of i in a prime base: the base b
+	 * digits of i, each permuted according to the digits before it, reflected
+	 * about the radix point.  Digits continue past the end of i (as permuted
+	 * zeros) until the result has 32 bits of precision, as in SobolSampler.
+	 *
+	 * @param i the index to invert (treated as unsigned)
+	 * @param base a prime
+	 * @param seed selects the scramble
+	 */
+	static double owenRadicalInverse(int i, int base, long seed) {
+		long a = i & 0xFFFFFFFFL;
+		double invBase = 1.0 / base, invBaseN = 1;
+		long reversedDigits = 0, node = 1;
+		while (invBaseN > 0x1.0p-32) {
+			int digit = (int) (a % base);
+			a /= base;
+			// A random affine permutation of the digits for this node of the tree
+			long h = mix64(node ^ seed);
+			int mul = 1 + (int) ((h >>> 1) % (base - 1));
+			int add = (int) ((h >>> 33) % base);
+			reversedDigits = reversedDigits * base + (mul * digit + add) % base;
+			node = node * base + digit;
+			invBaseN *= invBase;
+		}
+		return Math.min(reversedDigits * invBaseN, ONE_MINUS_EPSILON);
+	}
+
+	private static int[] primes(int n) {
+		int[] p = new int[n];
+		int count = 0;
+		for (int k = 2; count < n; k++) {
+			boolean prime = true;
+			for (int j = 0; j < count && p[j] * p[j] <= k; j++)
+				if (k % p[j] == 0)
+					prime = false;
+			if (prime)
+				p[count++] = k;
+		}
+		return p;
+	}
+
+	@Override
+	public Sampler copy() {
+		return copySettings(new HaltonSampler());
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "HaltonSampler: seed " + seed;
+	}
+}
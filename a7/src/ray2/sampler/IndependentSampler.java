@@ -0,0 +1,65 @@
+package ray2.sampler;
+
+/**
+ * A sampler whose numbers are all independent: a SplitMix64 generator whose
+ * starting state is a hash of the seed, the pixel and the sample index.  Pixel
+ * positions are on the regular grid that Sampler provides by default.
+ *
+ * SplitMix64 [Steele, Lea and Flood 2014] steps a 64-bit counter by a fixed odd
+ * constant and scrambles it with a strong mixing function.  Because the
+ * mixing function also works as a hash, streams for different pixels are
+ * unrelated even though their keys differ by only a few bits, and split() can
+ * derive a new independent stream from the current one.
+ */
+public class IndependentSampler extends Sampler {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	/** The generator state: the counter that is stepped and mixed. */
+	private long state;
+
+	@Override
+	protected void startSample() {
+		state = pixelHash(sampleIndex);
+	}
+
+	@Override
+	public double next1D() {
+		dimension++;
+		// The top 53 bits, as a double in [0, 1)
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * @return the next 64 random bits of the current stream
+	 */
+	public long nextLong() {
+		state += GOLDEN_GAMMA;
+		return mix64(state);
+	}
+
+	/**
+	 * Start a new stream that is independent of this one, for example to give
+	 * a sub-computation its own numbers without changing the ones this stream
+	 * goes on to produce.  This stream advances by one step.
+	 *
+	 * @return a sampler continuing from a new, independent state
+	 */
+	public IndependentSampler split() {
+		IndependentSampler child = copySettings(new IndependentSampler());
+		child.state = mix64(nextLong() ^ GOLDEN_GAMMA);
+		return child;
+	}
+
+	@Override
+	public Sampler copy() {
+		return copySettings(new IndependentSampler());
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "IndependentSampler: seed " + seed;
+	}
+}
@@ -0,0 +1,222 @@
+package ray2.sampler;
+
+import egl.math.Vector2d;
+import ray2.Scene;
+
+/**
+ * A source of the random numbers used while rendering: pixel positions, light
+ * source points, BSDF directions and so on.
+ *
+ * Before tracing each sample the renderer calls startPixel() with the pixel
+ * and the index of the sample within the pixel, and everything that sample
+ * needs is drawn from the stream that starts there.  The stream depends only on
+ * the seed, the pixel and the sample index, never on what was drawn before, so
+ * a pixel renders the same no matter which thread renders it, in what order,
+ * or whether the rest of the image is rendered at all.
+ *
+ * The numbers of a sample are its dimensions, handed out in the order they are
+ * asked for: getPixelSample() first, then each next1D() or next2D() call.  An
+ * integrator that draws the same things in the same order at every path vertex
+ * therefore gets the same dimensions for the same purpose in every sample, which
+ * is what lets the quasi-Monte Carlo samplers spread those numbers evenly across
+ * the samples of a pixel.
+ *
+ * A Sampler has state and must only be used by one thread at a time; the
+ * renderer makes each thread its own copy().
+ */
+public abstract class Sampler {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	/** Selects one of many different, equally good, images. */
+	protected int seed = 0;
+	public void setSeed(int seed) { this.seed = seed; }
+	public int getSeed() { return seed; }
+
+	/** The number of samples the renderer takes in each pixel; set by init(). */
+	protected int samplesPerPixel = 1;
+	public int getSamplesPerPixel() { return samplesPerPixel; }
+	public void setSamplesPerPixel(int samplesPerPixel) { this.samplesPerPixel = Math.max(1, samplesPerPixel); }
+
+	/** The current pixel and sample, as passed to startPixel(). */
+	protected int pixelX, pixelY, sampleIndex;
+
+	/** The number of dimensions of the current sample used so far. */
+	protected int dimension;
+
+	/**
+	 * Start the stream of random numbers for one sample of one pixel.
+	 *
+	 * @param x the pixel column
+	 * @param y the pixel row
+	 * @param sampleIndex the index of the sample within the pixel
+	 */
+	public void startPixel(int x, int y, int sampleIndex) {
+		this.pixelX = x;
+		this.pixelY = y;
+		this.sampleIndex = sampleIndex;
+		this.dimension = 0;
+		startSample();
+	}
+
+	/**
+	 * Called by startPixel() once the pixel, sample and dimension are set.
+	 */
+	protected void startSample() { }
+
+	/**
+	 * @return the next number of the current sample's stream, uniform in [0, 1)
+	 */
+	public abstract double next1D();
+
+	/**
+	 * Fill out with the next two numbers of the current sample's stream; for
+	 * samplers that stratify in 2D, these are a 2D point.
+	 *
+	 * @param out the pair of numbers, each uniform in [0, 1)
+	 * @return out
+	 */
+	public Vector2d next2D(Vector2d out) {
+		double u = next1D();
+		return out.set(u, next1D());
+	}
+
+	/**
+	 * Fill out with the position of the current sample within its pixel.  This
+	 * must be the first thing drawn for a sample.  By default the samples are
+	 * the centers of a regular grid of sqrt(samplesPerPixel)^2 cells, with
+	 * sampleIndex = i * sqrt(samplesPerPixel) + j for the cell in column i,
+	 * row j.  When the side of the grid is a power of two, the cells are
+	 * taken in the nested order of nestedCell() instead, so that a pixel
+	 * whose rendering stops early, as ProgressiveRenderer's do, is still
+	 * covered evenly.
+	 *
+	 * @param out the position, with each coordinate in [0, 1)
+	 * @return out
+	 */
+	public Vector2d getPixelSample(Vector2d out) {
+		int side = (int) Math.round(Math.sqrt(samplesPerPixel));
+		int i, j;
+		if ((side & (side - 1)) == 0) {
+			int cell = nestedCell(sampleIndex % (side * side), Integer.numberOfTrailingZeros(side), 0, false);
+			i = cell % side;
+			j = cell / side;
+		} else {
+			i = (sampleIndex / side) % side;
+			j = sampleIndex % side;
+		}
+		return out.set((i + 0.5) / side, (j + 0.5) / side);
+	}
+
+	/**
+	 * A nested order of the 2^levels strata of [0, 1): the binary digits of
+	 * index, lowest first, choose the half of the interval, then the half of
+	 * that half, and so on, so that the first 2^k indices are one in each of
+	 * 2^k equal intervals whichever k is.  With scramble, each choice is
+	 * flipped at random, depending on seed and the choices before it (Owen's
+	 * scrambling), which keeps that property.  The index is first shuffled
+	 * too, by flipping each of its bits according to the bits above it: two
+	 * dimensions that scrambled the same index would otherwise have their
+	 * top-level choices tied together.  The shuffle maps each aligned block
+	 * of 2^k indices to another, so the property still holds.
+	 *
+	 * @param index the index to place, in 0..2^levels - 1
+	 * @param levels the number of binary digits
+	 * @param seed selects the scramble
+	 * @param scramble whether to scramble at all
+	 * @return the stratum of index
+	 */
+	protected static int nestedStratum(int index, int levels, long seed, boolean scramble) {
+		if (scramble)
+			index = shuffle(index, levels, seed);
+		int stratum = 0;
+		for (int k = 0; k < levels; k++) {
+			int digit = (index >>> k) & 1;
+			if (scramble)
+				digit ^= (int) mix64(seed ^ ((long) k << 32 | stratum)) & 1;
+			stratum = stratum << 1 | digit;
+		}
+		return stratum;
+	}
+
+	/**
+	 * The same in 2D: a nested order of the cells of a 2^levels x 2^levels
+	 * grid, where the base 4 digits of index choose the quarter of the square,
+	 * then the quarter of that quarter, and so on, so that the first 4^k
+	 * indices are one in each cell of a 2^k x 2^k grid.
+	 *
+	 * @return the cell of index, as row * 2^levels + column
+	 */
+	protected static int nestedCell(int index, int levels, long seed, boolean scramble) {
+		if (scramble)
+			index = shuffle(index, 2 * levels, seed);
+		int column = 0, row = 0;
+		for (int k = 0; k < levels; k++) {
+			int digit = (index >>> 2 * k) & 3;
+			if (scramble)
+				digit ^= (int) mix64(seed ^ ((long) k << 32 | column << levels | row)) & 3;
+			column = column << 1 | (digit & 1);
+			row = row << 1 | digit >>> 1;
+		}
+		return row << levels | column;
+	}
+
+	/**
+	 * @return a new sampler with the same settings, for use by another thread
+	 */
+	public abstract Sampler copy();
+
+	/**
+	 * Copy the settings of this sampler to another, for implementing copy().
+	 */
+	protected <T extends Sampler> T copySettings(T other) {
+		other.seed = seed;
+		other.samplesPerPixel = samplesPerPixel;
+		return other;
+	}
+
+	/**
+	 * Called once, before rendering, after all the settings are parsed.
+	 */
+	public void init(Scene scene) {
+		samplesPerPixel = scene.getSamples() * scene.getSamples();
+	}
+
+	/**
+	 * @return the low bits bits of index, each flipped or not according to a hash of
+	 *   seed and the bits above it
+	 */
+	private static int shuffle(int index, int bits, long seed) {
+		seed = mix64(~seed);
+		int shuffled = 0;
+		for (int b = bits - 1; b >= 0; b--) {
+			int bit = (index >>> b) & 1;
+			bit ^= (int) mix64(seed ^ ((long) b << 32 | index >>> b + 1)) & 1;
+			shuffled |= bit << b;
+		}
+		return shuffled;
+	}
+
+	/**
+	 * @return a 64-bit hash of the seed, the current pixel and key, which is
+	 *   unrelated to the hash of any other seed, pixel or key
+	 */
+	protected long pixelHash(long key) {
+		long h = mix64(seed + GOLDEN_GAMMA);
+		h = mix64(h ^ (((long) pixelX << 32) | (pixelY & 0xFFFFFFFFL)));
+		return mix64(h + key);
+	}
+
+	/**
+	 * The SplitMix64 finalizer, a variant of MurmurHash3's, which maps each
+	 * 64-bit value to a different, well scrambled one.
+	 */
+	protected static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/** The largest double less than 1. */
+	protected static final double ONE_MINUS_EPSILON = 0x1.fffffffffffffp-1;
+}
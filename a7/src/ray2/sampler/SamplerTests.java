@@ -0,0 +1,262 @@
+package ray2.sampler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import ray2.Image;
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.camera.PerspectiveCamera;
+import ray2.integrator.Integrator;
+import ray2.surface.Sphere;
+
+public class SamplerTests {
+
+	@Test
+	public void testStreamsDependOnlyOnPixelAndSample() {
+		Sampler a = new IndependentSampler();
+		a.setSeed(17);
+		Sampler b = a.copy();
+
+		a.startPixel(3, 5, 2);
+		double[] first = new double[8];
+		for (int i = 0; i < first.length; i++)
+			first[i] = a.next1D();
+
+		// Use b for other pixels first; its stream for (3, 5, 2) must not change
+		b.startPixel(4, 5, 2);
+		b.next1D();
+		b.startPixel(3, 5, 1);
+		b.next2D(new Vector2d());
+		b.startPixel(3, 5, 2);
+		for (int i = 0; i < first.length; i++)
+			assertEquals("Stream differs at number " + i, first[i], b.next1D(), 0);
+
+		b.startPixel(5, 3, 2);
+		assertNotEquals("Swapping x and y should change the stream.", first[0], b.next1D(), 0);
+		b.setSeed(18);
+		b.startPixel(3, 5, 2);
+		assertNotEquals("Changing the seed should change the stream.", first[0], b.next1D(), 0);
+	}
+
+	@Test
+	public void testUniform() {
+		IndependentSampler s = new IndependentSampler();
+		int n = 100000, bins = 10;
+		int[] counts = new int[bins];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			// One number from each of many streams, as a renderer would draw them
+			s.startPixel(i % 317, i / 317, i % 4);
+			double u = s.next1D();
+			assertTrue(u >= 0 && u < 1);
+			counts[(int) (u * bins)]++;
+			sum += u;
+		}
+		assertEquals(0.5, sum / n, 0.01);
+		for (int c : counts)
+			assertEquals((double) n / bins, c, 0.05 * n / bins);
+
+		// A split stream should not repeat its parent's numbers
+		s.startPixel(0, 0, 0);
+		IndependentSampler child = s.split();
+		assertNotEquals(s.next1D(), child.next1D(), 0);
+	}
+
+	@Test
+	public void testPermute() {
+		for (int n : new int[] { 1, 2, 7, 16, 100, 1000 }) {
+			for (int seed : new int[] { 0, 12345, -99 }) {
+				boolean[] seen = new boolean[n];
+				for (int i = 0; i < n; i++) {
+					int p = StratifiedSampler.permute(i, n, seed);
+					assertTrue("Out of range: " + p, p >= 0 && p < n);
+					assertTrue("Repeated element " + p, !seen[p]);
+					seen[p] = true;
+				}
+			}
+		}
+	}
+
+	/** The first n samples of pixel (x, y), using all 2D dimensions up to dims. */
+	private static Vector2d[][] samples(Sampler s, int n, int x, int y, int dims) {
+		Vector2d[][] points = new Vector2d[dims][n];
+		for (int i = 0; i < n; i++) {
+			s.startPixel(x, y, i);
+			points[0][i] = s.getPixelSample(new Vector2d());
+			for (int d = 1; d < dims; d++)
+				points[d][i] = s.next2D(new Vector2d());
+		}
+		return points;
+	}
+
+	/** Assert that each of the nx * ny cells of the square holds the same number of points. */
+	private static void assertStratified(String name, Vector2d[] points, int nx, int ny) {
+		int[] counts = new int[nx * ny];
+		for (Vector2d p : points) {
+			assertTrue(name + ": point out of range: " + p, p.x >= 0 && p.x < 1 && p.y >= 0 && p.y < 1);
+			counts[(int) (p.x * nx) + nx * (int) (p.y * ny)]++;
+		}
+		for (int c : counts)
+			assertEquals(name + " is not stratified in " + nx + " x " + ny + " cells", points.length / (nx * ny), c);
+	}
+
+	@Test
+	public void testStratification() {
+		Sampler sobol = new SobolSampler(), halton = new HaltonSampler(), stratified = new StratifiedSampler();
+		for (Sampler s : new Sampler[] { sobol, halton, stratified })
+			s.samplesPerPixel = 16;
+
+		for (int pixel = 0; pixel < 4; pixel++) {
+			// Every 2D dimension of 16 Sobol points is a (0,4,2)-net
+			for (Vector2d[] dim : samples(sobol, 16, pixel, 7, 5))
+				for (int k = 0; k <= 4; k++)
+					assertStratified("Sobol", dim, 1 << k, 16 >> k);
+
+			// Jittered points have one point per cell of a 4 x 4 grid
+			for (Vector2d[] dim : samples(stratified, 16, pixel, 7, 5)) {
+				assertStratified("Stratified", dim, 4, 4);
+				assertStratified("Stratified", dim, 1, 4);
+			}
+
+			// The pixel positions from Halton are stratified in 2^i x 3^j cells
+			Vector2d[] h = samples(halton, 36, pixel, 7, 1)[0];
+			assertStratified("Halton", h, 4, 9);
+			assertStratified("Halton", h, 2, 3);
+		}
+
+		// 1D dimensions are stratified too
+		for (Sampler s : new Sampler[] { sobol, stratified }) {
+			int[] counts = new int[16];
+			for (int i = 0; i < 16; i++) {
+				s.startPixel(5, 5, i);
+				s.next1D();
+				counts[(int) (16 * s.next1D())]++;
+			}
+			for (int c : counts)
+				assertEquals(s + " is not stratified in 1D", 1, c);
+		}
+	}
+
+	@Test
+	public void testDimensionsIndependent() {
+		// Within a pixel, where a sample is in the pixel must say nothing about its other dimensions
+		for (Sampler s : new Sampler[] { new SobolSampler(), new HaltonSampler(), new StratifiedSampler() }) {
+			s.samplesPerPixel = 256;
+			for (int pixel = 0; pixel < 8; pixel++) {
+				Vector2d[][] p = samples(s, 256, pixel, 3, 3);
+				for (int d = 1; d < p.length; d++) {
+					double sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+					int sameHalf = 0;
+					for (int i = 0; i < 256; i++) {
+						double x = p[0][i].x, y = p[d][i].x;
+						sx += x;
+						sy += y;
+						sxx += x * x;
+						syy += y * y;
+						sxy += x * y;
+						if ((x < 0.5) == (y < 0.5))
+							sameHalf++;
+					}
+					double cov = sxy / 256 - sx * sy / 65536;
+					double corr = cov / Math.sqrt((sxx / 256 - sx * sx / 65536) * (syy / 256 - sy * sy / 65536));
+					assertTrue(s + ": pixel " + pixel + " dimension " + d + " correlated with the pixel position: "
+							+ corr, Math.abs(corr) < 0.25);
+					assertTrue(s + ": pixel " + pixel + " dimension " + d + " is in the same half as the position in "
+							+ sameHalf + " of 256 samples", sameHalf > 96 && sameHalf < 160);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testQuasiMonteCarloConverges() {
+		// Estimate the integral of a smooth function (= 1/4) in 64 pixels
+		double[] rmse = new double[4];
+		Sampler[] samplers = { new IndependentSampler(), new SobolSampler(), new HaltonSampler(), new StratifiedSampler() };
+		for (int k = 0; k < samplers.length; k++) {
+			Sampler s = samplers[k];
+			s.samplesPerPixel = 256;
+			double sumSq = 0;
+			for (int pixel = 0; pixel < 64; pixel++) {
+				double sum = 0;
+				Vector2d p = new Vector2d();
+				for (int i = 0; i < 256; i++) {
+					s.startPixel(pixel, 0, i);
+					s.next2D(p);
+					sum += p.x * p.y;
+				}
+				sumSq += (sum / 256 - 0.25) * (sum / 256 - 0.25);
+			}
+			rmse[k] = Math.sqrt(sumSq / 64);
+		}
+		for (int k = 1; k < samplers.length; k++)
+			assertTrue(samplers[k] + " error " + rmse[k] + " should be well below independent error " + rmse[0],
+					rmse[k] < rmse[0] / 4);
+	}
+
+	@Test
+	public void testDeterministic() {
+		for (Sampler a : new Sampler[] { new SobolSampler(), new HaltonSampler(), new StratifiedSampler() }) {
+			a.samplesPerPixel = 16;
+			Sampler b = a.copy();
+			Vector2d[][] p = samples(a, 16, 3, 4, 3);
+			b.startPixel(9, 9, 2);
+			b.next1D();
+			Vector2d[][] q = samples(b, 16, 3, 4, 3);
+			for (int d = 0; d < p.length; d++)
+				for (int i = 0; i < p[d].length; i++)
+					assertTrue(a + " is not deterministic", p[d][i].x == q[d][i].x && p[d][i].y == q[d][i].y);
+			Vector2d[][] r = samples(b, 16, 4, 3, 3);
+			assertNotEquals(a + " should scramble each pixel differently", p[1][0].x, r[1][0].x, 0);
+		}
+	}
+
+	/** An integrator whose output is just random numbers from the sampler. */
+	static class NoiseIntegrator extends Integrator {
+		@Override
+		public void shade(Colord outRadiance, Scene scene, Ray ray, IntersectionRecord iRec, Sampler sampler, int depth) {
+			outRadiance.set(sampler.next1D(), sampler.next1D(), sampler.next1D());
+		}
+	}
+
+	@Test
+	public void testImageIndependentOfBlockOrder() {
+		Scene scene = new Scene();
+		scene.setCamera(new PerspectiveCamera());
+		scene.addSurface(new Sphere());
+		scene.setIntegrator(new NoiseIntegrator());
+		scene.setSamples(4);
+		scene.init();
+
+		// The whole image as one block...
+		Image whole = new Image(16, 12);
+		RayTracer.renderBlock(scene, whole, 0, 0, 16, 12);
+
+		// ...and as four blocks, rendered backwards by one sampler
+		Image blocks = new Image(16, 12);
+		for (int k = 3; k >= 0; k--)
+			RayTracer.renderBlock(scene, blocks, 8 * (k % 2), 6 * (k / 2), 8, 6);
+
+		Colord c0 = new Colord(), c1 = new Colord();
+		for (int y = 0; y < 12; y++) {
+			for (int x = 0; x < 16; x++) {
+				whole.getPixelColor(c0, x, y);
+				blocks.getPixelColor(c1, x, y);
+				assertEquals("Pixel " + x + ", " + y + " changed.", c0.x, c1.x, 0);
+				assertEquals("Pixel " + x + ", " + y + " changed.", c0.y, c1.y, 0);
+				assertEquals("Pixel " + x + ", " + y + " changed.", c0.z, c1.z, 0);
+			}
+		}
+		whole.getPixelColor(c0, 0, 0);
+		whole.getPixelColor(c1, 1, 0);
+		assertNotEquals("Neighboring pixels should get different numbers.", c0.x, c1.x, 0);
+	}
+}
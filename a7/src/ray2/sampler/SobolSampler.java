@@ -0,0 +1,116 @@
+package ray2.sampler;
+
+import egl.math.Vector2d;
+
+/**
+ * A quasi-Monte Carlo sampler using the first two dimensions of the Sobol
+ * sequence, Owen scrambled.
+ *
+ * Each 2D dimension of a sample (the pixel position, then each next2D()) is
+ * a point of the 2D Sobol sequence, scrambled with its own random Owen
+ * scramble for every pixel and dimension.  The points a pixel uses for any
+ * one dimension are then a (0,2)-sequence: every 2^k of them fall one in each
+ * of the 2^k cells of any partition of the square into equal power-of-two
+ * rectangles.  Which point a sample takes is sampleIndex shuffled by another
+ * Owen scramble for every pixel and dimension, as in Burley's shuffled Sobol
+ * sequence: scrambling the points alone would leave the dimensions of a
+ * sample tied together, since the same index would choose the same interval
+ * of every dimension, up to a flip.  The shuffle maps each aligned block of
+ * 2^k indices to another, so every 2^k samples are still stratified.
+ * Shuffling and scrambling each dimension separately ("padding") keeps
+ * different dimensions from being correlated with each other, without needing
+ * the higher dimensions of the sequence, whose quality falls off.  1D
+ * dimensions use the first Sobol dimension (the van der Corput sequence).
+ *
+ * Sample counts that are powers of two work best.
+ */
+public class SobolSampler extends Sampler {
+
+	/** Generator matrix columns of the second Sobol dimension. */
+	private static final int[] SOBOL_1 = new int[32];
+	static {
+		SOBOL_1[0] = 1 << 31;
+		for (int k = 1; k < 32; k++)
+			SOBOL_1[k] = SOBOL_1[k - 1] ^ (SOBOL_1[k - 1] >>> 1);
+	}
+
+	@Override
+	public double next1D() {
+		long h = pixelHash(~(long) dimension++);
+		return toUnit(owenScramble(Integer.reverse(shuffle(h)), h));
+	}
+
+	@Override
+	public Vector2d next2D(Vector2d out) {
+		long h = pixelHash(~(long) dimension);
+		dimension += 2;
+		int i = shuffle(h);
+		return out.set(toUnit(owenScramble(Integer.reverse(i), h)), toUnit(owenScramble(sobol1(i), mix64(h))));
+	}
+
+	/**
+	 * @return the index of the point the current sample takes in the
+	 *   dimension whose hash is h: sampleIndex, Owen scrambled as a binary
+	 *   fraction, so that each bit is flipped according to the bits above it
+	 */
+	private int shuffle(long h) {
+		return owenScramble(sampleIndex, mix64(~h));
+	}
+
+	@Override
+	public Vector2d getPixelSample(Vector2d out) {
+		return next2D(out);
+	}
+
+	/**
+	 * @return point i of the second Sobol dimension, as a 32-bit binary fraction
+	 */
+	static int sobol1(int i) {
+		int v = 0;
+		for (int k = 0; i != 0; i >>>= 1, k++)
+			if ((i & 1) != 0)
+				v ^= SOBOL_1[k];
+		return v;
+	}
+
+	/**
+	 * Owen scramble a 32-bit binary fraction: each bit is flipped or not
+	 * according to a hash of the bits above it, so points that share their
+	 * leading bits (are in the same binary interval) are permuted together.
+	 * This uses the hash of Burley ["Practical Hash-based Owen Scrambling",
+	 * JCGT 2020]: with the bits reversed, adding a seed and xoring with even
+	 * multiples only carry information from each bit towards the higher ones,
+	 * which is all that nested scrambling needs.
+	 *
+	 * @param v the bits of the fraction, most significant first
+	 * @param seed selects the scramble
+	 */
+	static int owenScramble(int v, long seed) {
+		int x = Integer.reverse(v);
+		x += (int) seed;
+		x ^= x * 0x6c50b47c;
+		x ^= x * 0xb82f1e52;
+		x ^= x * 0xc7afe638;
+		x ^= x * 0x8d22f6e6;
+		return Integer.reverse(x);
+	}
+
+	/**
+	 * @return the 32-bit binary fraction v as a double in [0, 1)
+	 */
+	static double toUnit(int v) {
+		return (v & 0xFFFFFFFFL) * 0x1.0p-32;
+	}
+
+	@Override
+	public Sampler copy() {
+		return copySettings(new SobolSampler());
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "SobolSampler: seed " + seed;
+	}
+}
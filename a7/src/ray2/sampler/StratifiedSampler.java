@@ -0,0 +1,116 @@
+package ray2.sampler;
+
+import egl.math.Vector2d;
+
+/**
+ * A jittered stratified sampler.  For every dimension, the samples of a pixel
+ * are spread one per stratum: 2D dimensions are divided into a
+ * sqrt(samplesPerPixel) x sqrt(samplesPerPixel) grid of cells and 1D
+ * dimensions into samplesPerPixel intervals, and each sample takes a uniformly
+ * random point in its stratum.  Which stratum a sample gets is a random
+ * permutation of the sample index that is different for every pixel and
+ * dimension, so that the strata of different dimensions are not correlated
+ * (sample 0 is not always in the corner).  When the number of strata is a
+ * power of two, the permutation is a scrambled nested order (see
+ * Sampler.nestedCell()), so that the first samples of a pixel are
+ * stratified too, on a coarser grid.
+ *
+ * If more than samplesPerPixel samples are taken, the strata are reused.
+ */
+public class StratifiedSampler extends Sampler {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	/** The state of the generator for the jitter, as in IndependentSampler. */
+	private long state;
+
+	@Override
+	protected void startSample() {
+		state = pixelHash(sampleIndex);
+	}
+
+	private double jitter() {
+		state += GOLDEN_GAMMA;
+		return (mix64(state) >>> 11) * 0x1.0p-53;
+	}
+
+	@Override
+	public double next1D() {
+		int n = samplesPerPixel;
+		long hash = pixelHash(~(long) dimension++);
+		int stratum = (n & (n - 1)) == 0 ? nestedStratum(sampleIndex % n, Integer.numberOfTrailingZeros(n), hash, true)
+				: permute(sampleIndex % n, n, (int) hash);
+		return Math.min((stratum + jitter()) / n, ONE_MINUS_EPSILON);
+	}
+
+	@Override
+	public Vector2d next2D(Vector2d out) {
+		int side = (int) Math.round(Math.sqrt(samplesPerPixel)), n = side * side;
+		long hash = pixelHash(~(long) dimension);
+		int stratum = (side & (side - 1)) == 0
+				? nestedCell(sampleIndex % n, Integer.numberOfTrailingZeros(side), hash, true)
+				: permute(sampleIndex % n, n, (int) hash);
+		dimension += 2;
+		double u = (stratum % side + jitter()) / side;
+		double v = (stratum / side + jitter()) / side;
+		return out.set(Math.min(u, ONE_MINUS_EPSILON), Math.min(v, ONE_MINUS_EPSILON));
+	}
+
+	@Override
+	public Vector2d getPixelSample(Vector2d out) {
+		return next2D(out);
+	}
+
+	/**
+	 * A random permutation of 0..n-1, computed one element at a time without
+	 * storing it [Kensler 2013, "Correlated Multi-Jittered Sampling"]: a hash
+	 * that is invertible on the bits of n - 1 is applied until the value falls
+	 * below n.
+	 *
+	 * @param i the element to permute, in 0..n-1
+	 * @param n the length of the permutation
+	 * @param seed selects the permutation
+	 * @return the element i maps to
+	 */
+	static int permute(int i, int n, int seed) {
+		int w = n - 1;
+		w |= w >>> 1;
+		w |= w >>> 2;
+		w |= w >>> 4;
+		w |= w >>> 8;
+		w |= w >>> 16;
+		do {
+			i ^= seed;
+			i *= 0xe170893d;
+			i ^= seed >>> 16;
+			i ^= (i & w) >>> 4;
+			i ^= seed >>> 8;
+			i *= 0x0929eb3f;
+			i ^= seed >>> 23;
+			i ^= (i & w) >>> 1;
+			i *= 1 | seed >>> 27;
+			i *= 0x6935fa69;
+			i ^= (i & w) >>> 11;
+			i *= 0x74dcb303;
+			i ^= (i & w) >>> 2;
+			i *= 0x9e501cc3;
+			i ^= (i & w) >>> 2;
+			i *= 0xc860a3df;
+			i &= w;
+			i ^= i >>> 5;
+		} while (i >= n);
+		return (int) (((i & 0xFFFFFFFFL) + (seed & 0xFFFFFFFFL)) % n);
+	}
+
+	@Override
+	public Sampler copy() {
+		return copySettings(new StratifiedSampler());
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "StratifiedSampler: seed " + seed;
+	}
+}
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import ray2.mesh.OBJMesh;
 import ray2.mesh.OBJFace;
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
 import ray2.accel.BboxUtils;
 import egl.math.Vector3d;
@@ -149,7 +150,7 @@ public class Box extends Surface {
 		BboxUtils.boxBBx(this);
 	}
 
-	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, IntersectionScratch scratch) {
 		return false;
 	}
 
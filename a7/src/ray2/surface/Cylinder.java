@@ -1,6 +1,7 @@
 package ray2.surface;
 
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
 import ray2.accel.BboxUtils;
 import egl.math.Vector3d;
@@ -41,11 +42,13 @@ public class Cylinder extends Surface {
 	 *            the output IntersectionRecord
 	 * @param ray
 	 *            the ray to intersect
+	 * @param scratch
+	 *            scratch space owned by the calling thread
 	 * @return true if the surface intersects the ray
 	 */
-	  public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+	  public boolean intersect(IntersectionRecord outRecord, Ray rayIn, IntersectionScratch scratch) {
 
-		    Ray ray = untransformRay(rayIn);
+		    Ray ray = untransformRay(rayIn, scratch.ray);
 
 		    // Rename the common vectors so I don't have to type so much
 		    Vector3d d = ray.direction;
@@ -105,9 +108,9 @@ public class Cylinder extends Surface {
 		      t = t2;
 		    }
 
-		    Vector3d thit1 = new Vector3d(0);
+		    Vector3d thit1 = scratch.v0;
 		    ray.evaluate(thit1, tMin);
-		    Vector3d thit2 = new Vector3d(0);
+		    Vector3d thit2 = scratch.v1;
 		    ray.evaluate(thit2, tMax);
 
 		    double dx1 = thit1.x-c.x;
@@ -1,9 +1,11 @@
 package ray2.surface;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
 import egl.math.Matrix4d;
 import egl.math.Vector3d;
@@ -16,9 +18,6 @@ public class Group extends Surface {
   /** The transformation matrix associated with this group. */
   private Matrix4d transformMat;
 
-  /** A shared temporary matrix */
-  static Matrix4d tmp = new Matrix4d();
-
   public Group() {
     transformMat = new Matrix4d();
     transformMat.setIdentity();
@@ -50,11 +49,13 @@ public class Group extends Surface {
 
 
   public void setTranslate(Vector3d T) {
+    Matrix4d tmp = new Matrix4d();
 	Matrix4d.createTranslation(T, tmp);
     transformMat.mulAfter(tmp);
   }
 
   public void setRotate(Vector3d R) {
+    Matrix4d tmp = new Matrix4d();
     // #A7: add rotation to transformMat
     Matrix4d.createRotationX(R.x * Math.PI/180, tmp);
     transformMat.mulAfter(tmp);
@@ -65,6 +66,7 @@ public class Group extends Surface {
   }
 
   public void setScale(Vector3d S) {
+    Matrix4d tmp = new Matrix4d();
     // #A7: add scale to transformMat
 	Matrix4d.createScale(S, tmp);
     transformMat.mulAfter(tmp);
@@ -74,11 +76,55 @@ public class Group extends Surface {
     objs.add(a);
   }
 
-  public boolean intersect(IntersectionRecord outRecord, Ray ray) { return false; }
+  public boolean intersect(IntersectionRecord outRecord, Ray ray, IntersectionScratch scratch) { return false; }
   public void computeBoundingBox() {  }
 
+  /**
+   * If true, every Mesh under this group (including in nested groups) is added
+   * to the scene as a MeshInstance: its own transformation plus a reference to
+   * an object-space BVH that is shared by all meshes with the same data.  The
+   * triangles are then stored once per .obj file, not once per Mesh.
+   */
+  protected boolean instancing = false;
+  public void setInstancing(boolean instancing) { this.instancing = instancing; }
+
   public void appendRenderableSurfaces (ArrayList<Surface> in) {
+    if (!instancing) {
+      for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();)
+        iter.next().appendRenderableSurfaces(in);
+      return;
+    }
+
+    int first = in.size();
     for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();)
-      iter.next().appendRenderableSurfaces(in);
+      appendInstances(iter.next(), in);
+
+    // Report how much geometry the instances share
+    IdentityHashMap<TriangleSoup, Boolean> soups = new IdentityHashMap<TriangleSoup, Boolean>();
+    long bytes = 0, triangles = 0, instances = 0;
+    for (int i = first; i < in.size(); i++) {
+      if (!(in.get(i) instanceof MeshInstance))
+        continue;
+      TriangleSoup soup = ((MeshInstance) in.get(i)).getSoup();
+      instances++;
+      triangles += soup.size();
+      if (soups.put(soup, Boolean.TRUE) == null)
+        bytes += soup.memoryBytes();
+    }
+    System.out.printf("Group: %d mesh instances (%d triangles) of %d unique meshes, %.1f MB of shared geometry%n",
+        instances, triangles, soups.size(), bytes * 1e-6);
+  }
+
+  private static void appendInstances(Surface s, ArrayList<Surface> in) {
+    if (s instanceof Mesh) {
+      Mesh mesh = (Mesh) s;
+      if (mesh.getMesh() != null && !mesh.getMesh().faces.isEmpty())
+        in.add(new MeshInstance(mesh));
+    } else if (s instanceof Group) {
+      for (Iterator<Surface> iter = ((Group) s).objs.iterator(); iter.hasNext();)
+        appendInstances(iter.next(), in);
+    } else {
+      s.appendRenderableSurfaces(in);
+    }
   }
 }
@@ -1,12 +1,15 @@
 package ray2.surface;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import ray2.mesh.OBJFace;
 import ray2.mesh.OBJMesh;
 import ray2.mesh.OBJMesh.OBJFileFormatException;
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
 import ray2.RayTracer;
 
@@ -14,16 +17,23 @@ import ray2.RayTracer;
  * An interface between a MeshData and the ray tracer. When the Scene calls
  * appendRenderableSurfaces on this object, it appends all Triangles on the
  * mesh onto the given ArrayList. This way, the Scene has direct access to
- * all intersectable Surfaces in the scene.
+ * all intersectable Surfaces in the scene.  With storage set to "packed" it
+ * appends a single TriangleSoup instead.
  * 
  * @author eschweic
  *
  */
 public class Mesh extends Surface {
 
-	/** The underlying data of this Mesh. */
+	/** The underlying data of this Mesh, until it is packed into soup. */
 	private OBJMesh mesh = null;
 
+	/**
+	 * With packed storage, the triangles once they are built.  The soup has
+	 * its own copy of everything it needs, so the OBJMesh is let go then.
+	 */
+	private TriangleSoup soup = null;
+
 	/**
 	 * Default constructor; creates an empty mesh.
 	 */
@@ -36,33 +46,87 @@ public class Mesh extends Surface {
 	public Mesh(OBJMesh newMesh) {
 		mesh = newMesh;
 	}
+
+	/** The name of the .obj file this mesh loaded, or null if it did not load one. */
+	private String fileName = null;
+
+	/**
+	 * How the triangles are given to the renderer: "objects" makes a Triangle
+	 * surface for each face, "packed" makes a single TriangleSoup that keeps all
+	 * the triangles in flat arrays with a BVH of its own.
+	 */
+	protected String storage = "objects";
+	public void setStorage(String storage) {
+		storage = storage.trim().toLowerCase();
+		if (!storage.equals("objects") && !storage.equals("packed"))
+			throw new Error("Unknown Mesh storage: " + storage);
+		this.storage = storage;
+	}
 	
 	/**
 	 * Set the data in this mesh to the data of a mesh on disk.
 	 * @param fileName the name of a .obj file on disk.
 	 */
 	public void setData(String fileName) throws OBJFileFormatException, IOException {
-		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		this.mesh = new OBJMesh(RayTracer.sceneWorkspace.resolve(fileName));
+		String path = RayTracer.getSceneWorkspace().resolve(fileName);
+		synchronized (loaded) {
+			loaded.values().removeIf(r -> r.get() == null);
+			WeakReference<OBJMesh> ref = loaded.get(path);
+			this.mesh = ref == null ? null : ref.get();
+			if (this.mesh == null) {
+				System.out.println("Loading " + path);
+				this.mesh = new OBJMesh(path);
+				loaded.put(path, new WeakReference<OBJMesh>(this.mesh));
+				// Only the first Mesh to use a file reports on its storage
+				this.fileName = fileName;
+			}
+		}
 	}
+
+	/**
+	 * Meshes already loaded, by path, so a file used by several Mesh surfaces
+	 * is only loaded once; the entries of meshes that have been collected are
+	 * removed on the next load.
+	 */
+	private static final HashMap<String, WeakReference<OBJMesh>> loaded = new HashMap<String, WeakReference<OBJMesh>>();
 	
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	return false; }
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, IntersectionScratch scratch) { return false; }
 	public void computeBoundingBox() {	}
 
 	
 	public void appendRenderableSurfaces (ArrayList<Surface> in) {
+		boolean built = false;
+		if (storage.equals("packed")) {
+			if (soup == null && !mesh.faces.isEmpty()) {
+				soup = new TriangleSoup(this);
+				mesh = null;
+				built = true;
+			}
+			if (soup != null)
+				in.add(soup);
+		} else {
+			for (OBJFace f : mesh.faces) {
+				Triangle t = new Triangle(this, f);
+				t.setBSDF(bsdf);
+				t.setLight(light);
+				t.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
+				
+				t.computeBoundingBox();
+				in.add(t);
+			}
+		}
 
-		for (OBJFace f : mesh.faces) {
-			Triangle t = new Triangle(this, f);
-			t.setBSDF(bsdf);
-			t.setLight(light);
-			t.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
-			
-			t.computeBoundingBox();
-			in.add(t);
+		// Meshes loaded from files report how their triangles are stored; see
+		// MeshMemoryBenchmark for the heap each storage takes
+		if (fileName != null && (built || mesh != null)) {
+			System.out.printf("Mesh: %s: %d triangles stored as %s%n", fileName,
+					built ? soup.size() : mesh.faces.size(), storage);
+			if (built)
+				System.out.println("Mesh: packed arrays: " + soup.memoryReport());
 		}
 	} 
 	
+	/** @return the mesh's data, or null once it has been packed into a TriangleSoup */
 	public OBJMesh getMesh() {
 		return this.mesh;
 	}
@@ -0,0 +1,112 @@
+package ray2.surface;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
+import ray2.Ray;
+import ray2.mesh.OBJMesh;
+
+/**
+ * One placement of a mesh in a scene that uses instancing (see
+ * Group.setInstancing).  The triangles are stored once, in object space, as a
+ * TriangleSoup with its own BVH that is shared by every instance of the same
+ * OBJMesh.  The instance only holds its transformation: the scene's
+ * acceleration structure finds instances by their world-space bounds, and the
+ * instance moves the ray into object space with tMatInv before handing it to
+ * the shared soup.
+ */
+public class MeshInstance extends Surface {
+
+	/** Object-space soups, one per OBJMesh, shared by all instances. */
+	private static final Map<OBJMesh, TriangleSoup> soups = new WeakHashMap<OBJMesh, TriangleSoup>();
+
+	/** The shared object-space triangles. */
+	private final TriangleSoup soup;
+
+	/**
+	 * Make an instance of a mesh, using the mesh's current transformation,
+	 * BSDF and light.
+	 */
+	public MeshInstance(Mesh mesh) {
+		tMat = mesh.tMat;
+		tMatInv = mesh.tMatInv;
+		tMatTInv = mesh.tMatTInv;
+		bsdf = mesh.getBSDF();
+		light = mesh.getLight();
+		soup = objectSpaceSoup(mesh.getMesh());
+		computeBoundingBox();
+	}
+
+	/**
+	 * @return the object-space soup for mesh, building it the first time it is asked for
+	 */
+	static synchronized TriangleSoup objectSpaceSoup(OBJMesh mesh) {
+		TriangleSoup soup = soups.get(mesh);
+		if (soup == null) {
+			Matrix4d id = new Matrix4d();
+			soup = new TriangleSoup(mesh, id, id, id);
+			soups.put(mesh, soup);
+		}
+		return soup;
+	}
+
+	/**
+	 * @return the shared object-space triangles of this instance
+	 */
+	public TriangleSoup getSoup() {
+		return soup;
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, IntersectionScratch scratch) {
+		return intersect(outRecord, rayIn, scratch, outRecord == null);
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, IntersectionScratch scratch,
+			boolean anyIntersection) {
+		Ray ray = untransformRay(rayIn, scratch.ray);
+		if (!soup.intersect(outRecord, ray, scratch, anyIntersection))
+			return false;
+
+		if (outRecord != null) {
+			// The soup filled in object-space values; move them to world space
+			tMat.mulPos(outRecord.location);
+			tMatTInv.mulDir(outRecord.normal).normalize();
+			outRecord.surface = this;
+		}
+		return true;
+	}
+
+	/**
+	 * The bounds of the transformed corners of the soup's bounding box.
+	 */
+	public void computeBoundingBox() {
+		Vector3d lo = soup.getMinBound(), hi = soup.getMaxBound();
+		minBound = new Vector3d(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		maxBound = new Vector3d(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		Vector3d p = new Vector3d();
+		for (int i = 0; i < 8; i++) {
+			p.set((i & 1) == 0 ? lo.x : hi.x, (i & 2) == 0 ? lo.y : hi.y, (i & 4) == 0 ? lo.z : hi.z);
+			tMat.mulPos(p);
+			for (int k = 0; k < 3; k++) {
+				if (p.get(k) < minBound.get(k))
+					minBound.set(k, p.get(k));
+				if (p.get(k) > maxBound.get(k))
+					maxBound.set(k, p.get(k));
+			}
+		}
+		averagePosition = new Vector3d(minBound).add(maxBound).mul(0.5);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "MeshInstance of " + soup;
+	}
+}
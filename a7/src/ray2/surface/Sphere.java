@@ -1,7 +1,9 @@
 package ray2.surface;
 
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
+import ray2.RenderStats;
 import ray2.accel.BboxUtils;
 import egl.math.Vector3d;
 
@@ -41,12 +43,17 @@ public class Sphere extends Surface {
 	 *            the output IntersectionRecord
 	 * @param ray
 	 *            the ray to intersect
+	 * @param scratch
+	 *            scratch space owned by the calling thread
 	 * @return true if the surface intersects the ray
 	 */
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, IntersectionScratch scratch) {
+
+		if (RenderStats.isCounting())
+			scratch.primitiveTests++;
 
 		//transform the ray into object space
-		Ray ray = untransformRay(rayIn);
+		Ray ray = untransformRay(rayIn, scratch.ray);
 
 		// Rename the common vectors so I don't have to type so much
 		Vector3d d = ray.direction;
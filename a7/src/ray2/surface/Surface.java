@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import egl.math.Matrix4d;
 import egl.math.Vector3d;
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
 import ray2.light.Light;
 import ray2.material.BSDF;
@@ -63,13 +64,23 @@ public abstract class Surface {
 	 * @return tMatInv * rayIn
 	 */
 	public Ray untransformRay(Ray rayIn) {
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
+		return untransformRay(rayIn, new Ray());
+	}
+
+	/**
+	 * Un-transform rayIn using tMatInv, writing the result into rayOut
+	 * @param rayIn Input ray
+	 * @param rayOut Output ray, which may not be rayIn
+	 * @return rayOut
+	 */
+	public Ray untransformRay(Ray rayIn, Ray rayOut) {
+		rayOut.set(rayIn.origin, rayIn.direction);
+		rayOut.start = rayIn.start;
+		rayOut.end = rayIn.end;
 
-		tMatInv.mulDir(ray.direction);
-		tMatInv.mulPos(ray.origin);
-		return ray;
+		tMatInv.mulDir(rayOut.direction);
+		tMatInv.mulPos(rayOut.origin);
+		return rayOut;
 	}
 	
 	public void setTransformation(Matrix4d a, Matrix4d aInv, Matrix4d aTInv) {
@@ -89,7 +100,31 @@ public abstract class Surface {
 	 * @param ray the ray to intersect
 	 * @return true if the surface intersects the ray
 	 */
-	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray);
+	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+		return intersect(outRecord, ray, IntersectionScratch.get());
+	}
+
+	/**
+	 * Same as intersect(outRecord, ray), but uses the caller's scratch space
+	 * (only its ray, v0, v1 and primStack) instead of allocating temporaries.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param ray the ray to intersect
+	 * @param scratch scratch space owned by the calling thread
+	 * @return true if the surface intersects the ray
+	 */
+	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray, IntersectionScratch scratch);
+
+	/**
+	 * Same as intersect(outRecord, ray, scratch), but if anyIntersection is
+	 * true the caller only needs to know whether there is a hit before
+	 * ray.end, and the hit recorded need not be the first.  Surfaces made of
+	 * many primitives override this to stop at the first hit they find.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, IntersectionScratch scratch,
+			boolean anyIntersection) {
+		return intersect(outRecord, ray, scratch);
+	}
 
 	/**
 	 * Compute the bounding box and store the result in
@@ -2,7 +2,9 @@ package ray2.surface;
 
 import egl.math.Vector3d;
 import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
 import ray2.Ray;
+import ray2.RenderStats;
 import ray2.accel.BboxUtils;
 import ray2.mesh.OBJFace;
 
@@ -15,8 +17,6 @@ public class Triangle extends Surface {
 	/** The normal vector of this triangle, if vertex normals are not specified */
 	Vector3d norm;
 
-	public static int intersectionCount = 0;
-
 	/** The mesh that contains this triangle */
 	public Mesh owner;
 
@@ -25,6 +25,9 @@ public class Triangle extends Surface {
 
 	double a, b, c, d, e, f;
 
+	/** The first vertex, in object space */
+	double x0, y0, z0;
+
 	  public Triangle(Mesh owner, OBJFace face) {
 		    this.owner = owner;
 		    this.face = face;
@@ -41,6 +44,10 @@ public class Triangle extends Surface {
 		      norm.set(e0).cross(e1).normalize();
 		    }
 
+		    x0 = v0.x;
+		    y0 = v0.y;
+		    z0 = v0.z;
+
 		    a = v0.x-v1.x;
 		    b = v0.y-v1.y;
 		    c = v0.z-v1.z;
@@ -60,23 +67,24 @@ public class Triangle extends Surface {
 	 *            the output IntersectionRecord
 	 * @param rayIn
 	 *            the ray to intersect
+	 * @param scratch
+	 *            scratch space owned by the calling thread
 	 * @return true if the surface intersects the ray
 	 */
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, IntersectionScratch scratch) {
 
-		intersectionCount++;
+		if (RenderStats.isCounting())
+			scratch.primitiveTests++;
 
 		//transform ray into object space
-		Ray ray = untransformRay(rayIn);
-
-		Vector3d v0 = new Vector3d(owner.getMesh().getPosition(face,0));
+		Ray ray = untransformRay(rayIn, scratch.ray);
 
 		double g = ray.direction.x;
 		double h = ray.direction.y;
 		double i = ray.direction.z;
-		double j = v0.x - ray.origin.x;
-		double k = v0.y - ray.origin.y;
-		double l = v0.z - ray.origin.z;
+		double j = x0 - ray.origin.x;
+		double k = y0 - ray.origin.y;
+		double l = z0 - ray.origin.z;
 		double M = a * (e * i - h * f) + b * (g * f - d * i) + c
 				* (d * h - e * g);
 
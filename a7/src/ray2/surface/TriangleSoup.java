@@ -0,0 +1,350 @@
+package ray2.surface;
+
+import egl.math.Matrix4d;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
+import ray2.Ray;
+import ray2.RenderStats;
+import ray2.accel.BinnedSahBuilder;
+import ray2.accel.BvhNode;
+import ray2.accel.FlatBvh;
+import ray2.mesh.OBJFace;
+import ray2.mesh.OBJMesh;
+
+/**
+ * All the triangles of a Mesh, stored in flat arrays indexed by triangle id
+ * instead of as one Triangle object per face.  Vertices are stored already
+ * transformed to world space, so rays do not have to be transformed, and the
+ * triangles have their own BVH (a FlatBvh over triangle ids), so the scene's
+ * acceleration structure sees the whole mesh as a single surface.
+ *
+ * Per triangle, geom holds the first vertex and the two edges in the form the
+ * intersection test uses (the same as Triangle):
+ *    x0, y0, z0, a = x0-x1, b = y0-y1, c = z0-z1, d = x0-x2, e = y0-y2, f = z0-z2
+ *
+ * Normals and texture coordinates are kept in the mesh's own indexed form:
+ * normalIds/uvIds hold 3 indices per triangle (-1 if that face has none) into
+ * the world-space normals and the uvs.  Faces without normals use a face normal.
+ *
+ * Created with Mesh's storage setting set to "packed".
+ */
+public class TriangleSoup extends Surface {
+
+	/** Settings for the BVH over the triangles. */
+	private static final int BINS = 16;
+	private static final double TRAVERSAL_COST = 0.125;
+	private static final int MAX_LEAF_SIZE = 4;
+
+	/** Number of triangles. */
+	private final int count;
+
+	/** First vertex and edges of each triangle, 9 values per triangle. */
+	private final double[] geom;
+
+	/** World-space vertex normals (not normalized), 3 values per normal; null if the mesh has none. */
+	private final float[] normals;
+	/** Indices into normals, 3 per triangle; null if the mesh has no normals. */
+	private final int[] normalIds;
+	/** Unit face normal of each triangle, 3 values per triangle; null if every face has normals. */
+	private final float[] faceNormals;
+
+	/** Texture coordinates, 2 values per uv; null if the mesh has none. */
+	private final float[] uvs;
+	/** Indices into uvs, 3 per triangle; null if the mesh has no uvs. */
+	private final int[] uvIds;
+
+	/** BVH over the triangles. */
+	private final FlatBvh bvh;
+
+	/**
+	 * Pack the triangles of a mesh, using its current transformation.
+	 */
+	public TriangleSoup(Mesh owner) {
+		this(owner.getMesh(), owner.tMat, owner.tMatInv, owner.tMatTInv);
+		bsdf = owner.getBSDF();
+		light = owner.getLight();
+	}
+
+	/**
+	 * Pack the triangles of an OBJMesh, transformed by a.  With identity
+	 * matrices this gives an object-space soup that can be shared by several
+	 * MeshInstances.
+	 */
+	public TriangleSoup(OBJMesh mesh, Matrix4d a, Matrix4d aInv, Matrix4d aTInv) {
+		tMat = a;
+		tMatInv = aInv;
+		tMatTInv = aTInv;
+
+		count = mesh.faces.size();
+		geom = new double[9 * count];
+
+		boolean anyNormals = false, allNormals = true, anyUVs = false;
+		for (OBJFace face : mesh.faces) {
+			anyNormals |= face.hasNormals();
+			allNormals &= face.hasNormals();
+			anyUVs |= face.hasUVs();
+		}
+		normals = anyNormals ? new float[3 * mesh.normals.size()] : null;
+		normalIds = anyNormals ? new int[3 * count] : null;
+		faceNormals = allNormals ? null : new float[3 * count];
+		uvs = anyUVs ? new float[2 * mesh.uvs.size()] : null;
+		uvIds = anyUVs ? new int[3 * count] : null;
+
+		// Transform the vertex positions and normals once, up front
+		double[] positions = new double[3 * mesh.positions.size()];
+		Vector3d v = new Vector3d();
+		for (int i = 0; i < mesh.positions.size(); i++) {
+			tMat.mulPos(v.set(mesh.positions.get(i)));
+			positions[3*i] = v.x; positions[3*i+1] = v.y; positions[3*i+2] = v.z;
+		}
+		if (normals != null) {
+			for (int i = 0; i < mesh.normals.size(); i++) {
+				tMatTInv.mulDir(v.set(mesh.normals.get(i)));
+				normals[3*i] = (float) v.x; normals[3*i+1] = (float) v.y; normals[3*i+2] = (float) v.z;
+			}
+		}
+		if (uvs != null) {
+			for (int i = 0; i < mesh.uvs.size(); i++) {
+				uvs[2*i] = mesh.uvs.get(i).x;
+				uvs[2*i+1] = mesh.uvs.get(i).y;
+			}
+		}
+
+		// Fill the per-triangle arrays, and the bounds the BVH builder needs
+		double[] primBounds = new double[6 * count];
+		double[] centroids = new double[3 * count];
+		int[] ids = new int[count];
+		Vector3d e0 = new Vector3d(), e1 = new Vector3d();
+		for (int t = 0; t < count; t++) {
+			OBJFace face = mesh.faces.get(t);
+			int p0 = 3 * (face.positions[0] - OBJFace.indexBase);
+			int p1 = 3 * (face.positions[1] - OBJFace.indexBase);
+			int p2 = 3 * (face.positions[2] - OBJFace.indexBase);
+			for (int k = 0; k < 3; k++) {
+				double c0 = positions[p0 + k], c1 = positions[p1 + k], c2 = positions[p2 + k];
+				geom[9*t + k] = c0;
+				geom[9*t + 3 + k] = c0 - c1;
+				geom[9*t + 6 + k] = c0 - c2;
+				primBounds[6*t + k] = Math.min(c0, Math.min(c1, c2));
+				primBounds[6*t + 3 + k] = Math.max(c0, Math.max(c1, c2));
+				centroids[3*t + k] = (c0 + c1 + c2) / 3;
+			}
+			ids[t] = t;
+
+			if (normalIds != null) {
+				for (int k = 0; k < 3; k++)
+					normalIds[3*t + k] = face.hasNormals() ? face.normals[k] - OBJFace.indexBase : -1;
+			}
+			if (faceNormals != null && !face.hasNormals()) {
+				// Same as Triangle: the object-space face normal, transformed
+				Vector3 q0 = mesh.getPosition(face, 0);
+				e0.set(mesh.getPosition(face, 1)).sub(q0.x, q0.y, q0.z);
+				e1.set(mesh.getPosition(face, 2)).sub(q0.x, q0.y, q0.z);
+				tMatTInv.mulDir(e0.cross(e1).normalize()).normalize();
+				faceNormals[3*t] = (float) e0.x; faceNormals[3*t+1] = (float) e0.y; faceNormals[3*t+2] = (float) e0.z;
+			}
+			if (uvIds != null) {
+				for (int k = 0; k < 3; k++)
+					uvIds[3*t + k] = face.hasUVs() ? face.uvs[k] - OBJFace.indexBase : -1;
+			}
+		}
+
+		// Build the BVH, then put the triangles in the order of its leaves
+		BvhNode root = new BinnedSahBuilder(primBounds, centroids, ids, BINS, TRAVERSAL_COST, MAX_LEAF_SIZE)
+				.build(0, count);
+		bvh = new FlatBvh(root);
+		permute(geom, 9, ids);
+		permute(normalIds, 3, ids);
+		permute(faceNormals, 3, ids);
+		permute(uvIds, 3, ids);
+
+		minBound = new Vector3d(bvh.bounds[0], bvh.bounds[1], bvh.bounds[2]);
+		maxBound = new Vector3d(bvh.bounds[3], bvh.bounds[4], bvh.bounds[5]);
+		averagePosition = new Vector3d(minBound).add(maxBound).mul(0.5);
+	}
+
+	/**
+	 * @return the number of triangles
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes used by this soup's arrays
+	 */
+	public long memoryBytes() {
+		return 8L * geom.length + 4L * (length(normals) + length(normalIds) + length(faceNormals)
+				+ length(uvs) + length(uvIds)) + 8L * bvh.bounds.length + 4L * bvh.nodes.length;
+	}
+
+	/**
+	 * @return a breakdown of memoryBytes(), for reports
+	 */
+	public String memoryReport() {
+		return String.format("geometry %.1f MB, normals %.1f MB, uvs %.1f MB, bvh %.1f MB (%d nodes)",
+				8e-6 * geom.length, 4e-6 * (length(normals) + length(normalIds) + length(faceNormals)),
+				4e-6 * (length(uvs) + length(uvIds)), 1e-6 * (8 * bvh.bounds.length + 4 * bvh.nodes.length),
+				bvh.nodeCount);
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, IntersectionScratch scratch) {
+		return intersect(outRecord, ray, scratch, outRecord == null);
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, IntersectionScratch scratch,
+			boolean anyIntersection) {
+		int[] stack = scratch.primStack(bvh.depth);
+		int[] nodes = bvh.nodes;
+		double[] g = geom;
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		double invDx = 1 / dx, invDy = 1 / dy, invDz = 1 / dz;
+		double tMin = ray.start, tMax = ray.end;
+
+		int hit = -1;
+		double hitBeta = 0, hitGamma = 0;
+		long tests = 0;
+		int top = 0;
+		int node = 0;
+		while (true) {
+			if (bvh.hitsBox(node, ox, oy, oz, invDx, invDy, invDz, tMin, tMax)) {
+				int first = nodes[2 * node], n = nodes[2 * node + 1];
+				if (n < 0) {
+					int axis = ~n;
+					double d = axis == 0 ? dx : (axis == 1 ? dy : dz);
+					if (d < 0) {
+						stack[top++] = node + 1;
+						node = first;
+					} else {
+						stack[top++] = first;
+						node = node + 1;
+					}
+					continue;
+				}
+				tests += n;
+				for (int tri = first; tri < first + n; tri++) {
+					// The same test as Triangle.intersect
+					int o = 9 * tri;
+					double a = g[o+3], b = g[o+4], c = g[o+5], d = g[o+6], e = g[o+7], f = g[o+8];
+					double j = g[o] - ox, k = g[o+1] - oy, l = g[o+2] - oz;
+
+					double ei_hf = e * dz - dy * f;
+					double gf_di = dx * f - d * dz;
+					double dh_eg = d * dy - e * dx;
+					double M = a * ei_hf + b * gf_di + c * dh_eg;
+
+					double ak_jb = a * k - j * b;
+					double jc_al = j * c - a * l;
+					double bl_kc = b * l - k * c;
+
+					double t = -(f * ak_jb + e * jc_al + d * bl_kc) / M;
+					if (t > tMax || t < tMin)
+						continue;
+					double beta = (j * ei_hf + k * gf_di + l * dh_eg) / M;
+					if (beta < 0 || beta > 1)
+						continue;
+					double gamma = (dz * ak_jb + dy * jc_al + dx * bl_kc) / M;
+					if (gamma < 0 || gamma + beta > 1)
+						continue;
+
+					hit = tri;
+					hitBeta = beta;
+					hitGamma = gamma;
+					tMax = t;
+					if (anyIntersection)
+						break;
+				}
+				if (hit >= 0 && anyIntersection)
+					break;
+			}
+			if (top == 0)
+				break;
+			node = stack[--top];
+		}
+		if (RenderStats.isCounting())
+			scratch.primitiveTests += tests;
+		if (hit < 0)
+			return false;
+
+		if (outRecord != null)
+			fillRecord(outRecord, ray, hit, tMax, hitBeta, hitGamma);
+		return true;
+	}
+
+	private void fillRecord(IntersectionRecord outRecord, Ray ray, int tri, double t, double beta, double gamma) {
+		double alpha = 1 - beta - gamma;
+		outRecord.t = t;
+		ray.evaluate(outRecord.location, t);
+		outRecord.surface = this;
+
+		int n0 = normalIds == null ? -1 : normalIds[3 * tri];
+		if (n0 < 0) {
+			outRecord.normal.set(faceNormals[3*tri], faceNormals[3*tri+1], faceNormals[3*tri+2]);
+		} else {
+			int n1 = 3 * normalIds[3*tri+1], n2 = 3 * normalIds[3*tri+2];
+			n0 *= 3;
+			outRecord.normal.set(
+					alpha * normals[n0] + beta * normals[n1] + gamma * normals[n2],
+					alpha * normals[n0+1] + beta * normals[n1+1] + gamma * normals[n2+1],
+					alpha * normals[n0+2] + beta * normals[n1+2] + gamma * normals[n2+2]);
+			outRecord.normal.normalize();
+		}
+
+		int u0 = uvIds == null ? -1 : uvIds[3 * tri];
+		if (u0 >= 0) {
+			int u1 = 2 * uvIds[3*tri+1], u2 = 2 * uvIds[3*tri+2];
+			u0 *= 2;
+			outRecord.texCoords.set(
+					alpha * uvs[u0] + beta * uvs[u1] + gamma * uvs[u2],
+					alpha * uvs[u0+1] + beta * uvs[u1+1] + gamma * uvs[u2+1]);
+		}
+	}
+
+	/**
+	 * The bounds are computed from the triangles when the soup is created.
+	 */
+	public void computeBoundingBox() { }
+
+	private static void permute(double[] a, int stride, int[] ids) {
+		double[] src = a.clone();
+		for (int i = 0; i < ids.length; i++)
+			System.arraycopy(src, stride * ids[i], a, stride * i, stride);
+	}
+
+	private static void permute(float[] a, int stride, int[] ids) {
+		if (a == null)
+			return;
+		float[] src = a.clone();
+		for (int i = 0; i < ids.length; i++)
+			System.arraycopy(src, stride * ids[i], a, stride * i, stride);
+	}
+
+	private static void permute(int[] a, int stride, int[] ids) {
+		if (a == null)
+			return;
+		int[] src = a.clone();
+		for (int i = 0; i < ids.length; i++)
+			System.arraycopy(src, stride * ids[i], a, stride * i, stride);
+	}
+
+	private static int length(float[] a) {
+		return a == null ? 0 : a.length;
+	}
+
+	private static int length(int[] a) {
+		return a == null ? 0 : a.length;
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "TriangleSoup " + count;
+	}
+}
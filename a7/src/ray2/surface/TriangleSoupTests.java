@@ -0,0 +1,190 @@
+package ray2.surface;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ray2.IntersectionRecord;
+import ray2.IntersectionScratch;
+import ray2.Ray;
+import ray2.RenderStats;
+import ray2.accel.Bvh;
+import ray2.accel.LinearBvh;
+import ray2.mesh.OBJMesh;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+
+public class TriangleSoupTests {
+
+    @Test
+    public void testPackedMatchesObjects() throws Exception {
+        OBJMesh md = new OBJMesh("data/meshes/teapot.obj");
+        // Drop the normals of every third face, so both kinds of normals get tested
+        for (int i = 0; i < md.faces.size(); i += 3)
+            md.faces.get(i).normals = null;
+
+        Matrix4d tmat = Matrix4d.createTranslation(1, 2, 3).mulBefore(Matrix4d.createScale(2, 1, 0.5))
+                .mulBefore(Matrix4d.createRotationY(0.7));
+        Matrix4d tmatInv = tmat.clone().invert();
+        Matrix4d tmatTInv = tmatInv.clone().transpose();
+
+        Surface[] objects = renderable(md, "objects", tmat, tmatInv, tmatTInv);
+        Surface[] packed = renderable(md, "packed", tmat, tmatInv, tmatTInv);
+        assertEquals("Objects storage should make a surface per face.", md.faces.size(), objects.length);
+        assertEquals("Packed storage should make a single surface.", 1, packed.length);
+        assertEquals(md.faces.size(), ((TriangleSoup) packed[0]).size());
+
+        Bvh bvh = new Bvh();
+        bvh.build(objects);
+        LinearBvh linear = new LinearBvh();
+        linear.build(packed);
+
+        Random random = new Random(4620);
+        int hits = 0;
+        for (int i = 0; i < 5000; ++i) {
+            Vector3d target = new Vector3d(1 + 4 * (random.nextDouble() - 0.5), 2 + 3 * random.nextDouble(),
+                    3 + 4 * (random.nextDouble() - 0.5));
+            Vector3d origin = new Vector3d(random.nextDouble() - 0.5, random.nextDouble() - 0.5,
+                    random.nextDouble() - 0.5).normalize().mul(20).add(target);
+            Ray ray = new Ray(origin, target.clone().sub(origin));
+            ray.makeOffsetRay();
+
+            IntersectionRecord r0 = new IntersectionRecord(), r1 = new IntersectionRecord();
+            boolean hit0 = bvh.intersect(r0, ray, false);
+            boolean hit1 = linear.intersect(r1, ray, false);
+            assertEquals("Packed and object storage disagree about a hit.", hit0, hit1);
+            assertEquals("Any-hit query disagrees with first-hit query.", hit0, linear.intersect(null, ray, true));
+            if (!hit0)
+                continue;
+            hits++;
+            assertEquals("Packed and object storage found different first hits.", r0.t, r1.t, 1e-6 * r0.t);
+            assertTrue("Hit locations differ: " + r0.location + " vs " + r1.location,
+                    r0.location.clone().sub(r1.location).len() < 1e-5);
+            assertTrue("Normals differ: " + r0.normal + " vs " + r1.normal,
+                    r0.normal.clone().sub(r1.normal).len() < 1e-4);
+            assertTrue("Texture coordinates differ: " + r0.texCoords + " vs " + r1.texCoords,
+                    r0.texCoords.clone().sub(r1.texCoords).len() < 1e-4);
+            assertTrue("The hit surface should be the soup.", r1.surface == packed[0]);
+        }
+        assertTrue("Too few rays hit the teapot to test anything.", hits > 1000);
+    }
+
+    @Test
+    public void testAnyHitStopsEarly() throws Exception {
+        OBJMesh md = new OBJMesh("data/meshes/teapot.obj");
+        Matrix4d id = new Matrix4d();
+        Surface[] packed = renderable(md, "packed", id, id, id);
+        Bvh bvh = new Bvh();
+        bvh.build(packed);
+        IntersectionScratch scratch = IntersectionScratch.get();
+        RenderStats.setCounting(true);
+
+        // Rays straight through the teapot cross several triangles; an any-hit
+        // query (with the accel's own record, as shadow rays use it) stops at one
+        Random random = new Random(4620);
+        long firstTests = 0, anyTests = 0;
+        for (int i = 0; i < 1000; ++i) {
+            Vector3d origin = new Vector3d(random.nextDouble() - 0.5, random.nextDouble() - 0.5,
+                    random.nextDouble() - 0.5).normalize().mul(20);
+            Ray ray = new Ray(origin, origin.clone().negate());
+            ray.makeOffsetRay();
+
+            long before = scratch.primitiveTests;
+            boolean hit = bvh.intersect(new IntersectionRecord(), ray, false);
+            firstTests += scratch.primitiveTests - before;
+            before = scratch.primitiveTests;
+            assertEquals("Any-hit query disagrees with first-hit query.", hit, bvh.intersect(null, ray, true));
+            anyTests += scratch.primitiveTests - before;
+        }
+        RenderStats.setCounting(false);
+        assertTrue("Any-hit queries made " + anyTests + " tests, first-hit ones " + firstTests,
+                anyTests < firstTests);
+    }
+
+    @Test
+    public void testInstancesMatchObjects() throws Exception {
+        OBJMesh md = new OBJMesh("data/meshes/teapot.obj");
+        Surface[] objects = forest(md, false);
+        Surface[] instances = forest(md, true);
+        assertEquals("Each mesh should become one instance.", 4, instances.length);
+        for (Surface s : instances)
+            assertTrue("Instances should share one soup.", ((MeshInstance) s).getSoup() == ((MeshInstance) instances[0]).getSoup());
+
+        Bvh bvh = new Bvh();
+        bvh.build(objects);
+        LinearBvh linear = new LinearBvh();
+        linear.build(instances);
+
+        Random random = new Random(4620);
+        int hits = 0;
+        for (int i = 0; i < 5000; ++i) {
+            Vector3d target = new Vector3d(12 * random.nextDouble() - 2, 3 * random.nextDouble(), 12 * random.nextDouble() - 2);
+            Vector3d origin = new Vector3d(random.nextDouble() - 0.5, random.nextDouble(), random.nextDouble() - 0.5)
+                    .normalize().mul(30).add(target);
+            Ray ray = new Ray(origin, target.clone().sub(origin));
+            ray.makeOffsetRay();
+
+            IntersectionRecord r0 = new IntersectionRecord(), r1 = new IntersectionRecord();
+            boolean hit0 = bvh.intersect(r0, ray, false);
+            boolean hit1 = linear.intersect(r1, ray, false);
+            assertEquals("Instanced and flattened scenes disagree about a hit.", hit0, hit1);
+            if (!hit0)
+                continue;
+            hits++;
+            assertEquals("Instanced and flattened scenes found different first hits.", r0.t, r1.t, 1e-6 * r0.t);
+            assertTrue("Hit locations differ: " + r0.location + " vs " + r1.location,
+                    r0.location.clone().sub(r1.location).len() < 1e-5);
+            assertTrue("Normals differ: " + r0.normal + " vs " + r1.normal,
+                    r0.normal.clone().sub(r1.normal).len() < 1e-4);
+            assertTrue("The hit surface should be an instance.", r1.surface instanceof MeshInstance);
+        }
+        assertTrue("Too few rays hit the teapots to test anything.", hits > 500);
+    }
+
+    /** Four teapots, each under its own translated, rotated and scaled group. */
+    private static Surface[] forest(OBJMesh md, boolean instancing) {
+        Group root = new Group();
+        root.setInstancing(instancing);
+        for (int i = 0; i < 4; ++i) {
+            Group g = new Group();
+            g.setTranslate(new Vector3d(8 * (i % 2), 0, 8 * (i / 2)));
+            g.setRotate(new Vector3d(0, 40 * i, 10 * i));
+            g.setScale(new Vector3d(1, 0.5 + 0.25 * i, 1));
+            g.addSurface(new Mesh(md));
+            root.addSurface(g);
+        }
+        Matrix4d id = new Matrix4d();
+        root.setTransformation(id, id, id);
+        ArrayList<Surface> surfaces = new ArrayList<Surface>();
+        root.appendRenderableSurfaces(surfaces);
+        return surfaces.toArray(new Surface[surfaces.size()]);
+    }
+
+    @Test
+    public void testPackedMeshLetsGoOfItsData() throws Exception {
+        Mesh mesh = new Mesh(new OBJMesh("data/meshes/teapot.obj"));
+        mesh.setStorage("packed");
+        Matrix4d id = new Matrix4d();
+        mesh.setTransformation(id, id, id);
+        ArrayList<Surface> first = new ArrayList<Surface>(), second = new ArrayList<Surface>();
+        mesh.appendRenderableSurfaces(first);
+        assertNull("The OBJMesh should be dropped once it is packed.", mesh.getMesh());
+
+        // Initializing the scene again reuses the soup
+        mesh.appendRenderableSurfaces(second);
+        assertEquals(1, second.size());
+        assertSame(first.get(0), second.get(0));
+    }
+
+    private static Surface[] renderable(OBJMesh md, String storage, Matrix4d tmat, Matrix4d tmatInv, Matrix4d tmatTInv) {
+        Mesh mesh = new Mesh(md);
+        mesh.setStorage(storage);
+        mesh.setTransformation(tmat, tmatInv, tmatTInv);
+        ArrayList<Surface> surfaces = new ArrayList<Surface>();
+        mesh.appendRenderableSurfaces(surfaces);
+        return surfaces.toArray(new Surface[surfaces.size()]);
+    }
+}
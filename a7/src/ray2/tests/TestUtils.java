@@ -16,7 +16,12 @@ import egl.math.Colord;
 import egl.math.Vector2d;
 import egl.math.Vector3d;
 import javafx.util.Pair;
+import ray2.Image;
 import ray2.Ray;
+import ray2.Scene;
+import ray2.camera.PerspectiveCamera;
+import ray2.integrator.Integrator;
+import ray2.surface.Sphere;
 
 public class TestUtils {
     public static final double EPSILON_D = 1e-6;
@@ -45,6 +50,26 @@ public class TestUtils {
         assertTrue(Math.abs(d0 - d1)< EPSILON_D);
     }
 
+	/**
+	 * The scene the renderer tests share: a unit sphere 4 units in front of
+	 * the default PerspectiveCamera, on a gray background, with a width x
+	 * height image.  Set anything else the test needs, then call init().
+	 *
+	 * @param integrator the integrator, or null for the default one
+	 */
+	public static Scene sphereScene(Integrator integrator, int width, int height) {
+		Scene scene = new Scene();
+		scene.setCamera(new PerspectiveCamera());
+		Sphere sphere = new Sphere();
+		sphere.setCenter(new Vector3d(0, 0, -4));
+		scene.addSurface(sphere);
+		if (integrator != null)
+			scene.setIntegrator(integrator);
+		scene.setBackColor(new Colord(0.5, 0.5, 0.5));
+		scene.setImage(new Image(width, height));
+		return scene;
+	}
+
 	static UnivariateFunction bind(BiFunction<Double, Double, Double> fn, double x) {
 		return (y) -> fn.apply(x, y);
 	}
@@ -109,17 +109,19 @@ public class PanelDisplay extends JPanel {
 			bufferedImage = new BufferedImage(image.getWidth(), image.getHeight(), BUFFER_TYPE);
 		}
 		
-		//int w = image.getWidth();
+		int w = image.getWidth();
 		int h = image.getHeight();
+		float[] data = image.getData();
 		Colord pixelColor = new Colord();
+		int[] row = new int[xh - xl];
 		for (int y = h-yh; y < h-yl; y++) {
-			for (int x = xl; x < xh; x++) {
-				image.getPixelColor(pixelColor,x,h-y-1);
+			for (int x = xl, i = 3 * ((h-y-1) * w + xl); x < xh; x++, i += 3) {
+				pixelColor.set(data[i], data[i+1], data[i+2]);
 				// pixelColor.gammaCorrect(2.2);
 				pixelColor.To_sRGB();
-				int rgb = pixelColor.toColor().toIntRGB();
-				bufferedImage.setRGB(x,y,rgb);
+				row[x - xl] = pixelColor.toColor().toIntRGB();
 			}
+			bufferedImage.setRGB(xl, y, xh - xl, 1, row, 0, xh - xl);
 		}
 	}
 	